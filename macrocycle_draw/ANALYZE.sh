@@ -8,7 +8,12 @@ javac -Xlint:all -Xmaxerrs 5 -cp .:lib/* Analysis.java
 if [ $? -eq 0 ]; then
     echo Compiled.
     
-    java -Xmx30g -XX:ParallelGCThreads=8 -cp .:lib/* Analysis $1
+    # with no arguments, every folder in output/ is analyzed in one process
+    if [ $# -eq 0 ]; then
+        java -Xmx16g -XX:ParallelGCThreads=8 -cp .:lib/* Analysis
+    else
+        java -Xmx2g -XX:ParallelGCThreads=8 -cp .:lib/* Analysis "$@"
+    fi
 fi
 
 rm -f *.class
@@ -1,199 +1,410 @@
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import com.google.common.collect.*;
 import org.apache.commons.math3.geometry.euclidean.threed.*;
 
 /**
 * Handles the analysis of a .mae output.  This output file should contain
 * multiple structures from a minimization of macrocycle conformations.
-* The class will read in these geometries and energies, then produce
-* .gjf files of the conformations.  Also, a list of the structures by
-* energy and by inter(thio)urea distances will be produced.
+* The class will read in these geometries and energies, then store the
+* conformations in a single ConformerArchive.  Also, a list of the structures by
+* energy and by inter(thio)urea distances will be produced.<p>
+* Gaussian .gjf files are only written on demand for selected conformations:
+* "Analysis NAME gjf 1 5 10-20" writes them to output/NAME/gjf/ in subfolders
+* of one thousand conformations each.
 */
 public abstract class Analysis
 {
+    /** Boltzmann constant times 298.15 K, in kcal/mol. */
+    public static final double KT = 0.5925;
+
+    /** Batch analyses may use this fraction of the maximum heap. */
+    public static final double MEMORY_FRACTION = 0.75;
+
+    /** Memory is budgeted in units of this many bytes. */
+    private static final long MEGABYTE = 1024L * 1024L;
+
+    /** Each atom of a structure in a .mae file takes at least this many characters. */
+    private static final long MINIMUM_ATOM_LINE_LENGTH = 40L;
+
     public static void main(String[] args)
     {
-        List<Catalyst> conformations = new ArrayList<>();
-        List<Double> energies = new ArrayList<>();
-        List<List<Double>> distances = new ArrayList<>();
-        List<String> distanceIdentifiers = new ArrayList<>();
+        // analyze every folder in output/ if no name is given
+        if ( args.length == 0 )
+            {
+                analyzeAll();
+                return;
+            }
 
         String filename = args[0];
-        // read the .mae from the appropriate folder
-        MAEFile m = new MAEFile(Settings.WORKING_DIRECTORY + "output/" + filename + "/" + filename + "-csearch-min.mae");
 
-        // deserialize catalyst
+        // write gaussian input files for selected conformations
+        if ( args.length > 1 && args[1].equals("gjf") )
+            {
+                writeGaussianInputFiles(filename, getArchiveFilename(filename), Arrays.copyOfRange(args, 2, args.length));
+                return;
+            }
+
+        analyze(filename, true);
+    }
+
+    /**
+     * Returns the location of the conformer archive for a catalyst.
+     */
+    public static String getArchiveFilename(String filename)
+    {
+        return Settings.WORKING_DIRECTORY + "output/" + filename + "/" + filename + "-conformers.dat";
+    }
+
+    /**
+     * Returns the location of the minimized conformational search results for a catalyst.
+     * The minimized structures are left compressed by RUN_ONE.sh, but older runs unpacked them.
+     */
+    public static String getMAEFilename(String filename)
+    {
+        String maeFilename = Settings.WORKING_DIRECTORY + "output/" + filename + "/" + filename + "-csearch-min.maegz";
+        if ( ! new File(maeFilename).exists() )
+            maeFilename = Settings.WORKING_DIRECTORY + "output/" + filename + "/" + filename + "-csearch-min.mae";
+        return maeFilename;
+    }
+
+    /**
+     * Reads the catalyst for a conformational search.  Catalysts are stored in output/NAME/catalyst.dat,
+     * but older runs used Java serialization in catalyst.ser, which is read if there is no catalyst.dat.
+     * @param filename the name of the catalyst
+     * @return the catalyst
+     */
+    public static Catalyst readCatalyst(String filename)
+    {
+        String directory = Settings.WORKING_DIRECTORY + "output/" + filename + "/";
+        if ( new File(directory + "catalyst.dat").exists() )
+            return CatalystCodec.readFromDisk(directory + "catalyst.dat");
+
         Catalyst c = null;
-        try
-        {
-            FileInputStream fileIn = new FileInputStream(Settings.WORKING_DIRECTORY + 
-                "output/" + filename + "/catalyst.ser");
-            ObjectInputStream in = new ObjectInputStream(fileIn);
-            c = (Catalyst) in.readObject();
-            in.close();
-            fileIn.close();
-        }
-        catch(IOException i)
-        {
-            i.printStackTrace();
-        }
-        catch(ClassNotFoundException e)
-        {
-            System.out.println("Unable to find catalyst.ser!");
-        }
-
-        // read conformations
-        int counter = 0;
-        for ( List<Vector3D> geom : m.geometries )
-            {
-                // map the new conformation to the catalyst and print out gjfs
-                Map<Atom,Atom> atomMap = new HashMap<>();
-                if ( c.contents.size() != geom.size())
-                    throw new IllegalArgumentException("Sizes of molecules do not match!");
-                for ( int i = 0; i < c.contents.size(); i++ )
-                    atomMap.put(c.getAtom(i+1), c.getAtom(i+1).moveAtom(geom.get(i)));
-                c = c.moveAtoms(atomMap).setName(String.format("%05d", ++counter));
-
-                conformations.add(c);
-                String moleculeName = filename + String.format("%05d", counter);
-                GaussianInputFile file = new GaussianInputFile(c, c.name, 
-                    "#p opt m062x geom=connect scrf=(solvent=benzene) freq");
-                file.write(Settings.WORKING_DIRECTORY + "output/" + filename + "/" + moleculeName + ".gjf");
-            }
-
-        // read energies
-        energies = new ArrayList<Double>(m.energies);
-
-        // read inter(thio)urea distances
-        // first, find pairs of (thio)ureas
-        // then, we add an identifier to distanceIdentifiers
-        // and all the distances are added to the list
+        try ( ObjectInputStream in = new ObjectInputStream(new FileInputStream(directory + "catalyst.ser")) )
+            {
+                c = (Catalyst)in.readObject();
+            }
+        catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        catch (ClassNotFoundException e)
+            {
+                System.out.println("Unable to find catalyst.ser!");
+            }
+        if ( c == null )
+            throw new IllegalArgumentException("unable to read catalyst for " + filename);
+        return c;
+    }
+
+    /**
+     * Analyzes the conformational search results for one catalyst.  This writes the conformer archive and
+     * the energy and analysis reports in output/NAME/.
+     * @param filename the name of the catalyst
+     * @param echo whether to print the reports to the console as well
+     * @return the energies and inter-urea distances of the conformations
+     */
+    public static ConformerTable analyze(String filename, boolean echo)
+    {
+        String archiveFilename = getArchiveFilename(filename);
+
+        // read the catalyst
+        Catalyst c = readCatalyst(filename);
+
+        // find pairs of (thio)ureas whose distances will be measured
+        // the identifiers are the descriptor names in the table
         List<Fragment> fragments = c.fragmentList;
+        List<String> distanceIdentifiers = new ArrayList<>();
+        List<Integer> fromIndices = new ArrayList<>();
+        List<Integer> toIndices = new ArrayList<>();
         for ( int i = 0; i < fragments.size(); i++)
             for ( int j = i; j < fragments.size(); j++)
                 if ( !( fragments.get(i).ureaCarbon.element.equals(Element.DUMMY)
                         || fragments.get(j).ureaCarbon.element.equals(Element.DUMMY)) && (i!=j) )
                     {
-                        distanceIdentifiers.add("C"+ c.getAtomNumber(fragments.get(i).ureaCarbon) + "-C" 
-                                            + c.getAtomNumber(fragments.get(j).ureaCarbon) + " distance");
-                        
-                        List<Double> tempDistances = new ArrayList<>();
-                        for ( Catalyst cat : conformations )
-                            tempDistances.add(Vector3D.distance(
-                                        cat.fragmentList.get(i).ureaCarbon.position,
-                                        cat.fragmentList.get(j).ureaCarbon.position));
-                    
-                        distances.add(tempDistances);
+                        int fromNumber = c.getAtomNumber(fragments.get(i).ureaCarbon);
+                        int toNumber = c.getAtomNumber(fragments.get(j).ureaCarbon);
+                        distanceIdentifiers.add("C" + fromNumber + "-C" + toNumber + " distance");
+                        fromIndices.add(fromNumber - 1);
+                        toIndices.add(toNumber - 1);
                     }
+        ConformerTable table = new ConformerTable(distanceIdentifiers);
 
-        // copies of unsorted lists for reference
-        final List<Catalyst> conformations2 = conformations;
-        final List<List<Double>> distances2 = distances;
-        final List<Double> energies2 = energies;
-        
-        // sort by energies
-        Collections.sort(conformations,
-            new Comparator<Catalyst>(){
-                public int compare(Catalyst c1, Catalyst c2){
-                    return Double.compare(energies2.get(conformations2.indexOf(c1)),
-                                           energies2.get(conformations2.indexOf(c2)));
-                }
-            });
-
-        for ( int n = 0; n < distances.size(); n++ )
-        {
-            final int n2 = n; // you didn't see this
-            Collections.sort( distances.get(n), 
-                new Comparator<Double>(){
-                    public int compare(Double d1, Double d2){
-                        return Double.compare(energies2.get(distances2.get(n2).indexOf(d1)),
-                                                energies2.get(distances2.get(n2).indexOf(d2)));
-                    }
-                });
-        }
-
-        Collections.sort(energies);
-
-        // write to file
-        String fileString = "Conformation Number\tEnergy\t";
-        for ( String s : distanceIdentifiers)
-            fileString = fileString + "\t" + s;
-
-        for ( int i = 0; i < energies.size(); i++ )
-        {
-            fileString = fileString + "\n";
-            fileString = fileString + conformations.get(i).name + "\t\t\t\t";
-            fileString = fileString + String.format("%10.6f", energies.get(i)) + "\t";
-            for ( int j = 0; j < distances.size(); j++ )
-                fileString = fileString + String.format("%-10.6f", distances.get(j).get(i)) + "\t";
-        }
-        System.out.println(fileString);
-        try {
-            PrintWriter writer = new PrintWriter(Settings.WORKING_DIRECTORY + "/output/" + filename + "/energy");
-            writer.println(fileString);
-            writer.close();
-        }
-        catch(IOException e)
-        {
-            e.printStackTrace();
-        }
-
-        // sort by distances
-        for ( int n = 0; n < distances.size(); n++)
-        {
-            final int n2 = n; // somewhat suspicious, but please ignore
-            Collections.sort(conformations,
-                new Comparator<Catalyst>(){
-                    public int compare(Catalyst c1, Catalyst c2){
-                        return Double.compare(distances2.get(n2).get(conformations2.indexOf(c1)),
-                                              distances2.get(n2).get(conformations2.indexOf(c2)));
+        // the heavy atoms are used to find duplicate conformations
+        ConformerClustering clustering = new ConformerClustering(ConformerClustering.getHeavyAtomNumbers(c));
+        List<double[]> clusteringCoordinates = new ArrayList<>();
+
+        // read conformations and energies from the .mae in the appropriate folder
+        // structures are streamed from the file one at a time
+        int counter = 0;
+        try ( MAEReader reader = new MAEReader(getMAEFilename(filename));
+              ConformerArchive.Writer archive = new ConformerArchive.Writer(archiveFilename, c) )
+            {
+                while ( reader.hasNext() )
+                    {
+                        MAEReader.Structure structure = reader.next();
+                        List<Vector3D> geom = structure.geometry;
+                        if ( c.contents.size() != geom.size())
+                            throw new IllegalArgumentException("Sizes of molecules do not match!");
+
+                        // the geometry is in the same order as the atoms in the catalyst
+                        double[] distances = new double[distanceIdentifiers.size()];
+                        for ( int i = 0; i < distances.length; i++ )
+                            distances[i] = Vector3D.distance(geom.get(fromIndices.get(i)), geom.get(toIndices.get(i)));
+
+                        table.add(String.format("%05d", ++counter), structure.energy, distances);
+                        archive.add(structure.energy, geom);
+                        clusteringCoordinates.add(clustering.getCoordinates(geom));
                     }
-                });
-    
-            Collections.sort(energies, 
-                new Comparator<Double>(){
-                    public int compare(Double d1, Double d2){
-                        return Double.compare(distances2.get(n2).get(energies2.indexOf(d1)),
-                                                    distances2.get(n2).get(energies2.indexOf(d2)));
+            }
+
+        // find the unique conformations
+        double[] energies = new double[table.size()];
+        for ( int i = 0; i < energies.length; i++ )
+            energies[i] = table.getEnergy(i);
+        ConformerClustering.Result clusters = clustering.cluster(energies, clusteringCoordinates);
+        System.out.println(filename + ": " + clusters);
+        writeUniqueReport(table, clusters, Settings.WORKING_DIRECTORY + "/output/" + filename + "/unique");
+
+        // write the conformations in order of energy
+        int[] energyOrder = table.sortByEnergy();
+        writeReport(table, energyOrder, Settings.WORKING_DIRECTORY + "/output/" + filename + "/energy", false, echo);
+
+        // write the conformations in order of each distance
+        for ( int n = 0; n < distanceIdentifiers.size(); n++ )
+            writeReport(table, table.sortByDescriptor(n, energyOrder), Settings.WORKING_DIRECTORY + "/output/" + filename + "/analysis", true, echo);
+        return table;
+    }
+
+    /**
+     * Writes the unique conformations in order of energy, with the number of conformations each represents.
+     */
+    private static void writeUniqueReport(ConformerTable table, ConformerClustering.Result clusters, String reportFilename)
+    {
+        try ( PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(reportFilename))) )
+            {
+                writer.print("Conformation Number\tEnergy\tCluster Size");
+                for (Map.Entry<Integer,Integer> entry : clusters.getClusterSizes().entrySet())
+                    {
+                        int row = entry.getKey();
+                        writer.print("\n" + table.getName(row) + "\t\t\t\t");
+                        writer.print(String.format("%10.6f", table.getEnergy(row)) + "\t" + entry.getValue());
                     }
-                });
+                writer.println();
+            }
+        catch (IOException e)
+            {
+                System.out.println("Error writing to " + reportFilename + "!");
+                e.printStackTrace();
+            }
+    }
+
+    /**
+     * Reads the conformation numbers from the unique report.
+     */
+    private static List<Integer> readUniqueReport(String reportFilename)
+    {
+        List<Integer> numbers = new ArrayList<>();
+        try ( LineTokenizer tokenizer = new LineTokenizer(reportFilename) )
+            {
+                // skip the header
+                tokenizer.nextLine();
+                while ( tokenizer.nextLine() )
+                    if ( tokenizer.fieldCount() > 0 )
+                        numbers.add(tokenizer.getInt(0));
+            }
+        return numbers;
+    }
+
+    /**
+     * Writes a report to a file and optionally the console.
+     */
+    private static void writeReport(ConformerTable table, int[] order, String reportFilename, boolean append, boolean echo)
+    {
+        if ( echo )
+            {
+                PrintWriter console = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+                table.writeReport(console, order);
+                console.flush();
+            }
+        table.writeReport(reportFilename, order, append);
+    }
+
+    /**
+     * Analyzes every folder in output/ that has conformational search results, several at a time.
+     * Each analysis reserves an estimate of the memory it needs from a shared budget before it starts.
+     * A summary of all the catalysts is written to output/summary.
+     */
+    public static void analyzeAll()
+    {
+        // find the catalysts to analyze
+        List<String> filenames = new ArrayList<>();
+        File[] directories = new File(Settings.WORKING_DIRECTORY + "output/").listFiles();
+        if ( directories == null )
+            throw new IllegalArgumentException("output folder not found");
+        for (File directory : directories)
+            {
+                String filename = directory.getName();
+                if ( directory.isDirectory() && ( new File(directory, "catalyst.dat").exists() || new File(directory, "catalyst.ser").exists() ) &&
+                     new File(getMAEFilename(filename)).exists() )
+                    filenames.add(filename);
+            }
+        Collections.sort(filenames);
+        System.out.println(String.format("Analyzing %d catalysts with %d threads.", filenames.size(), Settings.NUMBER_OF_THREADS));
 
-            for ( int m1 = 0; m1 < distances.size(); m1++)
+        // submit the jobs
+        final int budget = (int)Math.max(1L, (long)(Runtime.getRuntime().maxMemory() * MEMORY_FRACTION) / MEGABYTE);
+        final Semaphore memory = new Semaphore(budget);
+        ExecutorService executor = Executors.newFixedThreadPool(Settings.NUMBER_OF_THREADS);
+        Map<String,Future<ConformerTable>> futures = new LinkedHashMap<>();
+        for (final String filename : filenames)
             {
-                final int m2 = m1;
-                Collections.sort(distances.get(m1),
-                    new Comparator<Double>(){
-                        public int compare(Double d1, Double d2){
-                            return Double.compare(distances2.get(n2).get(distances2.get(m2).indexOf(d1)),
-                                                    distances2.get(n2).get(distances2.get(m2).indexOf(d2)));
+                final int needed = (int)Math.min(budget, estimateMemory(filename));
+                futures.put(filename, executor.submit(new Callable<ConformerTable>()
+                    {
+                        public ConformerTable call()
+                        {
+                            memory.acquireUninterruptibly(needed);
+                            try
+                                {
+                                    return analyze(filename, false);
+                                }
+                            finally
+                                {
+                                    memory.release(needed);
+                                }
                         }
-                    });
+                    }));
+            }
+        executor.shutdown();
+
+        // collect the results, skipping catalysts whose analysis failed
+        Map<String,ConformerTable> tables = new LinkedHashMap<>();
+        for (Map.Entry<String,Future<ConformerTable>> entry : futures.entrySet())
+            {
+                try
+                    {
+                        tables.put(entry.getKey(), entry.getValue().get());
+                        System.out.println(entry.getKey() + " analyzed.");
+                    }
+                catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                catch (ExecutionException e)
+                    {
+                        System.out.println("Error analyzing " + entry.getKey() + "!");
+                        e.getCause().printStackTrace();
+                    }
             }
 
-            // write to file
-            fileString = "Conformation Number\tEnergy\t";
-            for ( String s : distanceIdentifiers)
-                fileString = fileString + "\t" + s;
+        String summary = getSummary(tables);
+        System.out.println(summary);
+        InputFileFormat.writeStringToDisk(summary, Settings.WORKING_DIRECTORY + "output/summary");
+    }
 
-            for ( int i = 0; i < energies.size(); i++ )
+    /**
+     * Estimates how much memory it takes to analyze a catalyst.  The table of results is much smaller than
+     * the text, but the reader's buffers and the structure being parsed need some room too.  The clustering
+     * keeps the heavy-atom coordinates of every conformation, 24 bytes per atom, until the end.  The number
+     * of conformations is at most the size of the text over the shortest line an atom can have.  A large
+     * compressed file also holds several decompressed members in memory (see GzipFiles.getReadMemory).
+     * @param filename the name of the catalyst
+     * @return the estimate in megabytes
+     */
+    private static long estimateMemory(String filename)
+    {
+        String maeFilename = getMAEFilename(filename);
+        long bytes = new File(maeFilename).length();
+        if ( GzipFiles.isGzipName(maeFilename) )
+            bytes *= 4L;
+        long estimate = bytes / 8L + GzipFiles.getReadMemory(maeFilename);
+        try
             {
-                fileString = fileString + "\n";
-                fileString = fileString + conformations.get(i).name + "\t\t\t\t";
-                fileString = fileString + String.format("%10.6f", energies.get(i)) + "\t";
-                for ( int j = 0; j < distances.size(); j++ )
-                fileString = fileString + String.format("%-10.6f", distances.get(j).get(i)) + "\t";
+                Catalyst c = readCatalyst(filename);
+                long conformations = bytes / ( MINIMUM_ATOM_LINE_LENGTH * c.contents.size() );
+                estimate += conformations * ConformerClustering.getHeavyAtomNumbers(c).size() * 24L;
             }
-            System.out.println(fileString);
-            try {
-                PrintWriter writer = new PrintWriter(new FileOutputStream(new File(Settings.WORKING_DIRECTORY + "/output/" + filename + "/analysis"), true));
-                writer.println(fileString);
-                writer.close();
+        catch (IllegalArgumentException e)
+            {
+                // analyze() will report that the catalyst cannot be read
             }
-            catch(IOException e)
+        return 16L + estimate / MEGABYTE;
+    }
+
+    /**
+     * Makes a table with the lowest energy and Boltzmann-weighted inter-urea distances of each catalyst.
+     * @param tables the results for each catalyst
+     * @return the tab-delimited summary
+     */
+    public static String getSummary(Map<String,ConformerTable> tables)
+    {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("Catalyst\tConformations\tLowest Energy\tBoltzmann-Weighted Distances (kT = %.4f)\n", KT));
+        for (Map.Entry<String,ConformerTable> entry : tables.entrySet())
             {
-                e.printStackTrace();
+                ConformerTable table = entry.getValue();
+                builder.append(entry.getKey() + "\t" + table.size() + "\t");
+                builder.append(String.format("%10.6f", table.getLowestEnergy()));
+                for (int i=0; i < table.descriptorNames.size(); i++)
+                    builder.append(String.format("\t%s\t%-10.6f", table.descriptorNames.get(i), table.getBoltzmannAverage(i, KT)));
+                builder.append("\n");
+            }
+        return builder.toString();
+    }
+
+    /**
+     * Writes Gaussian input files for some of the conformations in an archive.  Files are placed in
+     * output/NAME/gjf/000/, output/NAME/gjf/001/, etc., with one thousand conformations per folder.
+     * @param filename the name of the catalyst
+     * @param archiveFilename the location of the conformer archive
+     * @param selections conformation numbers starting from one, like "5", ranges like "10-20", or "unique"
+     *                   for the unique conformations found during analysis
+     */
+    public static void writeGaussianInputFiles(String filename, String archiveFilename, String[] selections)
+    {
+        // expand the selections into conformation numbers
+        List<Integer> numbers = new ArrayList<>();
+        for (String selection : selections)
+            {
+                if ( selection.equals("unique") )
+                    {
+                        numbers.addAll(readUniqueReport(Settings.WORKING_DIRECTORY + "/output/" + filename + "/unique"));
+                        continue;
+                    }
+                String[] fields = selection.split("-");
+                int first = Integer.parseInt(fields[0]);
+                int last = fields.length > 1 ? Integer.parseInt(fields[1]) : first;
+                if ( first < 1 || first > last )
+                    throw new IllegalArgumentException("invalid selection " + selection);
+                for (int number = first; number <= last; number++)
+                    numbers.add(number);
+            }
+
+        try ( ConformerArchive archive = new ConformerArchive(archiveFilename) )
+            {
+                for (int number : numbers)
+                    {
+                        if ( number > archive.size() )
+                            throw new IllegalArgumentException(String.format("invalid conformation number %d (%d conformations)", number, archive.size()));
+                        String directory = String.format("%soutput/%s/gjf/%03d/", Settings.WORKING_DIRECTORY, filename, (number - 1) / 1000);
+                        new File(directory).mkdirs();
+                        String moleculeName = filename + String.format("%05d", number);
+                        Molecule molecule = archive.getMolecule(number-1, String.format("%05d", number));
+                        String gjfFilename = directory + moleculeName + ".gjf";
+                        try ( Writer writer = InputFileFormat.openWriter(gjfFilename) )
+                            {
+                                GaussianInputFile.write(molecule, molecule.name, "#p opt m062x geom=connect scrf=(solvent=benzene) freq", writer);
+                            }
+                        catch (IOException e)
+                            {
+                                System.out.println("Error writing to " + gjfFilename + "!");
+                                e.printStackTrace();
+                            }
+                    }
             }
-        }
-    }              
+    }
 }
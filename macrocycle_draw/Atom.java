@@ -94,10 +94,23 @@ public class Atom implements Immutable, Serializable, Comparable<Atom>
     @Override
     public String toString()
     {
-        return String.format("%-2s %10.6f %10.6f %10.6f", element.symbol, position.getX(), position.getY(), position.getZ());
+        return appendTo(new StringBuilder(40)).toString();
         //return String.format("%-2s (%3d) %10.6f %10.6f %10.6f", element.symbol, tinkerAtomType, position.getX(), position.getY(), position.getZ());
     }
 
+    /**
+     * Appends the same text as toString() without calling String.format().
+     * @param builder where to append the description
+     * @return the builder
+     */
+    public StringBuilder appendTo(StringBuilder builder)
+    {
+        FixedWidthFormat.appendString(builder, element.symbol, 2, true).append(' ');
+        FixedWidthFormat.appendFixed(builder, position.getX(), 10, 6).append(' ');
+        FixedWidthFormat.appendFixed(builder, position.getY(), 10, 6).append(' ');
+        return FixedWidthFormat.appendFixed(builder, position.getZ(), 10, 6);
+    }
+
     /**
      * Returns the hash code.
      * @return the hash code
@@ -53,10 +53,10 @@ public class AtomTorsion extends AbstractTorsion
     /** returns an IndexTorsion version of this AtomTorsion */
     public IndexTorsion getIndexTorsion()
     {
-        int index1 = molecule.contents.indexOf(atom1) + 1;
-        int index2 = molecule.contents.indexOf(atom2) + 1;
-        int index3 = molecule.contents.indexOf(atom3) + 1;
-        int index4 = molecule.contents.indexOf(atom4) + 1;
+        int index1 = molecule.getAtomIndex(atom1) + 1;
+        int index2 = molecule.getAtomIndex(atom2) + 1;
+        int index3 = molecule.getAtomIndex(atom3) + 1;
+        int index4 = molecule.getAtomIndex(atom4) + 1;
 
         // check indices; if 0, then there's no such Atom
         if ( index1 == 0 || index2 == 0 || index3 == 0 || index4 == 0 )
@@ -64,7 +64,7 @@ public class AtomTorsion extends AbstractTorsion
 
         List<Integer> atomNumbersToRotate = new LinkedList<>();
         for (Atom a : atomsToRotate)
-            atomNumbersToRotate.add(molecule.contents.indexOf(a)+1);
+            atomNumbersToRotate.add(molecule.getAtomIndex(a)+1);
         atomNumbersToRotate = ImmutableList.copyOf(atomNumbersToRotate);
 
         return new IndexTorsion(index1, index2, index3, index4, atomNumbersToRotate);
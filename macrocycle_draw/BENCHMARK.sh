@@ -0,0 +1,12 @@
+# for linux
+# run from the main working directory, which must contain the input folder
+rm -f *.class
+javac -Xlint:all -Xmaxerrs 5 -cp .:lib/* Benchmarks.java
+
+
+if [ $? -eq 0 ]; then
+    echo Compiled.
+    java -Xmx4g -cp .:lib/* Benchmarks "$@"
+fi
+
+rm -f *.class
@@ -0,0 +1,463 @@
+import org.apache.commons.math3.distribution.*;
+import org.apache.commons.math3.geometry.euclidean.threed.*;
+import org.apache.commons.math3.stat.descriptive.*;
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+import com.google.common.collect.*;
+
+/**
+ * Times the hot paths in geometry, energy, cyclization, parsing, and writing on synthetic catalysts.<p>
+ * The catalysts are linear chains of alternating urea and LINKER_2 fragments from the input folder,
+ * grown until they have at least the requested number of atoms.  Each benchmark is warmed up and then
+ * measured for a number of timed iterations, as in JMH's average time mode.  The results are written
+ * as JSON in the layout of JMH's -rf json output, so the usual tools can compare two runs.<p>
+ * Usage: Benchmarks [-sizes 50,200,1000] [-filter REGEX] [-warmup N] [-iterations N] [-time MS] [-out FILE]
+ */
+public final class Benchmarks implements Singleton
+{
+    /** Default numbers of atoms in the synthetic catalysts. */
+    public static final String DEFAULT_SIZES = "50,200,1000";
+
+    /** Default number of untimed iterations. */
+    public static final int DEFAULT_WARMUP_ITERATIONS = 3;
+
+    /** Default number of timed iterations. */
+    public static final int DEFAULT_MEASUREMENT_ITERATIONS = 5;
+
+    /** Default length of each iteration in milliseconds. */
+    public static final long DEFAULT_ITERATION_TIME = 1000L;
+
+    /** Default JSON output file. */
+    public static final String DEFAULT_OUTPUT = "benchmark.json";
+
+    /** Number of pairs checked in one areSeparated operation. */
+    private static final int PAIR_SAMPLE = 1000;
+
+    /** Number of structures in the synthetic MAE file. */
+    private static final int MAE_STRUCTURES = 100;
+
+    /** Keeps benchmark results alive so the JIT cannot remove the work. */
+    private static volatile Object sink;
+
+    /** Not instantiable. */
+    private Benchmarks()
+    {
+        throw new IllegalArgumentException("Not instantiable!");
+    }
+
+    /**
+     * One timed operation.  Benchmarks that are too slow for large catalysts have an atom limit.
+     */
+    private abstract static class Benchmark
+    {
+        public final String name;
+        public final int maxAtoms;
+
+        public Benchmark(String name, int maxAtoms)
+        {
+            this.name = name;
+            this.maxAtoms = maxAtoms;
+        }
+
+        public Benchmark(String name)
+        {
+            this(name, Integer.MAX_VALUE);
+        }
+
+        /** Performs the operation once and returns something that depends on the result. */
+        public abstract Object run(Fixture f) throws Exception;
+    }
+
+    /**
+     * The inputs for one catalyst size, built once before timing.  This class is immutable.
+     */
+    private static class Fixture implements Immutable
+    {
+        /** The requested number of atoms. */
+        public final int requestedAtoms;
+
+        /** The linear catalyst. */
+        public final Catalyst catalyst;
+
+        /** The catalyst without its last fragment. */
+        public final Catalyst prefix;
+
+        /** The last fragment of the catalyst. */
+        public final Fragment lastFragment;
+
+        /** The rotatable bonds of the catalyst. */
+        public final List<IndexTorsion> torsions;
+
+        /** A torsion in the middle of the chain. */
+        public final IndexTorsion middleTorsion;
+
+        /** The catalyst with the middle torsion turned. */
+        public final Molecule rotated;
+
+        /** The heavy atom numbers, for superposition. */
+        public final List<Integer> heavyAtomNumbers;
+
+        /** Atom pairs for areSeparated, as zero-based indices. */
+        public final int[][] pairs;
+
+        /** The torsion model and packed coordinates of the catalyst. */
+        public final TorsionModel model;
+        public final double[] coordinates;
+
+        /** A synthetic MacroModel output file for the catalyst. */
+        public final String maeFilename;
+
+        public Fixture(int requestedAtoms, String maeFilename)
+        {
+            this.requestedAtoms = requestedAtoms;
+            Fragment urea = getFragment(FragmentType.UREA);
+            Fragment linker = getFragment(FragmentType.LINKER_2);
+
+            // grow a chain until it is large enough
+            Catalyst current = new Catalyst(urea);
+            Catalyst previous = null;
+            Fragment last = urea;
+            while ( current.contents.size() < requestedAtoms || previous == null )
+                {
+                    last = current.fragmentList.size() % 2 == 1 ? linker : urea;
+                    previous = current;
+                    current = current.addRight(last);
+                }
+            this.catalyst = current;
+            this.prefix = previous;
+            this.lastFragment = last;
+            this.torsions = catalyst.getTorsions();
+            this.middleTorsion = torsions.get(torsions.size() / 2);
+            this.rotated = catalyst.setDihedral(middleTorsion, middleTorsion.getDihedralAngle(catalyst) + 60.0);
+            this.heavyAtomNumbers = ConformerClustering.getHeavyAtomNumbers(catalyst);
+
+            Random random = new Random(requestedAtoms);
+            int size = catalyst.contents.size();
+            pairs = new int[PAIR_SAMPLE][];
+            for (int i=0; i < PAIR_SAMPLE; i++)
+                pairs[i] = new int[] { random.nextInt(size), random.nextInt(size) };
+
+            this.model = new TorsionModel(catalyst, catalyst.getTorsions(), null, null, 0.0);
+            this.coordinates = model.getCoordinates(catalyst);
+
+            this.maeFilename = maeFilename;
+            writeMAEFile(maeFilename, catalyst, random);
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%d atoms, %d torsions", catalyst.contents.size(), torsions.size());
+        }
+    }
+
+    /**
+     * Returns the first fragment of a type in the library.
+     */
+    private static Fragment getFragment(FragmentType type)
+    {
+        List<Fragment> fragments = FragmentLibrary.DATABASE.get(type);
+        if ( fragments == null || fragments.size() == 0 )
+            throw new IllegalArgumentException("benchmarks need a " + type + " fragment in " + Settings.INPUT_DIRECTORY);
+        return fragments.get(0);
+    }
+
+    /**
+     * Writes a MacroModel output file with one full block and partial blocks for jittered copies of a molecule.
+     * Only the fields that MAEFile reads are meaningful.
+     */
+    private static void writeMAEFile(String filename, Molecule molecule, Random random)
+    {
+        try ( Writer out = InputFileFormat.openWriter(filename) )
+            {
+                out.write("{\n  s_m_m2io_version\n  :::\n  2.0.0\n}\n\n");
+                for (int s=0; s < MAE_STRUCTURES; s++)
+                    {
+                        boolean full = s == 0;
+                        out.write(full ? "f_m_ct {\n" : "\np_m_ct {\n");
+                        for (int i=1; i < 12; i++)
+                            out.write("  key_" + i + "\n");
+                        out.write("  :::\n  title\n");
+                        out.write(String.format("  %.6f\n", 1000.0 * random.nextDouble() - 500.0));
+                        for (int i=15; i < 23; i++)
+                            out.write("  " + i + "\n");
+                        out.write(String.format("  %.6e\n", 0.1 * random.nextDouble()));
+                        out.write("  m_atom[" + molecule.contents.size() + "] {\n  :::\n  :::\n  :::\n");
+                        StringBuilder builder = new StringBuilder();
+                        for (int i=0; i < molecule.contents.size(); i++)
+                            {
+                                Vector3D v = molecule.contents.get(i).position;
+                                builder.setLength(0);
+                                builder.append("  ").append(i+1).append(full ? " 3" : "");
+                                FixedWidthFormat.appendFixed(builder.append(' '), v.getX() + 0.1 * random.nextGaussian(), 0, 6);
+                                FixedWidthFormat.appendFixed(builder.append(' '), v.getY() + 0.1 * random.nextGaussian(), 0, 6);
+                                FixedWidthFormat.appendFixed(builder.append(' '), v.getZ() + 0.1 * random.nextGaussian(), 0, 6);
+                                builder.append(full ? " 1 2\n" : "\n");
+                                out.write(builder.toString());
+                            }
+                        out.write("  :::\n  }\n}\n");
+                    }
+            }
+        catch (IOException e)
+            {
+                throw new IllegalArgumentException("error writing " + filename + ": " + e.getMessage());
+            }
+    }
+
+    /**
+     * Returns the benchmarks.
+     */
+    private static List<Benchmark> getBenchmarks()
+    {
+        List<Benchmark> benchmarks = new ArrayList<>();
+        benchmarks.add(new Benchmark("Molecule.getOPLSenergy")
+            {
+                public Object run(Fixture f) { return f.catalyst.getOPLSenergy(); }
+            });
+        benchmarks.add(new Benchmark("Molecule.areSeparated[" + PAIR_SAMPLE + "]")
+            {
+                public Object run(Fixture f)
+                {
+                    int count = 0;
+                    List<Atom> contents = f.catalyst.contents;
+                    for (int[] pair : f.pairs)
+                        if ( f.catalyst.areSeparated(contents.get(pair[0]), contents.get(pair[1])) )
+                            count++;
+                    return count;
+                }
+            });
+        benchmarks.add(new Benchmark("Molecule.setDihedral(IndexTorsion)")
+            {
+                public Object run(Fixture f) { return f.catalyst.setDihedral(f.middleTorsion, 75.0); }
+            });
+        benchmarks.add(new Benchmark("Molecule.getHalfGraph")
+            {
+                public Object run(Fixture f) { return f.catalyst.getHalfGraph(f.middleTorsion.index2, f.middleTorsion.index3); }
+            });
+        benchmarks.add(new Benchmark("Catalyst.addRight")
+            {
+                public Object run(Fixture f) { return f.prefix.addRight(f.lastFragment); }
+            });
+        benchmarks.add(new Benchmark("MonteCarlo.cyclize", 100)
+            {
+                public Object run(Fixture f)
+                {
+                    Catalyst c = f.catalyst;
+                    return MonteCarlo.cyclize(c, f.torsions, c.getAtomNumber(c.getLeftConnect()), c.getAtomNumber(c.getRightConnect()));
+                }
+            });
+        benchmarks.add(new Benchmark("Molecule.superimpose")
+            {
+                public Object run(Fixture f) { return Molecule.superimpose(f.catalyst, f.rotated, f.heavyAtomNumbers); }
+            });
+        benchmarks.add(new Benchmark("MAEFile")
+            {
+                public Object run(Fixture f) { return new MAEFile(f.maeFilename).geometries.size(); }
+            });
+        benchmarks.add(new Benchmark("MAEReader")
+            {
+                public Object run(Fixture f)
+                {
+                    int count = 0;
+                    try ( MAEReader reader = new MAEReader(f.maeFilename) )
+                        {
+                            while ( reader.hasNext() )
+                                count += reader.next().geometry.size();
+                        }
+                    return count;
+                }
+            });
+        benchmarks.add(new Benchmark("Molecule.toXYZString")
+            {
+                public Object run(Fixture f) { return f.catalyst.toXYZString(); }
+            });
+        benchmarks.add(new Benchmark("Molecule.toMOL2")
+            {
+                public Object run(Fixture f) { return f.catalyst.toMOL2(); }
+            });
+        benchmarks.add(new Benchmark("GaussianInputFile.write")
+            {
+                public Object run(Fixture f) throws IOException
+                {
+                    StringBuilder builder = new StringBuilder();
+                    GaussianInputFile.write(f.catalyst, f.catalyst.name, "#p opt", builder);
+                    return builder.length();
+                }
+            });
+        benchmarks.add(new Benchmark("TorsionModel.getEnergy")
+            {
+                public Object run(Fixture f) { return f.model.getEnergy(f.coordinates); }
+            });
+        benchmarks.add(new Benchmark("TorsionModel.getGradient")
+            {
+                public Object run(Fixture f) { return f.model.getGradient(f.coordinates, new double[f.model.torsions.size()]); }
+            });
+        benchmarks.add(new Benchmark("TorsionMinimizer.minimize")
+            {
+                public Object run(Fixture f)
+                {
+                    double[] coordinates = f.coordinates.clone();
+                    return TorsionMinimizer.minimize(f.model, coordinates, 50, 0.0);
+                }
+            });
+        return benchmarks;
+    }
+
+    /**
+     * Runs one benchmark and returns the average time per operation of each measured iteration, in microseconds.
+     */
+    private static double[] measure(Benchmark benchmark, Fixture fixture, int warmupIterations, int measurementIterations, long iterationTime) throws Exception
+    {
+        double[] scores = new double[measurementIterations];
+        for (int i=0; i < warmupIterations + measurementIterations; i++)
+            {
+                long operations = 0L;
+                long start = System.nanoTime();
+                long end = start + iterationTime * 1000000L;
+                long now = start;
+                while ( operations == 0L || now < end )
+                    {
+                        sink = benchmark.run(fixture);
+                        operations++;
+                        now = System.nanoTime();
+                    }
+                if ( i >= warmupIterations )
+                    scores[i - warmupIterations] = (now - start) / 1000.0 / operations;
+            }
+        return scores;
+    }
+
+    /**
+     * Formats one result like a JMH JSON record.
+     */
+    private static String toJSON(String name, Fixture fixture, int warmupIterations, long iterationTime, double[] scores)
+    {
+        DescriptiveStatistics statistics = new DescriptiveStatistics(scores);
+        double mean = statistics.getMean();
+        double error = Double.NaN;
+        if ( scores.length > 1 )
+            error = new TDistribution(scores.length - 1).inverseCumulativeProbability(0.9995) * statistics.getStandardDeviation() / Math.sqrt(scores.length);
+
+        StringBuilder builder = new StringBuilder();
+        builder.append("    {\n");
+        builder.append("        \"benchmark\" : \"").append(name).append("\",\n");
+        builder.append("        \"mode\" : \"avgt\",\n");
+        builder.append("        \"threads\" : 1,\n");
+        builder.append("        \"warmupIterations\" : ").append(warmupIterations).append(",\n");
+        builder.append("        \"warmupTime\" : \"").append(iterationTime).append(" ms\",\n");
+        builder.append("        \"measurementIterations\" : ").append(scores.length).append(",\n");
+        builder.append("        \"measurementTime\" : \"").append(iterationTime).append(" ms\",\n");
+        builder.append("        \"params\" : {\n");
+        builder.append("            \"size\" : \"").append(fixture.requestedAtoms).append("\",\n");
+        builder.append("            \"atoms\" : \"").append(fixture.catalyst.contents.size()).append("\",\n");
+        builder.append("            \"torsions\" : \"").append(fixture.torsions.size()).append("\"\n");
+        builder.append("        },\n");
+        builder.append("        \"primaryMetric\" : {\n");
+        builder.append("            \"score\" : ").append(toJSON(mean)).append(",\n");
+        builder.append("            \"scoreError\" : ").append(toJSON(error)).append(",\n");
+        builder.append("            \"scoreConfidence\" : [ ").append(toJSON(mean - error)).append(", ").append(toJSON(mean + error)).append(" ],\n");
+        builder.append("            \"scoreUnit\" : \"us/op\",\n");
+        builder.append("            \"rawData\" : [ [ ");
+        for (int i=0; i < scores.length; i++)
+            builder.append(i > 0 ? ", " : "").append(toJSON(scores[i]));
+        builder.append(" ] ]\n");
+        builder.append("        }\n");
+        builder.append("    }");
+        return builder.toString();
+    }
+
+    /**
+     * JSON has no NaN, so undefined numbers are written as strings like JMH does.
+     */
+    private static String toJSON(double value)
+    {
+        if ( Double.isNaN(value) || Double.isInfinite(value) )
+            return "\"NaN\"";
+        return Double.toString(value);
+    }
+
+    /**
+     * Runs the benchmarks and writes the JSON results.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        String sizes = DEFAULT_SIZES;
+        Pattern filter = Pattern.compile(".*");
+        int warmupIterations = DEFAULT_WARMUP_ITERATIONS;
+        int measurementIterations = DEFAULT_MEASUREMENT_ITERATIONS;
+        long iterationTime = DEFAULT_ITERATION_TIME;
+        String output = DEFAULT_OUTPUT;
+        for (int i=0; i < args.length; i++)
+            {
+                if ( i + 1 >= args.length )
+                    throw new IllegalArgumentException("missing value for " + args[i]);
+                String value = args[++i];
+                switch (args[i-1])
+                    {
+                        case "-sizes":      sizes = value;
+                                            break;
+                        case "-filter":     filter = Pattern.compile(value);
+                                            break;
+                        case "-warmup":     warmupIterations = Integer.parseInt(value);
+                                            break;
+                        case "-iterations": measurementIterations = Integer.parseInt(value);
+                                            break;
+                        case "-time":       iterationTime = Long.parseLong(value);
+                                            break;
+                        case "-out":        output = value;
+                                            break;
+                        default:
+                            throw new IllegalArgumentException("unknown option " + args[i-1]);
+                    }
+            }
+
+        // the code being timed prints progress, which would swamp the results
+        PrintStream console = System.out;
+        PrintStream quiet = new PrintStream(new OutputStream()
+            {
+                public void write(int b) {}
+                public void write(byte[] b, int off, int len) {}
+            });
+
+        List<Benchmark> benchmarks = getBenchmarks();
+        List<String> records = new ArrayList<>();
+        for (String size : sizes.split(","))
+            {
+                int requestedAtoms = Integer.parseInt(size.trim());
+                File maeFile = File.createTempFile("benchmark", ".mae");
+                maeFile.deleteOnExit();
+                System.setOut(quiet);
+                Fixture fixture = new Fixture(requestedAtoms, maeFile.getPath());
+                System.setOut(console);
+                console.println(String.format("Synthetic catalyst for size %d: %s", requestedAtoms, fixture));
+
+                for (Benchmark b : benchmarks)
+                    {
+                        if ( !filter.matcher(b.name).find() || fixture.catalyst.contents.size() > b.maxAtoms )
+                            continue;
+                        System.setOut(quiet);
+                        double[] scores;
+                        try
+                            {
+                                scores = measure(b, fixture, warmupIterations, measurementIterations, iterationTime);
+                            }
+                        finally
+                            {
+                                System.setOut(console);
+                            }
+                        records.add(toJSON(b.name, fixture, warmupIterations, iterationTime, scores));
+                        console.println(String.format("%-40s %6d %14.3f us/op", b.name, fixture.catalyst.contents.size(),
+                                                      new DescriptiveStatistics(scores).getMean()));
+                    }
+                maeFile.delete();
+            }
+
+        StringBuilder json = new StringBuilder("[\n");
+        for (int i=0; i < records.size(); i++)
+            json.append(records.get(i)).append(i < records.size() - 1 ? ",\n" : "\n");
+        json.append("]\n");
+        InputFileFormat.writeStringToDiskAtomically(json.toString(), output);
+        console.println("Results written to " + output + ".");
+    }
+}
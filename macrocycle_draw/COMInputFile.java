@@ -1,5 +1,6 @@
 import java.io.*;
 import java.util.*;
+import org.jgrapht.*;
 import org.jgrapht.alg.*;
 import org.jgrapht.graph.*;
 
@@ -8,7 +9,11 @@ import org.jgrapht.graph.*;
  * The class itself only stores the associated catalyst, but
  * the write method will write the parameters necessary to 
  * run a conformational search.  See the main program class
- * for organization of input and output files.
+ * for organization of input and output files.<p>
+ * The file is the conformational search template (csearch.com) with the input and output
+ * filenames filled in, followed by the lines for this catalyst.  The template is read once and
+ * the whole file is rendered in memory, so nothing here modifies the catalyst and many files
+ * can be written at the same time.
  */
 public class COMInputFile // does not extend InputFileFormat
 {
@@ -17,6 +22,9 @@ public class COMInputFile // does not extend InputFileFormat
      */
     public final Catalyst catalyst;
 
+    /** The template after its two filename lines, read the first time it is needed. */
+    private static String templateBody = null;
+
     /**
      * Constructs the .com file from a Catalyst.  Actually, this
      * does not do anything until you write the file to disk.
@@ -26,22 +34,46 @@ public class COMInputFile // does not extend InputFileFormat
         this.catalyst = catalyst;
     }
 
-    public void write(String filename)
+    /**
+     * Returns everything in csearch.com after the first two lines, which hold the input and output filenames.
+     */
+    private static synchronized String getTemplateBody()
     {
-        // First copy the header from the template file
-        try
-        {
-            Runtime runtime = Runtime.getRuntime();
-            String runString = Settings.WORKING_DIRECTORY + "make_csearch.sh "
-                + catalyst.name;
-            Process process = runtime.exec(runString);
-            int exitValue = process.waitFor();
-        }
-        catch (Exception e)
-        {
-            System.out.println("Error during creation of conf. search: ");
-            e.printStackTrace();
-        }
+        if ( templateBody == null )
+            {
+                String filename = Settings.WORKING_DIRECTORY + "csearch.com";
+                StringBuilder contents = new StringBuilder();
+                try ( Reader reader = new BufferedReader(new FileReader(filename)) )
+                    {
+                        char[] buffer = new char[4096];
+                        for (int read = reader.read(buffer); read > -1; read = reader.read(buffer))
+                            contents.append(buffer, 0, read);
+                    }
+                catch (IOException e)
+                    {
+                        throw new IllegalArgumentException("error reading " + filename + ": " + e.getMessage());
+                    }
+                int firstNewline = contents.indexOf("\n");
+                int secondNewline = firstNewline > -1 ? contents.indexOf("\n", firstNewline + 1) : -1;
+                if ( secondNewline == -1 )
+                    throw new IllegalArgumentException(filename + " must start with the input and output filenames");
+                templateBody = contents.substring(secondNewline + 1);
+            }
+        return templateBody;
+    }
+
+    /**
+     * Renders the whole .com file.
+     * @return the contents of the file
+     */
+    public String getCOMString()
+    {
+        StringBuilder builder = new StringBuilder(4096);
+
+        // the header comes from the template with the filenames filled in
+        builder.append(catalyst.name).append("-min.maegz\n");
+        builder.append("../output/").append(catalyst.name).append('/').append(catalyst.name).append("-csearch.maegz\n");
+        builder.append(getTemplateBody());
 
         //
         // Find comparison atoms, and add to file
@@ -57,91 +89,84 @@ public class COMInputFile // does not extend InputFileFormat
             heavyAtomIndices.add(0);
         
         for ( int i = 0; i < heavyAtomIndices.size(); i+=4 )
-            {
-                String writeString = toCOMLine("COMP", heavyAtomIndices.get(i),
-                    heavyAtomIndices.get(i+1), heavyAtomIndices.get(i+2),
-                    heavyAtomIndices.get(i+3), 0, 0, 0, 0);
-                InputFileFormat.appendStringToDisk("\n" + writeString, 
-                    Settings.WORKING_DIRECTORY + "/mae/"
-                    + catalyst.name + ".com");
-            }
+            builder.append('\n').append(toCOMLine("COMP", heavyAtomIndices.get(i),
+                heavyAtomIndices.get(i+1), heavyAtomIndices.get(i+2),
+                heavyAtomIndices.get(i+3), 0, 0, 0, 0));
 
         //
         // Find chiral atoms, and add to file
         //
-        List<Integer> chiralAtomIndices = new ArrayList<>();
         for ( Fragment f : catalyst.fragmentList )
             for ( Atom a : f.chiralAtoms )
-                chiralAtomIndices.add(catalyst.getAtomNumber(a));
-
-        for ( int i = 0; i < chiralAtomIndices.size(); i++)
-            InputFileFormat.appendStringToDisk("\n" + toCOMLine("CHIG",
-                chiralAtomIndices.get(i), 0, 0, 0, 0, 0, 0, 0), Settings.WORKING_DIRECTORY
-                + "/mae/" + catalyst.name + ".com");
+                builder.append('\n').append(toCOMLine("CHIG", catalyst.getAtomNumber(a), 0, 0, 0, 0, 0, 0, 0));
 
         //
         // Find torsions, and add to file
         //
-        List<IndexTorsion> torsions = catalyst.getLinearTorsions();
-        for ( IndexTorsion i : torsions )
-            InputFileFormat.appendStringToDisk("\n" + toCOMLine("TORS",
-                i.index2, i.index3, 0, 0, 0, 180, 0, 0), Settings.WORKING_DIRECTORY
-                + "/mae/" + catalyst.name + ".com");
+        for ( IndexTorsion i : catalyst.getLinearTorsions() )
+            builder.append('\n').append(toCOMLine("TORS", i.index2, i.index3, 0, 0, 0, 180, 0, 0));
 
         //
         // Add the ring closure
         //
-        SimpleWeightedGraph<Atom,DefaultWeightedEdge> tempConnectivity = catalyst.connectivity;
-        Atom leftConnect = catalyst.fragmentList.get(0).leftConnect;
-        Atom rightConnect = catalyst.fragmentList.get(catalyst.fragmentList.size()-1).rightConnect;
-        tempConnectivity.removeEdge(leftConnect,rightConnect);
-        List<DefaultWeightedEdge> shortestPath = DijkstraShortestPath.findPathBetween(tempConnectivity, leftConnect, rightConnect);
+        final Atom leftConnect = catalyst.fragmentList.get(0).leftConnect;
+        final Atom rightConnect = catalyst.fragmentList.get(catalyst.fragmentList.size()-1).rightConnect;
+        final DefaultWeightedEdge closure = catalyst.connectivity.getEdge(leftConnect, rightConnect);
+
+            // hide the ring closure bond instead of removing it from the catalyst
+        UndirectedGraph<Atom,DefaultWeightedEdge> openRing = new UndirectedMaskSubgraph<>(catalyst.connectivity, new MaskFunctor<Atom,DefaultWeightedEdge>()
+            {
+                public boolean isEdgeMasked(DefaultWeightedEdge edge)
+                {
+                    return edge == closure;
+                }
+
+                public boolean isVertexMasked(Atom atom)
+                {
+                    return false;
+                }
+            });
+        List<DefaultWeightedEdge> shortestPath = DijkstraShortestPath.findPathBetween(openRing, leftConnect, rightConnect);
 
         Atom leftConnectNext = null, rightConnectNext = null;
 
             // search for the ring atoms that are connected to leftConnect and rightConnect
         for ( DefaultWeightedEdge e : shortestPath )
             {
-                if ( tempConnectivity.getEdgeSource(e) == leftConnect )
-                    leftConnectNext = tempConnectivity.getEdgeTarget(e);
-                if ( tempConnectivity.getEdgeTarget(e) == leftConnect )
-                    leftConnectNext = tempConnectivity.getEdgeSource(e);
-                if ( tempConnectivity.getEdgeSource(e) == rightConnect )
-                    rightConnectNext = tempConnectivity.getEdgeTarget(e);
-                if ( tempConnectivity.getEdgeTarget(e) == rightConnect )
-                    rightConnectNext = tempConnectivity.getEdgeSource(e);
+                if ( openRing.getEdgeSource(e) == leftConnect )
+                    leftConnectNext = openRing.getEdgeTarget(e);
+                if ( openRing.getEdgeTarget(e) == leftConnect )
+                    leftConnectNext = openRing.getEdgeSource(e);
+                if ( openRing.getEdgeSource(e) == rightConnect )
+                    rightConnectNext = openRing.getEdgeTarget(e);
+                if ( openRing.getEdgeTarget(e) == rightConnect )
+                    rightConnectNext = openRing.getEdgeSource(e);
             }
-        InputFileFormat.appendStringToDisk("\n" + toCOMLine("RCA4", catalyst.getAtomNumber(leftConnectNext),
+        builder.append('\n').append(toCOMLine("RCA4", catalyst.getAtomNumber(leftConnectNext),
             catalyst.getAtomNumber(leftConnect), catalyst.getAtomNumber(rightConnect),
-            catalyst.getAtomNumber(rightConnectNext), 0.5, 2.5, 0, 0),
-            Settings.WORKING_DIRECTORY + "/mae/" + catalyst.name + ".com");
+            catalyst.getAtomNumber(rightConnectNext), 0.5, 2.5, 0, 0));
                   
         //
         // Add the footer
         //
-        InputFileFormat.appendStringToDisk("\n" + toCOMLine("CONV", 2, 0, 0, 0,
-            0.5, 0, 0, 0), Settings.WORKING_DIRECTORY + "/mae/" + catalyst.name
-            + ".com");
-        InputFileFormat.appendStringToDisk("\n" + toCOMLine("MINI", 1, 0, 1000, 0,
-            0, 0, 0, 0), Settings.WORKING_DIRECTORY + "/mae/" + catalyst.name + ".com");
-    
+        builder.append('\n').append(toCOMLine("CONV", 2, 0, 0, 0, 0.5, 0, 0, 0));
+        builder.append('\n').append(toCOMLine("MINI", 1, 0, 1000, 0, 0, 0, 0, 0));
+        return builder.toString();
+    }
+
+    /**
+     * Writes the .com file in one step and saves the catalyst to output/NAME/catalyst.dat.
+     * @param filename where to write the .com file, normally mae/NAME.com
+     */
+    public void write(String filename)
+    {
+        InputFileFormat.writeStringToDiskAtomically(getCOMString(), filename);
+
         //
-        // Serialize the Catalyst file
+        // Save the Catalyst file
         //
-        try
-        {
-            new File(Settings.WORKING_DIRECTORY + "/output/" + catalyst.name).mkdir();
-            FileOutputStream fileOut = new FileOutputStream(Settings.WORKING_DIRECTORY + 
-                "/output/" + catalyst.name + "/catalyst.ser");
-            ObjectOutputStream out = new ObjectOutputStream(fileOut);
-            out.writeObject(this.catalyst);
-            out.close();
-            fileOut.close();
-        }
-        catch(IOException i)
-        {
-            i.printStackTrace();
-        }
+        new File(Settings.WORKING_DIRECTORY + "/output/" + catalyst.name).mkdir();
+        CatalystCodec.writeToDisk(this.catalyst, Settings.WORKING_DIRECTORY + "/output/" + catalyst.name + "/catalyst.dat");
     }
 
     /** Formats a line for .com file.
@@ -158,8 +183,17 @@ public class COMInputFile // does not extend InputFileFormat
      */
     public static String toCOMLine(String command, int i1, int i2, int i3, int i4, double d1, double d2, double d3, double d4)
     {
-        String returnString = String.format("%4s%8d%7d%7d%7d%11.4f%11.4f%11.4f%11.4f", 
-                    command.toUpperCase(), i1, i2, i3, i4, d1, d2, d3, d4);
-        return (" " + returnString); // initial space is crucial
+        StringBuilder builder = new StringBuilder(81);
+        builder.append(' '); // initial space is crucial
+        FixedWidthFormat.appendString(builder, command.toUpperCase(), 4, false);
+        FixedWidthFormat.appendInt(builder, i1, 8);
+        FixedWidthFormat.appendInt(builder, i2, 7);
+        FixedWidthFormat.appendInt(builder, i3, 7);
+        FixedWidthFormat.appendInt(builder, i4, 7);
+        FixedWidthFormat.appendFixed(builder, d1, 11, 4);
+        FixedWidthFormat.appendFixed(builder, d2, 11, 4);
+        FixedWidthFormat.appendFixed(builder, d3, 11, 4);
+        FixedWidthFormat.appendFixed(builder, d4, 11, 4);
+        return builder.toString();
     }
 }
@@ -9,7 +9,7 @@ import Jama.*;
 
 /**
 * Represents a collection of connected fragments.  This class is effectively immutable
-* and serializable.
+* and serializable.  Serialized catalysts are written in the format of CatalystCodec.
 */
 public class Catalyst extends Molecule implements Immutable, Serializable
 {
@@ -78,8 +78,9 @@ public class Catalyst extends Molecule implements Immutable, Serializable
     {
         List<IndexTorsion> returnTorsions = new ArrayList<>();
 
-        for ( Fragment f : fragmentList )
+        for ( int i = 0; i < fragmentList.size(); i++ )
         {
+            Fragment f = fragmentList.get(i);
             for ( DefaultWeightedEdge e : f.rotatableBonds.edgeSet() )
                 {
                     Atom fromAtom = f.rotatableBonds.getEdgeSource(e);
@@ -96,10 +97,10 @@ public class Catalyst extends Molecule implements Immutable, Serializable
                     else
                         returnTorsions.add(IndexTorsion.createIndexTorsion(getAtomNumber(fromAtomNeighbors.get(0)), getAtomNumber(fromAtom), getAtomNumber(toAtom), getAtomNumber(toAtomNeighbors.get(0)), this));
                 }
-            if ( fragmentList.indexOf(f) + 1 < fragmentList.size() )
+            if ( i + 1 < fragmentList.size() )
                 {
                     Atom fromAtom = f.rightConnect;
-                    Atom toAtom = fragmentList.get(fragmentList.indexOf(f) + 1).leftConnect;
+                    Atom toAtom = fragmentList.get(i + 1).leftConnect;
                     
                     List<Atom> fromAtomNeighbors = new ArrayList<Atom>(this.getAdjacentAtoms(fromAtom));
                     List<Atom> toAtomNeighbors = new ArrayList<Atom>(this.getAdjacentAtoms(toAtom));
@@ -115,23 +116,41 @@ public class Catalyst extends Molecule implements Immutable, Serializable
     }
     
     /**
-     * Gets torsions from a cyclic catalyst.  Cuts the connection bond and returns the
-     * remaining torsions.
+     * Gets torsions from a cyclic catalyst.  Cuts the connection bond in a copy of the
+     * connectivity and returns the remaining torsions.  This catalyst is not modified.
      */
      public List<IndexTorsion> getLinearTorsions()
      {
-         this.connectivity.removeEdge(fragmentList.get(0).leftConnect, fragmentList.get(fragmentList.size()-1).rightConnect);
-         List<IndexTorsion> returnTorsions = getTorsions();
-         this.connectivity.addEdge(fragmentList.get(0).leftConnect, fragmentList.get(fragmentList.size()-1).rightConnect);
-         return returnTorsions;
+         Catalyst linearCatalyst = new Catalyst(name, contents, connectivity, fragmentList);
+         linearCatalyst.connectivity.removeEdge(getLeftConnect(), getRightConnect());
+         return linearCatalyst.getTorsions();
      }
 
     /**
-     * Cyclization method.  Returns a cyclized version of this catalyst.
+     * Cyclization method.  Returns a cyclized version of this catalyst.  If CYCLIZATION_CACHE is set, this
+     * starts from the closest catalyst in the CyclizationCache and anneals from a lower temperature.  If
+     * TORSION_PRIORS is set, some steps jump torsions to angles drawn from the TorsionPriors.
      */
      public Catalyst cyclize()
      {
-         Molecule m = MonteCarlo.cyclize(this, this.getTorsions(), getAtomNumber(this.getLeftConnect()), getAtomNumber(this.getRightConnect()));
+         Metrics.Timer timer = Metrics.timer("cyclization.time");
+         long startTime = timer.start();
+         MonteCarlo.Trace trace = Settings.MONTE_CARLO_TRACES ? new MonteCarlo.Trace() : null;
+         List<IndexTorsion> torsions = this.getTorsions();
+         int leftIndex = getAtomNumber(this.getLeftConnect());
+         int rightIndex = getAtomNumber(this.getRightConnect());
+         Molecule start = Settings.CYCLIZATION_CACHE ? CyclizationCache.warmStart(this, torsions, leftIndex, rightIndex) : null;
+         double temperature = start == null ? MonteCarlo.KT : Settings.CYCLIZATION_CACHE_TEMPERATURE;
+         TorsionPriors.Proposal proposal = Settings.TORSION_PRIORS ? TorsionPriors.getProposal(this, torsions) : null;
+         Molecule m = MonteCarlo.cyclize(start == null ? this : start, torsions, leftIndex, rightIndex, trace, temperature, proposal);
+         if ( Settings.CYCLIZATION_CACHE )
+             CyclizationCache.record(this, torsions, m, leftIndex, rightIndex);
+         timer.stop(startTime);
+         if ( trace != null )
+             {
+                 new File(Settings.MONTE_CARLO_TRACE_DIRECTORY).mkdirs();
+                 trace.writeBinary(Settings.MONTE_CARLO_TRACE_DIRECTORY + name + ".trace");
+             }
          Map<Atom,Atom> atomMap = this.matchMap(m);
          // create the new bond
          DefaultWeightedEdge e = connectivity.addEdge(this.getLeftConnect(), this.getRightConnect());
@@ -453,6 +472,15 @@ public class Catalyst extends Molecule implements Immutable, Serializable
         return shift(barycenter.negate());
     }
 
+    /**
+     * Serializes this Catalyst with CatalystCodec instead of the default mechanism.
+     * @return a proxy holding the encoded catalyst
+     */
+    private Object writeReplace()
+    {
+        return new CatalystCodec.SerializationProxy(this);
+    }
+
     /**
      * Returns the hash code of this Catalyst.
      * @return the hash code
@@ -0,0 +1,376 @@
+import java.io.*;
+import java.util.*;
+import org.apache.commons.math3.geometry.euclidean.threed.*;
+import org.jgrapht.graph.*;
+
+/**
+ * Reads and writes catalysts in a compact, versioned binary format.  This replaces default Java
+ * serialization, which walks every Atom, Vector3D, and graph object.  Here the topology is written as
+ * arrays of atom indices, and each fragment is described by the number of atoms it contributes to the
+ * catalyst (fragments occupy consecutive ranges of the atom list) and the indices of its special atoms.<p>
+ * The body is a sequence of tagged sections, each prefixed by its length.  Readers skip sections they do
+ * not recognize, so new sections can be added without breaking old readers.  The version number is only
+ * changed if an existing section changes incompatibly.
+ * <pre>
+ * int magic, int version
+ * sections: int tag, int length, bytes; ends with TAG_END
+ * NAME:      UTF name
+ * ATOMS:     int atoms, (UTF element, int tinker type, double x, y, z) per atom
+ * BONDS:     int bonds, (int from, int to, double order) per bond, atom indices starting from zero
+ * FRAGMENTS: int fragments, per fragment: UTF name, int atoms, UTF fragment type, left connect,
+ *            right connect, urea carbon, int chiral atoms, chiral atoms, int rotatable bonds,
+ *            (from, to, double order) per rotatable bond
+ * </pre>
+ * Atom references are indices into the catalyst atom list, or -1 followed by an inline atom for
+ * atoms that are not in the catalyst (like the dummy urea carbon of a linker).<p>
+ * Catalyst uses this format for Java serialization through SerializationProxy, so catalysts inside
+ * WorkUnits and Results are sent in this format too.
+ */
+public final class CatalystCodec implements Singleton
+{
+    /** Identifies encoded catalysts: "CATL" in ASCII. */
+    public static final int MAGIC = 0x4341544C;
+
+    /** The current format version. */
+    public static final int VERSION = 1;
+
+    /** Section tags. */
+    private static final int TAG_END = 0;
+    private static final int TAG_NAME = 1;
+    private static final int TAG_ATOMS = 2;
+    private static final int TAG_BONDS = 3;
+    private static final int TAG_FRAGMENTS = 4;
+
+    /** Not instantiable. */
+    private CatalystCodec()
+    {
+        throw new IllegalArgumentException("Not instantiable!");
+    }
+
+    /**
+     * Encodes a catalyst.
+     * @param catalyst the catalyst to encode
+     * @return the encoded bytes
+     */
+    public static byte[] encode(Catalyst catalyst)
+    {
+        try
+            {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * catalyst.contents.size() + 256);
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+
+                // atoms are referred to by their positions
+                Map<Atom,Integer> indices = new HashMap<>();
+                for (int i=0; i < catalyst.contents.size(); i++)
+                    indices.put(catalyst.contents.get(i), i);
+
+                ByteArrayOutputStream sectionBytes = new ByteArrayOutputStream();
+                DataOutputStream section = new DataOutputStream(sectionBytes);
+
+                section.writeUTF(catalyst.name);
+                writeSection(out, TAG_NAME, sectionBytes);
+
+                section.writeInt(catalyst.contents.size());
+                for (Atom a : catalyst.contents)
+                    writeAtom(section, a);
+                writeSection(out, TAG_ATOMS, sectionBytes);
+
+                section.writeInt(catalyst.connectivity.edgeSet().size());
+                for (DefaultWeightedEdge e : catalyst.connectivity.edgeSet())
+                    {
+                        section.writeInt(indices.get(catalyst.connectivity.getEdgeSource(e)));
+                        section.writeInt(indices.get(catalyst.connectivity.getEdgeTarget(e)));
+                        section.writeDouble(catalyst.connectivity.getEdgeWeight(e));
+                    }
+                writeSection(out, TAG_BONDS, sectionBytes);
+
+                section.writeInt(catalyst.fragmentList.size());
+                int offset = 0;
+                for (Fragment f : catalyst.fragmentList)
+                    {
+                        int size = f.contents.size();
+                        if ( offset + size > catalyst.contents.size() ||
+                             !f.contents.equals(catalyst.contents.subList(offset, offset + size)) )
+                            throw new IllegalArgumentException("fragment " + f.name + " does not occupy a contiguous range of " + catalyst.name);
+                        offset += size;
+
+                        section.writeUTF(f.name);
+                        section.writeInt(size);
+                        section.writeUTF(f.fragmentType.name());
+                        writeReference(section, f.leftConnect, indices);
+                        writeReference(section, f.rightConnect, indices);
+                        writeReference(section, f.ureaCarbon, indices);
+                        section.writeInt(f.chiralAtoms.size());
+                        for (Atom a : f.chiralAtoms)
+                            writeReference(section, a, indices);
+                        section.writeInt(f.rotatableBonds.edgeSet().size());
+                        for (DefaultWeightedEdge e : f.rotatableBonds.edgeSet())
+                            {
+                                writeReference(section, f.rotatableBonds.getEdgeSource(e), indices);
+                                writeReference(section, f.rotatableBonds.getEdgeTarget(e), indices);
+                                section.writeDouble(f.rotatableBonds.getEdgeWeight(e));
+                            }
+                    }
+                writeSection(out, TAG_FRAGMENTS, sectionBytes);
+
+                out.writeInt(TAG_END);
+                out.close();
+                return bytes.toByteArray();
+            }
+        catch (IOException e)
+            {
+                // cannot happen with byte arrays
+                throw new IllegalArgumentException("error encoding " + catalyst.name + ": " + e.getMessage());
+            }
+    }
+
+    /**
+     * Writes a section header and body, then empties the section buffer for the next one.
+     */
+    private static void writeSection(DataOutputStream out, int tag, ByteArrayOutputStream sectionBytes) throws IOException
+    {
+        out.writeInt(tag);
+        out.writeInt(sectionBytes.size());
+        sectionBytes.writeTo(out);
+        sectionBytes.reset();
+    }
+
+    private static void writeAtom(DataOutput out, Atom atom) throws IOException
+    {
+        out.writeUTF(atom.element.name());
+        out.writeInt(atom.tinkerAtomType);
+        out.writeDouble(atom.position.getX());
+        out.writeDouble(atom.position.getY());
+        out.writeDouble(atom.position.getZ());
+    }
+
+    private static Atom readAtom(DataInput in) throws IOException
+    {
+        Element element = Element.valueOf(in.readUTF());
+        int tinkerAtomType = in.readInt();
+        return new Atom(element, new Vector3D(in.readDouble(), in.readDouble(), in.readDouble()), tinkerAtomType);
+    }
+
+    private static void writeReference(DataOutput out, Atom atom, Map<Atom,Integer> indices) throws IOException
+    {
+        Integer index = indices.get(atom);
+        if ( index != null )
+            out.writeInt(index);
+        else
+            {
+                out.writeInt(-1);
+                writeAtom(out, atom);
+            }
+    }
+
+    private static Atom readReference(DataInput in, List<Atom> atoms) throws IOException
+    {
+        int index = in.readInt();
+        if ( index == -1 )
+            return readAtom(in);
+        if ( index < 0 || index >= atoms.size() )
+            throw new IOException("atom index " + index + " out of range");
+        return atoms.get(index);
+    }
+
+    /**
+     * Decodes a catalyst.
+     * @param bytes the output of encode()
+     * @return the catalyst
+     */
+    public static Catalyst decode(byte[] bytes)
+    {
+        try
+            {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+                if ( in.readInt() != MAGIC )
+                    throw new IllegalArgumentException("not an encoded catalyst");
+                int version = in.readInt();
+                if ( version > VERSION )
+                    throw new IllegalArgumentException("unsupported catalyst format version " + version);
+
+                String name = null;
+                List<Atom> atoms = null;
+                SimpleWeightedGraph<Atom,DefaultWeightedEdge> connectivity = null;
+                List<Fragment> fragments = null;
+                for (int tag = in.readInt(); tag != TAG_END; tag = in.readInt())
+                    {
+                        byte[] body = new byte[in.readInt()];
+                        in.readFully(body);
+                        DataInputStream section = new DataInputStream(new ByteArrayInputStream(body));
+                        switch (tag)
+                            {
+                                case TAG_NAME:
+                                    name = section.readUTF();
+                                    break;
+                                case TAG_ATOMS:
+                                    int numberOfAtoms = section.readInt();
+                                    atoms = new ArrayList<>(numberOfAtoms);
+                                    for (int i=0; i < numberOfAtoms; i++)
+                                        atoms.add(readAtom(section));
+                                    break;
+                                case TAG_BONDS:
+                                    if ( atoms == null )
+                                        throw new IOException("bonds before atoms");
+                                    connectivity = readBonds(section, atoms);
+                                    break;
+                                case TAG_FRAGMENTS:
+                                    if ( connectivity == null )
+                                        throw new IOException("fragments before bonds");
+                                    fragments = readFragments(section, atoms, connectivity);
+                                    break;
+                                default:
+                                    // written by a newer version, so skip it
+                                    break;
+                            }
+                    }
+                if ( name == null || atoms == null || connectivity == null || fragments == null )
+                    throw new IOException("missing sections");
+                return new Catalyst(name, atoms, connectivity, fragments);
+            }
+        catch (IOException e)
+            {
+                throw new IllegalArgumentException("error decoding catalyst: " + e.getMessage());
+            }
+    }
+
+    private static SimpleWeightedGraph<Atom,DefaultWeightedEdge> readBonds(DataInput in, List<Atom> atoms) throws IOException
+    {
+        SimpleWeightedGraph<Atom,DefaultWeightedEdge> connectivity = new SimpleWeightedGraph<>(DefaultWeightedEdge.class);
+        for (Atom a : atoms)
+            connectivity.addVertex(a);
+        int numberOfBonds = in.readInt();
+        for (int i=0; i < numberOfBonds; i++)
+            {
+                Atom fromAtom = readReference(in, atoms);
+                Atom toAtom = readReference(in, atoms);
+                DefaultWeightedEdge e = connectivity.addEdge(fromAtom, toAtom);
+                connectivity.setEdgeWeight(e, in.readDouble());
+            }
+        return connectivity;
+    }
+
+    private static List<Fragment> readFragments(DataInput in, List<Atom> atoms, SimpleWeightedGraph<Atom,DefaultWeightedEdge> connectivity) throws IOException
+    {
+        int numberOfFragments = in.readInt();
+        List<Fragment> fragments = new ArrayList<>(numberOfFragments);
+        int offset = 0;
+        for (int i=0; i < numberOfFragments; i++)
+            {
+                String fragmentName = in.readUTF();
+                int size = in.readInt();
+                if ( size < 0 || offset + size > atoms.size() )
+                    throw new IOException("fragment " + fragmentName + " is out of range");
+                List<Atom> contents = atoms.subList(offset, offset + size);
+                offset += size;
+
+                // the fragment bonds are the catalyst bonds within its range
+                SimpleWeightedGraph<Atom,DefaultWeightedEdge> fragmentConnectivity = new SimpleWeightedGraph<>(DefaultWeightedEdge.class);
+                for (Atom a : contents)
+                    fragmentConnectivity.addVertex(a);
+                for (Atom a : contents)
+                    for (DefaultWeightedEdge e : connectivity.edgesOf(a))
+                        {
+                            Atom other = connectivity.getEdgeTarget(e) == a ? connectivity.getEdgeSource(e) : connectivity.getEdgeTarget(e);
+                            if ( fragmentConnectivity.containsVertex(other) && !fragmentConnectivity.containsEdge(a, other) )
+                                {
+                                    DefaultWeightedEdge newEdge = fragmentConnectivity.addEdge(a, other);
+                                    fragmentConnectivity.setEdgeWeight(newEdge, connectivity.getEdgeWeight(e));
+                                }
+                        }
+
+                FragmentType fragmentType = FragmentType.valueOf(in.readUTF());
+                Atom leftConnect = readReference(in, atoms);
+                Atom rightConnect = readReference(in, atoms);
+                Atom ureaCarbon = readReference(in, atoms);
+                int numberOfChiralAtoms = in.readInt();
+                List<Atom> chiralAtoms = new ArrayList<>(numberOfChiralAtoms);
+                for (int j=0; j < numberOfChiralAtoms; j++)
+                    chiralAtoms.add(readReference(in, atoms));
+                int numberOfRotatableBonds = in.readInt();
+                SimpleWeightedGraph<Atom,DefaultWeightedEdge> rotatableBonds = new SimpleWeightedGraph<>(DefaultWeightedEdge.class);
+                for (int j=0; j < numberOfRotatableBonds; j++)
+                    {
+                        Atom fromAtom = readReference(in, atoms);
+                        Atom toAtom = readReference(in, atoms);
+                        rotatableBonds.addVertex(fromAtom);
+                        rotatableBonds.addVertex(toAtom);
+                        DefaultWeightedEdge e = rotatableBonds.addEdge(fromAtom, toAtom);
+                        rotatableBonds.setEdgeWeight(e, in.readDouble());
+                    }
+                fragments.add(new Fragment(fragmentName, contents, fragmentConnectivity, leftConnect, rightConnect,
+                                           ureaCarbon, fragmentType, chiralAtoms, rotatableBonds));
+            }
+        return fragments;
+    }
+
+    /**
+     * Writes an encoded catalyst to a file.
+     * @param catalyst the catalyst to write
+     * @param filename where to write it
+     */
+    public static void writeToDisk(Catalyst catalyst, String filename)
+    {
+        try ( OutputStream out = new FileOutputStream(filename) )
+            {
+                out.write(encode(catalyst));
+            }
+        catch (IOException e)
+            {
+                System.out.println("Error writing to " + filename + "!");
+                e.printStackTrace();
+            }
+    }
+
+    /**
+     * Reads an encoded catalyst from a file.
+     * @param filename the file written by writeToDisk()
+     * @return the catalyst
+     */
+    public static Catalyst readFromDisk(String filename)
+    {
+        File file = new File(filename);
+        byte[] bytes = new byte[(int)file.length()];
+        try ( DataInputStream in = new DataInputStream(new FileInputStream(file)) )
+            {
+                in.readFully(bytes);
+            }
+        catch (IOException e)
+            {
+                throw new IllegalArgumentException("error reading " + filename + ": " + e.getMessage());
+            }
+        return decode(bytes);
+    }
+
+    /**
+     * Stands in for a Catalyst during Java serialization, so that object streams carry the
+     * compact encoding instead of the object graph.
+     */
+    public static class SerializationProxy implements Serializable
+    {
+        public static final long serialVersionUID = 1L;
+
+        /** The encoded catalyst. */
+        private final byte[] data;
+
+        public SerializationProxy(Catalyst catalyst)
+        {
+            data = encode(catalyst);
+        }
+
+        /** Replaces this proxy with the decoded catalyst when it is deserialized. */
+        private Object readResolve() throws ObjectStreamException
+        {
+            try
+                {
+                    return decode(data);
+                }
+            catch (IllegalArgumentException e)
+                {
+                    throw new InvalidObjectException(e.getMessage());
+                }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+import java.io.*;
+import java.util.*;
+import com.google.common.base.*;
+import com.google.common.collect.*;
+
+/**
+ * This class represents the work for one catalyst, as a list of tasks that are done in order.
+ * For example, a job made from a linear catalyst with the tasks CYCLIZATION and MINIMIZATION
+ * does what the main program does for that catalyst.  Jobs that start later in the workflow only
+ * need the name of the catalyst, because everything else is read from the working directory.
+ * The working directory must therefore be shared by every node that runs these jobs.
+ */
+public class CatalystJob implements WorkUnit, Serializable, Immutable
+{
+    /** for serialization */
+    public static final long serialVersionUID = 1L;
+
+    /** The steps of the workflow. */
+    public enum Task
+    {
+        /** Closes the ring of a linear catalyst. */
+        CYCLIZATION,
+
+        /** Writes NAME.mol2, minimizes it with MacroModel, and writes mae/NAME.com and output/NAME/catalyst.dat. */
+        MINIMIZATION,
+
+        /** Searches torsion space and writes output/NAME/NAME-search.dat. */
+        SEARCH,
+
+        /** Analyzes the MacroModel conformational search results in output/NAME/. */
+        ANALYSIS;
+    }
+
+    /** The name of the catalyst. */
+    public final String name;
+
+    /** The catalyst to start from, or null if it should be read from output/NAME/catalyst.dat. */
+    public final Catalyst catalyst;
+
+    /** What to do, in order. */
+    public final List<Task> tasks;
+
+    /** The manifest key of the sequence (see Manifest.getKey), or null if the job is not from a template. */
+    public final String key;
+
+    /**
+     * Creates a job that starts from a catalyst in memory.
+     * @param catalyst the catalyst, which must be linear if the first task is CYCLIZATION
+     * @param tasks what to do, in order
+     */
+    public CatalystJob(Catalyst catalyst, List<Task> tasks)
+    {
+        this(catalyst.name, catalyst, tasks, null);
+    }
+
+    /**
+     * Creates a job for a sequence of a template, so that its outcome can be recorded in the manifest.
+     * @param catalyst the linear catalyst
+     * @param tasks what to do, in order
+     * @param key the manifest key of its sequence
+     */
+    public CatalystJob(Catalyst catalyst, List<Task> tasks, String key)
+    {
+        this(catalyst.name, catalyst, tasks, key);
+    }
+
+    /**
+     * Creates a job that starts from the catalyst saved in output/NAME/catalyst.dat.
+     * @param name the name of the catalyst
+     * @param tasks what to do, in order
+     */
+    public CatalystJob(String name, List<Task> tasks)
+    {
+        this(name, null, tasks, null);
+    }
+
+    private CatalystJob(String name, Catalyst catalyst, List<Task> tasks, String key)
+    {
+        if ( tasks.size() == 0 )
+            throw new IllegalArgumentException("a job needs at least one task");
+        if ( catalyst == null && tasks.get(0) == Task.CYCLIZATION )
+            throw new IllegalArgumentException("cyclization needs a linear catalyst");
+        this.name = name;
+        this.catalyst = catalyst;
+        this.tasks = ImmutableList.copyOf(tasks);
+        this.key = key;
+    }
+
+    /**
+     * Does the tasks in order.  Each task passes its catalyst to the next one.
+     * @return what each task did
+     */
+    public CatalystJobResult call()
+    {
+        long startTime = System.currentTimeMillis();
+        List<String> summaries = new ArrayList<>();
+        Catalyst c = catalyst;
+        for (Task task : tasks)
+            {
+                if ( c == null && task != Task.ANALYSIS )
+                    c = Analysis.readCatalyst(name);
+                switch (task)
+                    {
+                        case CYCLIZATION:
+                            c = c.cyclize();
+                            summaries.add("cyclized");
+                            break;
+                        case MINIMIZATION:
+                            new MOL2InputFile(c).write(Settings.WORKING_DIRECTORY + name + ".mol2");
+                            try
+                                {
+                                    Macrocycle_Draw.minimize(name);
+                                }
+                            catch (IOException e)
+                                {
+                                    throw new IllegalArgumentException("unable to run minimization.sh for " + name, e);
+                                }
+                            catch (InterruptedException e)
+                                {
+                                    Thread.currentThread().interrupt();
+                                    throw new IllegalArgumentException("interrupted while minimizing " + name, e);
+                                }
+                            new COMInputFile(c).write(Settings.WORKING_DIRECTORY + "mae/" + name + ".com");
+                            summaries.add("minimized");
+                            break;
+                        case SEARCH:
+                            // the queue already runs one job per thread
+                            ConformationalSearch.Result searchResult = new ConformationalSearch(c, Settings.SEARCH_STEPS, Settings.SEARCH_ENERGY_WINDOW, 1).run();
+                            searchResult.write(Settings.WORKING_DIRECTORY + "output/" + name + "/" + name + "-search.dat", c);
+                            summaries.add(searchResult.toString());
+                            break;
+                        case ANALYSIS:
+                            ConformerTable table = Analysis.analyze(name, false);
+                            summaries.add(String.format("analyzed %d conformations, lowest energy %.4f", table.size(), table.getLowestEnergy()));
+                            break;
+                        default:
+                            throw new IllegalArgumentException("unknown task " + task);
+                    }
+            }
+        return new CatalystJobResult(name, summaries, System.currentTimeMillis() - startTime);
+    }
+
+    @Override
+    public String toString()
+    {
+        return name + " " + tasks;
+    }
+
+    /**
+     * What the tasks of a CatalystJob did.
+     */
+    public static class CatalystJobResult implements Result, Serializable, Immutable
+    {
+        /** for serialization */
+        public static final long serialVersionUID = 1L;
+
+        /** The name of the catalyst. */
+        public final String name;
+
+        /** One line per task. */
+        public final List<String> summaries;
+
+        /** How long the job took in milliseconds. */
+        public final long elapsedTime;
+
+        public CatalystJobResult(String name, List<String> summaries, long elapsedTime)
+        {
+            this.name = name;
+            this.summaries = ImmutableList.copyOf(summaries);
+            this.elapsedTime = elapsedTime;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s: %s (%.1f s)", name, Joiner.on("; ").join(summaries), elapsedTime / 1000.0);
+        }
+    }
+}
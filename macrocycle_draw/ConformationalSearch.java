@@ -0,0 +1,426 @@
+import org.apache.commons.math3.geometry.euclidean.threed.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import com.google.common.collect.*;
+
+/**
+ * A torsional Monte Carlo multiple-minimum (MCMM) conformational search for macrocyclic catalysts.
+ * It is much cheaper than a MacroModel run and is meant as a pre-screen that decides which catalysts
+ * are worth one.<p>
+ * Each step takes a unique conformation that has been used the fewest times as a starting point, changes
+ * between one and Settings.SEARCH_MAX_TORSIONS_PER_STEP of the ring-cut torsions by random amounts, and
+ * minimizes the result with TorsionMinimizer.  The objective is the steric energy of Molecule.getOPLSenergy()
+ * plus restraints that keep the ring closed (see TorsionModel).  Results within the energy window of the global
+ * minimum are kept if they are not within the clustering RMSD threshold of an existing conformation, or if they
+ * are lower in energy than the one they duplicate.<p>
+ * Steps run on several workers (by default Settings.NUMBER_OF_THREADS) that share one store of unique conformations.  Workers check
+ * a new conformation against a snapshot of the store without locking, and only hold the lock to check the few
+ * conformations that were added in the meantime.  Searches that run side by side, as in a WorkQueue, should
+ * use one worker each.
+ */
+public class ConformationalSearch
+{
+    /** The catalyst being searched. */
+    public final Catalyst catalyst;
+
+    /** The torsions and the energy function. */
+    public final TorsionModel model;
+
+    /** How many steps to take. */
+    public final int steps;
+
+    /** Conformations more than this far above the global minimum are discarded. */
+    public final double energyWindow;
+
+    /** How many threads take steps. */
+    public final int threads;
+
+    /** Which atoms are compared and how close duplicates are. */
+    private final ConformerClustering clustering;
+
+    /** The zero-based indices of the atoms that are compared. */
+    private final int[] comparedAtoms;
+
+    /** The unique conformations found so far.  Entries are only appended or replaced. */
+    private final CopyOnWriteArrayList<Conformer> conformers = new CopyOnWriteArrayList<>();
+
+    /** The lowest energy found so far.  Only changed while holding the lock on the store. */
+    private volatile double lowestEnergy = Double.POSITIVE_INFINITY;
+
+    /** The number of steps that have been started. */
+    private final AtomicInteger stepsTaken = new AtomicInteger();
+
+    /** The number of steps whose result duplicated an existing conformation. */
+    private final AtomicInteger duplicates = new AtomicInteger();
+
+    /** The number of steps whose result was outside the energy window. */
+    private final AtomicInteger rejected = new AtomicInteger();
+
+    /**
+     * Creates a search.
+     * @param catalyst a cyclized catalyst
+     * @param steps the number of Monte Carlo steps
+     * @param energyWindow conformations more than this far above the minimum are discarded
+     * @param threads how many threads take steps; 1 runs the search on the calling thread
+     */
+    public ConformationalSearch(Catalyst catalyst, int steps, double energyWindow, int threads)
+    {
+        if ( steps < 1 )
+            throw new IllegalArgumentException("at least one step is required");
+        if ( energyWindow < 0.0 )
+            throw new IllegalArgumentException("energy window must be positive");
+        if ( threads < 1 )
+            throw new IllegalArgumentException("at least one thread is required");
+        this.catalyst = catalyst;
+        this.model = new TorsionModel(catalyst);
+        this.steps = steps;
+        this.energyWindow = energyWindow;
+        this.threads = threads;
+        this.clustering = new ConformerClustering(ConformerClustering.getHeavyAtomNumbers(catalyst), Settings.CLUSTERING_RMSD_THRESHOLD, energyWindow);
+        comparedAtoms = new int[clustering.atomNumbers.size()];
+        for (int i=0; i < comparedAtoms.length; i++)
+            comparedAtoms[i] = clustering.atomNumbers.get(i) - 1;
+    }
+
+    /**
+     * Uses NUMBER_OF_THREADS threads.
+     * @param catalyst a cyclized catalyst
+     * @param steps the number of Monte Carlo steps
+     * @param energyWindow conformations more than this far above the minimum are discarded
+     */
+    public ConformationalSearch(Catalyst catalyst, int steps, double energyWindow)
+    {
+        this(catalyst, steps, energyWindow, Settings.NUMBER_OF_THREADS);
+    }
+
+    /**
+     * Uses the number of steps and energy window in Settings.
+     * @param catalyst a cyclized catalyst
+     */
+    public ConformationalSearch(Catalyst catalyst)
+    {
+        this(catalyst, Settings.SEARCH_STEPS, Settings.SEARCH_ENERGY_WINDOW);
+    }
+
+    /**
+     * Runs the search.  A search can only be run once.
+     * @return the unique conformations found
+     */
+    public Result run()
+    {
+        if ( stepsTaken.get() > 0 )
+            throw new IllegalArgumentException("this search has already been run");
+        long startTime = System.currentTimeMillis();
+
+        // minimize the input geometry to seed the search
+        double[] start = model.getCoordinates(catalyst);
+        double startEnergy = TorsionMinimizer.minimize(model, start);
+        add(new Conformer(startEnergy, start));
+
+        if ( threads == 1 )
+            {
+                while ( stepsTaken.getAndIncrement() < steps )
+                    step();
+            }
+        else
+            {
+                ExecutorService executor = Executors.newFixedThreadPool(threads);
+                List<Future<Object>> futures = new ArrayList<>();
+                for (int i=0; i < threads; i++)
+                    {
+                        futures.add(executor.submit(new Callable<Object>()
+                            {
+                                public Object call()
+                                {
+                                    while ( stepsTaken.getAndIncrement() < steps )
+                                        step();
+                                    return null;
+                                }
+                            }));
+                    }
+                executor.shutdown();
+                for (Future<Object> f : futures)
+                    {
+                        try
+                            {
+                                f.get();
+                            }
+                        catch (InterruptedException e)
+                            {
+                                Thread.currentThread().interrupt();
+                                executor.shutdownNow();
+                                break;
+                            }
+                        catch (ExecutionException e)
+                            {
+                                System.out.println("Error in conformational search of " + catalyst.name + "!");
+                                e.getCause().printStackTrace();
+                            }
+                    }
+            }
+
+        // keep the conformations in the final energy window
+        List<Conformer> unique = new ArrayList<>();
+        for (Conformer c : conformers)
+            if ( c.energy <= lowestEnergy + energyWindow )
+                unique.add(c);
+        Collections.sort(unique, new Comparator<Conformer>()
+            {
+                public int compare(Conformer c1, Conformer c2)
+                {
+                    return Double.compare(c1.energy, c2.energy);
+                }
+            });
+        List<Double> energies = new ArrayList<>(unique.size());
+        List<List<Vector3D>> geometries = new ArrayList<>(unique.size());
+        for (Conformer c : unique)
+            {
+                energies.add(c.energy);
+                geometries.add(model.getGeometry(c.coordinates));
+            }
+        return new Result(catalyst.name, energies, geometries, Math.min(stepsTaken.get(), steps), duplicates.get(), rejected.get(),
+                          System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * Takes one Monte Carlo multiple-minimum step.
+     */
+    private void step()
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double[] coordinates = selectStart().coordinates.clone();
+        int numberOfTorsions = model.torsions.size();
+        int changes = 1 + random.nextInt(Math.min(Settings.SEARCH_MAX_TORSIONS_PER_STEP, numberOfTorsions));
+        for (int i=0; i < changes; i++)
+            model.rotate(coordinates, random.nextInt(numberOfTorsions), 360.0 * random.nextDouble() - 180.0);
+        double energy = TorsionMinimizer.minimize(model, coordinates);
+        add(new Conformer(energy, coordinates));
+    }
+
+    /**
+     * Chooses the least-used conformation in the energy window as the next starting point.  Ties go to
+     * the conformation with the lowest energy.
+     */
+    private Conformer selectStart()
+    {
+        double limit = lowestEnergy + energyWindow;
+        Conformer best = null;
+        for (Conformer c : conformers)
+            {
+                if ( c.energy > limit )
+                    continue;
+                if ( best == null || c.uses.get() < best.uses.get() ||
+                     ( c.uses.get() == best.uses.get() && c.energy < best.energy ) )
+                    best = c;
+            }
+        best.uses.incrementAndGet();
+        return best;
+    }
+
+    /**
+     * Adds a conformation to the store unless it is outside the energy window or duplicates a conformation
+     * of lower energy.
+     */
+    private void add(Conformer candidate)
+    {
+        if ( candidate.energy > lowestEnergy + energyWindow )
+            {
+                rejected.incrementAndGet();
+                return;
+            }
+
+        // check the conformations that are there now without locking
+        Object[] snapshot = conformers.toArray();
+        int match = findDuplicate(candidate, snapshot, 0);
+
+        synchronized (conformers)
+            {
+                // then check the ones that were added since
+                if ( match < 0 )
+                    {
+                        Object[] current = conformers.toArray();
+                        match = findDuplicate(candidate, current, snapshot.length);
+                    }
+
+                if ( match < 0 )
+                    conformers.add(candidate);
+                else
+                    {
+                        Conformer existing = conformers.get(match);
+                        duplicates.incrementAndGet();
+                        if ( candidate.energy >= existing.energy )
+                            return;
+                        candidate.uses.set(existing.uses.get());
+                        conformers.set(match, candidate);
+                    }
+                if ( candidate.energy < lowestEnergy )
+                    lowestEnergy = candidate.energy;
+            }
+    }
+
+    /**
+     * Returns the index of the first conformation from the specified position on that duplicates a candidate,
+     * or -1 if there is none.
+     */
+    private int findDuplicate(Conformer candidate, Object[] array, int from)
+    {
+        for (int i=from; i < array.length; i++)
+            {
+                Conformer c = (Conformer)array[i];
+                if ( Math.abs(c.energy - candidate.energy) > clustering.energyWindow )
+                    continue;
+
+                // the superposed RMSD is at least the difference in the radii of gyration
+                if ( Math.abs(c.radius - candidate.radius) >= clustering.threshold )
+                    continue;
+                double RMSD = Superposition.calculateCenteredRMSD(candidate.compared, c.compared, candidate.innerProduct, c.innerProduct, null);
+                if ( RMSD < clustering.threshold )
+                    return i;
+            }
+        return -1;
+    }
+
+    /**
+     * A unique conformation in the store.
+     */
+    private class Conformer
+    {
+        public final double energy;
+
+        /** The packed coordinates of all the atoms. */
+        public final double[] coordinates;
+
+        /** The centered coordinates of the compared atoms. */
+        public final double[] compared;
+
+        public final double innerProduct;
+
+        public final double radius;
+
+        /** How many times this conformation has been a starting point. */
+        public final AtomicInteger uses = new AtomicInteger();
+
+        public Conformer(double energy, double[] coordinates)
+        {
+            this.energy = energy;
+            this.coordinates = coordinates;
+            double x = 0.0, y = 0.0, z = 0.0;
+            int n = comparedAtoms.length;
+            compared = new double[3*n];
+            for (int i=0; i < n; i++)
+                {
+                    int atom = 3*comparedAtoms[i];
+                    compared[3*i]   = coordinates[atom];
+                    compared[3*i+1] = coordinates[atom+1];
+                    compared[3*i+2] = coordinates[atom+2];
+                    x += compared[3*i];
+                    y += compared[3*i+1];
+                    z += compared[3*i+2];
+                }
+            x /= n;
+            y /= n;
+            z /= n;
+            for (int i=0; i < n; i++)
+                {
+                    compared[3*i]   -= x;
+                    compared[3*i+1] -= y;
+                    compared[3*i+2] -= z;
+                }
+            innerProduct = Superposition.getInnerProduct(compared);
+            radius = Math.sqrt(innerProduct / n);
+        }
+    }
+
+    /**
+     * The outcome of a search.  This class is immutable.
+     */
+    public static class Result implements Immutable
+    {
+        /** The name of the catalyst. */
+        public final String name;
+
+        /** The energies of the unique conformations, in increasing order. */
+        public final List<Double> energies;
+
+        /** The geometries of the unique conformations, in the same order. */
+        public final List<List<Vector3D>> geometries;
+
+        /** How many steps were taken. */
+        public final int steps;
+
+        /** How many steps found a conformation that was already known. */
+        public final int duplicates;
+
+        /** How many steps ended outside the energy window. */
+        public final int rejected;
+
+        /** How long the search took in milliseconds. */
+        public final long elapsedTime;
+
+        public Result(String name, List<Double> energies, List<List<Vector3D>> geometries, int steps, int duplicates, int rejected, long elapsedTime)
+        {
+            this.name = name;
+            this.energies = ImmutableList.copyOf(energies);
+            this.geometries = ImmutableList.copyOf(geometries);
+            this.steps = steps;
+            this.duplicates = duplicates;
+            this.rejected = rejected;
+            this.elapsedTime = elapsedTime;
+        }
+
+        /**
+         * Returns the lowest energy found.
+         * @return the global minimum energy
+         */
+        public double getLowestEnergy()
+        {
+            return energies.get(0);
+        }
+
+        /**
+         * Writes the unique conformations to a conformer archive in order of energy.
+         * @param filename where to write the archive
+         * @param molecule the molecule that was searched
+         */
+        public void write(String filename, Molecule molecule)
+        {
+            try ( ConformerArchive.Writer writer = new ConformerArchive.Writer(filename, molecule) )
+                {
+                    for (int i=0; i < energies.size(); i++)
+                        writer.add(energies.get(i), geometries.get(i));
+                }
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s: %d unique conformations, lowest energy %.4f (%d steps, %d duplicates, %d rejected, %.1f s)",
+                                 name, energies.size(), getLowestEnergy(), steps, duplicates, rejected, elapsedTime / 1000.0);
+        }
+    }
+
+    /**
+     * Searches one catalyst and writes the unique conformations to output/NAME/NAME-search.dat.
+     * Usage: ConformationalSearch NAME [steps]
+     */
+    public static void main(String[] args)
+    {
+        if ( args.length < 1 || args.length > 2 )
+            {
+                System.out.println("Usage: ConformationalSearch NAME [steps]");
+                System.exit(1);
+            }
+        String filename = args[0];
+        int steps = args.length > 1 ? Integer.parseInt(args[1]) : Settings.SEARCH_STEPS;
+        Catalyst c = Analysis.readCatalyst(filename);
+
+        ConformationalSearch search = new ConformationalSearch(c, steps, Settings.SEARCH_ENERGY_WINDOW);
+        System.out.println(search.model);
+        Result result = search.run();
+        result.write(Settings.WORKING_DIRECTORY + "output/" + filename + "/" + filename + "-search.dat", c);
+        System.out.println(result);
+        System.out.println(Metrics.getSummary());
+    }
+}
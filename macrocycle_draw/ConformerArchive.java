@@ -0,0 +1,379 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import com.google.common.collect.*;
+import org.apache.commons.math3.geometry.euclidean.threed.*;
+import org.jgrapht.graph.*;
+
+/**
+ * Stores an ensemble of conformations of one molecule in a single binary file.  The topology
+ * (elements, atom types, and bonds) is written once, followed by one fixed-size frame per
+ * conformation.  Each frame holds the energy as a double and the coordinates as floats, so
+ * frame i can be read directly without an index by seeking to headerLength + i * frameLength.<p>
+ * File layout (big-endian):
+ * <pre>
+ * int magic, int version, int headerLength
+ * header:  UTF name, int atoms, (UTF element, int tinker type) per atom,
+ *          int bonds, (int from, int to, double order) per bond, atom numbers starting from one
+ * frames:  double energy, 3 * atoms floats (x, y, z per atom)
+ * </pre>
+ * Archives are created with a Writer and read by constructing an instance of this class.
+ */
+public class ConformerArchive implements Closeable
+{
+    /** Identifies conformer archives: "CONF" in ASCII. */
+    public static final int MAGIC = 0x434F4E46;
+
+    /** The current format version. */
+    public static final int VERSION = 1;
+
+    /** The magic number, version, and header length come before the header. */
+    private static final int PREAMBLE_LENGTH = 12;
+
+    /** The file being read. */
+    public final String filename;
+
+    /** The name of the molecule. */
+    public final String name;
+
+    /** The elements of the atoms, in order. */
+    public final List<Element> elements;
+
+    /** The tinker atom types. */
+    public final List<Integer> tinkerAtomTypes;
+
+    /** The bonds as atom numbers, starting from one. */
+    private final int[] bondFrom;
+    private final int[] bondTo;
+    private final double[] bondOrders;
+
+    /** Where the frames start. */
+    private final long frameOffset;
+
+    /** The number of bytes in one frame. */
+    private final int frameLength;
+
+    /** The number of frames in the file. */
+    private final int size;
+
+    /** The open file. */
+    private final FileChannel channel;
+
+    /**
+     * Opens an archive for random access.
+     * @param filename the location of the archive
+     */
+    public ConformerArchive(String filename)
+    {
+        this.filename = filename;
+        try
+            {
+                channel = new FileInputStream(filename).getChannel();
+            }
+        catch (IOException e)
+            {
+                throw new IllegalArgumentException("error reading " + filename + ": " + e.getMessage());
+            }
+        boolean opened = false;
+        try
+            {
+                ByteBuffer preamble = ByteBuffer.allocate(PREAMBLE_LENGTH);
+                readFully(preamble, 0L);
+                if ( preamble.getInt(0) != MAGIC )
+                    throw new IllegalArgumentException(filename + " is not a conformer archive");
+                if ( preamble.getInt(4) != VERSION )
+                    throw new IllegalArgumentException("unsupported conformer archive version " + preamble.getInt(4) + " in " + filename);
+                int headerLength = preamble.getInt(8);
+
+                ByteBuffer header = ByteBuffer.allocate(headerLength);
+                readFully(header, PREAMBLE_LENGTH);
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(header.array()));
+                name = in.readUTF();
+                int atoms = in.readInt();
+                List<Element> tempElements = new ArrayList<>(atoms);
+                List<Integer> tempTypes = new ArrayList<>(atoms);
+                for (int i=0; i < atoms; i++)
+                    {
+                        tempElements.add(Element.valueOf(in.readUTF()));
+                        tempTypes.add(in.readInt());
+                    }
+                elements = ImmutableList.copyOf(tempElements);
+                tinkerAtomTypes = ImmutableList.copyOf(tempTypes);
+
+                int bonds = in.readInt();
+                bondFrom = new int[bonds];
+                bondTo = new int[bonds];
+                bondOrders = new double[bonds];
+                for (int i=0; i < bonds; i++)
+                    {
+                        bondFrom[i] = in.readInt();
+                        bondTo[i] = in.readInt();
+                        bondOrders[i] = in.readDouble();
+                    }
+
+                frameOffset = PREAMBLE_LENGTH + headerLength;
+                frameLength = getFrameLength(atoms);
+                size = (int)( ( channel.size() - frameOffset ) / frameLength );
+                opened = true;
+            }
+        catch (IOException e)
+            {
+                throw new IllegalArgumentException("error reading " + filename + ": " + e.getMessage());
+            }
+        finally
+            {
+                // a bad archive must not leave the file open
+                if ( !opened )
+                    {
+                        try { channel.close(); } catch (IOException e) {}
+                    }
+            }
+    }
+
+    /**
+     * Returns the number of bytes in each frame.
+     */
+    private static int getFrameLength(int atoms)
+    {
+        return 8 + 12 * atoms;
+    }
+
+    /**
+     * Fills the buffer with bytes from the specified position in the file.
+     */
+    private void readFully(ByteBuffer buffer, long position) throws IOException
+    {
+        while ( buffer.hasRemaining() )
+            {
+                int read = channel.read(buffer, position + buffer.position());
+                if ( read < 0 )
+                    throw new EOFException("unexpected end of " + filename);
+            }
+        buffer.flip();
+    }
+
+    /**
+     * Reads one frame.
+     * @param index the zero-indexed frame number
+     * @return the bytes of the frame
+     */
+    private ByteBuffer readFrame(int index)
+    {
+        if ( index < 0 || index >= size )
+            throw new IndexOutOfBoundsException(String.format("frame %d requested but %s has %d frames", index, filename, size));
+        ByteBuffer buffer = ByteBuffer.allocate(frameLength);
+        try
+            {
+                readFully(buffer, frameOffset + (long)index * frameLength);
+            }
+        catch (IOException e)
+            {
+                throw new IllegalArgumentException("error reading " + filename + ": " + e.getMessage());
+            }
+        return buffer;
+    }
+
+    /**
+     * Returns the number of conformations in the archive.
+     * @return the number of frames
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the energy of a conformation.
+     * @param index the zero-indexed frame number
+     * @return the energy
+     */
+    public double getEnergy(int index)
+    {
+        return readFrame(index).getDouble(0);
+    }
+
+    /**
+     * Returns the coordinates of a conformation.
+     * @param index the zero-indexed frame number
+     * @return the positions of the atoms in order
+     */
+    public List<Vector3D> getGeometry(int index)
+    {
+        ByteBuffer frame = readFrame(index);
+        frame.position(8);
+        List<Vector3D> geometry = new ArrayList<>(elements.size());
+        for (int i=0; i < elements.size(); i++)
+            geometry.add(new Vector3D(frame.getFloat(), frame.getFloat(), frame.getFloat()));
+        return ImmutableList.copyOf(geometry);
+    }
+
+    /**
+     * Builds a molecule for a conformation from the stored topology.
+     * @param index the zero-indexed frame number
+     * @param moleculeName the name of the new molecule
+     * @return the molecule
+     */
+    public Molecule getMolecule(int index, String moleculeName)
+    {
+        List<Vector3D> geometry = getGeometry(index);
+        List<Atom> atoms = new ArrayList<>(geometry.size());
+        SimpleWeightedGraph<Atom,DefaultWeightedEdge> connectivity = new SimpleWeightedGraph<>(DefaultWeightedEdge.class);
+        for (int i=0; i < geometry.size(); i++)
+            {
+                Atom atom = new Atom(elements.get(i), geometry.get(i), tinkerAtomTypes.get(i));
+                atoms.add(atom);
+                connectivity.addVertex(atom);
+            }
+        for (int i=0; i < bondFrom.length; i++)
+            {
+                DefaultWeightedEdge edge = connectivity.addEdge(atoms.get(bondFrom[i]-1), atoms.get(bondTo[i]-1));
+                connectivity.setEdgeWeight(edge, bondOrders[i]);
+            }
+        return new Molecule(moleculeName, atoms, connectivity);
+    }
+
+    /**
+     * Closes the file.
+     */
+    public void close()
+    {
+        try
+            {
+                channel.close();
+            }
+        catch (IOException e)
+            {
+                System.out.println("Error closing " + filename + "!");
+                e.printStackTrace();
+            }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("ConformerArchive (%s, %d atoms, %d frames)", name, elements.size(), size);
+    }
+
+    /**
+     * Writes a conformer archive one frame at a time.  Frames are buffered, so the writer must be closed.
+     */
+    public static class Writer implements Closeable
+    {
+        /** The file being written. */
+        public final String filename;
+
+        /** The number of atoms in every frame. */
+        private final int atoms;
+
+        /** Where the frames go. */
+        private final DataOutputStream out;
+
+        /** The number of frames written so far. */
+        private int size = 0;
+
+        /**
+         * Creates a new archive and writes the topology of the specified molecule.
+         * @param filename the location of the archive
+         * @param molecule the topology to store
+         */
+        public Writer(String filename, Molecule molecule)
+        {
+            this.filename = filename;
+            this.atoms = molecule.contents.size();
+            try
+                {
+                    // write the header into memory first so its length is known
+                    ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+                    DataOutputStream header = new DataOutputStream(headerBytes);
+                    header.writeUTF(molecule.name);
+                    header.writeInt(atoms);
+                    for (Atom a : molecule.contents)
+                        {
+                            header.writeUTF(a.element.name());
+                            header.writeInt(a.tinkerAtomType);
+                        }
+                    header.writeInt(molecule.connectivity.edgeSet().size());
+                    for (DefaultWeightedEdge e : molecule.connectivity.edgeSet())
+                        {
+                            header.writeInt(molecule.getAtomNumber(molecule.connectivity.getEdgeSource(e)));
+                            header.writeInt(molecule.getAtomNumber(molecule.connectivity.getEdgeTarget(e)));
+                            header.writeDouble(molecule.connectivity.getEdgeWeight(e));
+                        }
+                    header.close();
+
+                    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 1 << 16));
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeInt(headerBytes.size());
+                    headerBytes.writeTo(out);
+                }
+            catch (IOException e)
+                {
+                    throw new IllegalArgumentException("error writing " + filename + ": " + e.getMessage());
+                }
+        }
+
+        /**
+         * Adds a conformation to the end of the archive.
+         * @param energy the energy of the conformation
+         * @param geometry the atom positions in the same order as the molecule this archive was created with
+         */
+        public void add(double energy, List<Vector3D> geometry)
+        {
+            if ( geometry.size() != atoms )
+                throw new IllegalArgumentException(String.format("expected %d atoms but got %d", atoms, geometry.size()));
+            try
+                {
+                    out.writeDouble(energy);
+                    for (Vector3D v : geometry)
+                        {
+                            out.writeFloat((float)v.getX());
+                            out.writeFloat((float)v.getY());
+                            out.writeFloat((float)v.getZ());
+                        }
+                    size++;
+                }
+            catch (IOException e)
+                {
+                    throw new IllegalArgumentException("error writing " + filename + ": " + e.getMessage());
+                }
+        }
+
+        /**
+         * Returns the number of frames written so far.
+         * @return the number of frames
+         */
+        public int size()
+        {
+            return size;
+        }
+
+        /**
+         * Flushes the frames and closes the file.
+         */
+        public void close()
+        {
+            try
+                {
+                    out.close();
+                }
+            catch (IOException e)
+                {
+                    System.out.println("Error closing " + filename + "!");
+                    e.printStackTrace();
+                }
+        }
+    }
+
+    /** for testing */
+    public static void main(String[] args)
+    {
+        try ( ConformerArchive archive = new ConformerArchive(args[0]) )
+            {
+                System.out.println(archive);
+                for (int i=0; i < archive.size(); i++)
+                    System.out.println(String.format("%5d %12.4f", i+1, archive.getEnergy(i)));
+            }
+    }
+}
@@ -0,0 +1,301 @@
+import java.util.*;
+import java.util.concurrent.*;
+import com.google.common.collect.*;
+import org.apache.commons.math3.geometry.euclidean.threed.*;
+
+/**
+ * Removes near-duplicate conformations from an ensemble by greedy leader clustering.  Conformations
+ * are visited in order of increasing energy.  Each one joins the lowest-energy existing leader that
+ * is within the RMSD threshold after superposition, or becomes a new leader if there is none.  The
+ * leaders are the unique representatives of the ensemble.<p>
+ * RMSDs are calculated over a subset of atoms (usually the heavy atoms) after optimal superposition of
+ * those atoms, as in Molecule.calculateRMSD(m1, m2, atomNumbers), using the quaternion method in
+ * Superposition.  Two bounds avoid most of the superpositions: a duplicate must be within an energy
+ * window of its leader, and the RMSD can never be smaller than the difference in the radii of gyration
+ * of the two conformations.  Leaders are checked in parallel when there are many of them.
+ */
+public class ConformerClustering
+{
+    /** Leaders are checked in parallel in blocks of this size. */
+    private static final int BLOCK_SIZE = 64;
+
+    /**
+     * Every clustering and RMSDMatrix shares this pool, so analyses that run side by side (see Analysis.analyzeAll)
+     * do not each start NUMBER_OF_THREADS more threads.  Its threads are daemons and need no shutdown.
+     */
+    static final ForkJoinPool POOL = new ForkJoinPool(Settings.NUMBER_OF_THREADS);
+
+    /** The atom numbers (1...N) used for the RMSD. */
+    public final List<Integer> atomNumbers;
+
+    /** Conformations closer than this RMSD are duplicates, in angstroms. */
+    public final double threshold;
+
+    /** Duplicates must be within this energy of their leader. */
+    public final double energyWindow;
+
+    /**
+     * Creates a clustering procedure.
+     * @param atomNumbers the atom numbers (1...N) to use for superposition and RMSD
+     * @param threshold conformations closer than this RMSD in angstroms are duplicates
+     * @param energyWindow duplicates must be within this energy of their leader; use infinity for no limit
+     */
+    public ConformerClustering(List<Integer> atomNumbers, double threshold, double energyWindow)
+    {
+        if ( atomNumbers == null || atomNumbers.size() < 3 )
+            throw new IllegalArgumentException("at least three atoms are needed for clustering");
+        if ( threshold < 0.0 || energyWindow < 0.0 )
+            throw new IllegalArgumentException("threshold and energy window must be positive");
+        this.atomNumbers = ImmutableList.copyOf(atomNumbers);
+        this.threshold = threshold;
+        this.energyWindow = energyWindow;
+    }
+
+    /**
+     * Uses the default threshold and energy window in Settings.
+     * @param atomNumbers the atom numbers (1...N) to use for superposition and RMSD
+     */
+    public ConformerClustering(List<Integer> atomNumbers)
+    {
+        this(atomNumbers, Settings.CLUSTERING_RMSD_THRESHOLD, Settings.CLUSTERING_ENERGY_WINDOW);
+    }
+
+    /**
+     * Returns the atom numbers of the heavy atoms in a catalyst.  These are the same atoms that
+     * COMInputFile lists for comparison in the conformational search.
+     * @param catalyst the catalyst
+     * @return the atom numbers (1...N) of the heavy atoms
+     */
+    public static List<Integer> getHeavyAtomNumbers(Catalyst catalyst)
+    {
+        List<Integer> heavyAtomNumbers = new ArrayList<>();
+        for ( Fragment f : catalyst.fragmentList )
+            for ( Atom a : f.contents )
+                if ( a.element != Element.HYDROGEN && a.element != Element.DUMMY )
+                    heavyAtomNumbers.add(catalyst.getAtomNumber(a));
+        return ImmutableList.copyOf(heavyAtomNumbers);
+    }
+
+    /**
+     * Extracts the coordinates of the clustered atoms from a geometry, moves their centroid to the origin,
+     * and packs them as x1, y1, z1, x2, ...
+     * @param geometry the positions of all the atoms in order
+     * @return the centered coordinates
+     */
+    public double[] getCoordinates(List<Vector3D> geometry)
+    {
+        int n = atomNumbers.size();
+        double[] coordinates = new double[3*n];
+        double x = 0.0, y = 0.0, z = 0.0;
+        for (int i=0; i < n; i++)
+            {
+                Vector3D v = geometry.get(atomNumbers.get(i)-1);
+                coordinates[3*i]   = v.getX();
+                coordinates[3*i+1] = v.getY();
+                coordinates[3*i+2] = v.getZ();
+                x += v.getX();
+                y += v.getY();
+                z += v.getZ();
+            }
+        x /= n;
+        y /= n;
+        z /= n;
+        for (int i=0; i < n; i++)
+            {
+                coordinates[3*i]   -= x;
+                coordinates[3*i+1] -= y;
+                coordinates[3*i+2] -= z;
+            }
+        return coordinates;
+    }
+
+    /**
+     * Clusters an ensemble.
+     * @param energies the energies of the conformations
+     * @param coordinates the centered coordinates of the conformations from getCoordinates()
+     * @return the clusters
+     */
+    public Result cluster(final double[] energies, final List<double[]> coordinates)
+    {
+        if ( energies.length != coordinates.size() )
+            throw new IllegalArgumentException("number of energies and geometries do not match");
+        int size = energies.length;
+
+        // visit conformations in order of energy
+        Integer[] boxed = new Integer[size];
+        for (int i=0; i < size; i++)
+            boxed[i] = i;
+        Arrays.sort(boxed, new Comparator<Integer>()
+            {
+                public int compare(Integer i1, Integer i2)
+                {
+                    return Double.compare(energies[i1], energies[i2]);
+                }
+            });
+
+        final double[] innerProducts = new double[size];
+        final double[] radii = new double[size];
+        int n = atomNumbers.size();
+        for (int i=0; i < size; i++)
+            {
+                innerProducts[i] = Superposition.getInnerProduct(coordinates.get(i));
+                radii[i] = Math.sqrt(innerProducts[i] / n);
+            }
+
+        // the leaders, in order of energy
+        final List<Integer> leaders = new ArrayList<>();
+        int[] assignments = new int[size];
+        final long[] calculations = new long[1];
+        for (Integer conformation : boxed)
+            {
+                // leaders are sorted by energy, so the ones in the window are at the end
+                int first = 0;
+                if ( !Double.isInfinite(energyWindow) )
+                    {
+                        int low = 0;
+                        int high = leaders.size();
+                        while ( low < high )
+                            {
+                                int middle = (low + high) >>> 1;
+                                if ( energies[leaders.get(middle)] < energies[conformation] - energyWindow )
+                                    low = middle + 1;
+                                else
+                                    high = middle;
+                            }
+                        first = low;
+                    }
+
+                LeaderSearch search = new LeaderSearch(conformation, first, leaders.size(), leaders, coordinates, innerProducts, radii);
+                int match = leaders.size() - first > BLOCK_SIZE ? POOL.invoke(search) : search.compute();
+                calculations[0] += search.getCalculations();
+                if ( match < 0 )
+                    {
+                        assignments[conformation] = conformation;
+                        leaders.add(conformation);
+                    }
+                else
+                    assignments[conformation] = leaders.get(match);
+            }
+        return new Result(leaders, assignments, calculations[0]);
+    }
+
+    /**
+     * Finds the lowest-numbered leader in a range that is within the threshold of a conformation.
+     * Returns the index of the leader in the leader list, or -1 if there is none.
+     */
+    private class LeaderSearch extends RecursiveTask<Integer>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int conformation;
+        private final int from;
+        private final int to;
+        private final List<Integer> leaders;
+        private final List<double[]> coordinates;
+        private final double[] innerProducts;
+        private final double[] radii;
+
+        /** How many RMSDs were actually calculated, including by subtasks. */
+        private long calculations = 0L;
+
+        public LeaderSearch(int conformation, int from, int to, List<Integer> leaders, List<double[]> coordinates,
+                            double[] innerProducts, double[] radii)
+        {
+            this.conformation = conformation;
+            this.from = from;
+            this.to = to;
+            this.leaders = leaders;
+            this.coordinates = coordinates;
+            this.innerProducts = innerProducts;
+            this.radii = radii;
+        }
+
+        public long getCalculations()
+        {
+            return calculations;
+        }
+
+        @Override
+        protected Integer compute()
+        {
+            if ( to - from > BLOCK_SIZE )
+                {
+                    int middle = (from + to) >>> 1;
+                    LeaderSearch left = new LeaderSearch(conformation, from, middle, leaders, coordinates, innerProducts, radii);
+                    LeaderSearch right = new LeaderSearch(conformation, middle, to, leaders, coordinates, innerProducts, radii);
+                    right.fork();
+                    int leftMatch = left.compute();
+                    int rightMatch = right.join();
+                    calculations = left.calculations + right.calculations;
+                    return leftMatch >= 0 ? leftMatch : rightMatch;
+                }
+
+            double[] a = coordinates.get(conformation);
+            for (int i=from; i < to; i++)
+                {
+                    int leader = leaders.get(i);
+
+                    // the superposed RMSD is at least the difference in the radii of gyration
+                    if ( Math.abs(radii[leader] - radii[conformation]) >= threshold )
+                        continue;
+                    calculations++;
+                    double RMSD = Superposition.calculateCenteredRMSD(a, coordinates.get(leader), innerProducts[conformation], innerProducts[leader], null);
+                    if ( RMSD < threshold )
+                        return i;
+                }
+            return -1;
+        }
+    }
+
+    /**
+     * The outcome of clustering an ensemble.  This class is immutable.
+     */
+    public static class Result implements Immutable
+    {
+        /** The indices of the unique representatives, in order of energy. */
+        public final List<Integer> leaders;
+
+        /** The index of the leader of each conformation.  Leaders are their own leaders. */
+        private final int[] assignments;
+
+        /** The number of superpositions that were performed. */
+        public final long calculations;
+
+        public Result(List<Integer> leaders, int[] assignments, long calculations)
+        {
+            this.leaders = ImmutableList.copyOf(leaders);
+            this.assignments = assignments.clone();
+            this.calculations = calculations;
+        }
+
+        /**
+         * Returns the leader of a conformation.
+         * @param conformation the index of the conformation
+         * @return the index of the conformation that represents it
+         */
+        public int getLeader(int conformation)
+        {
+            return assignments[conformation];
+        }
+
+        /**
+         * Returns how many conformations each leader represents.
+         * @return map from leader indices to cluster sizes, in order of energy
+         */
+        public Map<Integer,Integer> getClusterSizes()
+        {
+            Map<Integer,Integer> sizes = new LinkedHashMap<>();
+            for (Integer leader : leaders)
+                sizes.put(leader, 0);
+            for (int leader : assignments)
+                sizes.put(leader, sizes.get(leader) + 1);
+            return sizes;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%d unique conformations out of %d (%d superpositions)", leaders.size(), assignments.length, calculations);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+import java.io.*;
+import java.util.*;
+import com.google.common.collect.*;
+
+/**
+ * Holds the energies and descriptors (like inter-urea distances) of an ensemble of conformations
+ * in columns of primitive arrays.  The table itself is never reordered; sorting produces a
+ * permutation of row indices instead, which is then used to write reports.
+ */
+public class ConformerTable
+{
+    /** The header of the report. */
+    public static final String HEADER = "Conformation Number\tEnergy\t";
+
+    /** The names of the descriptors, in column order. */
+    public final List<String> descriptorNames;
+
+    /** The names of the conformations. */
+    private String[] names = new String[1024];
+
+    /** The energies of the conformations. */
+    private double[] energies = new double[1024];
+
+    /** descriptors[i][j] is descriptor i of conformation j. */
+    private double[][] descriptors;
+
+    /** The number of rows. */
+    private int size = 0;
+
+    /**
+     * Creates an empty table.
+     * @param descriptorNames the names of the descriptors that will be stored for each conformation
+     */
+    public ConformerTable(List<String> descriptorNames)
+    {
+        this.descriptorNames = ImmutableList.copyOf(descriptorNames);
+        descriptors = new double[descriptorNames.size()][names.length];
+    }
+
+    /**
+     * Adds a row to the table.
+     * @param name the name of the conformation
+     * @param energy the energy of the conformation
+     * @param values the descriptors of the conformation, in the same order as descriptorNames
+     */
+    public void add(String name, double energy, double[] values)
+    {
+        if ( values.length != descriptors.length )
+            throw new IllegalArgumentException(String.format("expected %d descriptors but got %d", descriptors.length, values.length));
+        if ( size == names.length )
+            {
+                int newLength = names.length * 2;
+                names = Arrays.copyOf(names, newLength);
+                energies = Arrays.copyOf(energies, newLength);
+                for (int i=0; i < descriptors.length; i++)
+                    descriptors[i] = Arrays.copyOf(descriptors[i], newLength);
+            }
+        names[size] = name;
+        energies[size] = energy;
+        for (int i=0; i < descriptors.length; i++)
+            descriptors[i][size] = values[i];
+        size++;
+    }
+
+    /**
+     * Returns the number of conformations.
+     * @return the number of rows
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /** Returns the name of the specified row. */
+    public String getName(int row)
+    {
+        return names[row];
+    }
+
+    /** Returns the energy of the specified row. */
+    public double getEnergy(int row)
+    {
+        return energies[row];
+    }
+
+    /** Returns the specified descriptor of the specified row. */
+    public double getDescriptor(int descriptor, int row)
+    {
+        return descriptors[descriptor][row];
+    }
+
+    /**
+     * Returns the lowest energy in the table.
+     * @return the minimum energy, or NaN if the table is empty
+     */
+    public double getLowestEnergy()
+    {
+        if ( size == 0 )
+            return Double.NaN;
+        double lowest = energies[0];
+        for (int i=1; i < size; i++)
+            lowest = Math.min(lowest, energies[i]);
+        return lowest;
+    }
+
+    /**
+     * Averages a descriptor over the ensemble with Boltzmann weights exp(-(E-Emin)/kT).
+     * @param descriptor the column to average
+     * @param kT the Boltzmann constant times the temperature, in the units of the energies
+     * @return the weighted average, or NaN if the table is empty
+     */
+    public double getBoltzmannAverage(int descriptor, double kT)
+    {
+        double lowest = getLowestEnergy();
+        double weightedSum = 0.0;
+        double totalWeight = 0.0;
+        for (int i=0; i < size; i++)
+            {
+                double weight = Math.exp(-(energies[i] - lowest) / kT);
+                weightedSum += weight * descriptors[descriptor][i];
+                totalWeight += weight;
+            }
+        return weightedSum / totalWeight;
+    }
+
+    /**
+     * Sorts the rows by energy.  Ties keep the order they were added in.
+     * @return the row indices in ascending order of energy
+     */
+    public int[] sortByEnergy()
+    {
+        int[] order = new int[size];
+        for (int i=0; i < size; i++)
+            order[i] = i;
+        return sort(order, energies);
+    }
+
+    /**
+     * Sorts the rows by a descriptor.  Ties keep the order given.
+     * @param descriptor the column to sort by
+     * @param order the starting order, which is not modified
+     * @return the row indices in ascending order of the descriptor
+     */
+    public int[] sortByDescriptor(int descriptor, int[] order)
+    {
+        return sort(order, descriptors[descriptor]);
+    }
+
+    /**
+     * Stably sorts row indices by the specified keys.
+     */
+    private static int[] sort(int[] order, final double[] keys)
+    {
+        Integer[] boxed = new Integer[order.length];
+        for (int i=0; i < order.length; i++)
+            boxed[i] = order[i];
+        Arrays.sort(boxed, new Comparator<Integer>()
+            {
+                public int compare(Integer i1, Integer i2)
+                {
+                    return Double.compare(keys[i1], keys[i2]);
+                }
+            });
+        int[] sorted = new int[order.length];
+        for (int i=0; i < sorted.length; i++)
+            sorted[i] = boxed[i];
+        return sorted;
+    }
+
+    /**
+     * Writes a tab-delimited report of the rows in the specified order.  The report ends with a newline.
+     * @param writer where to write the report
+     * @param order the row indices to write
+     */
+    public void writeReport(PrintWriter writer, int[] order)
+    {
+        writer.print(HEADER);
+        for (String s : descriptorNames)
+            writer.print("\t" + s);
+        for (int row : order)
+            {
+                writer.print("\n");
+                writer.print(names[row]);
+                writer.print("\t\t\t\t");
+                writer.print(String.format("%10.6f", energies[row]));
+                writer.print("\t");
+                for (int i=0; i < descriptors.length; i++)
+                    {
+                        writer.print(String.format("%-10.6f", descriptors[i][row]));
+                        writer.print("\t");
+                    }
+            }
+        writer.println();
+    }
+
+    /**
+     * Writes a report to a file.
+     * @param filename where to write the report
+     * @param order the row indices to write
+     * @param append whether to add to the end of the file instead of overwriting it
+     */
+    public void writeReport(String filename, int[] order, boolean append)
+    {
+        try ( PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(filename, append), 1 << 16)) )
+            {
+                writeReport(writer, order);
+            }
+        catch (IOException e)
+            {
+                System.out.println("Error writing to " + filename + "!");
+                e.printStackTrace();
+            }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("ConformerTable (%d conformations, %d descriptors)", size, descriptors.length);
+    }
+}
@@ -0,0 +1,224 @@
+import java.io.*;
+import java.util.*;
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import org.apache.commons.math3.geometry.euclidean.threed.*;
+
+/**
+ * Remembers the torsion angles of every catalyst that cyclized, so that a new catalyst can start from the
+ * closed geometry of a similar one instead of the extended geometry from addRight().  Sequences that
+ * differ by one fragment usually close in nearly the same way, so the warm start only needs the cool end
+ * of the annealing schedule (see CYCLIZATION_CACHE_TEMPERATURE).<p>
+ * A sequence is identified by the hashes of its fragments (see Manifest.getHash).  The neighbor of a new
+ * sequence is the cached sequence of the same length that has the same fragment at the most positions.
+ * Each torsion is labeled by the position of its four atoms in the sequence and their atom numbers in
+ * their fragments, and its angle is only copied if the neighbor has the same fragments at those positions.
+ * The warm start is only used if its ends are within CYCLIZATION_CACHE_CLOSURE_TOLERANCE of closing and
+ * its cyclization energy is lower than that of the extended geometry.<p>
+ * The cache is kept in CYCLIZATION_CACHE_FILENAME, one line per closed catalyst, and later lines win:
+ * <pre>
+ * HASH,HASH,...  LABEL=ANGLE;LABEL=ANGLE;...
+ * </pre>
+ * Delete the file to start over.
+ */
+public final class CyclizationCache implements Singleton
+{
+    /** Do not try to instantiate this! */
+    private CyclizationCache() {throw new IllegalArgumentException("Not instantiable!");}
+
+    /** The torsion angles of each closed sequence by label, by the fragment hashes of the sequence. */
+    private static final Map<List<String>,Map<String,Double>> CACHE = new LinkedHashMap<>();
+
+    static
+    {
+        String filename = Settings.CYCLIZATION_CACHE_FILENAME;
+        if ( new File(filename).exists() )
+            {
+                try ( BufferedReader reader = new BufferedReader(new FileReader(filename)) )
+                    {
+                        String line = null;
+                        while ( (line = reader.readLine()) != null )
+                            {
+                                String[] fields = line.split("\t");
+                                if ( fields.length < 2 )
+                                    continue;
+                                Map<String,Double> angles = new HashMap<>();
+                                for (String entry : fields[1].split(";"))
+                                    {
+                                        int i = entry.indexOf('=');
+                                        if ( i > 0 )
+                                            angles.put(entry.substring(0, i), Double.valueOf(entry.substring(i+1)));
+                                    }
+                                CACHE.put(ImmutableList.copyOf(fields[0].split(",")), angles);
+                            }
+                    }
+                catch (IOException | NumberFormatException e)
+                    {
+                        System.out.println("Error reading cyclization cache " + filename + "!");
+                        e.printStackTrace();
+                    }
+            }
+    }
+
+    /**
+     * Returns the fragment hashes of a catalyst, or null if some fragment is not in the library.
+     */
+    private static List<String> getSequence(Catalyst catalyst)
+    {
+        List<String> sequence = new ArrayList<>();
+        for (Fragment f : catalyst.fragmentList)
+            {
+                if ( ! FragmentLibrary.HASHES.containsKey(f.name) )
+                    return null;
+                sequence.add(Manifest.getHash(f));
+            }
+        return sequence;
+    }
+
+    /**
+     * Labels each torsion by the sequence position and fragment atom number of its atoms, e.g. 0.12,0.3,1.1,1.5.
+     */
+    private static List<String> getLabels(Catalyst catalyst, List<IndexTorsion> torsions)
+    {
+        Map<Atom,String> atomLabels = new HashMap<>();
+        for (int i=0; i < catalyst.fragmentList.size(); i++)
+            {
+                List<Atom> contents = catalyst.fragmentList.get(i).contents;
+                for (int j=0; j < contents.size(); j++)
+                    atomLabels.put(contents.get(j), i + "." + (j+1));
+            }
+        List<String> labels = new ArrayList<>();
+        for (IndexTorsion t : torsions)
+            {
+                String label = Joiner.on(',').useForNull("?").join(atomLabels.get(catalyst.getAtom(t.index1)), atomLabels.get(catalyst.getAtom(t.index2)),
+                                                                   atomLabels.get(catalyst.getAtom(t.index3)), atomLabels.get(catalyst.getAtom(t.index4)));
+                labels.add(label);
+            }
+        return labels;
+    }
+
+    /**
+     * Returns whether two sequences have the same fragments at every position that a torsion label refers to.
+     */
+    private static boolean matches(String label, List<String> sequence, List<String> neighbor)
+    {
+        for (String atom : label.split(","))
+            {
+                if ( atom.indexOf('.') < 0 )
+                    return false;
+                int position = Integer.parseInt(atom.substring(0, atom.indexOf('.')));
+                if ( ! sequence.get(position).equals(neighbor.get(position)) )
+                    return false;
+            }
+        return true;
+    }
+
+    /**
+     * Sets the torsions of a linear catalyst to those of its closest cyclized neighbor.
+     * @param catalyst the linear catalyst
+     * @param torsions the torsions that cyclization will mutate, from catalyst.getTorsions()
+     * @param leftIndex the left side of the forming bond
+     * @param rightIndex the right side of the forming bond
+     * @return the warm-started molecule, or null if there is no useful neighbor
+     */
+    public static Molecule warmStart(Catalyst catalyst, List<IndexTorsion> torsions, int leftIndex, int rightIndex)
+    {
+        List<String> sequence = getSequence(catalyst);
+        if ( sequence == null )
+            return null;
+
+        // find the neighbor with the same fragment at the most positions
+        List<String> neighbor = null;
+        Map<String,Double> angles = null;
+        synchronized (CyclizationCache.class)
+            {
+                int best = 0;
+                for (Map.Entry<List<String>,Map<String,Double>> entry : CACHE.entrySet())
+                    {
+                        List<String> s = entry.getKey();
+                        if ( s.size() != sequence.size() )
+                            continue;
+                        int shared = 0;
+                        for (int i=0; i < s.size(); i++)
+                            if ( s.get(i).equals(sequence.get(i)) )
+                                shared++;
+                        if ( shared > best )
+                            {
+                                best = shared;
+                                neighbor = s;
+                                angles = entry.getValue();
+                            }
+                    }
+            }
+        if ( neighbor == null )
+            {
+                Metrics.counter("cyclization.cache.misses").increment();
+                return null;
+            }
+
+        // copy the angles of the torsions whose fragments match
+        List<String> labels = getLabels(catalyst, torsions);
+        Molecule m = catalyst;
+        int copied = 0;
+        for (int i=0; i < torsions.size(); i++)
+            {
+                Double angle = angles.get(labels.get(i));
+                if ( angle == null || ! matches(labels.get(i), sequence, neighbor) )
+                    continue;
+                m = m.setDihedral(torsions.get(i), angle);
+                copied++;
+            }
+        // the short anneal only takes small steps, so the ends must already be nearly closed
+        double distance = Vector3D.distance(m.getAtom(leftIndex).position, m.getAtom(rightIndex).position);
+        if ( copied == 0 || distance - MonteCarlo.BOND_LENGTH > Settings.CYCLIZATION_CACHE_CLOSURE_TOLERANCE
+             || MonteCarlo.getEnergy(m, leftIndex, rightIndex) >= MonteCarlo.getEnergy(catalyst, leftIndex, rightIndex) )
+            {
+                Metrics.counter("cyclization.cache.misses").increment();
+                return null;
+            }
+        Metrics.counter("cyclization.cache.hits").increment();
+        return m;
+    }
+
+    /**
+     * Adds a cyclized catalyst to the cache if its ends closed.
+     * @param catalyst the linear catalyst
+     * @param torsions the torsions that cyclization mutated, from catalyst.getTorsions()
+     * @param cyclized the result of MonteCarlo.cyclize()
+     * @param leftIndex the left side of the forming bond
+     * @param rightIndex the right side of the forming bond
+     */
+    public static void record(Catalyst catalyst, List<IndexTorsion> torsions, Molecule cyclized, int leftIndex, int rightIndex)
+    {
+        List<String> sequence = getSequence(catalyst);
+        if ( sequence == null )
+            return;
+        double distance = Vector3D.distance(cyclized.getAtom(leftIndex).position, cyclized.getAtom(rightIndex).position);
+        if ( distance - MonteCarlo.BOND_LENGTH > Settings.CYCLIZATION_CACHE_CLOSURE_TOLERANCE )
+            return;
+
+        List<String> labels = getLabels(catalyst, torsions);
+        Map<String,Double> angles = new HashMap<>();
+        List<String> entries = new ArrayList<>();
+        for (int i=0; i < torsions.size(); i++)
+            {
+                double angle = torsions.get(i).getDihedralAngle(cyclized);
+                angles.put(labels.get(i), angle);
+                entries.add(String.format("%s=%.2f", labels.get(i), angle));
+            }
+        synchronized (CyclizationCache.class)
+            {
+                CACHE.put(ImmutableList.copyOf(sequence), angles);
+                InputFileFormat.appendStringToDisk(Joiner.on(',').join(sequence) + "\t" + Joiner.on(';').join(entries) + "\n",
+                                                   Settings.CYCLIZATION_CACHE_FILENAME);
+            }
+    }
+
+    /**
+     * Returns the number of cached sequences.
+     */
+    public static synchronized int size()
+    {
+        return CACHE.size();
+    }
+}
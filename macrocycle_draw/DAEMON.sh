@@ -0,0 +1,17 @@
+# for linux
+# run from the main working directory, which must contain the input folder
+# DAEMON.sh start compiles the program into daemon_classes and starts the daemon in the background;
+# anything else is sent to the running daemon as a request
+if [ "$1" == "start" ]; then
+    rm -rf daemon_classes
+    mkdir daemon_classes
+    javac -Xlint:all -Xmaxerrs 5 -cp .:lib/* -d daemon_classes Daemon.java Macrocycle_Draw.java Analysis.java ConformationalSearch.java
+
+    if [ $? -eq 0 ]; then
+        echo Compiled.
+        nohup java -Xmx16g -XX:ParallelGCThreads=8 -cp daemon_classes:lib/* Daemon start > daemon.log 2>&1 &
+        echo Started.  The daemon writes to daemon.log.
+    fi
+else
+    java -cp daemon_classes:lib/* Daemon "$@"
+fi
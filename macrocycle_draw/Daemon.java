@@ -0,0 +1,422 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Keeps one JVM running with the fragment library loaded and the JIT warmed up, and runs requests from
+ * clients on the same machine.  Starting the program from scratch costs class loading, parsing every
+ * fragment in the input folder, and compiling the hot code again, which adds up to minutes for short
+ * design iterations.<p>
+ * Start the daemon with "Daemon start" in the main working directory.  It listens on DAEMON_PORT on the
+ * loopback interface only.  Any user on the machine can reach that port, so the daemon writes a random
+ * token to DAEMON_TOKEN_FILENAME, which only its owner can read, and ignores clients that do not send it.
+ * Clients that send nothing for DAEMON_READ_TIMEOUT are dropped, and at most DAEMON_MAX_CLIENTS are served at once.
+ * A client sends the token on the first line and then one request per connection as a single line:
+ * <pre>
+ * template [TEMPLATE]    runs the main program on TEMPLATE (e.g. linker_1@urea@linker_1@urea), or on input/template
+ * analyze [NAME]         analyzes one catalyst, or every folder in output/
+ * search NAME [steps]    runs the quick conformational search on one catalyst
+ * status                 prints the uptime, the fragment library, and the metrics
+ * stop                   stops the daemon after the running requests finish
+ * </pre>
+ * Everything the request prints, including output from the threads it starts, is sent back to the client
+ * as it happens.  The last line is "%% OK" or "%% ERROR message".  Requests that do work run one at a time,
+ * so they do not compete for MacroModel licenses or memory; status requests are answered right away.<p>
+ * The fragment library is read once.  If fragments in the input folder change, the daemon says so and
+ * must be restarted to use them.
+ */
+public final class Daemon implements Singleton
+{
+    /** Starts the last line of every reply. */
+    public static final String END = "%% ";
+
+    /** The console of the daemon, for output that does not belong to any request. */
+    private static final PrintStream CONSOLE_OUT = System.out;
+    private static final PrintStream CONSOLE_ERR = System.err;
+
+    /** Where the current request's output goes.  Threads started by a request inherit it. */
+    private static final InheritableThreadLocal<PrintStream> CLIENT = new InheritableThreadLocal<>();
+
+    /** Requests that do work hold this lock, so they run in the order they arrived. */
+    private static final ReentrantLock WORK_LOCK = new ReentrantLock(true);
+
+    /** How many requests have been received. */
+    private static final AtomicInteger requests = new AtomicInteger();
+
+    /** When the daemon started, in milliseconds. */
+    private static long startTime = 0L;
+
+    /** The newest fragment file when the library was read, to notice changes. */
+    private static long fragmentsModified = 0L;
+
+    /** The socket the daemon listens on. */
+    private static ServerSocket server = null;
+
+    /** Clients must send this before their request. */
+    private static String token = null;
+
+    /** The connections whose request has not arrived yet, which a stop request closes. */
+    private static final Set<Socket> WAITING = Collections.newSetFromMap(new ConcurrentHashMap<Socket,Boolean>());
+
+    /** Not instantiable. */
+    private Daemon()
+    {
+        throw new IllegalArgumentException("Not instantiable!");
+    }
+
+    /**
+     * Sends everything written to it to the client of the current thread, or to the console if there is none.
+     */
+    private static class Router extends OutputStream
+    {
+        private final PrintStream console;
+
+        public Router(PrintStream console)
+        {
+            this.console = console;
+        }
+
+        private PrintStream target()
+        {
+            PrintStream client = CLIENT.get();
+            return client == null ? console : client;
+        }
+
+        @Override
+        public void write(int b)
+        {
+            target().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int length)
+        {
+            target().write(b, offset, length);
+        }
+
+        @Override
+        public void flush()
+        {
+            target().flush();
+        }
+    }
+
+    /**
+     * Loads everything that is worth keeping and answers requests until a stop request arrives.
+     * @param port the local port to listen on
+     */
+    public static void serve(int port) throws IOException
+    {
+        System.setOut(new PrintStream(new Router(CONSOLE_OUT), true));
+        System.setErr(new PrintStream(new Router(CONSOLE_ERR), true));
+        startTime = System.currentTimeMillis();
+
+        // load the fragment library now rather than during the first request
+        fragmentsModified = getFragmentsModified();
+        int fragments = 0;
+        for (List<Fragment> list : FragmentLibrary.DATABASE.values())
+            fragments += list.size();
+        System.out.println(String.format("Read %d fragments on %s.", fragments, Settings.HOSTNAME));
+        Metrics.startReporting(Settings.WORKING_DIRECTORY + "output/metrics-" + Settings.HOSTNAME + ".csv", Settings.METRICS_REPORTING_PERIOD);
+
+        token = writeToken();
+        server = new ServerSocket(port, 50, InetAddress.getByName(null));
+        System.out.println("Listening on " + server.getLocalSocketAddress() + ".");
+        ExecutorService executor = new ThreadPoolExecutor(0, Settings.DAEMON_MAX_CLIENTS, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+        while ( true )
+            {
+                final Socket socket;
+                try
+                    {
+                        socket = server.accept();
+                    }
+                catch (SocketException e)
+                    {
+                        // the socket was closed by a stop request
+                        break;
+                    }
+                WAITING.add(socket);
+                try
+                    {
+                        executor.submit(new Runnable()
+                            {
+                                public void run()
+                                {
+                                    handle(socket);
+                                }
+                            });
+                    }
+                catch (RejectedExecutionException e)
+                    {
+                        CONSOLE_OUT.println("Turned away a client because " + Settings.DAEMON_MAX_CLIENTS + " are connected.");
+                        WAITING.remove(socket);
+                        socket.close();
+                    }
+            }
+
+        // clients that have not sent a request are not worth waiting for
+        for (Socket socket : WAITING)
+            socket.close();
+        executor.shutdown();
+        try
+            {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            }
+        catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        Metrics.stopReporting();
+        Files.deleteIfExists(Paths.get(Settings.DAEMON_TOKEN_FILENAME));
+        System.out.println("Stopped after " + requests.get() + " requests.");
+    }
+
+    /**
+     * Makes a new random token and writes it to DAEMON_TOKEN_FILENAME, readable only by the owner.
+     * @return the token
+     */
+    private static String writeToken() throws IOException
+    {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder builder = new StringBuilder();
+        for (byte b : bytes)
+            builder.append(String.format("%02x", b));
+        String newToken = builder.toString();
+
+        // the file is created with its permissions, so nobody else can open it in between
+        Path path = Paths.get(Settings.DAEMON_TOKEN_FILENAME);
+        Files.deleteIfExists(path);
+        if ( Settings.PLATFORM == Settings.Platform.LINUX )
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        else
+            Files.createFile(path);
+        Files.write(path, newToken.getBytes(StandardCharsets.US_ASCII));
+        return newToken;
+    }
+
+    /**
+     * Reads one request from a client, runs it, and sends back the output.
+     */
+    private static void handle(Socket socket)
+    {
+        try ( Socket s = socket;
+              BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+              PrintStream out = new PrintStream(new BufferedOutputStream(s.getOutputStream()), true) )
+            {
+                // a client that connects and sends nothing would otherwise hold this thread forever
+                s.setSoTimeout(Settings.DAEMON_READ_TIMEOUT * 1000);
+                String line = in.readLine();
+                if ( line == null )
+                    return;
+                if ( ! MessageDigest.isEqual(line.trim().getBytes(StandardCharsets.US_ASCII), token.getBytes(StandardCharsets.US_ASCII)) )
+                    {
+                        CONSOLE_OUT.println("Rejected a client without the token.");
+                        out.println(END + "ERROR wrong token");
+                        return;
+                    }
+                line = in.readLine();
+                WAITING.remove(s);
+                if ( line == null )
+                    return;
+                int number = requests.incrementAndGet();
+                CONSOLE_OUT.println(String.format("Request %d: %s", number, line));
+                CLIENT.set(out);
+                long start = System.currentTimeMillis();
+                try
+                    {
+                        run(line.trim().split("\\s+"));
+                        out.println(END + "OK");
+                    }
+                catch (Exception e)
+                    {
+                        e.printStackTrace();
+                        out.println(END + "ERROR " + e.getMessage());
+                    }
+                finally
+                    {
+                        CLIENT.remove();
+                    }
+                CONSOLE_OUT.println(String.format("Request %d finished in %.1f s.", number, (System.currentTimeMillis() - start) / 1000.0));
+            }
+        catch (SocketTimeoutException e)
+            {
+                CONSOLE_OUT.println("Dropped a client that sent nothing for " + Settings.DAEMON_READ_TIMEOUT + " s.");
+            }
+        catch (IOException e)
+            {
+                if ( server.isClosed() && socket.isClosed() )
+                    {
+                        CONSOLE_OUT.println("Dropped a client that had not sent a request when the daemon stopped.");
+                        return;
+                    }
+                CONSOLE_OUT.println("Error talking to client!");
+                e.printStackTrace(CONSOLE_ERR);
+            }
+        finally
+            {
+                WAITING.remove(socket);
+            }
+    }
+
+    /**
+     * Runs one request.
+     * @param args the words of the request
+     */
+    private static void run(String[] args) throws IOException
+    {
+        switch (args[0])
+            {
+                case "status":
+                    System.out.println(String.format("Up for %.1f minutes on %s, %d requests.", (System.currentTimeMillis() - startTime) / 60000.0,
+                                                     Settings.HOSTNAME, requests.get()));
+                    System.out.println(FragmentLibrary.getDatabase());
+                    checkFragments();
+                    System.out.println(Metrics.getSummary());
+                    return;
+                case "stop":
+                    System.out.println("Stopping after the running requests finish.");
+                    server.close();
+                    return;
+                case "template":
+                case "analyze":
+                case "search":
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown request " + args[0]);
+            }
+
+        if ( WORK_LOCK.hasQueuedThreads() || WORK_LOCK.isLocked() )
+            System.out.println("Waiting for earlier requests...");
+        WORK_LOCK.lock();
+        try
+            {
+                switch (args[0])
+                    {
+                        case "template":
+                            checkFragments();
+                            Macrocycle_Draw.Template template = args.length > 1 ? Macrocycle_Draw.Template.parse(args[1])
+                                                                                : Macrocycle_Draw.Template.read(Settings.INPUT_DIRECTORY + "template");
+                            System.out.println("Running template " + template + "...");
+                            new File(Settings.WORKING_DIRECTORY + "output").mkdirs();
+                            System.out.println(Macrocycle_Draw.run(template));
+                            break;
+                        case "analyze":
+                            if ( args.length > 1 )
+                                Analysis.analyze(args[1], true);
+                            else
+                                Analysis.analyzeAll();
+                            break;
+                        case "search":
+                            if ( args.length < 2 )
+                                throw new IllegalArgumentException("usage: search NAME [steps]");
+                            String name = args[1];
+                            int steps = args.length > 2 ? Integer.parseInt(args[2]) : Settings.SEARCH_STEPS;
+                            Catalyst c = Analysis.readCatalyst(name);
+                            ConformationalSearch.Result result = new ConformationalSearch(c, steps, Settings.SEARCH_ENERGY_WINDOW).run();
+                            result.write(Settings.WORKING_DIRECTORY + "output/" + name + "/" + name + "-search.dat", c);
+                            System.out.println(result);
+                            break;
+                    }
+            }
+        finally
+            {
+                WORK_LOCK.unlock();
+            }
+    }
+
+    /**
+     * Returns the time that the newest fragment file was modified.
+     */
+    private static long getFragmentsModified()
+    {
+        long newest = 0L;
+        File[] files = new File(Settings.INPUT_DIRECTORY).listFiles();
+        if ( files != null )
+            for (File f : files)
+                if ( f.getName().endsWith(".gjf") )
+                    newest = Math.max(newest, f.lastModified());
+        return newest;
+    }
+
+    /**
+     * Warns the client if the fragment files have changed since the library was read.
+     */
+    private static void checkFragments()
+    {
+        if ( getFragmentsModified() != fragmentsModified )
+            System.out.println("Warning: fragments in " + Settings.INPUT_DIRECTORY + " have changed.  Restart the daemon to use them.");
+    }
+
+    /**
+     * Sends a request to the daemon and prints the reply.  This does not touch Settings or the fragment
+     * library, so it starts quickly.
+     * @param request the request line
+     * @param port the port the daemon listens on
+     * @param tokenFilename the file the daemon wrote its token to
+     * @return true if the request succeeded
+     */
+    public static boolean send(String request, int port, String tokenFilename) throws IOException
+    {
+        String clientToken = new String(Files.readAllBytes(Paths.get(tokenFilename)), StandardCharsets.US_ASCII).trim();
+        try ( Socket socket = new Socket(InetAddress.getByName(null), port);
+              PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+              BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream())) )
+            {
+                out.println(clientToken);
+                out.println(request);
+                String line = null;
+                while ( (line = in.readLine()) != null )
+                    {
+                        if ( line.startsWith(END) )
+                            {
+                                if ( line.equals(END + "OK") )
+                                    return true;
+                                System.out.println(line.substring(END.length()));
+                                return false;
+                            }
+                        System.out.println(line);
+                    }
+                System.out.println("The daemon closed the connection.");
+                return false;
+            }
+    }
+
+    /**
+     * Usage: Daemon start | template [TEMPLATE] | analyze [NAME] | search NAME [steps] | status | stop
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if ( args.length == 0 )
+            {
+                System.out.println("Usage: Daemon start | template [TEMPLATE] | analyze [NAME] | search NAME [steps] | status | stop");
+                System.exit(1);
+            }
+        if ( args[0].equals("start") )
+            {
+                serve(Settings.DAEMON_PORT);
+                return;
+            }
+
+        StringBuilder request = new StringBuilder();
+        for (String arg : args)
+            request.append(arg).append(' ');
+        try
+            {
+                if ( ! send(request.toString().trim(), Settings.DAEMON_PORT, Settings.DAEMON_TOKEN_FILENAME) )
+                    System.exit(1);
+            }
+        catch (ConnectException | NoSuchFileException e)
+            {
+                System.out.println("The daemon is not running.  Start it with DAEMON.sh start.");
+                System.exit(1);
+            }
+    }
+}
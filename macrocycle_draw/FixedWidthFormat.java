@@ -0,0 +1,139 @@
+/**
+ * Appends fixed-width numbers and strings to a StringBuilder, giving the same text as String.format()
+ * with the equivalent %W.Df, %Wd, and %Ws specifiers.  String.format() parses its format string and
+ * builds several objects for every field, which dominates the time spent writing structure files.<p>
+ * Numbers are rounded half-up like Formatter.  Values that are too close to a rounding tie to decide
+ * safely in double arithmetic, or that are too large, are passed to String.format() instead.
+ */
+public final class FixedWidthFormat implements Singleton
+{
+    /** Powers of ten up to the largest supported number of decimals. */
+    private static final long[] POWERS_OF_TEN = { 1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L,
+                                                  10000000L, 100000000L, 1000000000L };
+
+    /** Scaled values at least this large use String.format(). */
+    private static final double MAX_SCALED = 1.0E12;
+
+    /** Scaled values whose fractional part is this close to one half use String.format(). */
+    private static final double TIE_TOLERANCE = 1.0E-3;
+
+    /** Not instantiable. */
+    private FixedWidthFormat()
+    {
+        throw new IllegalArgumentException("Not instantiable!");
+    }
+
+    /**
+     * Appends a number like %W.Df, or %-W.Df if leftAlign is set.
+     * @param builder where to append the text
+     * @param value the number to format
+     * @param width the minimum width of the field
+     * @param decimals the number of digits after the decimal point (at most nine)
+     * @param leftAlign whether to pad on the right instead of the left
+     * @return the builder
+     */
+    public static StringBuilder appendFixed(StringBuilder builder, double value, int width, int decimals, boolean leftAlign)
+    {
+        int start = builder.length();
+        if ( !appendDigits(builder, value, decimals) )
+            {
+                builder.setLength(start);
+                builder.append(String.format("%." + decimals + "f", value));
+            }
+        return pad(builder, start, width, leftAlign);
+    }
+
+    /**
+     * Appends a right-aligned number like %W.Df.
+     */
+    public static StringBuilder appendFixed(StringBuilder builder, double value, int width, int decimals)
+    {
+        return appendFixed(builder, value, width, decimals, false);
+    }
+
+    /**
+     * Appends the digits of a number, or returns false if the number needs String.format().
+     */
+    private static boolean appendDigits(StringBuilder builder, double value, int decimals)
+    {
+        if ( decimals < 0 || decimals >= POWERS_OF_TEN.length || Double.isNaN(value) || Double.isInfinite(value) )
+            return false;
+        boolean negative = value < 0.0 || ( value == 0.0 && 1.0 / value < 0.0 );
+        double scaled = Math.abs(value) * POWERS_OF_TEN[decimals];
+        if ( scaled >= MAX_SCALED )
+            return false;
+        double floor = Math.floor(scaled);
+        double fraction = scaled - floor;
+        if ( Math.abs(fraction - 0.5) < TIE_TOLERANCE )
+            return false;
+        long units = (long)floor + ( fraction > 0.5 ? 1L : 0L );
+
+        if ( negative )
+            builder.append('-');
+        long power = POWERS_OF_TEN[decimals];
+        builder.append(units / power);
+        if ( decimals > 0 )
+            {
+                builder.append('.');
+                long fractionalPart = units % power;
+                for (long p = power / 10L; p > fractionalPart && p > 1L; p /= 10L)
+                    builder.append('0');
+                builder.append(fractionalPart);
+            }
+        return true;
+    }
+
+    /**
+     * Appends an integer like %Wd.
+     * @param builder where to append the text
+     * @param value the number to format
+     * @param width the minimum width of the field, right-aligned
+     * @return the builder
+     */
+    public static StringBuilder appendInt(StringBuilder builder, long value, int width)
+    {
+        int start = builder.length();
+        builder.append(value);
+        return pad(builder, start, width, false);
+    }
+
+    /**
+     * Appends a string like %Ws, or %-Ws if leftAlign is set.
+     * @param builder where to append the text
+     * @param value the string to append
+     * @param width the minimum width of the field
+     * @param leftAlign whether to pad on the right instead of the left
+     * @return the builder
+     */
+    public static StringBuilder appendString(StringBuilder builder, String value, int width, boolean leftAlign)
+    {
+        int start = builder.length();
+        builder.append(value);
+        return pad(builder, start, width, leftAlign);
+    }
+
+    /**
+     * Pads the text appended since start with spaces until it is width characters long.
+     */
+    private static StringBuilder pad(StringBuilder builder, int start, int width, boolean leftAlign)
+    {
+        int spaces = width - ( builder.length() - start );
+        if ( spaces <= 0 )
+            return builder;
+        if ( leftAlign )
+            {
+                for (int i=0; i < spaces; i++)
+                    builder.append(' ');
+            }
+        else
+            {
+                int end = builder.length();
+                builder.setLength(end + spaces);
+                for (int i = end - 1; i >= start; i--)
+                    builder.setCharAt(i + spaces, builder.charAt(i));
+                for (int i=0; i < spaces; i++)
+                    builder.setCharAt(start + i, ' ');
+            }
+        return builder;
+    }
+}
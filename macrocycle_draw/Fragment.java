@@ -55,7 +55,7 @@ public class Fragment extends Molecule implements Immutable, Serializable
     }
 
     /**
-    * Private constructor for Fragment.
+    * Constructor for Fragment.  Used by the factory methods and CatalystCodec.
     * @param name the name of the Fragment
     * @param contents a list of Atoms in the Fragment
     * @param connectivity a graph of the connectivity
@@ -67,7 +67,7 @@ public class Fragment extends Molecule implements Immutable, Serializable
     * @param rotatableBonds
     * @return a Fragment
     */
-    private Fragment(String name, List<Atom> contents, SimpleWeightedGraph<Atom,DefaultWeightedEdge> connectivity, Atom leftConnect, Atom rightConnect, Atom ureaCarbon, FragmentType fragmentType, List<Atom> chiralAtoms, SimpleWeightedGraph<Atom,DefaultWeightedEdge> rotatableBonds)
+    Fragment(String name, List<Atom> contents, SimpleWeightedGraph<Atom,DefaultWeightedEdge> connectivity, Atom leftConnect, Atom rightConnect, Atom ureaCarbon, FragmentType fragmentType, List<Atom> chiralAtoms, SimpleWeightedGraph<Atom,DefaultWeightedEdge> rotatableBonds)
     {
         super(name, contents, connectivity);
         this.leftConnect = leftConnect;
@@ -1,6 +1,8 @@
 import java.io.*;
 import java.util.*;
+import com.google.common.base.*;
 import com.google.common.collect.*;
+import com.google.common.hash.*;
 import org.apache.commons.math3.geometry.euclidean.threed.*;
 
 /**
@@ -17,6 +19,12 @@ public final class FragmentLibrary implements Singleton
    
     /** Fragment collection, sorted by type. */
     public static final ImmutableMap<FragmentType,List<Fragment>> DATABASE;
+
+    /**
+     * SHA-1 hashes of the name and file of each fragment, by fragment name, so that changed fragments
+     * can be recognized.  The name is included because copies of a file under new names make new catalysts.
+     */
+    public static final ImmutableMap<String,String> HASHES;
     
     static{
         // collections of fragments by type
@@ -27,6 +35,8 @@ public final class FragmentLibrary implements Singleton
         List<Fragment> linkerList_3 = new ArrayList<>();
         List<Fragment> linkerList_4 = new ArrayList<>();
 
+        Map<String,String> hashes = new HashMap<>();
+
         File fragmentDirectory = new File(Settings.INPUT_DIRECTORY);
         for ( File f:fragmentDirectory.listFiles() )
         {
@@ -35,6 +45,15 @@ public final class FragmentLibrary implements Singleton
             {
                 GJFfragment gjf = new GJFfragment(Settings.INPUT_DIRECTORY+filename);
                 Fragment fragment = Fragment.createFragment(gjf);
+                try
+                {
+                    byte[] bytes = com.google.common.io.Files.toByteArray(f);
+                    hashes.put(fragment.name, Hashing.sha1().newHasher().putString(fragment.name, Charsets.UTF_8).putBytes(bytes).hash().toString());
+                }
+                catch (IOException e)
+                {
+                    throw new IllegalArgumentException("unable to read " + filename, e);
+                }
                 switch(fragment.fragmentType)
                 {
                     case UREA: ureaList.add(fragment);
@@ -64,6 +83,7 @@ public final class FragmentLibrary implements Singleton
         tempMap.put(FragmentType.LINKER_4, linkerList_4);
 
         DATABASE = ImmutableMap.copyOf(tempMap);
+        HASHES = ImmutableMap.copyOf(hashes);
     }
 
     /** 
@@ -172,6 +192,111 @@ public final class FragmentLibrary implements Singleton
             returnCatalysts.add(c.cyclize());
         return returnCatalysts;
      }
+
+    /**
+     * Enumerates the same linear catalysts as createCatalysts(template, false), or the doubled ones that
+     * createC2Catalysts() cyclizes, one at a time.  Catalysts are built as they are requested, so the
+     * first ones are available right away, and the partial catalysts that the current one shares with
+     * the previous one are reused.  The order is the same as in createCatalysts().
+     * @param template the fragment types from left to right
+     * @param C2 whether to append a copy of each catalyst to itself
+     * @return the uncyclized catalysts
+     */
+    public static Iterator<Catalyst> enumerateCatalysts(List<FragmentType> template, boolean C2)
+    {
+        if ( template.size() == 0 )
+            throw new IllegalArgumentException("Empty template!");
+        List<List<Fragment>> choices = new ArrayList<>();
+        for ( FragmentType t : template )
+            {
+                List<Fragment> fragments = DATABASE.get(t);
+                if ( fragments == null || fragments.size() == 0 )
+                    throw new IllegalArgumentException("DATABASE contains no " + t);
+                choices.add(fragments);
+            }
+        return enumerateProduct(choices, C2);
+    }
+
+    /**
+     * Enumerates every catalyst that takes one fragment from each list, from left to right, in the
+     * same order and with the same reuse of partial catalysts as enumerateCatalysts().
+     * @param choices the fragments allowed at each position, none of them empty
+     * @param C2 whether to append a copy of each catalyst to itself
+     * @return the uncyclized catalysts
+     */
+    public static Iterator<Catalyst> enumerateProduct(final List<List<Fragment>> choices, final boolean C2)
+    {
+        return new Iterator<Catalyst>()
+            {
+                /** The fragment chosen at each position of the next catalyst; null when done. */
+                private int[] indices = new int[choices.size()];
+
+                /** prefixes[i] holds the first i+1 fragments of the last catalyst built. */
+                private final Catalyst[] prefixes = new Catalyst[choices.size()];
+
+                /** The positions from here on have changed since the last catalyst was built. */
+                private int firstChanged = 0;
+
+                public boolean hasNext()
+                {
+                    return indices != null;
+                }
+
+                public Catalyst next()
+                {
+                    if ( indices == null )
+                        throw new NoSuchElementException();
+
+                    // rebuild the prefixes that changed
+                    int from = firstChanged;
+                    firstChanged = indices.length;
+                    int[] current = indices.clone();
+                    advance();
+                    for (int i=from; i < current.length; i++)
+                        {
+                            Fragment f = choices.get(i).get(current[i]);
+                            try
+                                {
+                                    prefixes[i] = i == 0 ? new Catalyst(f) : prefixes[i-1].addRight(f);
+                                }
+                            catch (RuntimeException e)
+                                {
+                                    // this prefix is stale, so the next catalyst has to rebuild it
+                                    firstChanged = Math.min(firstChanged, i);
+                                    throw e;
+                                }
+                        }
+
+                    Catalyst c = prefixes[current.length-1];
+                    if ( C2 )
+                        {
+                            Catalyst c1 = c.shift(new Vector3D(1,0,0));
+                            for ( Fragment f : c1.fragmentList )
+                                c = c.addRight(f);
+                        }
+                    return c;
+                }
+
+                /** Moves to the next combination, rightmost position fastest, as in createCatalysts(). */
+                private void advance()
+                {
+                    for (int i=indices.length-1; i >= 0; i--)
+                        {
+                            firstChanged = i;
+                            indices[i]++;
+                            if ( indices[i] < choices.get(i).size() )
+                                return;
+                            indices[i] = 0;
+                        }
+                    indices = null;
+                }
+
+                public void remove()
+                {
+                    throw new UnsupportedOperationException("catalysts cannot be removed");
+                }
+            };
+    }
 }
 
 
@@ -30,55 +30,79 @@ public class GaussianInputFile extends InputFileFormat
 
     private static String getGaussianString(Molecule molecule, String name, String keywords)
     {
-        String returnString = "%mem=1GB\n%nprocshared=12\n#p geom=connect " + keywords + "\n";
-        returnString += "\n" + name + "\n\n0 1\n";
-        returnString = returnString + molecule.toOmnisolString() + "\n";
-        
-        Atom fromAtom = null;
-        Atom toAtom = null;
-        Integer fromAtomNumber = 0;
-        Integer toAtomNumber = 0;
-        Double bondOrder = 0.0;
-        DefaultWeightedEdge thisEdge = null;
-
-        // read connectivity data into parallel arrays
-        ArrayList<Integer> fromAtoms = new ArrayList<Integer>();
-        ArrayList<Integer> toAtoms = new ArrayList<Integer>();
-        ArrayList<Double> bondOrders = new ArrayList<Double>();
-        ArrayList<Boolean> visited = new ArrayList<Boolean>();
-        for (DefaultWeightedEdge e : molecule.connectivity.edgeSet())
+        StringBuilder builder = new StringBuilder(64 * molecule.contents.size() + 128);
+        try
+            {
+                write(molecule, name, keywords, builder);
+            }
+        catch (IOException e)
             {
-                fromAtom = molecule.connectivity.getEdgeSource(e);
-                fromAtomNumber = molecule.contents.indexOf(fromAtom) + 1;
-                toAtom = molecule.connectivity.getEdgeTarget(e);
-                toAtomNumber = molecule.contents.indexOf(toAtom) + 1;
-                bondOrder = molecule.connectivity.getEdgeWeight(e);
+                // cannot happen with a StringBuilder
+                throw new IllegalArgumentException(e.getMessage());
+            }
+        return builder.toString();
+    }
+
+    /**
+     * Writes a Gaussian input file one line at a time, without building the whole file in memory.
+     * Each bond is listed once, on the line of the lower-numbered atom.
+     * @param molecule the molecule whose geometry and connectivity will be written
+     * @param name the title of the job
+     * @param keywords added to the route line
+     * @param out where to write the lines
+     */
+    public static void write(Molecule molecule, String name, String keywords, Appendable out) throws IOException
+    {
+        out.append("%mem=1GB\n%nprocshared=12\n#p geom=connect ").append(keywords).append('\n');
+        out.append('\n').append(name).append("\n\n0 1\n");
+        molecule.writeGeometry(out);
+        out.append('\n');
 
-                fromAtoms.add(fromAtomNumber);
-                toAtoms.add(toAtomNumber);
-                bondOrders.add(bondOrder);
-                visited.add(false);
+        // group the bonds by the atom whose line they go on, keeping the order of the edge set
+        int numberOfAtoms = molecule.contents.size();
+        int[] counts = new int[numberOfAtoms + 1];
+        List<DefaultWeightedEdge> edges = new ArrayList<>(molecule.connectivity.edgeSet());
+        int[] lineNumbers = new int[edges.size()];
+        int[] otherNumbers = new int[edges.size()];
+        for (int j=0; j < edges.size(); j++)
+            {
+                DefaultWeightedEdge e = edges.get(j);
+                int fromAtomNumber = molecule.getAtomIndex(molecule.connectivity.getEdgeSource(e)) + 1;
+                int toAtomNumber = molecule.getAtomIndex(molecule.connectivity.getEdgeTarget(e)) + 1;
+                if ( fromAtomNumber > 0 && ( toAtomNumber == 0 || fromAtomNumber <= toAtomNumber ) )
+                    {
+                        lineNumbers[j] = fromAtomNumber;
+                        otherNumbers[j] = toAtomNumber;
+                    }
+                else
+                    {
+                        lineNumbers[j] = toAtomNumber;
+                        otherNumbers[j] = fromAtomNumber;
+                    }
+                counts[lineNumbers[j]]++;
             }
-        for (int i=0; i < molecule.contents.size(); i++)
+        int[] starts = new int[numberOfAtoms + 2];
+        for (int i=0; i <= numberOfAtoms; i++)
+            starts[i+1] = starts[i] + counts[i];
+        int[] positions = Arrays.copyOf(starts, numberOfAtoms + 1);
+        int[] bonds = new int[edges.size()];
+        for (int j=0; j < edges.size(); j++)
+            bonds[positions[lineNumbers[j]]++] = j;
+
+        StringBuilder line = new StringBuilder(64);
+        for (int i=1; i <= numberOfAtoms; i++)
             {
-                returnString = returnString + (i+1) + " ";
-                for (int j=0; j < fromAtoms.size(); j++)
+                line.setLength(0);
+                line.append(i).append(' ');
+                for (int k=starts[i]; k < starts[i+1]; k++)
                     {
-                        if (fromAtoms.get(j) == i+1 && visited.get(j) == false)
-                            {
-                                returnString = returnString + toAtoms.get(j) + " " + String.format("%.1f ", bondOrders.get(j));
-                                visited.set(j, true);
-                            }
-                        if (toAtoms.get(j) == i+1 && visited.get(j) == false)
-                            {
-                                returnString = returnString + fromAtoms.get(j) + " " + String.format("%.1f ", bondOrders.get(j));
-                                visited.set(j, true);
-                            }
+                        int j = bonds[k];
+                        line.append(otherNumbers[j]).append(' ');
+                        FixedWidthFormat.appendFixed(line, molecule.connectivity.getEdgeWeight(edges.get(j)), 0, 1).append(' ');
                     }
-                returnString = returnString + "\n";
+                out.append(line.append('\n'));
             }
-        returnString = returnString + "\n\n";
-        return returnString;
+        out.append("\n\n");
     }
 
     /**
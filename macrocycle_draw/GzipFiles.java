@@ -0,0 +1,512 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Opens files for reading and writing, transparently handling gzip compression.  This lets us read
+ * Macromodel .maegz files directly instead of unpacking them to disk first.<p>
+ * Files are recognized as compressed for reading by their contents, not their names.  Large files that
+ * consist of many concatenated gzip members (as Macromodel writes them) are decompressed in parallel.
+ * Files are compressed for writing if their names end in .gz or .maegz.
+ */
+public final class GzipFiles implements Singleton
+{
+    /** The first bytes of every gzip member. */
+    private static final int MAGIC_1 = 0x1f;
+    private static final int MAGIC_2 = 0x8b;
+
+    /** The only compression method gzip defines. */
+    private static final int DEFLATE = 8;
+
+    /** Header flags. */
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+    private static final int RESERVED = 0xE0;
+
+    /** The fixed part of the member header and the trailer are this long. */
+    private static final int HEADER_LENGTH = 10;
+    private static final int TRAILER_LENGTH = 8;
+
+    /** Buffer size for streams. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** Compressed files smaller than this are not worth decompressing in parallel. */
+    private static final long PARALLEL_THRESHOLD = 1L << 20;
+
+    /** Members that decompress to more than this are streamed instead of being held in memory. */
+    private static final int MAX_MEMBER_LENGTH = 1 << 22;
+
+    /** How many members at the start of a file must be checked before it is decompressed in parallel. */
+    private static final int VERIFIED_MEMBERS = 2;
+
+    /** How many members each reader can decompress ahead of itself. */
+    private static final int WINDOW = 2 * Settings.NUMBER_OF_THREADS;
+
+    /**
+     * Every parallel reader shares these threads, so reading several files at once (see Analysis.analyzeAll)
+     * does not start NUMBER_OF_THREADS more threads for each file.
+     */
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(Settings.NUMBER_OF_THREADS, new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "gunzip");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /** Do not try to instantiate this! */
+    private GzipFiles() {throw new IllegalArgumentException("Not instantiable!");}
+
+    /**
+     * Determines whether a file should be compressed when written.
+     * @param filename the name of the file
+     * @return true if the name ends in .gz or .maegz
+     */
+    public static boolean isGzipName(String filename)
+    {
+        return filename.endsWith(".gz") || filename.endsWith(".maegz");
+    }
+
+    /**
+     * Determines whether a file is gzip-compressed by looking at its first two bytes.
+     * @param filename the location of the file
+     * @return true if the file starts with the gzip magic number
+     */
+    public static boolean isGzipped(String filename)
+    {
+        try ( InputStream stream = new FileInputStream(filename) )
+            {
+                return stream.read() == MAGIC_1 && stream.read() == MAGIC_2;
+            }
+        catch (IOException e)
+            {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+    }
+
+    /**
+     * Opens a file for reading, decompressing it if necessary.
+     * @param filename the location of the file
+     * @return a channel that gives the uncompressed bytes
+     */
+    public static ReadableByteChannel openChannel(String filename)
+    {
+        try
+            {
+                if ( !isGzipped(filename) )
+                    return new FileInputStream(filename).getChannel();
+
+                if ( isParallel(new File(filename)) )
+                    {
+                        ReadableByteChannel channel = ParallelGzipChannel.open(filename);
+                        if ( channel != null )
+                            return channel;
+                    }
+                return Channels.newChannel(new GZIPInputStream(new FileInputStream(filename), BUFFER_SIZE));
+            }
+        catch (IOException e)
+            {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+    }
+
+    /**
+     * Returns whether a compressed file is big enough to be worth decompressing in parallel.
+     */
+    private static boolean isParallel(File file)
+    {
+        return file.length() >= PARALLEL_THRESHOLD && file.length() <= Integer.MAX_VALUE && Settings.NUMBER_OF_THREADS > 1;
+    }
+
+    /**
+     * Returns the most uncompressed data that reading a file with openChannel() can hold in memory at once.
+     * @param filename the location of the file
+     * @return the size in bytes
+     */
+    public static long getReadMemory(String filename)
+    {
+        if ( isGzipped(filename) && isParallel(new File(filename)) )
+            return (long)WINDOW * MAX_MEMBER_LENGTH;
+        return BUFFER_SIZE;
+    }
+
+    /**
+     * Opens a file for writing, compressing it if the name ends in .gz or .maegz.
+     * @param filename the location of the file
+     * @param append whether to add to the end of the file; for compressed files, a new gzip member is added
+     * @return the stream to write to
+     */
+    public static OutputStream openOutputStream(String filename, boolean append) throws IOException
+    {
+        OutputStream stream = new FileOutputStream(filename, append);
+        if ( isGzipName(filename) )
+            return new GZIPOutputStream(stream, BUFFER_SIZE);
+        return new BufferedOutputStream(stream, BUFFER_SIZE);
+    }
+
+    /**
+     * Decompresses a file made of several gzip members in parallel.  gzip does not record where
+     * the members start, so every place where a member header could start is decompressed
+     * speculatively.  Starting at the beginning of the file, the end of each real member tells us
+     * where the next real member is, so the false starts are simply discarded.  Each member is
+     * checked against its CRC.  Only a few members are decompressed ahead of the reader at once,
+     * and none bigger than MAX_MEMBER_LENGTH, so memory use stays small.<p>
+     * Bytes that look like a header also turn up by chance inside ordinary single-member files, so
+     * the first members are decompressed and checked before a file is read this way.  If a member
+     * turns out to be too big to hold, the rest of the file is streamed.
+     */
+    private static class ParallelGzipChannel implements ReadableByteChannel
+    {
+        /** The location of the file. */
+        private final String filename;
+
+        /** The compressed bytes. */
+        private final ByteBuffer compressed;
+
+        /** Offsets where gzip member headers might start, in ascending order. */
+        private final long[] candidates;
+
+        /** Decompression jobs that have been started, indexed by their starting offsets. */
+        private final TreeMap<Long,Future<Member>> pending = new TreeMap<>();
+
+        /** The index of the next candidate to submit. */
+        private int nextCandidate = 0;
+
+        /** Where the next real member starts. */
+        private long position = 0L;
+
+        /** Uncompressed bytes that have not been read yet. */
+        private ByteBuffer current = ByteBuffer.allocate(0);
+
+        /** Reads the rest of the file once a member is too big to hold, or null. */
+        private ReadableByteChannel stream = null;
+
+        private boolean open = true;
+
+        private ParallelGzipChannel(String filename, ByteBuffer compressed, long[] candidates)
+        {
+            this.filename = filename;
+            this.compressed = compressed;
+            this.candidates = candidates;
+        }
+
+        /**
+         * Maps the file and finds possible member headers.
+         * @return the channel, or null if the file is a single member and should be read as a stream
+         */
+        public static ParallelGzipChannel open(String filename) throws IOException
+        {
+            ByteBuffer compressed = null;
+            try ( FileChannel fileChannel = new FileInputStream(filename).getChannel() )
+                {
+                    compressed = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0L, fileChannel.size());
+                }
+
+            long[] candidates = new long[16];
+            int count = 0;
+            int limit = compressed.limit() - HEADER_LENGTH - TRAILER_LENGTH;
+            for (int i=0; i <= limit; i++)
+                {
+                    if ( ( compressed.get(i)   & 0xFF ) == MAGIC_1 &&
+                         ( compressed.get(i+1) & 0xFF ) == MAGIC_2 &&
+                           compressed.get(i+2)          == DEFLATE &&
+                         ( compressed.get(i+3) & RESERVED ) == 0 )
+                        {
+                            if ( count == candidates.length )
+                                candidates = Arrays.copyOf(candidates, count * 2);
+                            candidates[count++] = i;
+                        }
+                }
+            if ( count < VERIFIED_MEMBERS )
+                return null;
+
+            // make sure the file really starts with several members of a reasonable size
+            long offset = 0L;
+            for (int verified=0; verified < VERIFIED_MEMBERS; verified++)
+                {
+                    if ( offset >= compressed.limit() )
+                        return null;
+                    Member member = inflate(compressed, (int)offset, false);
+                    if ( member == null || member == TOO_LARGE )
+                        return null;
+                    offset = member.end;
+                }
+            return new ParallelGzipChannel(filename, compressed, Arrays.copyOf(candidates, count));
+        }
+
+        /**
+         * Represents one decompressed gzip member.
+         */
+        private static class Member
+        {
+            /** The uncompressed contents. */
+            public final byte[] data;
+            public final int length;
+
+            /** The offset just past the end of this member. */
+            public final long end;
+
+            public Member(byte[] data, int length, long end)
+            {
+                this.data = data;
+                this.length = length;
+                this.end = end;
+            }
+        }
+
+        /** Stands for a member that decompresses to more than MAX_MEMBER_LENGTH. */
+        private static final Member TOO_LARGE = new Member(null, 0, -1L);
+
+        /**
+         * Decompresses the member that might start at the specified offset.
+         */
+        private class InflateJob implements Callable<Member>
+        {
+            private final int start;
+
+            public InflateJob(long start)
+            {
+                this.start = (int)start;
+            }
+
+            /**
+             * @return the member, TOO_LARGE, or null if there is not a valid member here
+             */
+            @Override
+            public Member call()
+            {
+                return inflate(compressed, start, true);
+            }
+        }
+
+        /**
+         * Decompresses the member that might start at the specified offset.
+         * @param compressed the compressed file
+         * @param start where the member might start
+         * @param keep whether to keep the uncompressed bytes, or only check the member
+         * @return the member (without data unless keep is set), TOO_LARGE, or null if there is not a valid member here
+         */
+        private static Member inflate(ByteBuffer compressed, int start, boolean keep)
+        {
+            ByteBuffer in = compressed.duplicate();
+            int size = in.limit();
+            if ( start + HEADER_LENGTH > size ||
+                 ( in.get(start) & 0xFF ) != MAGIC_1 || ( in.get(start+1) & 0xFF ) != MAGIC_2 ||
+                 in.get(start+2) != DEFLATE || ( in.get(start+3) & RESERVED ) != 0 )
+                return null;
+
+            // skip the header
+            int flags = in.get(start+3) & 0xFF;
+            int i = start + HEADER_LENGTH;
+            if ( ( flags & FEXTRA ) != 0 )
+                {
+                    if ( i + 2 > size )
+                        return null;
+                    i += 2 + ( ( in.get(i) & 0xFF ) | ( ( in.get(i+1) & 0xFF ) << 8 ) );
+                }
+            if ( ( flags & FNAME ) != 0 )
+                {
+                    while ( i < size && in.get(i) != 0 )
+                        i++;
+                    i++;
+                }
+            if ( ( flags & FCOMMENT ) != 0 )
+                {
+                    while ( i < size && in.get(i) != 0 )
+                        i++;
+                    i++;
+                }
+            if ( ( flags & FHCRC ) != 0 )
+                i += 2;
+            if ( i >= size )
+                return null;
+
+            // inflate the compressed data, keeping at most MAX_MEMBER_LENGTH bytes
+            Inflater inflater = new Inflater(true);
+            CRC32 crc = new CRC32();
+            byte[] input = new byte[BUFFER_SIZE];
+            byte[] output = new byte[BUFFER_SIZE];
+            int length = 0;
+            try
+                {
+                    while ( !inflater.finished() )
+                        {
+                            if ( inflater.needsInput() )
+                                {
+                                    if ( i >= size )
+                                        return null;
+                                    int chunk = Math.min(input.length, size - i);
+                                    in.position(i);
+                                    in.get(input, 0, chunk);
+                                    inflater.setInput(input, 0, chunk);
+                                    i += chunk;
+                                }
+                            int offset = keep ? length : 0;
+                            if ( keep && length == output.length )
+                                {
+                                    if ( output.length >= MAX_MEMBER_LENGTH )
+                                        return TOO_LARGE;
+                                    output = Arrays.copyOf(output, Math.min(output.length * 2, MAX_MEMBER_LENGTH));
+                                }
+                            int inflated = inflater.inflate(output, offset, output.length - offset);
+                            if ( inflated == 0 && inflater.needsDictionary() )
+                                return null;
+                            crc.update(output, offset, inflated);
+                            length += inflated;
+                            if ( length > MAX_MEMBER_LENGTH )
+                                return TOO_LARGE;
+                            if ( Thread.currentThread().isInterrupted() )
+                                return null;
+                        }
+                    i -= inflater.getRemaining();
+                }
+            catch (DataFormatException e)
+                {
+                    return null;
+                }
+            finally
+                {
+                    inflater.end();
+                }
+
+            // check the trailer
+            if ( i + TRAILER_LENGTH > size )
+                return null;
+            in.order(ByteOrder.LITTLE_ENDIAN);
+            long expectedCRC = in.getInt(i) & 0xFFFFFFFFL;
+            long expectedLength = in.getInt(i+4) & 0xFFFFFFFFL;
+            if ( crc.getValue() != expectedCRC || ( length & 0xFFFFFFFFL ) != expectedLength )
+                return null;
+            return new Member(keep ? output : null, length, i + TRAILER_LENGTH);
+        }
+
+        /**
+         * Starts decompressing candidates ahead of the current position.
+         */
+        private void submitAhead()
+        {
+            while ( pending.size() < WINDOW && nextCandidate < candidates.length )
+                {
+                    long candidate = candidates[nextCandidate++];
+                    if ( candidate >= position )
+                        pending.put(candidate, EXECUTOR.submit(new InflateJob(candidate)));
+                }
+        }
+
+        /**
+         * Moves to the next real member.
+         * @return false if there are no more members
+         */
+        private boolean advance() throws IOException
+        {
+            submitAhead();
+            Future<Member> future = pending.remove(position);
+
+            // like GZIPInputStream, ignore trailing bytes that are not a member
+            if ( future == null )
+                return false;
+
+            Member member = null;
+            try
+                {
+                    member = future.get();
+                }
+            catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while decompressing " + filename);
+                }
+            catch (ExecutionException e)
+                {
+                    throw new IOException("error decompressing " + filename, e.getCause());
+                }
+            if ( member == null )
+                throw new ZipException(String.format("corrupt gzip member at byte %d of %s", position, filename));
+
+            // stream the rest of the file from this member on
+            if ( member == TOO_LARGE )
+                {
+                    for (Future<Member> f : pending.values())
+                        f.cancel(true);
+                    pending.clear();
+                    nextCandidate = candidates.length;
+                    FileInputStream in = new FileInputStream(filename);
+                    in.getChannel().position(position);
+                    stream = Channels.newChannel(new GZIPInputStream(in, BUFFER_SIZE));
+                    return true;
+                }
+
+            // discard false starts inside this member
+            position = member.end;
+            Iterator<Future<Member>> iterator = pending.headMap(position).values().iterator();
+            while ( iterator.hasNext() )
+                {
+                    iterator.next().cancel(true);
+                    iterator.remove();
+                }
+            current = ByteBuffer.wrap(member.data, 0, member.length);
+            return true;
+        }
+
+        @Override
+        public int read(ByteBuffer destination) throws IOException
+        {
+            if ( !open )
+                throw new ClosedChannelException();
+            while ( !current.hasRemaining() )
+                {
+                    if ( stream != null )
+                        return stream.read(destination);
+                    if ( !advance() )
+                        return -1;
+                }
+            int count = Math.min(current.remaining(), destination.remaining());
+            ByteBuffer slice = current.duplicate();
+            slice.limit(slice.position() + count);
+            destination.put(slice);
+            current.position(current.position() + count);
+            return count;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            open = false;
+            for (Future<Member> f : pending.values())
+                f.cancel(true);
+            pending.clear();
+            if ( stream != null )
+                stream.close();
+        }
+    }
+
+    /** for testing */
+    public static void main(String[] args) throws IOException
+    {
+        try ( ReadableByteChannel channel = openChannel(args[0]) )
+            {
+                long total = 0L;
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                int read = 0;
+                while ( ( read = channel.read(buffer) ) >= 0 )
+                    {
+                        total += read;
+                        buffer.clear();
+                    }
+                System.out.println(total + " bytes");
+            }
+    }
+}
@@ -60,7 +60,7 @@ public class IndexTorsion extends AbstractTorsion
         Set<Atom> atomsToRotate = molecule.getHalfGraph(index2, index3);
         List<Integer> atomNumbersToRotate = new LinkedList<>();
         for (Atom a : atomsToRotate)
-            atomNumbersToRotate.add(molecule.contents.indexOf(a)+1);
+            atomNumbersToRotate.add(molecule.getAtomIndex(a)+1);
         return new IndexTorsion(index1,index2,index3,index4,ImmutableList.copyOf(atomNumbersToRotate));
     }
 
@@ -72,10 +72,10 @@ public class IndexTorsion extends AbstractTorsion
      */
     public static IndexTorsion createIndexTorsion(ProtoTorsion torsion, Molecule m)
     {
-        int index1 = m.contents.indexOf(torsion.atom1);
-        int index2 = m.contents.indexOf(torsion.atom2);
-        int index3 = m.contents.indexOf(torsion.atom3);
-        int index4 = m.contents.indexOf(torsion.atom4);
+        int index1 = m.getAtomIndex(torsion.atom1);
+        int index2 = m.getAtomIndex(torsion.atom2);
+        int index3 = m.getAtomIndex(torsion.atom3);
+        int index4 = m.getAtomIndex(torsion.atom4);
 
         if ( index1 == -1 || index2 == -1 || index3 == -1 || index4 == -1)
             throw new IllegalArgumentException("this atom is not in the molecule");
@@ -1,4 +1,7 @@
 import java.io.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
 import java.util.*;
 
 /**
@@ -25,10 +28,11 @@ public abstract class InputFileFormat implements FileFormat, Immutable
 
     /**
      * Convenience method that writes a string to a file.
+     * The file is gzipped if its name ends in .gz or .maegz.
      */
     public static void writeStringToDisk(String string, String filename)
     {
-        try (PrintWriter outputFile = new PrintWriter(filename))
+        try (PrintWriter outputFile = new PrintWriter(new OutputStreamWriter(GzipFiles.openOutputStream(filename, false))))
             {
                 outputFile.print(string);
             }
@@ -40,8 +44,49 @@ public abstract class InputFileFormat implements FileFormat, Immutable
             }
     }
 
+    /**
+     * Writes a string to a temporary file in the same folder and then renames it, so that
+     * readers never see a partially written file.
+     */
+    public static void writeStringToDiskAtomically(String string, String filename)
+    {
+        Path target = Paths.get(filename).toAbsolutePath();
+        Path temporary = null;
+        try
+            {
+                temporary = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+                try ( Writer writer = Files.newBufferedWriter(temporary, Charset.defaultCharset()) )
+                    {
+                        writer.write(string);
+                    }
+                try
+                    {
+                        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    }
+                catch (AtomicMoveNotSupportedException e)
+                    {
+                        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+                    }
+            }
+        catch (IOException e)
+            {
+                System.out.println("Error writing to " + filename + "!");
+                e.printStackTrace();
+                try
+                    {
+                        if ( temporary != null )
+                            Files.deleteIfExists(temporary);
+                    }
+                catch (IOException e2)
+                    {
+                        // the temporary file is left behind
+                    }
+            }
+    }
+
     /**
      * Convenience method that appends a string to a file.
+     * If the name ends in .gz or .maegz, the string is added as a new gzip member.
      */
     public static void appendStringToDisk(String string, String filename)
     {
@@ -50,7 +95,7 @@ public abstract class InputFileFormat implements FileFormat, Immutable
                 File file = new File(filename);
                 if ( ! file.exists() )
                     file.createNewFile();
-                FileWriter fileWriter = new FileWriter(filename,true);
+                Writer fileWriter = new OutputStreamWriter(GzipFiles.openOutputStream(filename, true));
                 BufferedWriter bufferedWriter = new BufferedWriter(fileWriter);
                 bufferedWriter.write(string);
                 bufferedWriter.close();
@@ -62,6 +107,27 @@ public abstract class InputFileFormat implements FileFormat, Immutable
             }
     }
 
+    /**
+     * Opens a buffered writer for streaming a file to disk, as an alternative to building the whole
+     * file in a string first.  The file is gzipped if its name ends in .gz or .maegz.
+     * @param filename where to write
+     * @return the writer, which must be closed
+     */
+    public static Writer openWriter(String filename) throws IOException
+    {
+        return new BufferedWriter(new OutputStreamWriter(GzipFiles.openOutputStream(filename, false)), 1 << 16);
+    }
+
+    /**
+     * Opens a buffered writer on a channel, such as a socket or a file opened elsewhere.
+     * @param channel where to write
+     * @return the writer, which must be flushed or closed
+     */
+    public static Writer openWriter(WritableByteChannel channel)
+    {
+        return Channels.newWriter(channel, Charset.defaultCharset().newEncoder(), 1 << 16);
+    }
+
     public int hashCode()
     {
         return Objects.hash(stringRepresentation);
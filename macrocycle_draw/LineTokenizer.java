@@ -0,0 +1,432 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * Splits a file into lines and whitespace-delimited fields without creating a String for
+ * every token.  Bytes are read from a channel into a reusable buffer, and the fields of the
+ * current line are kept as offsets into that buffer.  Numbers are parsed directly from the bytes.<p>
+ * Fields are delimited the same way as in OutputFileFormat: leading and trailing whitespace is
+ * ignored and consecutive delimiters are treated as one.  Lines are terminated by "\n" and any
+ * trailing "\r" is discarded.  This class is not thread-safe and should be closed when done.
+ */
+public class LineTokenizer implements Closeable
+{
+    /** How many bytes to read from the channel at once. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** Powers of ten that can be represented exactly as doubles. */
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static
+    {
+        POWERS_OF_TEN[0] = 1.0;
+        for (int i=1; i < POWERS_OF_TEN.length; i++)
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i-1] * 10.0;
+    }
+
+    /** Mantissas with this many digits or fewer are exact as doubles. */
+    private static final int MAX_EXACT_DIGITS = 15;
+
+    /** Where the bytes come from, for error messages. */
+    public final String filename;
+
+    /** The source of bytes. */
+    private final ReadableByteChannel channel;
+
+    /** Bytes that have been read from the channel but not consumed yet. */
+    private final ByteBuffer buffer;
+
+    /** True if the channel has no more bytes. */
+    private boolean endOfChannel = false;
+
+    /** The bytes of the current line. */
+    private byte[] line = new byte[256];
+    private int lineLength = 0;
+
+    /** The fields in the current line are given by line[fieldStarts[i]] to line[fieldEnds[i]-1]. */
+    private int[] fieldStarts = new int[16];
+    private int[] fieldEnds = new int[16];
+    private int fieldCount = 0;
+
+    /** The number of lines read so far. */
+    private int lineNumber = 0;
+
+    /**
+     * Opens the specified file for reading.  Gzipped files are decompressed as they are read.
+     * @param filename the location of the file
+     */
+    public LineTokenizer(String filename)
+    {
+        this(GzipFiles.openChannel(filename), filename);
+    }
+
+    /**
+     * Reads from the specified channel.  The channel will be closed when this tokenizer is closed.
+     * @param channel where to read the bytes from
+     * @param filename a description of the source for error messages
+     */
+    public LineTokenizer(ReadableByteChannel channel, String filename)
+    {
+        this.channel = channel;
+        this.filename = filename;
+        buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        buffer.flip();
+    }
+
+    /**
+     * Ensures there are unconsumed bytes in the buffer, unless the channel is exhausted.
+     * @return true if there are bytes to read
+     */
+    private boolean fill()
+    {
+        if ( buffer.hasRemaining() )
+            return true;
+        if ( endOfChannel )
+            return false;
+        try
+            {
+                buffer.clear();
+                int read = 0;
+                while ( read == 0 )
+                    read = channel.read(buffer);
+                buffer.flip();
+                if ( read < 0 )
+                    {
+                        endOfChannel = true;
+                        return false;
+                    }
+                return true;
+            }
+        catch (IOException e)
+            {
+                throw new IllegalArgumentException("error reading " + filename + ": " + e.getMessage());
+            }
+    }
+
+    /**
+     * Reads the next line and splits it into fields.
+     * @return false if there are no more lines
+     */
+    public boolean nextLine()
+    {
+        if ( !fill() )
+            return false;
+
+        // copy bytes up to the next newline
+        lineLength = 0;
+        boolean foundNewline = false;
+        while ( !foundNewline && fill() )
+            {
+                byte[] array = buffer.array();
+                int start = buffer.arrayOffset() + buffer.position();
+                int end = buffer.arrayOffset() + buffer.limit();
+                int stop = start;
+                while ( stop < end && array[stop] != '\n' )
+                    stop++;
+                append(array, start, stop - start);
+                if ( stop < end )
+                    {
+                        foundNewline = true;
+                        stop++;
+                    }
+                buffer.position(stop - buffer.arrayOffset());
+            }
+        if ( lineLength > 0 && line[lineLength-1] == '\r' )
+            lineLength--;
+        lineNumber++;
+
+        // find the fields
+        fieldCount = 0;
+        int i = 0;
+        while ( i < lineLength )
+            {
+                while ( i < lineLength && isDelimiter(line[i]) )
+                    i++;
+                if ( i == lineLength )
+                    break;
+                int start = i;
+                while ( i < lineLength && !isDelimiter(line[i]) )
+                    i++;
+                addField(start, i);
+            }
+        return true;
+    }
+
+    /**
+     * Determines whether there is at least one more line to read.  The current line is not affected.
+     * @return true if nextLine() would succeed
+     */
+    public boolean hasMoreLines()
+    {
+        return fill();
+    }
+
+    /**
+     * Adds some bytes to the current line, growing it if necessary.
+     */
+    private void append(byte[] bytes, int offset, int length)
+    {
+        if ( lineLength + length > line.length )
+            line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + length));
+        System.arraycopy(bytes, offset, line, lineLength, length);
+        lineLength += length;
+    }
+
+    /**
+     * Records the position of a field, growing the offset arrays if necessary.
+     */
+    private void addField(int start, int end)
+    {
+        if ( fieldCount == fieldStarts.length )
+            {
+                fieldStarts = Arrays.copyOf(fieldStarts, fieldCount * 2);
+                fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+            }
+        fieldStarts[fieldCount] = start;
+        fieldEnds[fieldCount] = end;
+        fieldCount++;
+    }
+
+    /** Whitespace is anything that String.trim() would remove. */
+    private static boolean isDelimiter(byte b)
+    {
+        return b >= 0 && b <= ' ';
+    }
+
+    /**
+     * Returns the number of fields in the current line.  Blank lines have no fields.
+     * @return the number of fields
+     */
+    public int fieldCount()
+    {
+        return fieldCount;
+    }
+
+    /**
+     * Returns the number of lines that have been read, including the current one.
+     * @return the line number of the current line, counting from one
+     */
+    public int lineNumber()
+    {
+        return lineNumber;
+    }
+
+    /**
+     * Checks that the requested field exists.
+     */
+    private void checkField(int index)
+    {
+        if ( index < 0 || index >= fieldCount )
+            throw new IndexOutOfBoundsException(String.format("field %d requested but line %d of %s has %d fields",
+                                                              index, lineNumber, filename, fieldCount));
+    }
+
+    /**
+     * Returns the specified field as a String.
+     * @param index the zero-indexed field number
+     * @return the field
+     */
+    public String getString(int index)
+    {
+        checkField(index);
+        return new String(line, fieldStarts[index], fieldEnds[index] - fieldStarts[index], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the current line without leading or trailing whitespace.
+     * @return the trimmed line
+     */
+    public String getLine()
+    {
+        if ( fieldCount == 0 )
+            return "";
+        return new String(line, fieldStarts[0], fieldEnds[fieldCount-1] - fieldStarts[0], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Determines whether the specified field contains some text.
+     * @param index the zero-indexed field number
+     * @param text the ASCII text to look for
+     * @return true if the field exists and contains the text
+     */
+    public boolean fieldContains(int index, String text)
+    {
+        if ( index < 0 || index >= fieldCount )
+            return false;
+        return indexOf(fieldStarts[index], fieldEnds[index], text) > -1;
+    }
+
+    /**
+     * Determines whether the current line contains some text.
+     * @param text the ASCII text to look for
+     * @return true if the text is somewhere in the line
+     */
+    public boolean lineContains(String text)
+    {
+        return indexOf(0, lineLength, text) > -1;
+    }
+
+    /**
+     * Searches for some ASCII text in part of the current line.
+     * @return the position of the text in the line, or -1 if it is not present
+     */
+    private int indexOf(int start, int end, String text)
+    {
+        int length = text.length();
+        for (int i=start; i <= end - length; i++)
+            {
+                int j = 0;
+                while ( j < length && line[i+j] == text.charAt(j) )
+                    j++;
+                if ( j == length )
+                    return i;
+            }
+        return -1;
+    }
+
+    /**
+     * Parses the specified field as an int.  The results are identical to Integer.parseInt.
+     * @param index the zero-indexed field number
+     * @return the value of the field
+     */
+    public int getInt(int index)
+    {
+        checkField(index);
+        int start = fieldStarts[index];
+        int end = fieldEnds[index];
+        int i = start;
+        boolean negative = false;
+        if ( line[i] == '-' || line[i] == '+' )
+            {
+                negative = ( line[i] == '-' );
+                i++;
+            }
+
+        // anything unusual is handed off to the library
+        if ( i == end || end - i > 9 )
+            return Integer.parseInt(getString(index));
+        int value = 0;
+        for ( ; i < end; i++)
+            {
+                int digit = line[i] - '0';
+                if ( digit < 0 || digit > 9 )
+                    return Integer.parseInt(getString(index));
+                value = value * 10 + digit;
+            }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses the specified field as a double.  Plain decimal numbers with few enough digits are
+     * converted directly, which is exact because both the mantissa and the power of ten are exact
+     * doubles.  Everything else is handed to Double.parseDouble, so the results are identical.
+     * @param index the zero-indexed field number
+     * @return the value of the field
+     */
+    public double getDouble(int index)
+    {
+        checkField(index);
+        int start = fieldStarts[index];
+        int end = fieldEnds[index];
+        int i = start;
+        boolean negative = false;
+        if ( line[i] == '-' || line[i] == '+' )
+            {
+                negative = ( line[i] == '-' );
+                i++;
+            }
+
+        long mantissa = 0L;
+        int digits = 0;
+        int decimals = 0;
+        boolean pastPoint = false;
+        boolean sawDigit = false;
+        for ( ; i < end; i++)
+            {
+                byte b = line[i];
+                if ( b == '.' && !pastPoint )
+                    pastPoint = true;
+                else if ( b >= '0' && b <= '9' )
+                    {
+                        sawDigit = true;
+
+                        // leading zeroes do not count against the precision
+                        if ( mantissa > 0L || b != '0' )
+                            digits++;
+                        mantissa = mantissa * 10L + (b - '0');
+                        if ( pastPoint )
+                            decimals++;
+                    }
+                else
+                    break;
+            }
+
+        int exponent = 0;
+        if ( i < end && ( line[i] == 'e' || line[i] == 'E' ) )
+            {
+                i++;
+                boolean negativeExponent = false;
+                if ( i < end && ( line[i] == '-' || line[i] == '+' ) )
+                    {
+                        negativeExponent = ( line[i] == '-' );
+                        i++;
+                    }
+                int exponentStart = i;
+                while ( i < end && line[i] >= '0' && line[i] <= '9' && i - exponentStart < 4 )
+                    {
+                        exponent = exponent * 10 + (line[i] - '0');
+                        i++;
+                    }
+                if ( i == exponentStart )
+                    return Double.parseDouble(getString(index));
+                if ( negativeExponent )
+                    exponent = -exponent;
+            }
+
+        // fall back for anything that cannot be converted exactly
+        int scale = exponent - decimals;
+        if ( i != end || !sawDigit || digits > MAX_EXACT_DIGITS || Math.abs(scale) >= POWERS_OF_TEN.length )
+            return Double.parseDouble(getString(index));
+
+        double value = (double)mantissa;
+        if ( scale < 0 )
+            value = value / POWERS_OF_TEN[-scale];
+        else
+            value = value * POWERS_OF_TEN[scale];
+        return negative ? -value : value;
+    }
+
+    /**
+     * Closes the underlying channel.
+     */
+    public void close()
+    {
+        try
+            {
+                channel.close();
+            }
+        catch (IOException e)
+            {
+                System.out.println("Error closing " + filename + "!");
+                e.printStackTrace();
+            }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("LineTokenizer (%s, line %d)", filename, lineNumber);
+    }
+
+    /** for testing */
+    public static void main(String[] args)
+    {
+        try ( LineTokenizer tokenizer = new LineTokenizer(args.length > 0 ? args[0] : "test.mae") )
+            {
+                while ( tokenizer.nextLine() )
+                    System.out.println(tokenizer.lineNumber() + ": " + tokenizer.fieldCount() + " fields");
+            }
+    }
+}
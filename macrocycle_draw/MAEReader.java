@@ -0,0 +1,213 @@
+import java.io.*;
+import java.util.*;
+import com.google.common.collect.*;
+import org.apache.commons.math3.geometry.euclidean.threed.*;
+
+/**
+ * Reads Macromodel geometry files one structure at a time.  Unlike MAEFile, the text
+ * of the file is never held in memory; only the structure currently being parsed is kept,
+ * so arbitrarily large conformational search outputs can be read in a small heap.<p>
+ * The blocks are interpreted exactly as in MAEFile: one full "f_m_ct" block followed
+ * by any number of partial "p_m_ct" blocks.  Gzipped files (.maegz) are decompressed on the fly.
+ * The reader should be closed when done.
+ */
+public class MAEReader implements Iterator<MAEReader.Structure>, Closeable
+{
+    /** The energy is on this line of a block, counting the block header as line zero. */
+    private static final int ENERGY_LINE = 14;
+
+    /** The RMS gradient is on this line of a block, counting the block header as line zero. */
+    private static final int GRADIENT_LINE = 23;
+
+    /** The atom coordinates are in this ":::"-delimited section of a block. */
+    private static final int ATOM_SECTION = 4;
+
+    /** The file being read. */
+    public final String filename;
+
+    /** The source of text. */
+    private final LineTokenizer tokenizer;
+
+    /** The structure that will be returned by the next call to next(), if any. */
+    private Structure nextStructure;
+
+    // keeps track of which part of the file we are in
+    private boolean pastHeader = false;
+    private boolean fullBlock = true;
+
+    /** The header of the full block is line zero of that block; partial block headers are skipped. */
+    private int lineInBlock = 0;
+    private int section = 0;
+
+    // the contents of the current block
+    private Double energy;
+    private Double gradient;
+    private List<Vector3D> geometry = new ArrayList<>();
+
+    /**
+     * Opens the specified file for reading.  Nothing is parsed until hasNext() or next() is called.
+     * @param filename the location of the .mae file
+     */
+    public MAEReader(String filename)
+    {
+        this.filename = filename;
+        tokenizer = new LineTokenizer(filename);
+    }
+
+    /**
+     * Represents one structure from a Macromodel file.  This class is immutable.
+     */
+    public static class Structure implements Immutable
+    {
+        /** The energy of this geometry, converted from kJ to kcal. */
+        public final double energy;
+
+        /** The RMS gradient of this geometry. */
+        public final double gradient;
+
+        /** The atom positions in the order they appear in the file. */
+        public final List<Vector3D> geometry;
+
+        public Structure(double energy, double gradient, List<Vector3D> geometry)
+        {
+            this.energy = energy;
+            this.gradient = gradient;
+            this.geometry = ImmutableList.copyOf(geometry);
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("Structure (%d atoms, E = %.4f, grad = %.4f)", geometry.size(), energy, gradient);
+        }
+    }
+
+    /**
+     * Reads ahead until the next structure is complete.
+     * @return true if there is another structure in the file
+     */
+    public boolean hasNext()
+    {
+        if ( nextStructure == null )
+            nextStructure = readStructure();
+        return nextStructure != null;
+    }
+
+    /**
+     * Returns the next structure in the file.
+     * @return the next structure
+     */
+    public Structure next()
+    {
+        if ( !hasNext() )
+            throw new NoSuchElementException("no more structures in " + filename);
+        Structure returnStructure = nextStructure;
+        nextStructure = null;
+        return returnStructure;
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException("cannot remove structures from a file");
+    }
+
+    /**
+     * Parses lines until a block is finished.
+     * @return the structure in the block, or null if the end of the file has been reached
+     */
+    private Structure readStructure()
+    {
+        while ( tokenizer.nextLine() )
+            {
+                // the last line is treated as the end of the block and is not parsed
+                boolean lastLine = !tokenizer.hasMoreLines();
+
+                // figure out what part of the file we're in
+                if ( !pastHeader )
+                    {
+                        if ( tokenizer.fieldContains(0, "f_m_ct") )
+                            pastHeader = true;
+                        else
+                            continue;
+                    }
+
+                if ( tokenizer.fieldContains(0, "p_m_ct") || lastLine )
+                    {
+                        Structure structure = finishBlock();
+                        fullBlock = false;
+                        return structure;
+                    }
+                parseLine();
+            }
+        return null;
+    }
+
+    /**
+     * Updates the current block with the current line of the tokenizer.
+     */
+    private void parseLine()
+    {
+        if ( lineInBlock == ENERGY_LINE )
+            energy = tokenizer.getDouble(0) / 4.184;
+        else if ( lineInBlock == GRADIENT_LINE )
+            gradient = tokenizer.getDouble(0);
+        lineInBlock++;
+
+        if ( tokenizer.fieldContains(0, ":::") )
+            {
+                section++;
+                return;
+            }
+
+        if ( section == ATOM_SECTION )
+            {
+                // full blocks have an extra column for the atom type
+                int offset = fullBlock ? 2 : 1;
+                double x = tokenizer.getDouble(offset);
+                double y = tokenizer.getDouble(offset+1);
+                double z = tokenizer.getDouble(offset+2);
+                geometry.add(new Vector3D(x,y,z));
+            }
+    }
+
+    /**
+     * Creates a Structure from the current block and resets the block.
+     * @return the structure
+     */
+    private Structure finishBlock()
+    {
+        if ( energy == null || gradient == null )
+            throw new IllegalArgumentException("incomplete structure block in " + filename);
+        Structure structure = new Structure(energy, gradient, geometry);
+        energy = null;
+        gradient = null;
+        geometry = new ArrayList<>();
+        lineInBlock = 1;
+        section = 0;
+        return structure;
+    }
+
+    /**
+     * Closes the underlying file.
+     */
+    public void close()
+    {
+        tokenizer.close();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "MAEReader (" + filename + ")";
+    }
+
+    /** for testing */
+    public static void main(String[] args)
+    {
+        try ( MAEReader reader = new MAEReader(args.length > 0 ? args[0] : "test.mae") )
+            {
+                while ( reader.hasNext() )
+                    System.out.println(reader.next().energy);
+            }
+    }
+}
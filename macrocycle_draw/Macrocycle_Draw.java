@@ -1,5 +1,6 @@
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import com.google.common.collect.*;
 import org.apache.commons.math3.geometry.euclidean.threed.*;
 
@@ -9,96 +10,252 @@ import org.apache.commons.math3.geometry.euclidean.threed.*;
  * minimized and a .mae file will be put in ./mae, as well as a .mol2 file.
  * Next, a conformational search file is created for each catalyst, as well
  * as a serialized Catalyst file.  Once executed, the results can be found
- * ./output.  This output should be analyzed using a separate script.
+ * ./output.  This output should be analyzed using a separate script.<p>
+ * The steps run as a Pipeline, so each catalyst moves on as soon as it is
+ * ready and a failure only affects that catalyst.
  */
 public abstract class Macrocycle_Draw
 {
+    /**
+     * With no arguments, makes the catalysts in input/template.  "sample BUDGET [uniform|stratified] [adaptive] [SEED]"
+     * makes BUDGET randomly chosen catalysts instead; see SequenceSampler.
+     */
     public static void main(String[] args)
     {
         // read from file "template" in the input directory to get
         // the catalyst template that we want to use
-        File file = new File(Settings.INPUT_DIRECTORY + "template");
-        String firstLine = null; // we will only read the first line
-        boolean C2 = false; // are we in C2 mode?
-        List<FragmentType> template = new ArrayList<>();
-
-        try (BufferedReader reader = new BufferedReader(new FileReader(Settings.INPUT_DIRECTORY + "template")))
+        Template template = Template.read(Settings.INPUT_DIRECTORY + "template");
+        System.out.println("Reading template... \n" + template);
+        new File(Settings.WORKING_DIRECTORY + "output").mkdirs();
+        Metrics.startReporting(Settings.WORKING_DIRECTORY + "output/metrics-" + Settings.HOSTNAME + ".csv", Settings.METRICS_REPORTING_PERIOD);
+        Pipeline.Result result = null;
+        if ( args.length > 0 && args[0].equals("sample") )
             {
-                String line = reader.readLine();
-                String[] fields = line.split("@");
-                for ( String s : fields )
+                if ( args.length < 2 )
+                    throw new IllegalArgumentException("usage: Macrocycle_Draw sample BUDGET [uniform|stratified] [adaptive] [SEED]");
+                int budget = Integer.parseInt(args[1]);
+                SequenceSampler.Mode mode = SequenceSampler.Mode.STRATIFIED;
+                boolean adaptive = false;
+                long seed = Settings.SAMPLING_SEED;
+                for (int i=2; i < args.length; i++)
                     {
-                        switch(s.toLowerCase())
+                        switch (args[i].toLowerCase())
                             {
-                                case "c2": C2 = true;
-                                    break;
-                                case "urea": template.add(FragmentType.UREA);
-                                    break;
-                                case "thiourea": template.add(FragmentType.THIOUREA);
-                                    break;
-                                case "linker_1": template.add(FragmentType.LINKER_1);
+                                case "uniform":    mode = SequenceSampler.Mode.UNIFORM;
                                     break;
-                                case "linker_2": template.add(FragmentType.LINKER_2);
+                                case "stratified": mode = SequenceSampler.Mode.STRATIFIED;
                                     break;
-                                case "linker_3": template.add(FragmentType.LINKER_3);
+                                case "adaptive":   adaptive = true;
                                     break;
-                                case "linker_4": template.add(FragmentType.LINKER_4);
+                                default:           seed = Long.parseLong(args[i]);
                                     break;
-                                case "": break;
-                                default: throw new IllegalArgumentException("Error in template file, cannot read: " + s);
-                           }
+                            }
                     }
+                result = sample(template, budget, mode, adaptive, seed);
             }
-        catch (Exception e)
-            {
-               throw new IllegalArgumentException(e.getMessage());
-            }
-
-        System.out.println("Reading template... \n" + template);
+        else
+            result = run(template);
+        System.out.println(result);
+        Metrics.stopReporting();
+        System.out.println(Metrics.getSummary());
+    }
 
-        // Create the catalyst list.  These have been cyclized, but 
-        // not yet minimized.
-        List<Catalyst> catalysts = new ArrayList<>();
+    /**
+     * Makes the catalysts in a template that are not in the manifest yet and gets them ready for the
+     * conformational search.  Each catalyst is added to the manifest as soon as it is finished.
+     * @param template the fragment types to join
+     * @return which catalysts finished and which failed
+     */
+    public static Pipeline.Result run(Template template)
+    {
+        Manifest manifest = new Manifest(Settings.MANIFEST_FILENAME);
+        Manifest.Delta delta = manifest.getDelta(template);
+        System.out.println(delta);
+        Pipeline.Result result = run(template, manifest, delta, null);
+        delta.finish(result.failures);
+        return result;
+    }
 
-        if (C2) 
-            catalysts = FragmentLibrary.createC2Catalysts(template);
-        else
-            catalysts = FragmentLibrary.createCatalysts(template);
+    /**
+     * Makes a random sample of the catalysts in a template that are not in the manifest yet and gets them
+     * ready for the conformational search.
+     * @param template the fragment types to join
+     * @param budget how many catalysts to make
+     * @param mode how to choose the fragments
+     * @param adaptive whether to favor fragments whose catalysts close well and have low energies
+     * @param seed the random seed
+     * @return which catalysts finished and which failed
+     */
+    public static Pipeline.Result sample(Template template, int budget, SequenceSampler.Mode mode, boolean adaptive, long seed)
+    {
+        Manifest manifest = new Manifest(Settings.MANIFEST_FILENAME);
+        SequenceSampler sampler = new SequenceSampler(template, budget, mode, adaptive, seed, manifest);
+        System.out.println(sampler);
+        Pipeline.Result result = run(template, manifest, sampler, sampler);
+        if ( adaptive )
+            System.out.print("Fragment weights:\n" + sampler.getReport());
+        return result;
+    }
 
-        // Creates mol2 files for each of the catalysts
-        for ( Catalyst c : catalysts )
+    /**
+     * Runs catalysts through the pipeline.
+     * @param template the template the catalysts come from
+     * @param manifest finished catalysts are recorded here
+     * @param source the linear catalysts
+     * @param sampler told about each cyclized catalyst, or null
+     * @return which catalysts finished and which failed
+     */
+    private static Pipeline.Result run(final Template template, final Manifest manifest, Iterator<Catalyst> source, final SequenceSampler sampler)
+    {
+        // Catalysts flow through cyclization, MOL2 output, MacroModel minimization, and .com
+        // output as soon as each stage is done with them.  Every stage has its own thread limit.
+        List<Pipeline.Stage> stages = new ArrayList<>();
+        stages.add(new Pipeline.Stage("cyclization", Settings.NUMBER_OF_THREADS)
             {
-                MOL2InputFile m = new MOL2InputFile(c);
-                m.write(c.name + ".mol2");
-            }
+                public Catalyst process(Catalyst c)
+                {
+                    // an earlier run may have been stopped after making this one
+                    if ( manifest.isDone(template, c) )
+                        return null;
+                    Metrics.counter("catalysts.enumerated").increment();
+                    Catalyst cyclized = c.cyclize();
+                    if ( sampler != null )
+                        sampler.feedback(cyclized);
+                    return cyclized;
+                }
+            });
+        stages.add(new Pipeline.Stage("mol2", 1)
+            {
+                public Catalyst process(Catalyst c)
+                {
+                    MOL2InputFile m = new MOL2InputFile(c);
+                    m.write(c.name + ".mol2");
+                    return c;
+                }
+            });
+        stages.add(new Pipeline.Stage("minimization", Settings.PIPELINE_MINIMIZATION_JOBS)
+            {
+                public Catalyst process(Catalyst c) throws IOException, InterruptedException
+                {
+                    minimize(c.name);
+                    return c;
+                }
+            });
+        stages.add(new Pipeline.Stage("com", Settings.PIPELINE_WRITER_THREADS)
+            {
+                public Catalyst process(Catalyst c)
+                {
+                    COMInputFile cfile = new COMInputFile(c);
+                    cfile.write(Settings.WORKING_DIRECTORY + "mae/" + c.name + ".com");
+                    System.out.println("Wrote conformational search file for " + c.name + ".");
+                    manifest.recordDone(template, c);
+                    return c;
+                }
+            });
 
-        // Minimization
-        for ( Catalyst c : catalysts )
+        Pipeline pipeline = new Pipeline(stages, Settings.PIPELINE_QUEUE_CAPACITY);
+        return pipeline.run(source);
+    }
+
+    /**
+     * Converts NAME.mol2 in the working directory to mae/NAME.mae and minimizes it with MacroModel by running
+     * minimization.sh.  The output of the script goes to mae/NAME-minimization.log.
+     * @param name the name of the catalyst
+     * @throws IllegalArgumentException if the script fails
+     */
+    public static void minimize(String name) throws IOException, InterruptedException
+    {
+        System.out.println("Minimizing " + name + "...");
+        Metrics.Timer latency = Metrics.timer("external.minimization.latency");
+        long startTime = latency.start();
+        ProcessBuilder builder = new ProcessBuilder(Settings.WORKING_DIRECTORY + "minimization.sh", name);
+        builder.directory(new File(Settings.WORKING_DIRECTORY));
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(new File(Settings.WORKING_DIRECTORY + "mae/" + name + "-minimization.log"));
+        int exitValue = builder.start().waitFor();
+        latency.stop(startTime);
+        if ( exitValue != 0 )
             {
-                System.out.println("Minimizing " + c.name + "...");
-                try
-                    {
-                        Runtime runtime = Runtime.getRuntime();
-                        String runString = Settings.WORKING_DIRECTORY + "minimization.sh " + c.name;
-                        Process process = runtime.exec(runString);
-                        int exitValue = process.waitFor();
-                    }
-                catch (Exception e)
-                    {
-                        System.out.println("Error during minimization job:");
-                        e.printStackTrace();
-                    }
-                System.out.println("DONE!");
-            }
-    
-        // Writes a .com file for a catalyst
-        for ( Catalyst c : catalysts )
-            {   
-                System.out.println("Writing conformational search file for " +
-                    c.name + "...");
-                COMInputFile cfile = new COMInputFile(c);
-                cfile.write(Settings.WORKING_DIRECTORY + c.name + ".com");
-                System.out.println("DONE!\n");
+                Metrics.counter("external.minimization.failures").increment();
+                throw new IllegalArgumentException("minimization.sh exited with code " + exitValue);
             }
+        System.out.println("Minimized " + name + ".");
+    }
+
+    /**
+     * The fragment types to join, from the first line of the template file.  This class is immutable.
+     */
+    public static class Template implements Immutable
+    {
+        /** The fragment types in order.  In C2 mode, this is half of the macrocycle. */
+        public final List<FragmentType> types;
+
+        /** Whether the template is repeated to make a symmetric macrocycle. */
+        public final boolean C2;
+
+        public Template(List<FragmentType> types, boolean C2)
+        {
+            this.types = ImmutableList.copyOf(types);
+            this.C2 = C2;
+        }
+
+        /**
+         * Reads a template file, whose first line is a list of fragment types separated by @,
+         * e.g. linker_1@linker_2@urea@linker_1@urea.  The special type C2 makes a symmetric macrocycle.
+         * @param filename the template file
+         * @return the template
+         */
+        public static Template read(String filename)
+        {
+            try (BufferedReader reader = new BufferedReader(new FileReader(filename)))
+                {
+                    return parse(reader.readLine());
+                }
+            catch (Exception e)
+                {
+                   throw new IllegalArgumentException(e.getMessage());
+                }
+        }
+
+        /**
+         * Reads a template from a list of fragment types separated by @.
+         * @param line the template, e.g. linker_1@linker_2@urea@linker_1@urea
+         * @return the template
+         */
+        public static Template parse(String line)
+        {
+            boolean C2 = false; // are we in C2 mode?
+            List<FragmentType> types = new ArrayList<>();
+            String[] fields = line.trim().split("@");
+            for ( String s : fields )
+                {
+                    switch(s.toLowerCase())
+                        {
+                            case "c2": C2 = true;
+                                break;
+                            case "urea": types.add(FragmentType.UREA);
+                                break;
+                            case "thiourea": types.add(FragmentType.THIOUREA);
+                                break;
+                            case "linker_1": types.add(FragmentType.LINKER_1);
+                                break;
+                            case "linker_2": types.add(FragmentType.LINKER_2);
+                                break;
+                            case "linker_3": types.add(FragmentType.LINKER_3);
+                                break;
+                            case "linker_4": types.add(FragmentType.LINKER_4);
+                                break;
+                            case "": break;
+                            default: throw new IllegalArgumentException("Error in template file, cannot read: " + s);
+                       }
+                }
+            return new Template(types, C2);
+        }
+
+        @Override
+        public String toString()
+        {
+            return ( C2 ? "C2 " : "" ) + types;
+        }
     }
 }
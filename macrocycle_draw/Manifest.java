@@ -0,0 +1,344 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import com.google.common.base.*;
+import com.google.common.collect.*;
+
+/**
+ * Remembers which sequences of fragments have been made into catalysts, so that adding a fragment to the
+ * input folder only costs the catalysts that contain it.<p>
+ * A sequence is identified by the template and the hashes of its fragments (see FragmentLibrary.HASHES),
+ * so a fragment whose file changes counts as a new fragment.  The manifest is a text file with one tab-separated line per event:
+ * <pre>
+ * done     TEMPLATE  HASH,HASH,...  NAME    the catalyst was made
+ * failed   TEMPLATE  HASH,HASH,...  NAME    the catalyst failed and will be tried again
+ * covered  TEMPLATE  HASH,HASH,...          a run tried every sequence made of these fragments
+ * </pre>
+ * Later lines win.  A fragment is "clean" if it was covered by the last complete run of the template;
+ * every other fragment is "dirty".  getDelta() enumerates only the sequences with at least one dirty
+ * fragment, split into disjoint blocks: the first dirty fragment is at position p, positions before p are
+ * clean, and positions after p are anything.  So the work is proportional to the number of new sequences,
+ * not the size of the library.  Failed sequences of clean fragments are tried again.  Sequences that
+ * cannot even be built are not recorded and are only tried again when one of their fragments changes.
+ * Delete the manifest to make everything again.
+ */
+public class Manifest
+{
+    /** Hashes are shortened to this many hexadecimal digits. */
+    public static final int HASH_LENGTH = 16;
+
+    /** Where the manifest is kept. */
+    public final String filename;
+
+    /** Whether each sequence is done (true) or failed (false), by key. */
+    private final Map<String,Boolean> sequences = new HashMap<>();
+
+    /** The fragment hashes covered by the last complete run of each template. */
+    private final Map<String,Set<String>> covered = new HashMap<>();
+
+    /**
+     * Reads a manifest.  A missing file is an empty manifest.
+     * @param filename the manifest file
+     */
+    public Manifest(String filename)
+    {
+        this.filename = filename;
+        if ( ! new File(filename).exists() )
+            return;
+        try ( BufferedReader reader = new BufferedReader(new FileReader(filename)) )
+            {
+                String line = null;
+                while ( (line = reader.readLine()) != null )
+                    {
+                        String[] fields = line.split("\t");
+                        if ( fields.length < 3 )
+                            continue;
+                        switch (fields[0])
+                            {
+                                case "done":
+                                    sequences.put(fields[1] + "\t" + fields[2], Boolean.TRUE);
+                                    break;
+                                case "failed":
+                                    sequences.put(fields[1] + "\t" + fields[2], Boolean.FALSE);
+                                    break;
+                                case "covered":
+                                    covered.put(fields[1], new HashSet<>(Arrays.asList(fields[2].split(","))));
+                                    break;
+                                default:
+                                    break;
+                            }
+                    }
+            }
+        catch (IOException e)
+            {
+                throw new IllegalArgumentException("unable to read manifest " + filename, e);
+            }
+    }
+
+    /**
+     * Returns the template as it appears in the manifest, e.g. C2@UREA@LINKER_1.
+     */
+    public static String getTemplateKey(Macrocycle_Draw.Template template)
+    {
+        return ( template.C2 ? "C2@" : "" ) + Joiner.on('@').join(template.types);
+    }
+
+    /**
+     * Returns the shortened hash of a fragment in the library.
+     */
+    public static String getHash(Fragment fragment)
+    {
+        String hash = FragmentLibrary.HASHES.get(fragment.name);
+        if ( hash == null )
+            throw new IllegalArgumentException("fragment " + fragment.name + " is not in the library");
+        return hash.substring(0, HASH_LENGTH);
+    }
+
+    /**
+     * Returns the key of a sequence of fragments.
+     */
+    public static String getKey(Macrocycle_Draw.Template template, List<Fragment> fragments)
+    {
+        List<String> hashes = new ArrayList<>();
+        for (Fragment f : fragments)
+            hashes.add(getHash(f));
+        return getTemplateKey(template) + "\t" + Joiner.on(',').join(hashes);
+    }
+
+    /**
+     * Returns the key of the sequence of fragments in a catalyst.
+     */
+    public static String getKey(Macrocycle_Draw.Template template, Catalyst catalyst)
+    {
+        return getKey(template, catalyst.fragmentList);
+    }
+
+    /**
+     * Returns whether a sequence has been made, as by an earlier run that was stopped partway.
+     * @param template the template
+     * @param fragments the whole sequence, including the second half of a C2 catalyst
+     * @return true if the manifest says it is done
+     */
+    public synchronized boolean isDone(Macrocycle_Draw.Template template, List<Fragment> fragments)
+    {
+        return Boolean.TRUE.equals(sequences.get(getKey(template, fragments)));
+    }
+
+    /**
+     * Returns whether a catalyst has been made.
+     */
+    public boolean isDone(Macrocycle_Draw.Template template, Catalyst catalyst)
+    {
+        return isDone(template, catalyst.fragmentList);
+    }
+
+    /**
+     * Records that a catalyst has been made.
+     * @param template the template it came from
+     * @param catalyst the catalyst
+     */
+    public synchronized void recordDone(Macrocycle_Draw.Template template, Catalyst catalyst)
+    {
+        String key = getKey(template, catalyst);
+        sequences.put(key, Boolean.TRUE);
+        append("done", key, catalyst.name);
+    }
+
+    /**
+     * Records how a sequence that was made elsewhere turned out, as by a WorkQueue job.  A failure does not
+     * replace a success.
+     * @param key the key of the sequence from getKey()
+     * @param name the name of the catalyst
+     * @param done whether the catalyst was made
+     */
+    public synchronized void record(String key, String name, boolean done)
+    {
+        Boolean previous = sequences.get(key);
+        if ( Boolean.TRUE.equals(previous) || Boolean.valueOf(done).equals(previous) )
+            return;
+        sequences.put(key, done);
+        append(done ? "done" : "failed", key, name);
+    }
+
+    /**
+     * Appends a line to the manifest.
+     */
+    private synchronized void append(String status, String key, String name)
+    {
+        String line = status + "\t" + key + ( name == null ? "" : "\t" + name ) + "\n";
+        InputFileFormat.appendStringToDisk(line, filename);
+    }
+
+    /**
+     * Finds the sequences of a template that have not been made with the current fragments.
+     * @param template the fragment types to join
+     * @return the new, changed, and failed sequences
+     */
+    public synchronized Delta getDelta(Macrocycle_Draw.Template template)
+    {
+        return new Delta(template);
+    }
+
+    /**
+     * The catalysts of a template that still have to be made.  Call Manifest.recordDone() as each one is
+     * finished and finish() at the end of the run.
+     */
+    public class Delta implements Iterator<Catalyst>
+    {
+        /** The template. */
+        public final Macrocycle_Draw.Template template;
+
+        /** How many sequences the template has in all. */
+        public final long total;
+
+        /** How many sequences contain a new or changed fragment. */
+        public final long changed;
+
+        /** How many failed sequences are tried again. */
+        public final int retries;
+
+        /** The catalysts to make. */
+        private final Iterator<Catalyst> catalysts;
+
+        /** The keys of the catalysts handed out so far, by name. */
+        private final Map<String,String> keys = new ConcurrentHashMap<>();
+
+        /** The hashes of every fragment the template can use. */
+        private final Set<String> current = new TreeSet<>();
+
+        /** Whether every catalyst has been handed out. */
+        private volatile boolean exhausted = false;
+
+        private Delta(Macrocycle_Draw.Template template)
+        {
+            this.template = template;
+            String templateKey = getTemplateKey(template);
+            Set<String> clean = covered.containsKey(templateKey) ? covered.get(templateKey) : Collections.<String>emptySet();
+
+            // sort the fragments at each position into clean and dirty ones
+            int n = template.types.size();
+            List<List<Fragment>> all = new ArrayList<>();
+            List<List<Fragment>> cleanChoices = new ArrayList<>();
+            List<List<Fragment>> dirtyChoices = new ArrayList<>();
+            Map<String,Fragment> byHash = new HashMap<>();
+            for (FragmentType t : template.types)
+                {
+                    List<Fragment> fragments = FragmentLibrary.DATABASE.get(t);
+                    if ( fragments == null || fragments.size() == 0 )
+                        throw new IllegalArgumentException("DATABASE contains no " + t);
+                    List<Fragment> cleanList = new ArrayList<>();
+                    List<Fragment> dirtyList = new ArrayList<>();
+                    for (Fragment f : fragments)
+                        {
+                            String hash = getHash(f);
+                            current.add(hash);
+                            byHash.put(hash, f);
+                            if ( clean.contains(hash) )
+                                cleanList.add(f);
+                            else
+                                dirtyList.add(f);
+                        }
+                    all.add(fragments);
+                    cleanChoices.add(cleanList);
+                    dirtyChoices.add(dirtyList);
+                }
+
+            // one block for each position of the first dirty fragment
+            List<Iterator<Catalyst>> blocks = new ArrayList<>();
+            long totalCount = 1L;
+            long changedCount = 0L;
+            for (int p=0; p < n; p++)
+                {
+                    totalCount *= all.get(p).size();
+                    List<List<Fragment>> choices = new ArrayList<>();
+                    long count = 1L;
+                    for (int i=0; i < n; i++)
+                        {
+                            List<Fragment> list = i < p ? cleanChoices.get(i) : ( i == p ? dirtyChoices.get(i) : all.get(i) );
+                            choices.add(list);
+                            count *= list.size();
+                        }
+                    if ( count == 0L )
+                        continue;
+                    changedCount += count;
+                    blocks.add(FragmentLibrary.enumerateProduct(choices, template.C2));
+                }
+
+            // failed sequences of clean fragments, which are not in any block
+            int retryCount = 0;
+            for (Map.Entry<String,Boolean> entry : sequences.entrySet())
+                {
+                    String[] fields = entry.getKey().split("\t");
+                    if ( entry.getValue() || ! fields[0].equals(templateKey) )
+                        continue;
+                    String[] hashes = fields[1].split(",");
+                    List<List<Fragment>> choices = new ArrayList<>();
+                    for (int i=0; i < n && i < hashes.length; i++)
+                        if ( clean.contains(hashes[i]) && byHash.containsKey(hashes[i]) )
+                            choices.add(ImmutableList.of(byHash.get(hashes[i])));
+                    if ( choices.size() < n )
+                        continue;
+                    blocks.add(FragmentLibrary.enumerateProduct(choices, template.C2));
+                    retryCount++;
+                }
+
+            total = totalCount;
+            changed = changedCount;
+            retries = retryCount;
+            catalysts = Iterators.concat(blocks.iterator());
+        }
+
+        public boolean hasNext()
+        {
+            boolean hasNext = catalysts.hasNext();
+            if ( ! hasNext )
+                exhausted = true;
+            return hasNext;
+        }
+
+        public Catalyst next()
+        {
+            Catalyst c = catalysts.next();
+            keys.put(c.name, getKey(template, c));
+            return c;
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException("catalysts cannot be removed");
+        }
+
+        /**
+         * Records the failures of a run and, if every catalyst was handed out, that the current fragments
+         * have been covered.
+         * @param failures the failures by catalyst name, as in Pipeline.Result
+         */
+        public void finish(Map<String,String> failures)
+        {
+            synchronized (Manifest.this)
+                {
+                    for (String name : failures.keySet())
+                        {
+                            String key = keys.get(name);
+                            if ( key == null || Boolean.TRUE.equals(sequences.get(key)) )
+                                continue;
+                            sequences.put(key, Boolean.FALSE);
+                            append("failed", key, name);
+                        }
+                    if ( exhausted && ! current.equals(covered.get(getTemplateKey(template))) )
+                        {
+                            String templateKey = getTemplateKey(template);
+                            covered.put(templateKey, new HashSet<>(current));
+                            append("covered", templateKey + "\t" + Joiner.on(',').join(current), null);
+                        }
+                }
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%d of %d sequences of %s are new or changed, and %d failed sequences will be tried again.",
+                                 changed, total, getTemplateKey(template), retries);
+        }
+    }
+}
@@ -0,0 +1,421 @@
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+/**
+ * A registry of named counters, histograms, and timers that show where the time goes in a run.<p>
+ * Metrics are created on first use and shared by name, so code can simply call
+ * Metrics.counter("catalysts.enumerated").increment().  Each metric is registered as an MBean in the
+ * platform MBean server under the domain macrocycle_draw, where jconsole or any JMX client can watch it.
+ * startReporting() also appends a snapshot of every metric to a CSV file at a fixed period, with the
+ * rate of change of each count, so runs on different nodes can be compared afterwards.<p>
+ * Histograms keep exact counts, means, minima, and maxima.  Percentiles are estimated from logarithmic
+ * buckets that are about 19% wide, which is plenty for capacity planning.
+ */
+public final class Metrics implements Singleton
+{
+    /** The JMX domain of the MBeans. */
+    public static final String DOMAIN = "macrocycle_draw";
+
+    /** Histogram buckets per factor of two. */
+    private static final int BUCKETS_PER_OCTAVE = 4;
+
+    /** Values down to 2^-MIN_OCTAVE get their own buckets. */
+    private static final int MIN_OCTAVE = 30;
+
+    /** Values up to 2^MAX_OCTAVE get their own buckets. */
+    private static final int MAX_OCTAVE = 40;
+
+    /** The metrics by name, in alphabetical order. */
+    private static final ConcurrentSkipListMap<String,Metric> REGISTRY = new ConcurrentSkipListMap<>();
+
+    /** Writes the CSV snapshots, or null if reporting is off. */
+    private static ScheduledExecutorService reporter = null;
+
+    /** The file that the snapshots go to. */
+    private static String reportFilename = null;
+
+    /** The counts at the last snapshot, for calculating rates. */
+    private static final Map<String,Long> lastCounts = new HashMap<>();
+
+    /** When the last snapshot was taken, in nanoseconds. */
+    private static long lastSnapshotTime = 0L;
+
+    /** Not instantiable. */
+    private Metrics()
+    {
+        throw new IllegalArgumentException("Not instantiable!");
+    }
+
+    /**
+     * Something that is counted.
+     */
+    public interface Metric
+    {
+        /** Returns the number of events. */
+        public long getCount();
+    }
+
+    /** The management interface of a Counter. */
+    public interface CounterMBean
+    {
+        public long getCount();
+    }
+
+    /**
+     * A number that goes up or down, like the number of events or the number of queued jobs.
+     */
+    public static class Counter implements Metric, CounterMBean
+    {
+        private final AtomicLong count = new AtomicLong();
+
+        public void increment()
+        {
+            count.incrementAndGet();
+        }
+
+        public void decrement()
+        {
+            count.decrementAndGet();
+        }
+
+        public void add(long n)
+        {
+            count.addAndGet(n);
+        }
+
+        public void set(long n)
+        {
+            count.set(n);
+        }
+
+        public long getCount()
+        {
+            return count.get();
+        }
+    }
+
+    /** The management interface of a Histogram. */
+    public interface HistogramMBean
+    {
+        public long getCount();
+        public double getMean();
+        public double getMin();
+        public double getMax();
+        public double get50thPercentile();
+        public double get95thPercentile();
+        public double get99thPercentile();
+    }
+
+    /**
+     * The distribution of a quantity, like the acceptance rate of Monte Carlo runs.
+     */
+    public static class Histogram implements Metric, HistogramMBean
+    {
+        private long count = 0L;
+        private double sum = 0.0;
+        private double min = Double.NaN;
+        private double max = Double.NaN;
+
+        /** Bucket 0 holds values at or below 2^-MIN_OCTAVE, including zero and negative values. */
+        private final long[] buckets = new long[(MIN_OCTAVE + MAX_OCTAVE) * BUCKETS_PER_OCTAVE + 2];
+
+        public synchronized void update(double value)
+        {
+            if ( Double.isNaN(value) )
+                return;
+            if ( count == 0L || value < min )
+                min = value;
+            if ( count == 0L || value > max )
+                max = value;
+            count++;
+            sum += value;
+            buckets[getBucket(value)]++;
+        }
+
+        private int getBucket(double value)
+        {
+            if ( value <= 0.0 )
+                return 0;
+            double position = Math.log(value) / Math.log(2.0) * BUCKETS_PER_OCTAVE + MIN_OCTAVE * BUCKETS_PER_OCTAVE;
+            return (int)Math.max(0.0, Math.min(buckets.length - 1, Math.floor(position) + 1));
+        }
+
+        public synchronized long getCount()
+        {
+            return count;
+        }
+
+        public synchronized double getMean()
+        {
+            return count == 0L ? Double.NaN : sum / count;
+        }
+
+        public synchronized double getMin()
+        {
+            return min;
+        }
+
+        public synchronized double getMax()
+        {
+            return max;
+        }
+
+        /**
+         * Estimates a percentile as the geometric middle of the bucket it falls in.
+         * @param percentile between 0 and 100
+         * @return the estimate, which is always between the minimum and maximum
+         */
+        public synchronized double getPercentile(double percentile)
+        {
+            if ( count == 0L )
+                return Double.NaN;
+            long rank = (long)Math.ceil(percentile / 100.0 * count);
+            long seen = 0L;
+            int bucket = 0;
+            for (; bucket < buckets.length - 1; bucket++)
+                {
+                    seen += buckets[bucket];
+                    if ( seen >= rank )
+                        break;
+                }
+            double estimate = bucket == 0 ? min : Math.pow(2.0, (bucket - 0.5) / BUCKETS_PER_OCTAVE - MIN_OCTAVE);
+            return Math.max(min, Math.min(max, estimate));
+        }
+
+        public double get50thPercentile()
+        {
+            return getPercentile(50.0);
+        }
+
+        public double get95thPercentile()
+        {
+            return getPercentile(95.0);
+        }
+
+        public double get99thPercentile()
+        {
+            return getPercentile(99.0);
+        }
+    }
+
+    /** The management interface of a Timer. */
+    public interface TimerMBean extends HistogramMBean
+    {
+    }
+
+    /**
+     * A histogram of durations in milliseconds.  Call start() before the work and stop() after it.
+     */
+    public static class Timer extends Histogram implements TimerMBean
+    {
+        /**
+         * Returns the current time for a later call to stop().
+         * @return the time in nanoseconds
+         */
+        public long start()
+        {
+            return System.nanoTime();
+        }
+
+        /**
+         * Records the time since start() was called.
+         * @param startTime the value returned by start()
+         */
+        public void stop(long startTime)
+        {
+            update((System.nanoTime() - startTime) / 1.0E6);
+        }
+    }
+
+    /**
+     * Returns the counter with the specified name, creating it if necessary.
+     * @param name the name of the counter
+     * @return the counter
+     */
+    public static Counter counter(String name)
+    {
+        return register(name, Counter.class);
+    }
+
+    /**
+     * Returns the histogram with the specified name, creating it if necessary.
+     * @param name the name of the histogram
+     * @return the histogram
+     */
+    public static Histogram histogram(String name)
+    {
+        return register(name, Histogram.class);
+    }
+
+    /**
+     * Returns the timer with the specified name, creating it if necessary.
+     * @param name the name of the timer
+     * @return the timer
+     */
+    public static Timer timer(String name)
+    {
+        return register(name, Timer.class);
+    }
+
+    /**
+     * Looks up a metric, or creates and registers one of the specified type.
+     */
+    private static <T extends Metric> T register(String name, Class<T> type)
+    {
+        Metric metric = REGISTRY.get(name);
+        if ( metric == null )
+            {
+                T newMetric = null;
+                try
+                    {
+                        newMetric = type.getDeclaredConstructor().newInstance();
+                    }
+                catch (ReflectiveOperationException e)
+                    {
+                        throw new IllegalArgumentException("unable to create metric " + name);
+                    }
+                metric = REGISTRY.putIfAbsent(name, newMetric);
+                if ( metric == null )
+                    {
+                        metric = newMetric;
+                        try
+                            {
+                                ObjectName objectName = new ObjectName(DOMAIN, "name", ObjectName.quote(name));
+                                ManagementFactory.getPlatformMBeanServer().registerMBean(newMetric, objectName);
+                            }
+                        catch (JMException e)
+                            {
+                                System.out.println("Error registering metric " + name + "!");
+                                e.printStackTrace();
+                            }
+                    }
+            }
+        if ( metric.getClass() != type )
+            throw new IllegalArgumentException(name + " is already a " + metric.getClass().getSimpleName());
+        return type.cast(metric);
+    }
+
+    /**
+     * Appends a snapshot of every metric to a CSV file at a fixed period.  The header is written if the
+     * file is new.  Reporting runs on a daemon thread until stopReporting() is called.
+     * @param filename the CSV file
+     * @param periodSeconds the time between snapshots
+     */
+    public static synchronized void startReporting(String filename, long periodSeconds)
+    {
+        if ( reporter != null )
+            stopReporting();
+        reportFilename = filename;
+        if ( !new File(filename).exists() )
+            InputFileFormat.writeStringToDisk("time,host,name,type,count,rate,mean,min,max,p50,p95,p99\n", filename);
+        lastCounts.clear();
+        lastSnapshotTime = System.nanoTime();
+        reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "metrics reporter");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        reporter.scheduleAtFixedRate(new Runnable()
+            {
+                public void run()
+                {
+                    writeSnapshot();
+                }
+            }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops periodic reporting and writes one last snapshot.
+     */
+    public static synchronized void stopReporting()
+    {
+        if ( reporter == null )
+            return;
+        reporter.shutdownNow();
+        reporter = null;
+        writeSnapshot();
+    }
+
+    /**
+     * Appends the current values of all metrics to the report file.
+     */
+    private static synchronized void writeSnapshot()
+    {
+        if ( reportFilename == null )
+            return;
+        long now = System.nanoTime();
+        double seconds = (now - lastSnapshotTime) / 1.0E9;
+        lastSnapshotTime = now;
+        String time = String.format("%tFT%<tT", new Date());
+
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String,Metric> entry : REGISTRY.entrySet())
+            {
+                String name = entry.getKey();
+                Metric metric = entry.getValue();
+                long count = metric.getCount();
+                Long last = lastCounts.put(name, count);
+                double rate = seconds > 0.0 ? (count - (last == null ? 0L : last)) / seconds : 0.0;
+                builder.append(time).append(',').append(Settings.HOSTNAME).append(',').append(name).append(',');
+                builder.append(metric.getClass().getSimpleName().toLowerCase()).append(',').append(count).append(',');
+                builder.append(String.format("%.3f", rate));
+                if ( metric instanceof Histogram )
+                    {
+                        Histogram h = (Histogram)metric;
+                        builder.append(String.format(",%.6g,%.6g,%.6g,%.6g,%.6g,%.6g", h.getMean(), h.getMin(), h.getMax(),
+                                                     h.get50thPercentile(), h.get95thPercentile(), h.get99thPercentile()));
+                    }
+                else
+                    builder.append(",,,,,,");
+                builder.append('\n');
+            }
+        InputFileFormat.appendStringToDisk(builder.toString(), reportFilename);
+    }
+
+    /**
+     * Returns a table of all the metrics.
+     * @return a human-readable summary
+     */
+    public static String getSummary()
+    {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String,Metric> entry : REGISTRY.entrySet())
+            {
+                Metric metric = entry.getValue();
+                builder.append(String.format("%-40s %12d", entry.getKey(), metric.getCount()));
+                if ( metric instanceof Histogram )
+                    {
+                        Histogram h = (Histogram)metric;
+                        builder.append(String.format("   mean %10.4g   p50 %10.4g   p95 %10.4g   max %10.4g",
+                                                     h.getMean(), h.get50thPercentile(), h.get95thPercentile(), h.getMax()));
+                    }
+                builder.append('\n');
+            }
+        return builder.toString();
+    }
+
+    /** for testing */
+    public static void main(String[] args)
+    {
+        Timer timer = timer("test.timer");
+        Histogram histogram = histogram("test.histogram");
+        Random random = new Random(1);
+        for (int i=0; i < 100000; i++)
+            {
+                long start = timer.start();
+                histogram.update(Math.exp(random.nextGaussian()));
+                timer.stop(start);
+                counter("test.counter").increment();
+            }
+        System.out.println(getSummary());
+        System.out.println("exact median 1.0, exact p95 " + Math.exp(1.6449));
+    }
+}
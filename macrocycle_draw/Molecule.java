@@ -19,6 +19,14 @@ public class Molecule implements Immutable, Serializable
     public final List<Atom> contents;
     protected final SimpleWeightedGraph<Atom, DefaultWeightedEdge> connectivity;
 
+    /**
+     * Maps atoms to their zero-based positions in contents.  Built on first use, since contents never changes.
+     * Lookups are by identity first; equal but distinct atoms (such as the copies held by fragments) are
+     * found through the second map, which keeps the first position of each atom like contents.indexOf().
+     */
+    private transient volatile Map<Atom,Integer> atomIndices;
+    private transient volatile Map<Atom,Integer> equalAtomIndices;
+
     /**
      * Factory method to create a molecule given a map of old atoms to new atoms.  Should be used
      * to move atoms.
@@ -88,7 +96,7 @@ public class Molecule implements Immutable, Serializable
                 Atom toAtom = connectivity.getEdgeTarget(e);
 
                 // create new edge
-                DefaultWeightedEdge newEdge = newConnectivity.addEdge(newContents.get(contents.indexOf(fromAtom)),newContents.get(contents.indexOf(toAtom)));
+                DefaultWeightedEdge newEdge = newConnectivity.addEdge(newContents.get(getAtomIndex(fromAtom)),newContents.get(getAtomIndex(toAtom)));
                 newConnectivity.setEdgeWeight(newEdge, bondOrder);
             }
 
@@ -201,11 +209,38 @@ public class Molecule implements Immutable, Serializable
      */
     public boolean containsAtom(Atom atom)
     {
-        if ( contents.contains(atom) && connectivity.vertexSet().contains(atom) )
+        if ( getAtomIndex(atom) > -1 && connectivity.containsVertex(atom) )
             return true;
         return false;
     }
 
+    /**
+     * Returns the position of an atom in contents.  This gives the same answer as contents.indexOf(atom)
+     * in constant time.
+     * @param atom the atom to look for
+     * @return the zero-based index of the atom (-1 if it is not in contents)
+     */
+    public int getAtomIndex(Atom atom)
+    {
+        Map<Atom,Integer> indices = atomIndices;
+        if ( indices == null )
+            {
+                Map<Atom,Integer> identityIndices = new IdentityHashMap<>(contents.size());
+                Map<Atom,Integer> equalIndices = new HashMap<>(2 * contents.size());
+                for (int i = contents.size() - 1; i >= 0; i--)
+                    {
+                        identityIndices.put(contents.get(i), i);
+                        equalIndices.put(contents.get(i), i);
+                    }
+                equalAtomIndices = equalIndices;
+                atomIndices = indices = identityIndices;
+            }
+        Integer index = indices.get(atom);
+        if ( index == null )
+            index = equalAtomIndices.get(atom);
+        return index == null ? -1 : index;
+    }
+
     /**
      * Returns the number of the atom.  Answers are given in 1,2,...n where n is
      * the number of atoms in the molecule.
@@ -215,7 +250,7 @@ public class Molecule implements Immutable, Serializable
     public int getAtomNumber(Atom atom)
     {
         if ( containsAtom(atom) )
-            return contents.indexOf(atom) + 1;
+            return getAtomIndex(atom) + 1;
         else
             return -1;
     }
@@ -1117,6 +1152,7 @@ System.out.println();
      */
     public double getOPLSenergy()
     {
+        Metrics.counter("energy.evaluations").increment();
         double energy = 0.0;
         for (int i=0; i < contents.size(); i++)
             {
@@ -1382,29 +1418,53 @@ System.out.println();
 
     /**
      * Calculates the "distance" between two molecules by comparing their positions.
-     * Molecules are superimposed first.
+     * Molecules are superimposed first, using only the atoms in the list.  No new molecules
+     * are created; the RMSD is obtained directly by the quaternion method in Superposition.
      * @param molecule1 the first molecule
      * @param molecule2 the second molecule
      * @param atomNumbers the atom numbers (1...N) of the atoms to be compared
-     * @return the RMS average distance between the superimposed molecules, counting only the atoms in the lsit
+     * @return the RMS average distance between the superimposed molecules, counting only the atoms in the list
      */
     public static double calculateRMSD(Molecule molecule1, Molecule molecule2, List<Integer> atomNumbers)
     {
-        Molecule m2 = superimpose(molecule1,molecule2,atomNumbers);
+        checkSuperposition(molecule1, molecule2, atomNumbers);
+        return Superposition.calculateRMSD(getCoordinates(molecule1, atomNumbers), getCoordinates(molecule2, atomNumbers));
+    }
 
-        double RMSD = 0.0;
-        for (Integer i : atomNumbers)
+    /**
+     * Packs the positions of some atoms into an array as x1, y1, z1, x2, ...
+     * @param molecule the molecule
+     * @param atomNumbers the atom numbers (1...N) to include
+     * @return the packed coordinates
+     */
+    public static double[] getCoordinates(Molecule molecule, List<Integer> atomNumbers)
+    {
+        double[] coordinates = new double[3*atomNumbers.size()];
+        for (int i=0; i < atomNumbers.size(); i++)
             {
-                int atomIndex = i-1;
-                Atom fromAtom = molecule1.contents.get(atomIndex);
-                Atom toAtom = m2.contents.get(atomIndex);
-                Vector3D fromVector = fromAtom.position;
-                Vector3D toVector = toAtom.position;
-                RMSD += Math.pow(Vector3D.distance(fromVector,toVector), 2);
+                int atomIndex = atomNumbers.get(i) - 1;
+                if ( atomIndex < 0 || atomIndex >= molecule.contents.size() )
+                    throw new IllegalArgumentException("error in atom index (" + atomIndex + ")");
+                Vector3D position = molecule.contents.get(atomIndex).position;
+                coordinates[3*i]   = position.getX();
+                coordinates[3*i+1] = position.getY();
+                coordinates[3*i+2] = position.getZ();
             }
-        RMSD = RMSD * ( 1.0 / molecule1.contents.size() );
-        RMSD = Math.sqrt(RMSD);
-        return RMSD;
+        return coordinates;
+    }
+
+    /**
+     * Checks that two molecules can be superimposed on the specified atoms.
+     */
+    private static void checkSuperposition(Molecule molecule1, Molecule molecule2, List<Integer> atomNumbers)
+    {
+        // check validity of molecule arguments
+        if ( molecule1.contents.size() != molecule2.contents.size() )
+            throw new IllegalArgumentException("molecule size mismatch");
+
+        // check validity of atom numbers list
+        if ( atomNumbers == null || atomNumbers.size() < 3 || atomNumbers.size() > molecule1.contents.size() )
+            throw new IllegalArgumentException("invalid atom numbers list");
     }
 
     /**
@@ -1428,104 +1488,44 @@ System.out.println();
 
     /**
      * Superimposes two molecules based on a list of atom numbers.
-     * Superposition is performed using the
-     * <a href="http://en.wikipedia.org/wiki/Kabsch_algorithm">Kabsch algorithm</a>.
+     * The optimal rotation is found with the quaternion method in Superposition.
      * @param molecule1 one of the molecules
      * @param molecule2 another molecule (superposition transformation will be applied to this vector)
      * @param atomNumbers the atom numbers (1...N) to use for the superposition
-     * @return a new Molecule, which is molecule2 rotated to be maximally superimposed with molecule1
+     * @return a new Molecule, which is molecule2 rotated and translated to be maximally superimposed with molecule1
      */
     public static Molecule superimpose(Molecule molecule1, Molecule molecule2, List<Integer> atomNumbers)
     {
-        // check validity of molecule arguments
-        if ( molecule1.contents.size() != molecule2.contents.size() )
-            throw new IllegalArgumentException("molecule size mismatch");
-
-        // check validity of atom numbers list
-        // does not check the validity of the numbers themselves
-        if ( atomNumbers == null || atomNumbers.size() < 3 || atomNumbers.size() > molecule1.contents.size() )
-            throw new IllegalArgumentException("invalid atom numbers list");
-
-        // collect centroids
-        Vector3D centroid1 = molecule1.getCentroid();
-        Vector3D centroid2 = molecule2.getCentroid();
-
-        // move molecules to origin
-        Molecule m1 = molecule1.normalize();
-        Molecule m2 = molecule2.normalize();
-
-        // calculate superposition on centered molecules
-        double[][] pre_matrixP = new double[atomNumbers.size()][3];
-        double[][] pre_matrixQ = new double[atomNumbers.size()][3];
-        for (int i=0; i < atomNumbers.size(); i++)
-            {
-                int atomIndex = atomNumbers.get(i) - 1;
-                Atom fromAtom = m1.contents.get(atomIndex);
-                if ( fromAtom == null )
-                    throw new NullPointerException("error in atom index (" + atomIndex + ")");
-                pre_matrixP[i][0] = fromAtom.position.getX();
-                pre_matrixP[i][1] = fromAtom.position.getY();
-                pre_matrixP[i][2] = fromAtom.position.getZ();
-
-                Atom toAtom = m2.contents.get(atomIndex);
-                pre_matrixQ[i][0] = toAtom.position.getX();
-                pre_matrixQ[i][1] = toAtom.position.getY();
-                pre_matrixQ[i][2] = toAtom.position.getZ();
-            }
-
-        Matrix matrixP = new Matrix(pre_matrixP);
-        Matrix matrixQ = new Matrix(pre_matrixQ);
-        Matrix matrixPtranspose = matrixP.transpose();
-
-        // calculate covariance matrix and its singular value decomposition
-        Matrix covarianceMatrix = matrixPtranspose.times(matrixQ);
-        SingularValueDecomposition SVD = new SingularValueDecomposition(covarianceMatrix);
-        Matrix matrixV = SVD.getU();
-        Matrix matrixW = SVD.getV();
-
-        // check sign of rotation matrix
-        Double determinant = covarianceMatrix.det();
-        double sign = 0.0;
-        if (determinant > 0)
-            sign = 1.0;
-        else if (determinant == 0)
-            sign = 1.0;
-        else if (determinant < 0)
-            sign = -1.0;
-
-        double[][] pre_signedMatrix = {{1.0,0.0,0.0},{0.0,1.0,0.0},{0.0,0.0,sign}};
-        Matrix signedMatrix = new Matrix(pre_signedMatrix);
-
-        // compute optimal rotation matrix
-        Matrix rotationMatrix = matrixV.times(signedMatrix);
-        rotationMatrix = rotationMatrix.times(matrixW.transpose());
-
-        // translate between packages by converting Vector3D objects to Matrix objects
-        double[][] currentVectorPreMatrix = new double[3][1];
-        double[][] newVectorPreMatrix = new double[3][1];
-        
-        // apply rotation to all atoms
+        checkSuperposition(molecule1, molecule2, atomNumbers);
+        double[] coordinates1 = getCoordinates(molecule1, atomNumbers);
+        double[] coordinates2 = getCoordinates(molecule2, atomNumbers);
+        double[] rotation = new double[9];
+        Superposition.calculateRMSD(coordinates1, coordinates2, rotation);
+
+        // collect the centroids of the superimposed atoms
+        double[] centroid1 = new double[3];
+        double[] centroid2 = new double[3];
+        int n = atomNumbers.size();
+        for (int i=0; i < n; i++)
+            for (int j=0; j < 3; j++)
+                {
+                    centroid1[j] += coordinates1[3*i+j] / n;
+                    centroid2[j] += coordinates2[3*i+j] / n;
+                }
+
+        // move every atom of molecule2 to the origin, rotate it, and move it onto molecule1
         Map<Atom,Atom> atomMap = new HashMap<>();
-        for (int i=0; i < m2.contents.size(); i++)
+        for (Atom fromAtom : molecule2.contents)
             {
-                Atom fromAtom = m2.contents.get(i);
-                Vector3D currentVector = fromAtom.position;
-                currentVectorPreMatrix[0][0] = currentVector.getX();
-                currentVectorPreMatrix[1][0] = currentVector.getY();
-                currentVectorPreMatrix[2][0] = currentVector.getZ();
-                Matrix currentVectorMatrix = new Matrix(currentVectorPreMatrix);
-
-                Matrix newVectorMatrix = rotationMatrix.times(currentVectorMatrix);
-                newVectorPreMatrix = newVectorMatrix.getArrayCopy();
-                Vector3D newVector = new Vector3D(newVectorPreMatrix[0][0], newVectorPreMatrix[1][0], newVectorPreMatrix[2][0]);
-                
-                Atom newAtom = fromAtom.moveAtom(newVector);
-                atomMap.put(fromAtom, newAtom);
+                double x = fromAtom.position.getX() - centroid2[0];
+                double y = fromAtom.position.getY() - centroid2[1];
+                double z = fromAtom.position.getZ() - centroid2[2];
+                Vector3D newVector = new Vector3D(rotation[0]*x + rotation[1]*y + rotation[2]*z + centroid1[0],
+                                                  rotation[3]*x + rotation[4]*y + rotation[5]*z + centroid1[1],
+                                                  rotation[6]*x + rotation[7]*y + rotation[8]*z + centroid1[2]);
+                atomMap.put(fromAtom, fromAtom.moveAtom(newVector));
             }
-
-        // rotate molecule and undo translation
-        Molecule rotatedMolecule = m2.moveAtoms(atomMap);
-        return rotatedMolecule.shift(centroid2);
+        return molecule2.moveAtoms(atomMap);
     }
 
     /**
@@ -1579,10 +1579,15 @@ System.out.println();
     @Override
     public String toString()
     {
-        String returnString = name + "\n\n";
+        StringBuilder builder = new StringBuilder(name.length() + 48 * contents.size() + 2);
+        builder.append(name).append("\n\n");
         for (Atom a : contents)
-            returnString = returnString + (contents.indexOf(a) + 1) + a.toString() + "\n";
-        return returnString;
+            {
+                builder.append(getAtomIndex(a) + 1);
+                a.appendTo(builder);
+                builder.append('\n');
+            }
+        return builder.toString();
     }
 
     /**
@@ -1590,10 +1595,10 @@ System.out.println();
      */
     public String toGaussianString()
     {
-        String geometry = "";
-        for (Atom a : contents)
-            geometry = geometry + a.toString() + "\n";
-        return String.format("#\n\n%s\n\n0 1\n%s\n\n", name, geometry, connectivity);
+        StringBuilder builder = new StringBuilder(name.length() + 48 * contents.size() + 16);
+        builder.append("#\n\n").append(name).append("\n\n0 1\n");
+        appendGeometry(builder);
+        return builder.append("\n\n").toString();
     }
 
     /**
@@ -1601,10 +1606,36 @@ System.out.println();
      */
     public String toOmnisolString()
     {
-        String geometry = "";
+        StringBuilder builder = new StringBuilder(48 * contents.size());
+        appendGeometry(builder);
+        return builder.toString();
+    }
+
+    /**
+     * Appends one line per atom in the format of Atom.toString().
+     */
+    private void appendGeometry(StringBuilder builder)
+    {
         for (Atom a : contents)
-            geometry = geometry + a.toString() + "\n";
-        return geometry;
+            {
+                a.appendTo(builder);
+                builder.append('\n');
+            }
+    }
+
+    /**
+     * Writes the geometry in the format of toOmnisolString() one line at a time.
+     * @param out where to write the lines
+     */
+    public void writeGeometry(Appendable out) throws IOException
+    {
+        StringBuilder line = new StringBuilder(64);
+        for (Atom a : contents)
+            {
+                line.setLength(0);
+                a.appendTo(line);
+                out.append(line.append('\n'));
+            }
     }
 
     /**
@@ -1612,35 +1643,54 @@ System.out.println();
     */
     public String toXYZString() 
     {
-	//creates String to write
-        String outputString = "";
+        StringBuilder builder = new StringBuilder(80 * contents.size() + 64);
+        try
+            {
+                writeXYZ(builder);
+            }
+        catch (IOException e)
+            {
+                // cannot happen with a StringBuilder
+                throw new IllegalArgumentException(e.getMessage());
+            }
+        return builder.toString();
+    }
+
+    /**
+     * Writes this molecule in Tinker XYZ format one line at a time.
+     * @param out where to write the lines
+     */
+    public void writeXYZ(Appendable out) throws IOException
+    {
         //write number of atoms and molecule name
-        outputString = contents.size() + " " + name + "\n";
+        out.append(Integer.toString(contents.size())).append(' ').append(name).append('\n');
 
         //write atom list and connections
+        StringBuilder line = new StringBuilder(128);
         int currentAtomNumber = 1;
         for (Atom currentAtom : contents)
             {
-                Set<DefaultWeightedEdge> bonds = connectivity.edgesOf(currentAtom);
-                outputString = outputString + String.format("%3d %2s %12.8f %12.8f %12.8f %6d", currentAtomNumber,
-                                                            currentAtom.element.symbol,  currentAtom.position.getX(),
-                                                            currentAtom.position.getY(), currentAtom.position.getZ(),
-                                                            currentAtom.tinkerAtomType);
-
-                for (DefaultWeightedEdge e : bonds)
+                line.setLength(0);
+                FixedWidthFormat.appendInt(line, currentAtomNumber, 3).append(' ');
+                FixedWidthFormat.appendString(line, currentAtom.element.symbol, 2, false).append(' ');
+                FixedWidthFormat.appendFixed(line, currentAtom.position.getX(), 12, 8).append(' ');
+                FixedWidthFormat.appendFixed(line, currentAtom.position.getY(), 12, 8).append(' ');
+                FixedWidthFormat.appendFixed(line, currentAtom.position.getZ(), 12, 8).append(' ');
+                FixedWidthFormat.appendInt(line, currentAtom.tinkerAtomType, 6);
+
+                for (DefaultWeightedEdge e : connectivity.edgesOf(currentAtom))
                     {
-                        int edgeTarget = contents.indexOf(connectivity.getEdgeTarget(e)) + 1;
-                        int edgeSource = contents.indexOf(connectivity.getEdgeSource(e)) + 1;
+                        int edgeTarget = getAtomIndex(connectivity.getEdgeTarget(e)) + 1;
+                        int edgeSource = getAtomIndex(connectivity.getEdgeSource(e)) + 1;
                         int edgeTargetToWrite = edgeTarget;
                         //change to edgeSource if edgeTarget is simply the current atom (edges have no particular ordering)
                         if (edgeTarget == currentAtomNumber)
                             edgeTargetToWrite = edgeSource;
-                        outputString = outputString+String.format("%6d",edgeTargetToWrite);
+                        FixedWidthFormat.appendInt(line, edgeTargetToWrite, 6);
                     }
-                outputString = outputString + "\n";
+                out.append(line.append('\n'));
                 currentAtomNumber++;
             }
-        return outputString;
     }
 
     /**
@@ -1648,61 +1698,71 @@ System.out.println();
      * @return a String containing the geometry and connectivity in MOL2 format
      */
     public String toMOL2()
+    {
+        StringBuilder builder = new StringBuilder(80 * contents.size() + 32 * connectivity.edgeSet().size() + 128);
+        try
+            {
+                writeMOL2(builder);
+            }
+        catch (IOException e)
+            {
+                // cannot happen with a StringBuilder
+                throw new IllegalArgumentException(e.getMessage());
+            }
+        return builder.toString();
+    }
+
+    /**
+     * Writes this molecule in MOL2 format one line at a time.
+     * @param out where to write the lines
+     */
+    public void writeMOL2(Appendable out) throws IOException
     {
         // header information
-        String returnString = "@<TRIPOS>MOLECULE\n";
-        returnString = returnString + name + "\n";
+        out.append("@<TRIPOS>MOLECULE\n");
+        out.append(name).append('\n');
 
         int numberOfAtoms = contents.size();
         int numberOfBonds = connectivity.edgeSet().size();
 
-        returnString = returnString + numberOfAtoms + " " + numberOfBonds + "\n";
-        returnString = returnString + "SMALL\nNO_CHARGES\n\n\n";
+        out.append(Integer.toString(numberOfAtoms)).append(' ').append(Integer.toString(numberOfBonds)).append('\n');
+        out.append("SMALL\nNO_CHARGES\n\n\n");
 
         // print geometry data
-        returnString = returnString + "@<TRIPOS>ATOM\n";
-        
-        Atom currentAtom = null;
-        String atomSymbolString = "";
-        String atomSymbolString2 = "";
-        String atomString = "";
-        int formalCharge = 0;
-        
+        out.append("@<TRIPOS>ATOM\n");
+        StringBuilder line = new StringBuilder(128);
         for (int i=0; i < contents.size(); i++)
             {
-                currentAtom = contents.get(i);
-                atomSymbolString = String.format("%s%s", currentAtom.element.symbol, i);
-                atomString = String.format("%5s %-6s %9.4f %9.4f %9.4f %5s\n", i+1, atomSymbolString,
-                                           currentAtom.position.getX(), currentAtom.position.getY(),
-                                           currentAtom.position.getZ(), currentAtom.element.symbol);
-                returnString = returnString + atomString;
+                Atom currentAtom = contents.get(i);
+                line.setLength(0);
+                FixedWidthFormat.appendInt(line, i+1, 5).append(' ');
+                FixedWidthFormat.appendString(line, currentAtom.element.symbol + i, 6, true).append(' ');
+                FixedWidthFormat.appendFixed(line, currentAtom.position.getX(), 9, 4).append(' ');
+                FixedWidthFormat.appendFixed(line, currentAtom.position.getY(), 9, 4).append(' ');
+                FixedWidthFormat.appendFixed(line, currentAtom.position.getZ(), 9, 4).append(' ');
+                FixedWidthFormat.appendString(line, currentAtom.element.symbol, 5, false);
+                out.append(line.append('\n'));
             }
                 
         // write connectivity data
-        Atom fromAtom = null;
-        Atom toAtom = null;
-        Integer fromAtomNumber = 0;
-        Integer toAtomNumber = 0;
-        Double bondOrder = 0.0;
+        out.append("@<TRIPOS>BOND\n");
         int count = 0;
-        String bondString = "";
-        
-        returnString = returnString + "@<TRIPOS>BOND\n";
         for ( DefaultWeightedEdge e : connectivity.edgeSet() )
             {
                 count++;
-                fromAtom = connectivity.getEdgeSource(e);
-                fromAtomNumber = getAtomNumber(fromAtom);
-                toAtom = connectivity.getEdgeTarget(e);
-                toAtomNumber = getAtomNumber(toAtom);
-                bondOrder = connectivity.getEdgeWeight(e);
+                int fromAtomNumber = getAtomNumber(connectivity.getEdgeSource(e));
+                int toAtomNumber = getAtomNumber(connectivity.getEdgeTarget(e));
+                double bondOrder = connectivity.getEdgeWeight(e);
+                line.setLength(0);
+                FixedWidthFormat.appendInt(line, count, 6);
+                FixedWidthFormat.appendInt(line, fromAtomNumber, 5);
+                FixedWidthFormat.appendInt(line, toAtomNumber, 5).append(' ');
                 if ( bondOrder == 1.5 ) 
-                    bondString = String.format("%6s%5s%5s %s\n", count, fromAtomNumber, toAtomNumber, "Ar");
+                    line.append("Ar");
                 else
-                    bondString = String.format("%6s%5s%5s %s\n", count, fromAtomNumber, toAtomNumber, Math.round(bondOrder));
-                returnString = returnString + bondString;
+                    line.append(Math.round(bondOrder));
+                out.append(line.append('\n'));
             }
-        return returnString;
     }
 
     /** for testing */
@@ -1725,7 +1785,7 @@ System.out.println();
         Set<Integer> numbers = new TreeSet<>();
         for (Atom a : atoms)
             {
-                int number = molecule.contents.indexOf(a) +1;
+                int number = molecule.getAtomIndex(a) +1;
                 numbers.add(number);
             }
         for (Integer number : numbers)
@@ -2,6 +2,7 @@ import org.apache.commons.math3.geometry.euclidean.threed.*;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.logging.*;
 import com.google.common.collect.*;
 
 /**
@@ -21,6 +22,9 @@ public final class MonteCarlo
     /** Do not instantiate. */
     private MonteCarlo(){throw new IllegalArgumentException("Do not create instance of Monte Carlo!");}
 
+    /** Logs a summary of each cyclization at INFO and every accepted step at FINEST. */
+    private static final Logger LOGGER = Logger.getLogger(MonteCarlo.class.getName());
+
     /** A molecule cyclizer.  Given a molecule and a list of rotatable bonds, the
     * method will make mutations to cyclize the endpoints to a normal bond length.
     * The return will be a new molecule, but with the same indices.
@@ -31,23 +35,103 @@ public final class MonteCarlo
     * @return a cyclized molecule; the new bond is not formed!
     */
     public static Molecule cyclize(Molecule m, List<IndexTorsion> rotatableBonds, int leftIndex, int rightIndex)
+    {
+        return cyclize(m, rotatableBonds, leftIndex, rightIndex, null);
+    }
+
+    /** A molecule cyclizer that records every step.
+    * @param m the molecule to run this algorithm on
+    * @param rotatableBonds the torsions that we can mutate
+    * @param leftIndex the left side of the forming bond
+    * @param rightIndex
+    * @param trace where to record the steps, or null to record nothing
+    * @return a cyclized molecule; the new bond is not formed!
+    */
+    public static Molecule cyclize(Molecule m, List<IndexTorsion> rotatableBonds, int leftIndex, int rightIndex, Trace trace)
+    {
+        return cyclize(m, rotatableBonds, leftIndex, rightIndex, trace, KT);
+    }
+
+    /** A molecule cyclizer that starts partway through the annealing schedule, for molecules that are
+    * already close to closing.  The temperature falls at the usual rate, so starting at KT/4 takes a
+    * quarter of the iterations.
+    * @param m the molecule to run this algorithm on
+    * @param rotatableBonds the torsions that we can mutate
+    * @param leftIndex the left side of the forming bond
+    * @param rightIndex
+    * @param trace where to record the steps, or null to record nothing
+    * @param startTemperature the initial temperature, at most KT
+    * @return a cyclized molecule; the new bond is not formed!
+    */
+    public static Molecule cyclize(Molecule m, List<IndexTorsion> rotatableBonds, int leftIndex, int rightIndex, Trace trace, double startTemperature)
+    {
+        return cyclize(m, rotatableBonds, leftIndex, rightIndex, trace, startTemperature, null);
+    }
+
+    /** A molecule cyclizer that sometimes jumps a torsion to an angle drawn from its learned prior instead
+    * of taking a small step.  A jump is accepted with the Metropolis-Hastings probability, which corrects
+    * for the proposal density, so the annealing still samples the Boltzmann distribution at each temperature.
+    * @param m the molecule to run this algorithm on
+    * @param rotatableBonds the torsions that we can mutate
+    * @param leftIndex the left side of the forming bond
+    * @param rightIndex
+    * @param trace where to record the steps, or null to record nothing
+    * @param startTemperature the initial temperature, at most KT
+    * @param proposal the priors of the torsions, or null to only take small steps
+    * @return a cyclized molecule; the new bond is not formed!
+    */
+    public static Molecule cyclize(Molecule m, List<IndexTorsion> rotatableBonds, int leftIndex, int rightIndex, Trace trace, double startTemperature,
+                                   TorsionPriors.Proposal proposal)
     {  
-        double temperature = KT;
+        if ( startTemperature <= 0.0 || startTemperature > KT )
+            throw new IllegalArgumentException("start temperature must be in (0, KT]");
+        double temperature = startTemperature;
+        int iterations = (int)Math.round(ITERATIONS * startTemperature / KT);
+        int accepted = 0;
+        int jumps = 0;
+        int acceptedJumps = 0;
 
-        System.out.println("Beginning Monte Carlo cyclization on " + m.name + ":\n");
+        LOGGER.fine("Beginning Monte Carlo cyclization on " + m.name + ".");
 
-        for ( int i = 0 ; i < ITERATIONS ; i++ )
+        // this energy function includes the opls energy of the
+        // linear fragment only, plus a triangular potential on the
+        // terminal atoms.  The energy of the current molecule is
+        // carried over from the step that accepted it.
+        double distance = Vector3D.distance(m.getAtom(leftIndex).position, m.getAtom(rightIndex).position);
+        double oldEnergy = getEnergy(m, leftIndex, rightIndex);
+        double initialDistance = distance;
+        for ( int i = 0 ; i < iterations ; i++ )
         {
-            // this energy function includes the opls energy of the
-            // linear fragment only, plus a triangular potential on the
-            // terminal atoms.
-            double oldEnergy = m.getOPLSenergy() + 100 * (Vector3D.distance(m.getAtom(leftIndex).position, m.getAtom(rightIndex).position) - BOND_LENGTH);
-            Molecule testMolecule = mutate(m, rotatableBonds, temperature);
-            double newEnergy = testMolecule.getOPLSenergy() + 100 * (Vector3D.distance(testMolecule.getAtom(leftIndex).position, testMolecule.getAtom(rightIndex).position) - BOND_LENGTH);
-            if ( decider(newEnergy-oldEnergy, temperature) )
+            // either jump one torsion to an angle from its prior or take a small step in every torsion
+            Molecule testMolecule = null;
+            double logHastingsRatio = 0.0;
+            boolean jump = proposal != null && ThreadLocalRandom.current().nextDouble() < Settings.TORSION_PRIOR_JUMP_PROBABILITY;
+            if ( jump )
+                {
+                    int j = ThreadLocalRandom.current().nextInt(proposal.size());
+                    double oldAngle = proposal.getAngle(m, j);
+                    double newAngle = proposal.sample(j);
+                    logHastingsRatio = Math.log(proposal.getDensity(j, oldAngle)) - Math.log(proposal.getDensity(j, newAngle));
+                    testMolecule = proposal.setAngle(m, j, newAngle);
+                    jumps++;
+                }
+            else
+                testMolecule = mutate(m, rotatableBonds, temperature);
+            double newDistance = Vector3D.distance(testMolecule.getAtom(leftIndex).position, testMolecule.getAtom(rightIndex).position);
+            double newEnergy = testMolecule.getOPLSenergy() + 100 * (newDistance - BOND_LENGTH);
+            boolean accept = decider(newEnergy-oldEnergy, temperature, logHastingsRatio);
+            if ( trace != null )
+                trace.record(i, temperature, oldEnergy, newEnergy, newDistance, accept);
+            if ( accept )
             {
+                if ( LOGGER.isLoggable(Level.FINEST) )
+                    LOGGER.finest(String.format("%s iteration %d: old energy %.4f, new energy %.4f", m.name, i, oldEnergy, newEnergy));
                 m = testMolecule;
-                System.out.println("(" + m.name + ",\t iteration " + i + ")\tOld Energy: " + oldEnergy + "\tNew Energy: " + newEnergy);
+                oldEnergy = newEnergy;
+                distance = newDistance;
+                accepted++;
+                if ( jump )
+                    acceptedJumps++;
             }
            
             temperature = temperature - KT/ITERATIONS;
@@ -60,10 +144,34 @@ public final class MonteCarlo
                 }*/
         }
         
-        System.out.println("DONE! \n\n");
+        Metrics.counter("montecarlo.steps").add(iterations);
+        Metrics.counter("montecarlo.accepted").add(accepted);
+        if ( proposal != null )
+            {
+                Metrics.counter("montecarlo.jumps").add(jumps);
+                Metrics.counter("montecarlo.jumps.accepted").add(acceptedJumps);
+            }
+        Metrics.histogram("montecarlo.acceptance").update((double)accepted / Math.max(1, iterations));
+        if ( LOGGER.isLoggable(Level.INFO) )
+            LOGGER.info(String.format("Cyclized %s: %d of %d steps accepted, final energy %.4f, closure distance %.3f -> %.3f A",
+                                      m.name, accepted, iterations, oldEnergy, initialDistance, distance));
         return m;
     }
 
+    /**
+     * Returns the energy that cyclization minimizes: the OPLS energy of the linear molecule plus a
+     * triangular potential on the distance between the atoms of the forming bond.
+     * @param m the molecule
+     * @param leftIndex the left side of the forming bond
+     * @param rightIndex the right side of the forming bond
+     * @return the energy
+     */
+    public static double getEnergy(Molecule m, int leftIndex, int rightIndex)
+    {
+        double distance = Vector3D.distance(m.getAtom(leftIndex).position, m.getAtom(rightIndex).position);
+        return m.getOPLSenergy() + 100 * (distance - BOND_LENGTH);
+    }
+
     /**
      * Takes an angle and restricts it to the range [-180.0, 180.0] using the modulus.
      * @param d an angle
@@ -78,15 +186,18 @@ public final class MonteCarlo
 
     /** Decides whether to mutate.  Given a deltaE difference in energy and 
     * given temperature, it will return a Boltzmann distribution of true and 
-    * false for unfavorable changes, true for favorable changes.
+    * false for unfavorable changes, true for favorable changes.  For proposals
+    * that are not symmetric, the log of q(old|new)/q(new|old) is added to the
+    * exponent.
     */
-    private static boolean decider(double deltaE, double temperature)
+    private static boolean decider(double deltaE, double temperature, double logHastingsRatio)
     {
-        if ( deltaE < 0 )
+        double exponent = -deltaE/temperature + logHastingsRatio;
+        if ( exponent >= 0 )
             return true;
         else
         {
-            if (ThreadLocalRandom.current().nextDouble() < Math.exp(-deltaE/temperature))
+            if (ThreadLocalRandom.current().nextDouble() < Math.exp(exponent))
                 return true;
             else
                 return false;
@@ -102,5 +213,198 @@ public final class MonteCarlo
         }
         return m;
     }
+
+    /**
+     * Records the steps of one Monte Carlo run in preallocated primitive arrays, so recording costs
+     * nothing but a few stores.  When more steps are recorded than the capacity, the oldest ones are
+     * overwritten.  Traces can be written as CSV or in a compact binary form, which read() turns back
+     * into a trace.  A trace should only be used by one thread at a time.
+     */
+    public static class Trace
+    {
+        /** Identifies binary traces. */
+        public static final int MAGIC = 0x4D435452;
+
+        /** The binary format version. */
+        public static final int VERSION = 1;
+
+        private final int[] iterations;
+        private final double[] temperatures;
+        private final double[] oldEnergies;
+        private final double[] newEnergies;
+        private final double[] closureDistances;
+        private final boolean[] accepted;
+
+        /** The total number of steps recorded, including ones that were overwritten. */
+        private long recorded = 0L;
+
+        /**
+         * Creates an empty trace.
+         * @param capacity the number of steps kept
+         */
+        public Trace(int capacity)
+        {
+            if ( capacity < 1 )
+                throw new IllegalArgumentException("capacity must be positive");
+            iterations = new int[capacity];
+            temperatures = new double[capacity];
+            oldEnergies = new double[capacity];
+            newEnergies = new double[capacity];
+            closureDistances = new double[capacity];
+            accepted = new boolean[capacity];
+        }
+
+        /**
+         * Creates a trace big enough for a whole cyclization.
+         */
+        public Trace()
+        {
+            this(ITERATIONS);
+        }
+
+        /**
+         * Records one step.
+         * @param iteration the step number
+         * @param temperature the temperature
+         * @param oldEnergy the energy of the current structure
+         * @param newEnergy the energy of the proposed structure
+         * @param closureDistance the distance between the atoms of the forming bond in the proposed structure
+         * @param accept whether the proposed structure was accepted
+         */
+        public void record(int iteration, double temperature, double oldEnergy, double newEnergy, double closureDistance, boolean accept)
+        {
+            int i = (int)(recorded % iterations.length);
+            iterations[i] = iteration;
+            temperatures[i] = temperature;
+            oldEnergies[i] = oldEnergy;
+            newEnergies[i] = newEnergy;
+            closureDistances[i] = closureDistance;
+            accepted[i] = accept;
+            recorded++;
+        }
+
+        /**
+         * Returns the number of steps held, at most the capacity.
+         * @return the number of steps
+         */
+        public int size()
+        {
+            return (int)Math.min(recorded, iterations.length);
+        }
+
+        /**
+         * Converts a position in the trace to an index in the arrays.
+         */
+        private int getIndex(int position)
+        {
+            if ( position < 0 || position >= size() )
+                throw new IndexOutOfBoundsException("no step " + position + " in trace");
+            long first = recorded - size();
+            return (int)((first + position) % iterations.length);
+        }
+
+        /**
+         * Writes the trace as CSV, oldest step first.
+         * @param out where to write
+         * @throws IOException if the text cannot be written
+         */
+        public void writeCSV(Appendable out) throws IOException
+        {
+            StringBuilder builder = new StringBuilder("iteration,temperature,old_energy,new_energy,closure_distance,accepted\n");
+            for (int p=0; p < size(); p++)
+                {
+                    int i = getIndex(p);
+                    builder.append(iterations[i]).append(',').append(temperatures[i]).append(',');
+                    builder.append(oldEnergies[i]).append(',').append(newEnergies[i]).append(',');
+                    builder.append(closureDistances[i]).append(',').append(accepted[i] ? 1 : 0).append('\n');
+                    if ( builder.length() > 8192 )
+                        {
+                            out.append(builder);
+                            builder.setLength(0);
+                        }
+                }
+            out.append(builder);
+        }
+
+        /**
+         * Writes the trace in binary, oldest step first.
+         * @param out where to write
+         * @throws IOException if the data cannot be written
+         */
+        public void writeBinary(DataOutput out) throws IOException
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size());
+            for (int p=0; p < size(); p++)
+                {
+                    int i = getIndex(p);
+                    out.writeInt(iterations[i]);
+                    out.writeFloat((float)temperatures[i]);
+                    out.writeDouble(oldEnergies[i]);
+                    out.writeDouble(newEnergies[i]);
+                    out.writeFloat((float)closureDistances[i]);
+                    out.writeBoolean(accepted[i]);
+                }
+        }
+
+        /**
+         * Writes the trace to a binary file.
+         * @param filename where to write the trace
+         */
+        public void writeBinary(String filename)
+        {
+            try ( DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename))) )
+                {
+                    writeBinary(out);
+                }
+            catch (IOException e)
+                {
+                    System.out.println("Error writing trace " + filename + "!");
+                    e.printStackTrace();
+                }
+        }
+
+        /**
+         * Reads a binary trace.
+         * @param in where to read from
+         * @return the trace
+         * @throws IOException if the data cannot be read or is not a trace
+         */
+        public static Trace read(DataInput in) throws IOException
+        {
+            if ( in.readInt() != MAGIC )
+                throw new IOException("not a Monte Carlo trace");
+            int version = in.readInt();
+            if ( version != VERSION )
+                throw new IOException("unsupported trace version " + version);
+            int size = in.readInt();
+            Trace trace = new Trace(Math.max(1, size));
+            for (int p=0; p < size; p++)
+                trace.record(in.readInt(), in.readFloat(), in.readDouble(), in.readDouble(), in.readFloat(), in.readBoolean());
+            return trace;
+        }
+
+        @Override
+        public String toString()
+        {
+            int acceptedSteps = 0;
+            for (int p=0; p < size(); p++)
+                if ( accepted[getIndex(p)] )
+                    acceptedSteps++;
+            return String.format("Monte Carlo trace: %d steps held, %d accepted, %d recorded", size(), acceptedSteps, recorded);
+        }
+
+        /** Converts a binary trace to CSV on standard output. */
+        public static void main(String[] args) throws IOException
+        {
+            try ( DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0]))) )
+                {
+                    Trace trace = read(in);
+                    trace.writeCSV(System.out);
+                    System.err.println(trace);
+                }
+        }
+    }
 }
 
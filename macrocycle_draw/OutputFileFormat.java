@@ -9,7 +9,8 @@ import com.google.common.collect.*;
 public abstract class OutputFileFormat implements FileFormat
 {
     /**
-     * The raw text in the file.
+     * The raw text in the file.  Each line is trimmed.
+     * Null for subclasses that stream the file instead of reading it eagerly.
      */
     public final String stringRepresentation;
 
@@ -17,6 +18,7 @@ public abstract class OutputFileFormat implements FileFormat
      * The parsed contents of the file.<p>
      * The outer list contains each line.<p>
      * Each inner list contains the space-separated tokens for each line.<p>
+     * Empty for subclasses that stream the file instead of reading it eagerly.
      */
     public final List<List<String>> fileContents;
 
@@ -27,37 +29,48 @@ public abstract class OutputFileFormat implements FileFormat
     }
 
     /**
-     * Constructs an instance by reading text from filename.
+     * For subclasses that parse the file themselves with a LineTokenizer.  Nothing is read here,
+     * so the raw text and tokens are not kept in memory.
+     */
+    protected OutputFileFormat()
+    {
+        this.stringRepresentation = null;
+        this.fileContents = ImmutableList.of();
+    }
+
+    /**
+     * Constructs an instance by eagerly reading all the text from filename.  This keeps the whole
+     * file in memory twice over, so it should only be used for small files.  Large files should be
+     * parsed with a LineTokenizer instead.<p>
      * Fields are parsed by using spaces as delimeters.  Consecutive delimiters are ignored.
+     * Blank lines are represented by a single empty field.
      */
     public OutputFileFormat(String filename)
     {
         // get file length
         File file = new File(filename);
         long length = file.length(); // in bytes
-        int characters = (int)(length/2L);
 
-        List<List<String>> tempList = new LinkedList<>();
-        StringBuilder builder = new StringBuilder(characters);
-        String line = null;
-        try (BufferedReader reader = new BufferedReader(new FileReader(filename)))
-        //try (Scanner scanner = new Scanner(new FileReader(filename)))
+        List<List<String>> tempList = new ArrayList<>();
+        StringBuilder builder = new StringBuilder((int)Math.min(length, Integer.MAX_VALUE - 8L));
+        try ( LineTokenizer tokenizer = new LineTokenizer(filename) )
             {
-                while ( (line = reader.readLine()) != null )
+                while ( tokenizer.nextLine() )
                     {
-                        line               = line.trim();
-                        String[] fields    = line.split("\\s+");
-                        tempList.add(ImmutableList.copyOf(fields));
-                        builder.append(line);
+                        int fieldCount = tokenizer.fieldCount();
+                        if ( fieldCount == 0 )
+                            tempList.add(ImmutableList.of(""));
+                        else
+                            {
+                                String[] fields = new String[fieldCount];
+                                for (int i=0; i < fieldCount; i++)
+                                    fields[i] = tokenizer.getString(i);
+                                tempList.add(ImmutableList.copyOf(fields));
+                            }
+                        builder.append(tokenizer.getLine());
                         builder.append("\n");
                     }
             }
-        catch (Exception e)
-            {
-                throw new IllegalArgumentException(e.getMessage());
-                //e.printStackTrace();
-                //System.exit(1);
-            }
         stringRepresentation = builder.toString();
         fileContents = ImmutableList.copyOf(tempList);
     }
@@ -68,6 +81,8 @@ public abstract class OutputFileFormat implements FileFormat
      */
     public String toString() 
     {
+        if ( stringRepresentation == null )
+            return getClass().getSimpleName();
         return stringRepresentation;
     }
 
@@ -88,8 +103,8 @@ public abstract class OutputFileFormat implements FileFormat
             return false;
 
         OutputFileFormat o = (OutputFileFormat)obj;
-        if ( stringRepresentation.equals(o.stringRepresentation) &&
-             fileContents.equals(o.fileContents) )
+        if ( Objects.equals(stringRepresentation, o.stringRepresentation) &&
+             Objects.equals(fileContents, o.fileContents) )
             return true;
         return false;
     }
@@ -0,0 +1,249 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import com.google.common.collect.*;
+
+/**
+ * Runs catalysts through a series of stages at the same time, like an assembly line.<p>
+ * Each stage has its own fixed number of worker threads and reads from a bounded queue.  A catalyst moves
+ * to the next stage as soon as a stage is done with it, and a full queue makes the stage before it wait,
+ * so fast stages cannot run far ahead of slow ones.  When everything is busy, the total time approaches
+ * the time of the slowest stage rather than the sum of all of them.<p>
+ * A catalyst that fails in any stage is reported and dropped; the others carry on.  Each stage is timed
+ * with Metrics as pipeline.NAME.time, and its queue depth and failures are counted as pipeline.NAME.queue
+ * and pipeline.NAME.failures.
+ */
+public class Pipeline
+{
+    /** Marks the end of the stream in a queue. */
+    private static final Object END = new Object();
+
+    /**
+     * One step of the work.  Subclasses must be safe to call from several threads at once.
+     */
+    public abstract static class Stage
+    {
+        /** The name of the stage, used in messages and metrics. */
+        public final String name;
+
+        /** How many catalysts this stage works on at the same time. */
+        public final int concurrency;
+
+        public Stage(String name, int concurrency)
+        {
+            if ( concurrency < 1 )
+                throw new IllegalArgumentException("stage " + name + " needs at least one thread");
+            this.name = name;
+            this.concurrency = concurrency;
+        }
+
+        /**
+         * Does the work for one catalyst.
+         * @param catalyst the catalyst from the previous stage
+         * @return the catalyst to pass to the next stage, or null to drop it quietly
+         * @throws Exception if this catalyst cannot be processed
+         */
+        public abstract Catalyst process(Catalyst catalyst) throws Exception;
+    }
+
+    /** The stages, in order. */
+    public final List<Stage> stages;
+
+    /** How many catalysts can wait in front of each stage. */
+    public final int queueCapacity;
+
+    /**
+     * Creates a pipeline.
+     * @param stages the stages in order
+     * @param queueCapacity how many catalysts can wait in front of each stage
+     */
+    public Pipeline(List<Stage> stages, int queueCapacity)
+    {
+        if ( stages.size() == 0 )
+            throw new IllegalArgumentException("a pipeline needs at least one stage");
+        if ( queueCapacity < 1 )
+            throw new IllegalArgumentException("queue capacity must be positive");
+        this.stages = ImmutableList.copyOf(stages);
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Runs every catalyst from the source through all the stages.  The source is read on the calling
+     * thread.  If it throws, that catalyst is reported as failing in the "enumeration" stage.
+     * @param source the catalysts to process
+     * @return which catalysts finished and which failed
+     */
+    public Result run(Iterator<Catalyst> source)
+    {
+        long startTime = System.currentTimeMillis();
+        final List<String> completed = Collections.synchronizedList(new ArrayList<String>());
+        final Map<String,String> failures = new ConcurrentSkipListMap<>();
+
+        // queues.get(i) feeds stage i
+        final List<BlockingQueue<Object>> queues = new ArrayList<>();
+        for (int i=0; i < stages.size(); i++)
+            queues.add(new ArrayBlockingQueue<Object>(queueCapacity));
+
+        List<ExecutorService> executors = new ArrayList<>();
+        for (int i=0; i < stages.size(); i++)
+            {
+                final Stage stage = stages.get(i);
+                final BlockingQueue<Object> input = queues.get(i);
+                final BlockingQueue<Object> output = i < stages.size() - 1 ? queues.get(i+1) : null;
+                final int downstreamWorkers = i < stages.size() - 1 ? stages.get(i+1).concurrency : 0;
+                final AtomicInteger running = new AtomicInteger(stage.concurrency);
+                final Metrics.Timer timer = Metrics.timer("pipeline." + stage.name + ".time");
+                final Metrics.Counter depth = Metrics.counter("pipeline." + stage.name + ".queue");
+                final Metrics.Counter nextDepth = output == null ? null : Metrics.counter("pipeline." + stages.get(i+1).name + ".queue");
+
+                ExecutorService executor = Executors.newFixedThreadPool(stage.concurrency);
+                executors.add(executor);
+                for (int j=0; j < stage.concurrency; j++)
+                    {
+                        executor.submit(new Runnable()
+                            {
+                                public void run()
+                                {
+                                    try
+                                        {
+                                            while ( true )
+                                                {
+                                                    Object item = input.take();
+                                                    if ( item == END )
+                                                        break;
+                                                    depth.decrement();
+                                                    Catalyst c = (Catalyst)item;
+                                                    Catalyst result = null;
+                                                    long start = timer.start();
+                                                    try
+                                                        {
+                                                            result = stage.process(c);
+                                                        }
+                                                    catch (Throwable e)
+                                                        {
+                                                            // an Error would otherwise kill the worker and stall the stages around it
+                                                            System.out.println("Error in " + stage.name + " of " + c.name + "!");
+                                                            e.printStackTrace();
+                                                            failures.put(c.name, stage.name + ": " + e);
+                                                            Metrics.counter("pipeline." + stage.name + ".failures").increment();
+                                                            continue;
+                                                        }
+                                                    finally
+                                                        {
+                                                            timer.stop(start);
+                                                        }
+                                                    if ( result == null )
+                                                        continue;
+                                                    if ( output == null )
+                                                        completed.add(result.name);
+                                                    else
+                                                        {
+                                                            output.put(result);
+                                                            nextDepth.increment();
+                                                        }
+                                                }
+                                        }
+                                    catch (InterruptedException e)
+                                        {
+                                            Thread.currentThread().interrupt();
+                                        }
+                                    finally
+                                        {
+                                            // the last worker out tells every worker of the next stage to stop
+                                            if ( running.decrementAndGet() == 0 && output != null )
+                                                endStream(output, downstreamWorkers);
+                                        }
+                                }
+                            });
+                    }
+                executor.shutdown();
+            }
+
+        // feed the first stage, waiting whenever its queue is full
+        BlockingQueue<Object> first = queues.get(0);
+        Metrics.Counter firstDepth = Metrics.counter("pipeline." + stages.get(0).name + ".queue");
+        try
+            {
+                int failed = 0;
+                while ( source.hasNext() )
+                    {
+                        Catalyst c = null;
+                        try
+                            {
+                                c = source.next();
+                            }
+                        catch (RuntimeException e)
+                            {
+                                System.out.println("Error in enumeration!");
+                                e.printStackTrace();
+                                failures.put(String.format("enumeration #%d", ++failed), "enumeration: " + e);
+                                continue;
+                            }
+                        first.put(c);
+                        firstDepth.increment();
+                    }
+                endStream(first, stages.get(0).concurrency);
+
+                for (ExecutorService executor : executors)
+                    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            }
+        catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                for (ExecutorService executor : executors)
+                    executor.shutdownNow();
+            }
+        return new Result(completed, failures, System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * Puts one end marker in a queue for each worker that reads from it.
+     */
+    private static void endStream(BlockingQueue<Object> queue, int workers)
+    {
+        try
+            {
+                for (int i=0; i < workers; i++)
+                    queue.put(END);
+            }
+        catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+    }
+
+    /**
+     * What happened to the catalysts in a run.  This class is immutable.
+     */
+    public static class Result implements Immutable
+    {
+        /** The names of the catalysts that made it through every stage, in the order they finished. */
+        public final List<String> completed;
+
+        /** The names of the catalysts that failed, with the stage and the error. */
+        public final Map<String,String> failures;
+
+        /** How long the run took in milliseconds. */
+        public final long elapsedTime;
+
+        public Result(List<String> completed, Map<String,String> failures, long elapsedTime)
+        {
+            synchronized (completed)
+                {
+                    this.completed = ImmutableList.copyOf(completed);
+                }
+            this.failures = ImmutableMap.copyOf(failures);
+            this.elapsedTime = elapsedTime;
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder builder = new StringBuilder();
+            builder.append(String.format("%d catalysts completed and %d failed in %.1f s.\n", completed.size(), failures.size(), elapsedTime / 1000.0));
+            for (Map.Entry<String,String> entry : failures.entrySet())
+                builder.append("  ").append(entry.getKey()).append(" failed in ").append(entry.getValue()).append('\n');
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,13 @@
+# for linux
+# run from the main working directory, which must be on a filesystem shared by every node
+# each copy compiles into its own folder, so workers on other nodes are not disturbed
+classes=`mktemp -d`
+javac -Xlint:all -Xmaxerrs 5 -cp .:lib/* -d $classes WorkQueue.java
+
+
+if [ $? -eq 0 ]; then
+    echo Compiled.
+    java -Xmx4g -XX:ParallelGCThreads=8 -cp $classes:.:lib/* WorkQueue queue "$@"
+fi
+
+rm -rf $classes
@@ -0,0 +1,469 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Calculates RMSDs between all pairs of conformations in an ensemble.  Conformations are given as packed,
+ * centered coordinates (see ConformerClustering.getCoordinates()) and are compared with the quaternion
+ * method in Superposition, so no molecules are created.<p>
+ * In the dense mode, the upper triangle is split into square tiles that are computed in parallel on a
+ * ForkJoinPool shared with ConformerClustering.  The results are stored as floats, in memory for small ensembles and in a memory-mapped
+ * file for large ones.  In the sparse mode, only pairs closer than a threshold are kept, and pairs that
+ * cannot be that close are skipped by the triangle inequality on distances to a few reference conformations.
+ */
+public class RMSDMatrix implements Closeable
+{
+    /** The upper triangle is computed in square tiles of this size. */
+    private static final int TILE_SIZE = 64;
+
+    /** Triangles with more than this many elements are stored on disk. */
+    private static final long IN_MEMORY_LIMIT = 1L << 26;
+
+    /** Each memory-mapped chunk holds this many floats. */
+    private static final int CHUNK_SIZE = 1 << 28;
+
+    /** The number of reference conformations used for pruning in the sparse mode. */
+    private static final int REFERENCES = 16;
+
+    /** The number of conformations. */
+    public final int size;
+
+    /** The upper triangle, if it is stored in memory. */
+    private final float[] array;
+
+    /** The upper triangle, if it is memory-mapped. */
+    private final FloatBuffer[] chunks;
+
+    /** The file backing the mapped triangle, or null. */
+    public final String filename;
+
+    /** Whether the file was made by this matrix and should be deleted by close(). */
+    private final boolean temporary;
+
+    /**
+     * Computes all the pairwise RMSDs.
+     * @param coordinates the centered coordinates of each conformation
+     * @param filename where to store the matrix if it is too large for memory; if null, a temporary file is used
+     */
+    public RMSDMatrix(final List<double[]> coordinates, String filename)
+    {
+        size = coordinates.size();
+        long length = (long)size * (size - 1) / 2L;
+        if ( length <= IN_MEMORY_LIMIT )
+            {
+                array = new float[(int)length];
+                chunks = null;
+                this.filename = null;
+                temporary = false;
+            }
+        else
+            {
+                array = null;
+                temporary = filename == null;
+                try
+                    {
+                        if ( filename == null )
+                            {
+                                File temporaryFile = File.createTempFile("rmsd", ".dat");
+                                temporaryFile.deleteOnExit();
+                                filename = temporaryFile.getPath();
+                            }
+                        this.filename = filename;
+                        chunks = map(filename, length);
+                    }
+                catch (IOException e)
+                    {
+                        throw new IllegalArgumentException("error mapping RMSD matrix: " + e.getMessage());
+                    }
+            }
+
+        final double[] innerProducts = new double[size];
+        for (int i=0; i < size; i++)
+            innerProducts[i] = Superposition.getInnerProduct(coordinates.get(i));
+
+        // make one task per tile on or above the diagonal
+        final List<RecursiveAction> tiles = new ArrayList<>();
+        for (int rowStart = 0; rowStart < size; rowStart += TILE_SIZE)
+            for (int columnStart = rowStart; columnStart < size; columnStart += TILE_SIZE)
+                {
+                    final int rowFrom = rowStart, columnFrom = columnStart;
+                    final int rowTo = Math.min(size, rowStart + TILE_SIZE);
+                    final int columnTo = Math.min(size, columnStart + TILE_SIZE);
+                    tiles.add(new RecursiveAction()
+                        {
+                            private static final long serialVersionUID = 1L;
+
+                            @Override
+                            protected void compute()
+                            {
+                                for (int i=rowFrom; i < rowTo; i++)
+                                    for (int j=Math.max(columnFrom, i+1); j < columnTo; j++)
+                                        set(i, j, Superposition.calculateCenteredRMSD(coordinates.get(i), coordinates.get(j),
+                                                                                      innerProducts[i], innerProducts[j], null));
+                            }
+                        });
+                }
+        ConformerClustering.POOL.invoke(new RecursiveAction()
+            {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute()
+                {
+                    invokeAll(tiles);
+                }
+            });
+    }
+
+    /**
+     * Maps a file large enough for the triangle in chunks.
+     */
+    private static FloatBuffer[] map(String filename, long length) throws IOException
+    {
+        int numberOfChunks = (int)( ( length + CHUNK_SIZE - 1 ) / CHUNK_SIZE );
+        FloatBuffer[] chunks = new FloatBuffer[numberOfChunks];
+        try ( RandomAccessFile file = new RandomAccessFile(filename, "rw") )
+            {
+                file.setLength(4L * length);
+                FileChannel channel = file.getChannel();
+                for (int i=0; i < numberOfChunks; i++)
+                    {
+                        long start = (long)i * CHUNK_SIZE;
+                        long floats = Math.min(CHUNK_SIZE, length - start);
+                        chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, 4L * start, 4L * floats).asFloatBuffer();
+                    }
+            }
+        return chunks;
+    }
+
+    /**
+     * Returns the position of element (i, j) in the upper triangle, where i < j.
+     */
+    private long getIndex(int i, int j)
+    {
+        return (long)i * ( 2L * size - i - 1 ) / 2L + ( j - i - 1 );
+    }
+
+    /**
+     * Stores an element of the upper triangle.  Distinct elements may be set from different threads.
+     */
+    private void set(int i, int j, double value)
+    {
+        long index = getIndex(i, j);
+        if ( array != null )
+            array[(int)index] = (float)value;
+        else
+            chunks[(int)(index / CHUNK_SIZE)].put((int)(index % CHUNK_SIZE), (float)value);
+    }
+
+    /**
+     * Returns the RMSD between two conformations.
+     * @param i the index of one conformation
+     * @param j the index of another conformation
+     * @return the RMSD in angstroms, to float precision
+     */
+    public double get(int i, int j)
+    {
+        if ( i < 0 || j < 0 || i >= size || j >= size )
+            throw new IndexOutOfBoundsException(String.format("(%d, %d) requested from a matrix of size %d", i, j, size));
+        if ( i == j )
+            return 0.0;
+        if ( i > j )
+            return get(j, i);
+        long index = getIndex(i, j);
+        if ( array != null )
+            return array[(int)index];
+        return chunks[(int)(index / CHUNK_SIZE)].get((int)(index % CHUNK_SIZE));
+    }
+
+    /**
+     * Returns the number of conformations.
+     * @return the number of rows in the matrix
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Drops the mapped chunks and deletes the file if it is temporary.  Java cannot unmap a file, so the
+     * memory and disk space are only given back when the chunks are garbage collected.  The matrix cannot
+     * be used afterwards.
+     */
+    public void close()
+    {
+        if ( chunks != null )
+            Arrays.fill(chunks, null);
+        if ( temporary )
+            new File(filename).delete();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("RMSDMatrix (%d conformations, %s)", size, array != null ? "in memory" : filename);
+    }
+
+    /**
+     * Finds all pairs of conformations whose RMSD is below a threshold without computing the whole matrix.
+     * RMSD after optimal superposition is a metric, so |d(r,i) - d(r,j)| <= d(i,j) for any reference
+     * conformation r.  The conformations are sorted by their distance to the first reference, so for each
+     * conformation only a window of the sorted list has to be examined, and the other references rule out
+     * most of the pairs in the window.
+     * @param coordinates the centered coordinates of each conformation
+     * @param threshold pairs with an RMSD less than this are neighbors
+     * @return the neighbors of each conformation
+     */
+    public static Neighbors findNeighbors(final List<double[]> coordinates, final double threshold)
+    {
+        final int size = coordinates.size();
+        final double[] innerProducts = new double[size];
+        for (int i=0; i < size; i++)
+            innerProducts[i] = Superposition.getInnerProduct(coordinates.get(i));
+
+        // pick references that are far apart: each one is the conformation farthest from the previous ones
+        final int numberOfReferences = Math.min(REFERENCES, size);
+        final double[][] referenceDistances = new double[numberOfReferences][size];
+        double[] closestReference = new double[size];
+        Arrays.fill(closestReference, Double.POSITIVE_INFINITY);
+        int reference = 0;
+        for (int r=0; r < numberOfReferences; r++)
+            {
+                int next = 0;
+                for (int i=0; i < size; i++)
+                    {
+                        referenceDistances[r][i] = Superposition.calculateCenteredRMSD(coordinates.get(reference), coordinates.get(i),
+                                                                                      innerProducts[reference], innerProducts[i], null);
+                        closestReference[i] = Math.min(closestReference[i], referenceDistances[r][i]);
+                        if ( closestReference[i] > closestReference[next] )
+                            next = i;
+                    }
+                reference = next;
+            }
+
+        // sort by distance to the first reference
+        Integer[] boxed = new Integer[size];
+        for (int i=0; i < size; i++)
+            boxed[i] = i;
+        Arrays.sort(boxed, new Comparator<Integer>()
+            {
+                public int compare(Integer i1, Integer i2)
+                {
+                    return Double.compare(referenceDistances[0][i1], referenceDistances[0][i2]);
+                }
+            });
+        final int[] sorted = new int[size];
+        for (int i=0; i < size; i++)
+            sorted[i] = boxed[i];
+
+        // for each conformation, find its neighbors later in the sorted order
+        final int[][] forwardNeighbors = new int[size][];
+        final float[][] forwardDistances = new float[size][];
+        final long[] calculations = new long[size];
+        ConformerClustering.POOL.invoke(new NeighborSearch(0, size)
+            {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void search(int position)
+                {
+                    int i = sorted[position];
+                    List<Integer> neighbors = new ArrayList<>();
+                    List<Float> distances = new ArrayList<>();
+                    for (int p = position + 1; p < size; p++)
+                        {
+                            int j = sorted[p];
+                            if ( referenceDistances[0][j] - referenceDistances[0][i] >= threshold )
+                                break;
+                            boolean excluded = false;
+                            for (int r=1; r < numberOfReferences && !excluded; r++)
+                                excluded = Math.abs(referenceDistances[r][i] - referenceDistances[r][j]) >= threshold;
+                            if ( excluded )
+                                continue;
+                            calculations[i]++;
+                            double RMSD = Superposition.calculateCenteredRMSD(coordinates.get(i), coordinates.get(j),
+                                                                             innerProducts[i], innerProducts[j], null);
+                            if ( RMSD < threshold )
+                                {
+                                    neighbors.add(j);
+                                    distances.add((float)RMSD);
+                                }
+                        }
+                    forwardNeighbors[i] = new int[neighbors.size()];
+                    forwardDistances[i] = new float[neighbors.size()];
+                    for (int k=0; k < neighbors.size(); k++)
+                        {
+                            forwardNeighbors[i][k] = neighbors.get(k);
+                            forwardDistances[i][k] = distances.get(k);
+                        }
+                }
+            });
+
+        // make the lists symmetric
+        long totalCalculations = (long)numberOfReferences * size;
+        int[] counts = new int[size];
+        for (int i=0; i < size; i++)
+            {
+                totalCalculations += calculations[i];
+                counts[i] += forwardNeighbors[i].length;
+                for (int j : forwardNeighbors[i])
+                    counts[j]++;
+            }
+        int[][] neighbors = new int[size][];
+        float[][] distances = new float[size][];
+        for (int i=0; i < size; i++)
+            {
+                neighbors[i] = new int[counts[i]];
+                distances[i] = new float[counts[i]];
+                counts[i] = 0;
+            }
+        for (int i=0; i < size; i++)
+            for (int k=0; k < forwardNeighbors[i].length; k++)
+                {
+                    int j = forwardNeighbors[i][k];
+                    float d = forwardDistances[i][k];
+                    neighbors[i][counts[i]] = j;
+                    distances[i][counts[i]++] = d;
+                    neighbors[j][counts[j]] = i;
+                    distances[j][counts[j]++] = d;
+                }
+        return new Neighbors(threshold, neighbors, distances, totalCalculations);
+    }
+
+    /**
+     * Visits a range of positions in parallel.
+     */
+    private abstract static class NeighborSearch extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        /** Ranges smaller than this are searched serially. */
+        private static final int GRAIN = 16;
+
+        private final int from;
+        private final int to;
+
+        public NeighborSearch(int from, int to)
+        {
+            this.from = from;
+            this.to = to;
+        }
+
+        /** Searches for the neighbors of the conformation at the specified position. */
+        protected abstract void search(int position);
+
+        @Override
+        protected void compute()
+        {
+            if ( to - from <= GRAIN )
+                {
+                    for (int position = from; position < to; position++)
+                        search(position);
+                    return;
+                }
+            final int middle = (from + to) >>> 1;
+            final NeighborSearch parent = this;
+            invokeAll(new NeighborSearch(from, middle)
+                {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected void search(int position)
+                    {
+                        parent.search(position);
+                    }
+                },
+                new NeighborSearch(middle, to)
+                {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected void search(int position)
+                    {
+                        parent.search(position);
+                    }
+                });
+        }
+    }
+
+    /**
+     * The pairs of conformations that are closer than a threshold.  This class is immutable.
+     */
+    public static class Neighbors implements Immutable
+    {
+        /** Neighbors are closer than this RMSD. */
+        public final double threshold;
+
+        /** The number of superpositions that were performed. */
+        public final long calculations;
+
+        private final int[][] neighbors;
+        private final float[][] distances;
+
+        public Neighbors(double threshold, int[][] neighbors, float[][] distances, long calculations)
+        {
+            this.threshold = threshold;
+            this.neighbors = neighbors;
+            this.distances = distances;
+            this.calculations = calculations;
+        }
+
+        /**
+         * Returns the neighbors of a conformation.
+         * @param i the index of the conformation
+         * @return the indices of the conformations within the threshold
+         */
+        public int[] getNeighbors(int i)
+        {
+            return neighbors[i].clone();
+        }
+
+        /**
+         * Returns the RMSDs to the neighbors of a conformation, in the same order as getNeighbors(i).
+         * @param i the index of the conformation
+         * @return the RMSDs in angstroms
+         */
+        public float[] getDistances(int i)
+        {
+            return distances[i].clone();
+        }
+
+        @Override
+        public String toString()
+        {
+            long pairs = 0L;
+            for (int[] list : neighbors)
+                pairs += list.length;
+            return String.format("%d pairs within %.2f A among %d conformations (%d superpositions)",
+                                 pairs / 2L, threshold, neighbors.length, calculations);
+        }
+    }
+
+    /** for testing */
+    public static void main(String[] args)
+    {
+        try ( ConformerArchive archive = new ConformerArchive(args[0]) )
+            {
+                List<Integer> heavyAtomNumbers = new ArrayList<>();
+                for (int i=0; i < archive.elements.size(); i++)
+                    if ( archive.elements.get(i) != Element.HYDROGEN && archive.elements.get(i) != Element.DUMMY )
+                        heavyAtomNumbers.add(i+1);
+                ConformerClustering clustering = new ConformerClustering(heavyAtomNumbers);
+                List<double[]> coordinates = new ArrayList<>(archive.size());
+                for (int i=0; i < archive.size(); i++)
+                    coordinates.add(clustering.getCoordinates(archive.getGeometry(i)));
+                System.out.println(findNeighbors(coordinates, clustering.threshold));
+                try ( RMSDMatrix matrix = new RMSDMatrix(coordinates, null) )
+                    {
+                        double sum = 0.0;
+                        for (int i=0; i < matrix.size(); i++)
+                            for (int j=i+1; j < matrix.size(); j++)
+                                sum += matrix.get(i, j);
+                        System.out.println(matrix);
+                        System.out.println(String.format("mean pairwise RMSD: %.3f", sum / ( matrix.size() * ( matrix.size() - 1.0 ) / 2.0 )));
+                    }
+            }
+    }
+}
@@ -9,20 +9,14 @@
 wait
 
 # set up minimization on results
+# the compressed files are read directly, so they are not unpacked
 cd ../output/$1
-mv $1-csearch.maegz $1-csearch.gz
-gunzip $1-csearch.gz
-mv $1-csearch $1-csearch.mae
-
-inputName=$1"-csearch.mae"
+inputName=$1"-csearch.maegz"
 outputName=$1"-csearch-min.maegz"
 sed 1s/.*/"$inputName"/ ../../multimini.com | sed 2s/.*/"$outputName"/ > $1-csearch-min.com
 
 # run minimizations
 /n/sw/schrodinger/macromodel -LOCAL -WAIT $1-csearch-min.com
-mv $1-csearch-min.maegz $1-csearch-min.gz
-gunzip $1-csearch-min.gz
-mv $1-csearch-min $1-csearch-min.mae
 rm -f $1-csearch-min.com
 rm -f $1-csearch-min.log
 rm -f *mon.maegz
@@ -0,0 +1,321 @@
+import java.util.*;
+import com.google.common.primitives.*;
+import org.apache.commons.math3.geometry.euclidean.threed.*;
+
+/**
+ * Draws a fixed number of distinct sequences from a template, for libraries too big to enumerate.<p>
+ * In UNIFORM mode every sequence is equally likely.  In STRATIFIED mode each slot goes through a random
+ * permutation of its fragments before repeating any, so every fragment appears about equally often even
+ * in a small sample.  No sequence is drawn twice, and sequences that the manifest lists as done are
+ * skipped without counting against the budget.  The same seed gives the same sequences.<p>
+ * In adaptive mode, feedback() is called with each cyclized catalyst.  A catalyst that closes to within
+ * SAMPLING_CLOSURE_TOLERANCE of a bond earns its fragments a reward of exp(-(E - E_best)/SAMPLING_ENERGY_SCALE),
+ * where E_best is the lowest energy seen so far, and one that does not close earns nothing.  Each fragment
+ * is then weighted by its average reward, starting from an optimistic 1 so that untried fragments are
+ * still tried.  With probability SAMPLING_EXPLORATION a slot is drawn as in the non-adaptive mode instead.
+ * Because feedback arrives as cyclizations finish, adaptive samples are only reproducible with one
+ * cyclization thread.
+ */
+public class SequenceSampler implements Iterator<Catalyst>
+{
+    /** How the fragments for each slot are chosen. */
+    public enum Mode
+    {
+        UNIFORM, STRATIFIED;
+    }
+
+    /** Give up if this many draws in a row are duplicates or already done. */
+    private static final int MAX_REJECTIONS = 10000;
+
+    /** The template. */
+    public final Macrocycle_Draw.Template template;
+
+    /** How many sequences to draw. */
+    public final int budget;
+
+    /** How the fragments are chosen when not adapting. */
+    public final Mode mode;
+
+    /** Whether to favor fragments that have done well. */
+    public final boolean adaptive;
+
+    /** The random seed. */
+    public final long seed;
+
+    /** How many sequences the template has, or Long.MAX_VALUE if there are more than that. */
+    public final long total;
+
+    /** Done sequences are skipped, or null to skip none. */
+    private final Manifest manifest;
+
+    private final Random random;
+
+    /** The fragments allowed in each slot. */
+    private final List<List<Fragment>> choices = new ArrayList<>();
+
+    /** The fragment indices of the sequences drawn so far. */
+    private final Set<List<Integer>> drawn = new HashSet<>();
+
+    /** In STRATIFIED mode, the shuffled fragment indices of each slot and how many have been used. */
+    private final int[][] permutations;
+    private final int[] used;
+
+    /** In adaptive mode, the number of catalysts and the total reward of each fragment in each slot. */
+    private final int[][] counts;
+    private final double[][] rewards;
+
+    /** The lowest energy of any catalyst that closed. */
+    private double bestEnergy = Double.POSITIVE_INFINITY;
+
+    /** The fragment indices of the catalysts that have been handed out, by name. */
+    private final Map<String,int[]> issued = new HashMap<>();
+
+    /** The indices of the next sequence, or null if there are no more. */
+    private int[] next = null;
+
+    /** How many sequences have been handed out. */
+    private int count = 0;
+
+    /**
+     * Creates a sampler.
+     * @param template the fragment types to join
+     * @param budget how many sequences to draw
+     * @param mode how to choose fragments
+     * @param adaptive whether to favor fragments that have done well
+     * @param seed the random seed
+     * @param manifest sequences that are done in this manifest are skipped, or null to skip none
+     */
+    public SequenceSampler(Macrocycle_Draw.Template template, int budget, Mode mode, boolean adaptive, long seed, Manifest manifest)
+    {
+        if ( budget < 1 )
+            throw new IllegalArgumentException("budget must be positive");
+        this.template = template;
+        this.budget = budget;
+        this.mode = mode;
+        this.adaptive = adaptive;
+        this.seed = seed;
+        this.manifest = manifest;
+        this.random = new Random(seed);
+
+        long product = 1L;
+        for (FragmentType t : template.types)
+            {
+                List<Fragment> fragments = FragmentLibrary.DATABASE.get(t);
+                if ( fragments == null || fragments.size() == 0 )
+                    throw new IllegalArgumentException("DATABASE contains no " + t);
+                choices.add(fragments);
+                product = product > Long.MAX_VALUE / fragments.size() ? Long.MAX_VALUE : product * fragments.size();
+            }
+        total = product;
+
+        int slots = choices.size();
+        permutations = new int[slots][];
+        used = new int[slots];
+        counts = new int[slots][];
+        rewards = new double[slots][];
+        for (int i=0; i < slots; i++)
+            {
+                int n = choices.get(i).size();
+                permutations[i] = new int[n];
+                for (int j=0; j < n; j++)
+                    permutations[i][j] = j;
+                used[i] = n;
+                counts[i] = new int[n];
+                rewards[i] = new double[n];
+            }
+        next = draw();
+    }
+
+    public synchronized boolean hasNext()
+    {
+        return next != null;
+    }
+
+    public Catalyst next()
+    {
+        int[] indices = null;
+        synchronized (this)
+            {
+                if ( next == null )
+                    throw new NoSuchElementException();
+                indices = next;
+                count++;
+                next = count < budget ? draw() : null;
+            }
+
+        List<List<Fragment>> sequence = new ArrayList<>();
+        for (int i=0; i < indices.length; i++)
+            sequence.add(Collections.singletonList(choices.get(i).get(indices[i])));
+        Catalyst c = FragmentLibrary.enumerateProduct(sequence, template.C2).next();
+        synchronized (this)
+            {
+                issued.put(c.name, indices);
+            }
+        return c;
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException("catalysts cannot be removed");
+    }
+
+    /**
+     * Draws a sequence that has not been drawn or made before.
+     * @return the fragment index for each slot, or null if none could be found
+     */
+    private int[] draw()
+    {
+        for (int attempt=0; attempt < MAX_REJECTIONS; attempt++)
+            {
+                // every sequence has been drawn
+                if ( drawn.size() >= total )
+                    return null;
+                int[] indices = new int[choices.size()];
+                for (int i=0; i < indices.length; i++)
+                    indices[i] = adaptive && random.nextDouble() >= Settings.SAMPLING_EXPLORATION ? drawWeighted(i) : drawBase(i);
+                if ( ! drawn.add(Ints.asList(indices.clone())) )
+                    continue;
+                if ( manifest != null && manifest.isDone(template, getFragments(indices)) )
+                    continue;
+                return indices;
+            }
+        System.out.println("Stopped sampling after " + MAX_REJECTIONS + " draws in a row found nothing new.");
+        return null;
+    }
+
+    /**
+     * Draws a fragment for a slot uniformly or from the slot's permutation.
+     */
+    private int drawBase(int slot)
+    {
+        int n = permutations[slot].length;
+        if ( mode == Mode.UNIFORM )
+            return random.nextInt(n);
+
+        // start a new permutation when the last one is used up
+        if ( used[slot] == n )
+            {
+                int[] p = permutations[slot];
+                for (int i=n-1; i > 0; i--)
+                    {
+                        int j = random.nextInt(i+1);
+                        int temp = p[i];
+                        p[i] = p[j];
+                        p[j] = temp;
+                    }
+                used[slot] = 0;
+            }
+        return permutations[slot][used[slot]++];
+    }
+
+    /**
+     * Draws a fragment for a slot in proportion to its average reward.
+     */
+    private int drawWeighted(int slot)
+    {
+        double[] weights = getWeights(slot);
+        double sum = 0.0;
+        for (double w : weights)
+            sum += w;
+        double x = random.nextDouble() * sum;
+        for (int j=0; j < weights.length; j++)
+            {
+                x -= weights[j];
+                if ( x < 0.0 )
+                    return j;
+            }
+        return weights.length - 1;
+    }
+
+    /**
+     * Returns the weight of each fragment in a slot: the average reward, counting an optimistic reward of 1
+     * before any feedback.
+     */
+    private double[] getWeights(int slot)
+    {
+        double[] weights = new double[counts[slot].length];
+        for (int j=0; j < weights.length; j++)
+            weights[j] = (1.0 + rewards[slot][j]) / (1.0 + counts[slot][j]);
+        return weights;
+    }
+
+    /**
+     * Returns the whole sequence for some fragment indices, including the second half of a C2 catalyst.
+     */
+    private List<Fragment> getFragments(int[] indices)
+    {
+        List<Fragment> fragments = new ArrayList<>();
+        for (int i=0; i < indices.length; i++)
+            fragments.add(choices.get(i).get(indices[i]));
+        if ( template.C2 )
+            fragments.addAll(new ArrayList<>(fragments));
+        return fragments;
+    }
+
+    /**
+     * Tells the sampler how a catalyst it handed out cyclized.  This does nothing unless the sampler is adaptive.
+     * @param cyclized the cyclized catalyst
+     */
+    public void feedback(Catalyst cyclized)
+    {
+        if ( ! adaptive )
+            return;
+        Vector3D left = cyclized.getLeftConnect().position;
+        Vector3D right = cyclized.getRightConnect().position;
+        boolean closed = Vector3D.distance(left, right) - MonteCarlo.BOND_LENGTH <= Settings.SAMPLING_CLOSURE_TOLERANCE;
+        double energy = closed ? cyclized.getOPLSenergy() : Double.NaN;
+
+        synchronized (this)
+            {
+                int[] indices = issued.remove(cyclized.name);
+                if ( indices == null )
+                    return;
+                double reward = 0.0;
+                if ( closed )
+                    {
+                        bestEnergy = Math.min(bestEnergy, energy);
+                        reward = Math.exp(-(energy - bestEnergy) / Settings.SAMPLING_ENERGY_SCALE);
+                    }
+                for (int i=0; i < indices.length; i++)
+                    {
+                        counts[i][indices[i]]++;
+                        rewards[i][indices[i]] += reward;
+                    }
+            }
+    }
+
+    /**
+     * Returns the weight of every fragment in every slot, best first.
+     * @return a human-readable table
+     */
+    public synchronized String getReport()
+    {
+        StringBuilder builder = new StringBuilder();
+        for (int i=0; i < choices.size(); i++)
+            {
+                final double[] weights = getWeights(i);
+                List<Integer> order = new ArrayList<>();
+                for (int j=0; j < weights.length; j++)
+                    order.add(j);
+                Collections.sort(order, new Comparator<Integer>()
+                    {
+                        public int compare(Integer j1, Integer j2)
+                        {
+                            return Double.compare(weights[j2], weights[j1]);
+                        }
+                    });
+                builder.append(String.format("slot %d (%s):", i + 1, template.types.get(i)));
+                for (int j : order)
+                    builder.append(String.format("  %s %.3f (%d)", choices.get(i).get(j).name, weights[j], counts[i][j]));
+                builder.append('\n');
+            }
+        return builder.toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("Sampling %d of %s sequences of %s (%s%s, seed %d).", budget, total == Long.MAX_VALUE ? "more than " + Long.MAX_VALUE : String.valueOf(total),
+                             Manifest.getTemplateKey(template), mode.toString().toLowerCase(), adaptive ? ", adaptive" : "", seed);
+    }
+}
@@ -26,6 +26,15 @@ public class Settings implements Immutable, Singleton
         /** input file directory */
         public static final String INPUT_DIRECTORY;
 
+        /** the list of fragment sequences that have already been made */
+        public static final String MANIFEST_FILENAME;
+
+        /** the torsion angles of catalysts that have cyclized, for warm starts */
+        public static final String CYCLIZATION_CACHE_FILENAME;
+
+        /** the learned dihedral angle distributions of the fragments (see TorsionPriors) */
+        public static final String TORSION_PRIORS_FILENAME;
+
         /** the main class name */
         public static final String MAIN_CLASS;
 
@@ -73,6 +82,123 @@ public class Settings implements Immutable, Singleton
         /** cutoff distance for calculating steric energies */
         public static final double CUTOFF_DISTANCE = 6.0;
 
+    // Analysis Parameters
+
+        /** conformations closer than this heavy-atom RMSD in angstroms are considered duplicates */
+        public static final double CLUSTERING_RMSD_THRESHOLD = 0.5;
+
+        /** duplicates must be within this many kcal/mol of the conformation they duplicate */
+        public static final double CLUSTERING_ENERGY_WINDOW = 1.0;
+
+    // Conformational Search Parameters
+
+        /** number of Monte Carlo multiple-minimum steps per catalyst */
+        public static final int SEARCH_STEPS = 2000;
+
+        /** at most this many torsions are changed by a random amount in each step */
+        public static final int SEARCH_MAX_TORSIONS_PER_STEP = 3;
+
+        /** maximum number of L-BFGS iterations when minimizing in torsion space */
+        public static final int MINIMIZATION_MAX_ITERATIONS = 500;
+
+        /** torsion-space minimizations stop when the RMS gradient falls below this, in energy per radian */
+        public static final double MINIMIZATION_GRADIENT_TOLERANCE = 1.0E-4;
+
+        /** force constant of the ring closure restraints, in energy per square angstrom */
+        public static final double SEARCH_RESTRAINT_FORCE_CONSTANT = 100.0;
+
+        /** conformations more than this far above the global minimum are discarded */
+        public static final double SEARCH_ENERGY_WINDOW = 1.0;
+
+    // Pipeline Parameters
+
+        /** how many catalysts can wait in front of each stage of the main program */
+        public static final int PIPELINE_QUEUE_CAPACITY = 8;
+
+        /** how many MacroModel minimizations can run at once (limited by licenses) */
+        public static final int PIPELINE_MINIMIZATION_JOBS = 4;
+
+        /** how many threads write .com files */
+        public static final int PIPELINE_WRITER_THREADS = 2;
+
+    // Work Queue Parameters
+
+        /** how often a worker rewrites the leases of its jobs, in seconds */
+        public static final long WORK_QUEUE_HEARTBEAT_PERIOD = 30;
+
+        /** a job is given to another worker if its lease has not changed for this many seconds */
+        public static final long WORK_QUEUE_LEASE_TIMEOUT = 300;
+
+        /** how long an idle worker waits before looking for new jobs, in seconds */
+        public static final long WORK_QUEUE_POLL_PERIOD = 10;
+
+        /** a job that has been abandoned this many times is marked as failed */
+        public static final int WORK_QUEUE_MAX_ATTEMPTS = 3;
+
+    // Cyclization Cache Parameters
+
+        /** whether to start each cyclization from the closest catalyst that has already cyclized */
+        public static final boolean CYCLIZATION_CACHE = true;
+
+        /** the starting temperature of warm-started cyclizations; MonteCarlo.KT is a cold start */
+        public static final double CYCLIZATION_CACHE_TEMPERATURE = 0.5;
+
+        /** only catalysts whose ends are within this many angstroms of a bond length are cached */
+        public static final double CYCLIZATION_CACHE_CLOSURE_TOLERANCE = 1.0;
+
+    // Torsion Prior Parameters
+
+        /** whether cyclization proposes jumps to the angles in TORSION_PRIORS_FILENAME */
+        public static final boolean TORSION_PRIORS = true;
+
+        /** the chance that a cyclization step jumps one torsion to an angle drawn from its prior */
+        public static final double TORSION_PRIOR_JUMP_PROBABILITY = 0.3;
+
+        /** the weight of the uniform distribution in the proposal density */
+        public static final double TORSION_PRIOR_UNIFORM_WEIGHT = 0.2;
+
+        /** the width of the histogram bins when building priors, in degrees (must divide 360) */
+        public static final int TORSION_PRIOR_BIN_WIDTH = 10;
+
+    // Sampling Parameters
+
+        /** the default random seed for sampling sequences */
+        public static final long SAMPLING_SEED = 1L;
+
+        /** in adaptive sampling, the chance of choosing a fragment without regard to how well it has done */
+        public static final double SAMPLING_EXPLORATION = 0.2;
+
+        /** a cyclized catalyst has closed if its ends are within this many angstroms of a bond length */
+        public static final double SAMPLING_CLOSURE_TOLERANCE = 1.0;
+
+        /** the reward for a closed catalyst falls by a factor of e for every this much energy above the best one */
+        public static final double SAMPLING_ENERGY_SCALE = 10.0;
+
+    // Daemon Parameters
+
+        /** the local port that the daemon listens on */
+        public static final int DAEMON_PORT = 7433;
+
+        /** the file in the main working directory that holds the daemon's token; only its owner can read it */
+        public static final String DAEMON_TOKEN_FILENAME = "daemon_token";
+
+        /** how long the daemon waits for a client to send its token and request, in seconds */
+        public static final int DAEMON_READ_TIMEOUT = 10;
+
+        /** how many clients the daemon talks to at once; more are turned away */
+        public static final int DAEMON_MAX_CLIENTS = 16;
+
+    // Metrics
+
+        /** seconds between snapshots of the metrics in the CSV report */
+        public static final long METRICS_REPORTING_PERIOD = 60;
+
+        /** whether to record every Monte Carlo cyclization step; "java MonteCarlo$Trace FILE" prints one as CSV */
+        public static final boolean MONTE_CARLO_TRACES = false;
+
+        /** where Monte Carlo traces are written */
+        public static final String MONTE_CARLO_TRACE_DIRECTORY;
+
         /** static initializer */
         //System.out.println(String.format("Mandor hostname is %s (%d cores available).", HOSTNAME, NUMBER_OF_THREADS));
     
@@ -83,7 +209,18 @@ public class Settings implements Immutable, Singleton
         String temp = "";
 
         // set hostname
-        try { temp = java.net.InetAddress.getLocalHost().getHostName(); } catch (Exception e) {}
+        // InetAddress.getLocalHost() asks DNS and can block for seconds on the cluster nodes,
+        // so the environment and the kernel are asked first
+        temp = System.getenv("HOSTNAME");
+        if ( temp == null || temp.length() == 0 )
+            {
+                try { temp = new String(java.nio.file.Files.readAllBytes(java.nio.file.Paths.get("/proc/sys/kernel/hostname"))).trim(); }
+                catch (Exception e) { temp = ""; }
+            }
+        if ( temp.length() == 0 )
+            {
+                try { temp = java.net.InetAddress.getLocalHost().getHostName(); } catch (Exception e) {}
+            }
         FULL_HOSTNAME = temp;
 
         if ( FULL_HOSTNAME.length() > 0 )
@@ -125,6 +262,30 @@ public class Settings implements Immutable, Singleton
             temp = temp.replace("/","\\");
         INPUT_DIRECTORY = temp;
 
+        // for the manifest
+        temp = WORKING_DIRECTORY + "output/manifest";
+        if ( PLATFORM == Platform.DOS )
+            temp = temp.replace("/","\\");
+        MANIFEST_FILENAME = temp;
+
+        // for the cyclization cache
+        temp = WORKING_DIRECTORY + "output/cyclization_cache";
+        if ( PLATFORM == Platform.DOS )
+            temp = temp.replace("/","\\");
+        CYCLIZATION_CACHE_FILENAME = temp;
+
+        // for the torsion priors, which are kept with the fragments
+        temp = INPUT_DIRECTORY + "torsion_priors";
+        if ( PLATFORM == Platform.DOS )
+            temp = temp.replace("/","\\");
+        TORSION_PRIORS_FILENAME = temp;
+
+        // for Monte Carlo traces
+        temp = WORKING_DIRECTORY + "output/traces/";
+        if ( PLATFORM == Platform.DOS )
+            temp = temp.replace("/","\\");
+        MONTE_CARLO_TRACE_DIRECTORY = temp;
+
         // for TinkerMinimizationJobs
         //temp = WORKING_DIRECTORY + "tinker_minimization_jobs/";
         temp = "/dev/shm/tinker_minimization_jobs/";
@@ -0,0 +1,262 @@
+/**
+ * Calculates optimal superpositions and RMSDs of coordinate sets with the quaternion characteristic
+ * polynomial (QCP) method of Theobald (Acta Cryst. A61, 478 (2005)) and Liu, Agrafiotis, and Theobald
+ * (J. Comput. Chem. 31, 1561 (2010)).  The largest eigenvalue of the key 4x4 quaternion matrix is found
+ * by Newton-Raphson on its characteristic polynomial, which gives the RMSD directly; the rotation is only
+ * computed if it is asked for.<p>
+ * Coordinates are packed into arrays as x1, y1, z1, x2, ...  No objects are allocated, so these methods
+ * are suitable for inner loops.  Rotation matrices are stored row by row in arrays of length nine.
+ */
+public final class Superposition
+{
+    /** Convergence criterion for the eigenvalue. */
+    private static final double EIGENVALUE_PRECISION = 1E-11;
+
+    /** If the squared norm of the eigenvector is smaller than this, another column of the adjoint is tried. */
+    private static final double EIGENVECTOR_PRECISION = 1E-6;
+
+    /** The maximum number of Newton-Raphson iterations. */
+    private static final int MAX_ITERATIONS = 50;
+
+    /** Do not try to instantiate this! */
+    private Superposition() {throw new IllegalArgumentException("Not instantiable!");}
+
+    /**
+     * Returns the sum of the squared distances of the coordinates from the origin.
+     * @param coordinates packed coordinates
+     * @return the inner product of the coordinates with themselves
+     */
+    public static double getInnerProduct(double[] coordinates)
+    {
+        double sum = 0.0;
+        for (int i=0; i < coordinates.length; i++)
+            sum += coordinates[i] * coordinates[i];
+        return sum;
+    }
+
+    /**
+     * Calculates the RMSD between two sets of coordinates after optimal translation and rotation.
+     * @param a packed coordinates
+     * @param b packed coordinates for the same number of atoms
+     * @return the RMSD
+     */
+    public static double calculateRMSD(double[] a, double[] b)
+    {
+        return calculateRMSD(a, b, null);
+    }
+
+    /**
+     * Calculates the RMSD between two sets of coordinates after optimal translation and rotation.
+     * Neither set needs to be centered.  If a rotation matrix is requested, applying it to b after
+     * moving the centroid of b to the origin gives the best match to a centered at the origin.
+     * @param a packed coordinates
+     * @param b packed coordinates for the same number of atoms
+     * @param rotation where to put the rotation matrix, or null if it is not needed
+     * @return the RMSD
+     */
+    public static double calculateRMSD(double[] a, double[] b, double[] rotation)
+    {
+        if ( a.length != b.length || a.length % 3 != 0 || a.length == 0 )
+            throw new IllegalArgumentException("coordinate arrays must be the same nonzero multiple of three in length");
+        int n = a.length / 3;
+
+        // find the centroids
+        double ax = 0.0, ay = 0.0, az = 0.0, bx = 0.0, by = 0.0, bz = 0.0;
+        for (int i=0; i < a.length; i += 3)
+            {
+                ax += a[i];
+                ay += a[i+1];
+                az += a[i+2];
+                bx += b[i];
+                by += b[i+1];
+                bz += b[i+2];
+            }
+        ax /= n;
+        ay /= n;
+        az /= n;
+        bx /= n;
+        by /= n;
+        bz /= n;
+
+        // the inner products and covariance of the centered coordinates
+        double innerProductA = 0.0, innerProductB = 0.0;
+        double Sxx = 0.0, Sxy = 0.0, Sxz = 0.0, Syx = 0.0, Syy = 0.0, Syz = 0.0, Szx = 0.0, Szy = 0.0, Szz = 0.0;
+        for (int i=0; i < a.length; i += 3)
+            {
+                double x1 = a[i] - ax, y1 = a[i+1] - ay, z1 = a[i+2] - az;
+                double x2 = b[i] - bx, y2 = b[i+1] - by, z2 = b[i+2] - bz;
+                innerProductA += x1*x1 + y1*y1 + z1*z1;
+                innerProductB += x2*x2 + y2*y2 + z2*z2;
+                Sxx += x1*x2;
+                Sxy += x1*y2;
+                Sxz += x1*z2;
+                Syx += y1*x2;
+                Syy += y1*y2;
+                Syz += y1*z2;
+                Szx += z1*x2;
+                Szy += z1*y2;
+                Szz += z1*z2;
+            }
+        return solve(n, innerProductA, innerProductB, Sxx, Sxy, Sxz, Syx, Syy, Syz, Szx, Szy, Szz, rotation);
+    }
+
+    /**
+     * Calculates the RMSD between two sets of coordinates that are already centered at the origin.
+     * This is the fastest method when the same coordinates are compared many times.
+     * @param a packed coordinates with their centroid at the origin
+     * @param b packed coordinates with their centroid at the origin
+     * @param innerProductA getInnerProduct(a)
+     * @param innerProductB getInnerProduct(b)
+     * @param rotation where to put the rotation matrix that takes b onto a, or null if it is not needed
+     * @return the RMSD
+     */
+    public static double calculateCenteredRMSD(double[] a, double[] b, double innerProductA, double innerProductB, double[] rotation)
+    {
+        if ( a.length != b.length || a.length % 3 != 0 || a.length == 0 )
+            throw new IllegalArgumentException("coordinate arrays must be the same nonzero multiple of three in length");
+        double Sxx = 0.0, Sxy = 0.0, Sxz = 0.0, Syx = 0.0, Syy = 0.0, Syz = 0.0, Szx = 0.0, Szy = 0.0, Szz = 0.0;
+        for (int i=0; i < a.length; i += 3)
+            {
+                double x1 = a[i], y1 = a[i+1], z1 = a[i+2];
+                double x2 = b[i], y2 = b[i+1], z2 = b[i+2];
+                Sxx += x1*x2;
+                Sxy += x1*y2;
+                Sxz += x1*z2;
+                Syx += y1*x2;
+                Syy += y1*y2;
+                Syz += y1*z2;
+                Szx += z1*x2;
+                Szy += z1*y2;
+                Szz += z1*z2;
+            }
+        return solve(a.length / 3, innerProductA, innerProductB, Sxx, Sxy, Sxz, Syx, Syy, Syz, Szx, Szy, Szz, rotation);
+    }
+
+    /**
+     * Finds the largest eigenvalue of the key matrix and, optionally, the corresponding rotation.
+     * The S values are the elements of the covariance matrix of the centered coordinates of a and b.
+     */
+    private static double solve(int n, double innerProductA, double innerProductB,
+                                double Sxx, double Sxy, double Sxz,
+                                double Syx, double Syy, double Syz,
+                                double Szx, double Szy, double Szz,
+                                double[] rotation)
+    {
+        double E0 = 0.5 * (innerProductA + innerProductB);
+
+        // coefficients of the characteristic polynomial
+        double Sxx2 = Sxx * Sxx, Syy2 = Syy * Syy, Szz2 = Szz * Szz;
+        double Sxy2 = Sxy * Sxy, Syz2 = Syz * Syz, Sxz2 = Sxz * Sxz;
+        double Syx2 = Syx * Syx, Szy2 = Szy * Szy, Szx2 = Szx * Szx;
+
+        double SyzSzymSyySzz2 = 2.0 * (Syz * Szy - Syy * Szz);
+        double Sxx2Syy2Szz2Syz2Szy2 = Syy2 + Szz2 - Sxx2 + Syz2 + Szy2;
+
+        double C2 = -2.0 * (Sxx2 + Syy2 + Szz2 + Sxy2 + Syx2 + Sxz2 + Szx2 + Syz2 + Szy2);
+        double C1 = 8.0 * (Sxx * Syz * Szy + Syy * Szx * Sxz + Szz * Sxy * Syx - Sxx * Syy * Szz - Syz * Szx * Sxy - Szy * Syx * Sxz);
+
+        double SxzpSzx = Sxz + Szx, SyzpSzy = Syz + Szy, SxypSyx = Sxy + Syx;
+        double SyzmSzy = Syz - Szy, SxzmSzx = Sxz - Szx, SxymSyx = Sxy - Syx;
+        double SxxpSyy = Sxx + Syy, SxxmSyy = Sxx - Syy;
+        double Sxy2Sxz2Syx2Szx2 = Sxy2 + Sxz2 - Syx2 - Szx2;
+
+        double C0 = Sxy2Sxz2Syx2Szx2 * Sxy2Sxz2Syx2Szx2
+                  + (Sxx2Syy2Szz2Syz2Szy2 + SyzSzymSyySzz2) * (Sxx2Syy2Szz2Syz2Szy2 - SyzSzymSyySzz2)
+                  + (-SxzpSzx * SyzmSzy + SxymSyx * (SxxmSyy - Szz)) * (-SxzmSzx * SyzpSzy + SxymSyx * (SxxmSyy + Szz))
+                  + (-SxzpSzx * SyzpSzy - SxypSyx * (SxxpSyy - Szz)) * (-SxzmSzx * SyzmSzy - SxypSyx * (SxxpSyy + Szz))
+                  + ( SxypSyx * SyzpSzy + SxzpSzx * (SxxmSyy + Szz)) * (-SxymSyx * SyzmSzy + SxzpSzx * (SxxpSyy + Szz))
+                  + ( SxypSyx * SyzmSzy + SxzmSzx * (SxxmSyy - Szz)) * (-SxymSyx * SyzpSzy + SxzmSzx * (SxxpSyy - Szz));
+
+        // Newton-Raphson, starting from an upper bound on the largest eigenvalue
+        double lambda = E0;
+        for (int i=0; i < MAX_ITERATIONS; i++)
+            {
+                double oldLambda = lambda;
+                double lambda2 = lambda * lambda;
+                double b = (lambda2 + C2) * lambda;
+                double a = b + C1;
+                double delta = (a * lambda + C0) / (2.0 * lambda2 * lambda + b + a);
+                lambda -= delta;
+                if ( Math.abs(lambda - oldLambda) < Math.abs(EIGENVALUE_PRECISION * lambda) )
+                    break;
+            }
+        double RMSD = Math.sqrt(Math.abs(2.0 * (E0 - lambda) / n));
+
+        if ( rotation == null )
+            return RMSD;
+        if ( rotation.length != 9 )
+            throw new IllegalArgumentException("rotation matrix must have nine elements");
+
+        // the eigenvector is any nonzero column of the adjoint of (K - lambda I)
+        double a11 = SxxpSyy + Szz - lambda, a12 = SyzmSzy, a13 = -SxzmSzx, a14 = SxymSyx;
+        double a21 = SyzmSzy, a22 = SxxmSyy - Szz - lambda, a23 = SxypSyx, a24 = SxzpSzx;
+        double a31 = a13, a32 = a23, a33 = Syy - Sxx - Szz - lambda, a34 = SyzpSzy;
+        double a41 = a14, a42 = a24, a43 = a34, a44 = Szz - SxxpSyy - lambda;
+        double a3344_4334 = a33 * a44 - a43 * a34, a3244_4234 = a32 * a44 - a42 * a34;
+        double a3243_4233 = a32 * a43 - a42 * a33, a3143_4133 = a31 * a43 - a41 * a33;
+        double a3144_4134 = a31 * a44 - a41 * a34, a3142_4132 = a31 * a42 - a41 * a32;
+
+        double q1 =  a22 * a3344_4334 - a23 * a3244_4234 + a24 * a3243_4233;
+        double q2 = -a21 * a3344_4334 + a23 * a3144_4134 - a24 * a3143_4133;
+        double q3 =  a21 * a3244_4234 - a22 * a3144_4134 + a24 * a3142_4132;
+        double q4 = -a21 * a3243_4233 + a22 * a3143_4133 - a23 * a3142_4132;
+        double qsqr = q1 * q1 + q2 * q2 + q3 * q3 + q4 * q4;
+
+        if ( qsqr < EIGENVECTOR_PRECISION )
+            {
+                q1 =  a12 * a3344_4334 - a13 * a3244_4234 + a14 * a3243_4233;
+                q2 = -a11 * a3344_4334 + a13 * a3144_4134 - a14 * a3143_4133;
+                q3 =  a11 * a3244_4234 - a12 * a3144_4134 + a14 * a3142_4132;
+                q4 = -a11 * a3243_4233 + a12 * a3143_4133 - a13 * a3142_4132;
+                qsqr = q1 * q1 + q2 * q2 + q3 * q3 + q4 * q4;
+            }
+        if ( qsqr < EIGENVECTOR_PRECISION )
+            {
+                double a1324_1423 = a13 * a24 - a14 * a23, a1224_1422 = a12 * a24 - a14 * a22;
+                double a1223_1322 = a12 * a23 - a13 * a22, a1124_1421 = a11 * a24 - a14 * a21;
+                double a1123_1321 = a11 * a23 - a13 * a21, a1122_1221 = a11 * a22 - a12 * a21;
+
+                q1 =  a42 * a1324_1423 - a43 * a1224_1422 + a44 * a1223_1322;
+                q2 = -a41 * a1324_1423 + a43 * a1124_1421 - a44 * a1123_1321;
+                q3 =  a41 * a1224_1422 - a42 * a1124_1421 + a44 * a1122_1221;
+                q4 = -a41 * a1223_1322 + a42 * a1123_1321 - a43 * a1122_1221;
+                qsqr = q1 * q1 + q2 * q2 + q3 * q3 + q4 * q4;
+
+                if ( qsqr < EIGENVECTOR_PRECISION )
+                    {
+                        q1 =  a32 * a1324_1423 - a33 * a1224_1422 + a34 * a1223_1322;
+                        q2 = -a31 * a1324_1423 + a33 * a1124_1421 - a34 * a1123_1321;
+                        q3 =  a31 * a1224_1422 - a32 * a1124_1421 + a34 * a1122_1221;
+                        q4 = -a31 * a1223_1322 + a32 * a1123_1321 - a33 * a1122_1221;
+                        qsqr = q1 * q1 + q2 * q2 + q3 * q3 + q4 * q4;
+                    }
+            }
+
+        // the structures are already superimposed, or there is no unique rotation
+        if ( qsqr < EIGENVECTOR_PRECISION )
+            {
+                for (int i=0; i < 9; i++)
+                    rotation[i] = ( i % 4 == 0 ) ? 1.0 : 0.0;
+                return RMSD;
+            }
+
+        double norm = Math.sqrt(qsqr);
+        q1 /= norm;
+        q2 /= norm;
+        q3 /= norm;
+        q4 /= norm;
+
+        double a2 = q1 * q1, x2 = q2 * q2, y2 = q3 * q3, z2 = q4 * q4;
+        double xy = q2 * q3, az = q1 * q4, zx = q4 * q2, ay = q1 * q3, yz = q3 * q4, ax = q1 * q2;
+        rotation[0] = a2 + x2 - y2 - z2;
+        rotation[1] = 2.0 * (xy + az);
+        rotation[2] = 2.0 * (zx - ay);
+        rotation[3] = 2.0 * (xy - az);
+        rotation[4] = a2 - x2 + y2 - z2;
+        rotation[5] = 2.0 * (yz + ax);
+        rotation[6] = 2.0 * (zx + ay);
+        rotation[7] = 2.0 * (yz - ax);
+        rotation[8] = a2 - x2 - y2 + z2;
+        return RMSD;
+    }
+}
@@ -108,6 +108,8 @@ public class TinkerMinimizationJob implements WorkUnit, Serializable, Immutable
         // call minimize
         double elapsedTime = 0.0;
         int exitValue = -1;
+        Metrics.Counter running = Metrics.counter("external.tinker.running");
+        running.increment();
         //boolean badGeometry = false;
         try
             {
@@ -169,6 +171,10 @@ public class TinkerMinimizationJob implements WorkUnit, Serializable, Immutable
                 System.out.println(baseFilename);
                 e.printStackTrace();
             }
+        running.decrement();
+        Metrics.timer("external.tinker.latency").update(elapsedTime * 1000.0);
+        if ( exitValue != 0 )
+            Metrics.counter("external.tinker.failures").increment();
 
         // remove files on abnormal termination
         if ( exitValue != 0 )
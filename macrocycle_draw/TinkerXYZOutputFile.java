@@ -18,7 +18,7 @@ public class TinkerXYZOutputFile extends OutputFileFormat implements Immutable {
     */
     public TinkerXYZOutputFile(String fileName)
     {
-	    super(fileName);
+	    super();
 	
         // read in atoms, name, and connectivity
 	    String name = "";
@@ -29,30 +29,33 @@ public class TinkerXYZOutputFile extends OutputFileFormat implements Immutable {
 	    List<List<Integer>> connections = new ArrayList<>();
 	
 	    boolean isFirstLine = true;
-        for (List<String> line : fileContents)
+        try ( LineTokenizer line = new LineTokenizer(fileName) )
             {
-                if (isFirstLine)
+                while ( line.nextLine() )
                     {
-                        name = line.get(1);
-                        isFirstLine = false;
-                    }
-                else
-                    {
-                        Vector3D position = new Vector3D(Double.parseDouble(line.get(2)),
-                                                         Double.parseDouble(line.get(3)),
-                                                         Double.parseDouble(line.get(4)));
-                        int tinkerAtomType = Integer.parseInt(line.get(5));
-			            Atom newAtom = new Atom(line.get(1), position, tinkerAtomType);
-			            atoms.add(newAtom);
-		
-			            List<Integer> currentConnections = new ArrayList<>();
-			            for (int i = 6; i<line.size() ;i++)
-				            currentConnections.add(Integer.parseInt(line.get(i)));
+                        if (isFirstLine)
+                            {
+                                name = line.getString(1);
+                                isFirstLine = false;
+                            }
+                        else
+                            {
+                                Vector3D position = new Vector3D(line.getDouble(2),
+                                                                 line.getDouble(3),
+                                                                 line.getDouble(4));
+                                int tinkerAtomType = line.getInt(5);
+                                Atom newAtom = new Atom(line.getString(1), position, tinkerAtomType);
+                                atoms.add(newAtom);
+
+                                List<Integer> currentConnections = new ArrayList<>();
+                                for (int i = 6; i < line.fieldCount(); i++)
+                                    currentConnections.add(line.getInt(i));
 
-			            connections.add(currentConnections);
-			            connectivity.addVertex(newAtom);
-		            }
-	        }
+                                connections.add(currentConnections);
+                                connectivity.addVertex(newAtom);
+                            }
+                    }
+            }
 	
         // build connectivity graph
 	    int currentAtomIndex = 1;
@@ -83,6 +86,32 @@ public class TinkerXYZOutputFile extends OutputFileFormat implements Immutable {
 	    molecule = new Molecule(name, atoms, connectivity);
     }
     
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(molecule);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if ( obj == null )
+            return false;
+        if ( obj == this )
+            return true;
+        if ( !(obj instanceof TinkerXYZOutputFile) )
+            return false;
+
+        TinkerXYZOutputFile file = (TinkerXYZOutputFile)obj;
+        return Objects.equals(molecule, file.molecule);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "TinkerXYZOutputFile: " + molecule.name;
+    }
+
     public static void main(String args[])
     {
 	    /*TinkerXYZOutputFile tinkerXYZOutputFile = new TinkerXYZOutputFile("arginine_test.xyz");
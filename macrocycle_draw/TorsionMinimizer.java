@@ -0,0 +1,193 @@
+/**
+ * Minimizes the energy of a TorsionModel locally by limited-memory BFGS in torsion space.<p>
+ * Each iteration builds a search direction from the analytic torsion gradient and the last few steps,
+ * then backtracks along it until the energy decreases enough (the Armijo condition).  Steps are taken by
+ * rotating the packed coordinates from the current point, so the variables are small changes to every
+ * torsion rather than absolute dihedral angles.  No single torsion turns by more than MAX_STEP per iteration.
+ */
+public final class TorsionMinimizer implements Singleton
+{
+    /** Number of previous steps used to approximate the inverse Hessian. */
+    public static final int MEMORY = 8;
+
+    /** Largest change to any one torsion in one iteration, in radians. */
+    public static final double MAX_STEP = 0.5;
+
+    /** Sufficient decrease parameter for the line search. */
+    private static final double ARMIJO = 1.0E-4;
+
+    /** The line search gives up after this many halvings. */
+    private static final int MAX_BACKTRACKS = 30;
+
+    /** Not instantiable. */
+    private TorsionMinimizer()
+    {
+        throw new IllegalArgumentException("Not instantiable!");
+    }
+
+    /**
+     * Minimizes with the iteration limit and tolerance in Settings.
+     * @param model the torsions and energy function
+     * @param coordinates the starting coordinates, which will be replaced by the minimized ones
+     * @return the minimized energy
+     */
+    public static double minimize(TorsionModel model, double[] coordinates)
+    {
+        return minimize(model, coordinates, Settings.MINIMIZATION_MAX_ITERATIONS, Settings.MINIMIZATION_GRADIENT_TOLERANCE);
+    }
+
+    /**
+     * Minimizes the energy of a conformation in place.
+     * @param model the torsions and energy function
+     * @param coordinates the starting coordinates, which will be replaced by the minimized ones
+     * @param maxIterations the maximum number of iterations
+     * @param gradientTolerance stop when the root mean square gradient is below this, in energy per radian
+     * @return the minimized energy
+     */
+    public static double minimize(TorsionModel model, double[] coordinates, int maxIterations, double gradientTolerance)
+    {
+        int n = model.torsions.size();
+        double[][] s = new double[MEMORY][n];
+        double[][] y = new double[MEMORY][n];
+        double[] rho = new double[MEMORY];
+        double[] alpha = new double[MEMORY];
+        double[] sNew = new double[n];
+        double[] yNew = new double[n];
+        int stored = 0;
+        int newest = -1;
+
+        double[] gradient = new double[n];
+        double[] newGradient = new double[n];
+        double[] direction = new double[n];
+        double[] trial = new double[coordinates.length];
+        double energy = model.getGradient(coordinates, gradient);
+        int evaluations = 1;
+
+        for (int iteration=0; iteration < maxIterations; iteration++)
+            {
+                if ( Math.sqrt(dot(gradient, gradient) / n) < gradientTolerance )
+                    break;
+
+                // two-loop recursion for the direction -H g
+                for (int i=0; i < n; i++)
+                    direction[i] = -gradient[i];
+                for (int k=0; k < stored; k++)
+                    {
+                        int m = (newest - k + MEMORY) % MEMORY;
+                        alpha[m] = rho[m] * dot(s[m], direction);
+                        for (int i=0; i < n; i++)
+                            direction[i] -= alpha[m] * y[m][i];
+                    }
+                if ( stored > 0 )
+                    {
+                        double scale = dot(s[newest], y[newest]) / dot(y[newest], y[newest]);
+                        for (int i=0; i < n; i++)
+                            direction[i] *= scale;
+                    }
+                for (int k=stored-1; k >= 0; k--)
+                    {
+                        int m = (newest - k + MEMORY) % MEMORY;
+                        double beta = rho[m] * dot(y[m], direction);
+                        for (int i=0; i < n; i++)
+                            direction[i] += (alpha[m] - beta) * s[m][i];
+                    }
+
+                // fall back to steepest descent if the curvature information is bad
+                double slope = dot(gradient, direction);
+                if ( !( slope < 0.0 ) )
+                    {
+                        stored = 0;
+                        for (int i=0; i < n; i++)
+                            direction[i] = -gradient[i];
+                        slope = dot(gradient, direction);
+                    }
+
+                // limit the largest torsion change
+                double largest = 0.0;
+                for (int i=0; i < n; i++)
+                    largest = Math.max(largest, Math.abs(direction[i]));
+                if ( largest > MAX_STEP )
+                    {
+                        for (int i=0; i < n; i++)
+                            direction[i] *= MAX_STEP / largest;
+                        slope *= MAX_STEP / largest;
+                    }
+
+                // backtracking line search
+                double step = 1.0;
+                double newEnergy = Double.NaN;
+                boolean accepted = false;
+                for (int j=0; j < MAX_BACKTRACKS; j++)
+                    {
+                        System.arraycopy(coordinates, 0, trial, 0, coordinates.length);
+                        for (int i=0; i < n; i++)
+                            if ( direction[i] != 0.0 )
+                                model.rotate(trial, i, Math.toDegrees(step * direction[i]));
+                        newEnergy = model.getEnergy(trial);
+                        evaluations++;
+                        if ( newEnergy <= energy + ARMIJO * step * slope )
+                            {
+                                accepted = true;
+                                break;
+                            }
+                        step *= 0.5;
+                    }
+                if ( !accepted )
+                    break;
+
+                // update the history
+                model.getGradient(trial, newGradient);
+                evaluations++;
+                // a pair without positive curvature is dropped without overwriting the oldest one
+                double sy = 0.0;
+                for (int i=0; i < n; i++)
+                    {
+                        sNew[i] = step * direction[i];
+                        yNew[i] = newGradient[i] - gradient[i];
+                        sy += sNew[i] * yNew[i];
+                    }
+                if ( sy > 1.0E-12 )
+                    {
+                        int next = (newest + 1) % MEMORY;
+                        System.arraycopy(sNew, 0, s[next], 0, n);
+                        System.arraycopy(yNew, 0, y[next], 0, n);
+                        rho[next] = 1.0 / sy;
+                        newest = next;
+                        stored = Math.min(stored + 1, MEMORY);
+                    }
+
+                System.arraycopy(trial, 0, coordinates, 0, coordinates.length);
+                System.arraycopy(newGradient, 0, gradient, 0, n);
+                double change = energy - newEnergy;
+                energy = newEnergy;
+                if ( change < 1.0E-12 * Math.max(1.0, Math.abs(energy)) )
+                    break;
+            }
+        Metrics.counter("torsion.energy.evaluations").add(evaluations);
+        return energy;
+    }
+
+    /**
+     * Returns the dot product of two vectors.
+     */
+    private static double dot(double[] a, double[] b)
+    {
+        double sum = 0.0;
+        for (int i=0; i < a.length; i++)
+            sum += a[i] * b[i];
+        return sum;
+    }
+
+    /** for testing */
+    public static void main(String[] args)
+    {
+        Catalyst c = Analysis.readCatalyst(args[0]);
+        TorsionModel model = new TorsionModel(c);
+        System.out.println(model);
+        double[] coordinates = model.getCoordinates(c);
+        double before = model.getEnergy(coordinates);
+        long startTime = System.nanoTime();
+        double after = minimize(model, coordinates);
+        System.out.println(String.format("%.6f -> %.6f in %.3f ms", before, after, (System.nanoTime() - startTime) / 1.0E6));
+    }
+}
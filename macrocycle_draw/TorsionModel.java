@@ -0,0 +1,425 @@
+import org.apache.commons.math3.geometry.euclidean.threed.*;
+import java.util.*;
+import com.google.common.collect.*;
+
+/**
+ * A fast, torsion-only view of a molecule for searches that make many moves.<p>
+ * Conformations are packed as x1, y1, z1, x2, ... in atom order and changed in place by rotating
+ * torsions, so no Molecule objects are created during a search.  The energy is the same steric
+ * energy as Molecule.getOPLSenergy(), evaluated over a pair list that is built once from the
+ * connectivity, plus harmonic restraints that hold a ring closure together.<p>
+ * For a macrocycle, the torsions come from Catalyst.getLinearTorsions(), which treats the ring as
+ * if it were cut at the closure bond.  Rotating them opens the ring, so the closure bond length and
+ * the two bond angles across it are restrained to their values in the starting geometry.  The
+ * closure atoms are still treated as bonded when deciding which pairs interact.<p>
+ * Analytic derivatives of the energy with respect to the torsions are available for local minimization
+ * in TorsionMinimizer.<p>
+ * This class is immutable.
+ */
+public class TorsionModel implements Immutable
+{
+    /** The number of atoms. */
+    public final int size;
+
+    /** The torsions that can be rotated. */
+    public final List<IndexTorsion> torsions;
+
+    /** The zero-based atom indices of the rotation axis of each torsion.  Atoms move about axisFrom to axisTo. */
+    private final int[] axisFrom, axisTo;
+
+    /** The zero-based indices of the atoms moved by each torsion. */
+    private final int[][] movingAtoms;
+
+    /** The zero-based indices of the atoms in each nonbonded pair. */
+    private final int[] pairFrom, pairTo;
+
+    /** For each pair, 4 epsilon and sigma^6 after the combination rules. */
+    private final double[] pairEpsilon4, pairSigma6;
+
+    /** The zero-based indices of the atoms in each restrained distance. */
+    private final int[] restraintFrom, restraintTo;
+
+    /** The reference length of each restrained distance. */
+    private final double[] restraintLength;
+
+    /** The force constant of the restraints, in energy per square angstrom. */
+    public final double restraintForceConstant;
+
+    /**
+     * Creates a model for a catalyst.  If the catalyst has been cyclized, its closure bond is restrained.
+     * @param catalyst the catalyst
+     * @param restraintForceConstant the force constant of the ring closure restraints
+     */
+    public TorsionModel(Catalyst catalyst, double restraintForceConstant)
+    {
+        this(catalyst, catalyst.getLinearTorsions(), catalyst.getLeftConnect(), catalyst.getRightConnect(), restraintForceConstant);
+    }
+
+    /**
+     * Creates a model with the force constant in Settings.
+     * @param catalyst the catalyst
+     */
+    public TorsionModel(Catalyst catalyst)
+    {
+        this(catalyst, Settings.SEARCH_RESTRAINT_FORCE_CONSTANT);
+    }
+
+    /**
+     * Creates a model for a molecule.
+     * @param molecule the molecule whose geometry and connectivity will be used
+     * @param torsions the torsions that can be rotated
+     * @param closure1 one atom of the ring closure bond, or null if there is none
+     * @param closure2 the other atom of the ring closure bond, or null if there is none
+     * @param restraintForceConstant the force constant of the ring closure restraints
+     */
+    public TorsionModel(Molecule molecule, List<IndexTorsion> torsions, Atom closure1, Atom closure2, double restraintForceConstant)
+    {
+        if ( torsions == null || torsions.size() == 0 )
+            throw new IllegalArgumentException("no torsions to rotate");
+        if ( restraintForceConstant < 0.0 )
+            throw new IllegalArgumentException("force constant must be positive");
+        this.size = molecule.contents.size();
+        this.torsions = ImmutableList.copyOf(torsions);
+        this.restraintForceConstant = restraintForceConstant;
+
+        // torsions
+        axisFrom = new int[torsions.size()];
+        axisTo = new int[torsions.size()];
+        movingAtoms = new int[torsions.size()][];
+        for (int i=0; i < torsions.size(); i++)
+            {
+                IndexTorsion t = torsions.get(i);
+                axisFrom[i] = t.index2 - 1;
+                axisTo[i] = t.index3 - 1;
+                movingAtoms[i] = new int[t.atomNumbersToRotate.size()];
+                for (int j=0; j < movingAtoms[i].length; j++)
+                    movingAtoms[i][j] = t.atomNumbersToRotate.get(j) - 1;
+            }
+
+        // nonbonded pairs, using the same exclusions as Molecule.getOPLSenergy()
+        List<Atom> contents = molecule.contents;
+        List<int[]> pairs = new ArrayList<>();
+        for (int i=0; i < size; i++)
+            for (int j=i+1; j < size; j++)
+                if ( molecule.areSeparated(contents.get(i), contents.get(j)) )
+                    pairs.add(new int[] { i, j });
+        pairFrom = new int[pairs.size()];
+        pairTo = new int[pairs.size()];
+        pairEpsilon4 = new double[pairs.size()];
+        pairSigma6 = new double[pairs.size()];
+        for (int k=0; k < pairs.size(); k++)
+            {
+                int[] pair = pairs.get(k);
+                pairFrom[k] = pair[0];
+                pairTo[k] = pair[1];
+                Element element1 = contents.get(pair[0]).element;
+                Element element2 = contents.get(pair[1]).element;
+                double epsilon = element1.epsilon;
+                double sigma = element1.sigma;
+                if ( element1.epsilon != element2.epsilon )
+                    epsilon = Math.sqrt(element1.epsilon * element2.epsilon);
+                if ( element1.sigma != element2.sigma )
+                    sigma = Math.sqrt(element1.sigma * element2.sigma);
+                pairEpsilon4[k] = 4.0 * epsilon;
+                pairSigma6[k] = Math.pow(sigma, 6);
+            }
+
+        // restrain the closure bond and the 1-3 distances across it
+        List<int[]> restraints = new ArrayList<>();
+        if ( closure1 != null && closure2 != null && molecule.connectivity.containsEdge(closure1, closure2) )
+            {
+                int index1 = molecule.getAtomIndex(closure1);
+                int index2 = molecule.getAtomIndex(closure2);
+                restraints.add(new int[] { index1, index2 });
+                for (Atom a : molecule.getAdjacentAtoms(closure1))
+                    if ( a != closure2 )
+                        restraints.add(new int[] { molecule.getAtomIndex(a), index2 });
+                for (Atom a : molecule.getAdjacentAtoms(closure2))
+                    if ( a != closure1 )
+                        restraints.add(new int[] { index1, molecule.getAtomIndex(a) });
+            }
+        restraintFrom = new int[restraints.size()];
+        restraintTo = new int[restraints.size()];
+        restraintLength = new double[restraints.size()];
+        for (int k=0; k < restraints.size(); k++)
+            {
+                int[] restraint = restraints.get(k);
+                restraintFrom[k] = restraint[0];
+                restraintTo[k] = restraint[1];
+                restraintLength[k] = Vector3D.distance(contents.get(restraint[0]).position, contents.get(restraint[1]).position);
+            }
+    }
+
+    /**
+     * Packs the geometry of a molecule.
+     * @param molecule a molecule with the same atoms as this model
+     * @return the coordinates x1, y1, z1, x2, ...
+     */
+    public double[] getCoordinates(Molecule molecule)
+    {
+        if ( molecule.contents.size() != size )
+            throw new IllegalArgumentException("wrong number of atoms");
+        double[] coordinates = new double[3*size];
+        for (int i=0; i < size; i++)
+            {
+                Vector3D v = molecule.contents.get(i).position;
+                coordinates[3*i]   = v.getX();
+                coordinates[3*i+1] = v.getY();
+                coordinates[3*i+2] = v.getZ();
+            }
+        return coordinates;
+    }
+
+    /**
+     * Unpacks coordinates.
+     * @param coordinates the packed coordinates
+     * @return the positions of the atoms in order
+     */
+    public List<Vector3D> getGeometry(double[] coordinates)
+    {
+        List<Vector3D> geometry = new ArrayList<>(size);
+        for (int i=0; i < size; i++)
+            geometry.add(new Vector3D(coordinates[3*i], coordinates[3*i+1], coordinates[3*i+2]));
+        return ImmutableList.copyOf(geometry);
+    }
+
+    /**
+     * Moves the atoms of a molecule to the packed coordinates.
+     * @param molecule a molecule with the same atoms as this model
+     * @param coordinates the packed coordinates
+     * @return the moved molecule
+     */
+    public Molecule getMolecule(Molecule molecule, double[] coordinates)
+    {
+        Map<Atom,Atom> atomMap = new HashMap<>();
+        for (int i=0; i < size; i++)
+            {
+                Atom a = molecule.contents.get(i);
+                atomMap.put(a, a.moveAtom(new Vector3D(coordinates[3*i], coordinates[3*i+1], coordinates[3*i+2])));
+            }
+        return molecule.moveAtoms(atomMap);
+    }
+
+    /**
+     * Rotates the moving atoms of a torsion about its axis in place.
+     * @param coordinates the packed coordinates, which will be changed
+     * @param torsion the index of the torsion in the torsion list
+     * @param degrees the angle of rotation
+     */
+    public void rotate(double[] coordinates, int torsion, double degrees)
+    {
+        int from = 3*axisFrom[torsion];
+        int to = 3*axisTo[torsion];
+        double px = coordinates[to], py = coordinates[to+1], pz = coordinates[to+2];
+        double ux = px - coordinates[from], uy = py - coordinates[from+1], uz = pz - coordinates[from+2];
+        double norm = Math.sqrt(ux*ux + uy*uy + uz*uz);
+        ux /= norm;
+        uy /= norm;
+        uz /= norm;
+
+        // Rodrigues rotation about the unit axis through the second axis atom
+        double theta = Math.toRadians(degrees);
+        double cos = Math.cos(theta);
+        double sin = Math.sin(theta);
+        for (int atom : movingAtoms[torsion])
+            {
+                int i = 3*atom;
+                double x = coordinates[i] - px, y = coordinates[i+1] - py, z = coordinates[i+2] - pz;
+                double dot = (ux*x + uy*y + uz*z) * (1.0 - cos);
+                coordinates[i]   = px + x*cos + (uy*z - uz*y)*sin + ux*dot;
+                coordinates[i+1] = py + y*cos + (uz*x - ux*z)*sin + uy*dot;
+                coordinates[i+2] = pz + z*cos + (ux*y - uy*x)*sin + uz*dot;
+            }
+    }
+
+    /**
+     * Returns the current value of a torsion.
+     * @param coordinates the packed coordinates
+     * @param torsion the index of the torsion in the torsion list
+     * @return the dihedral angle in degrees
+     */
+    public double getDihedralAngle(double[] coordinates, int torsion)
+    {
+        IndexTorsion t = torsions.get(torsion);
+        return AbstractTorsion.getDihedralAngle(getPosition(coordinates, t.index1-1), getPosition(coordinates, t.index2-1),
+                                                getPosition(coordinates, t.index3-1), getPosition(coordinates, t.index4-1));
+    }
+
+    /**
+     * Returns the position of one atom.
+     */
+    private static Vector3D getPosition(double[] coordinates, int atom)
+    {
+        return new Vector3D(coordinates[3*atom], coordinates[3*atom+1], coordinates[3*atom+2]);
+    }
+
+    /**
+     * Computes the steric energy.  This is the same as Molecule.getOPLSenergy().
+     * @param coordinates the packed coordinates
+     * @return the energy divided by the number of atoms
+     */
+    public double getStericEnergy(double[] coordinates)
+    {
+        double cutoff2 = Settings.CUTOFF_DISTANCE * Settings.CUTOFF_DISTANCE;
+        double energy = 0.0;
+        for (int k=0; k < pairFrom.length; k++)
+            {
+                int i = 3*pairFrom[k];
+                int j = 3*pairTo[k];
+                double dx = coordinates[i] - coordinates[j];
+                double dy = coordinates[i+1] - coordinates[j+1];
+                double dz = coordinates[i+2] - coordinates[j+2];
+                double r2 = dx*dx + dy*dy + dz*dz;
+                if ( r2 > cutoff2 )
+                    continue;
+
+                // prevent overflow
+                if ( r2 < 0.25 )
+                    r2 = 0.25;
+                double temp = pairSigma6[k] / (r2*r2*r2);
+                energy += pairEpsilon4[k] * temp * (temp - 1.0);
+            }
+        return energy / size;
+    }
+
+    /**
+     * Computes the energy of the ring closure restraints.
+     * @param coordinates the packed coordinates
+     * @return the restraint energy
+     */
+    public double getRestraintEnergy(double[] coordinates)
+    {
+        double energy = 0.0;
+        for (int k=0; k < restraintFrom.length; k++)
+            {
+                int i = 3*restraintFrom[k];
+                int j = 3*restraintTo[k];
+                double dx = coordinates[i] - coordinates[j];
+                double dy = coordinates[i+1] - coordinates[j+1];
+                double dz = coordinates[i+2] - coordinates[j+2];
+                double deviation = Math.sqrt(dx*dx + dy*dy + dz*dz) - restraintLength[k];
+                energy += restraintForceConstant * deviation * deviation;
+            }
+        return energy;
+    }
+
+    /**
+     * Computes the objective function: the steric energy plus the restraint energy.
+     * @param coordinates the packed coordinates
+     * @return the energy
+     */
+    public double getEnergy(double[] coordinates)
+    {
+        return getStericEnergy(coordinates) + getRestraintEnergy(coordinates);
+    }
+
+    /**
+     * Computes the objective function and its derivatives with respect to the torsions.  The derivative
+     * for a torsion is the rate of change of the energy when rotate() turns it by a small angle.
+     * @param coordinates the packed coordinates
+     * @param gradient where to put the derivatives, in energy per radian, in the order of the torsion list
+     * @return the energy
+     */
+    public double getGradient(double[] coordinates, double[] gradient)
+    {
+        if ( gradient.length != torsions.size() )
+            throw new IllegalArgumentException("wrong gradient length");
+
+        // Cartesian derivatives of the steric energy
+        double[] cartesian = new double[3*size];
+        double cutoff2 = Settings.CUTOFF_DISTANCE * Settings.CUTOFF_DISTANCE;
+        double steric = 0.0;
+        for (int k=0; k < pairFrom.length; k++)
+            {
+                int i = 3*pairFrom[k];
+                int j = 3*pairTo[k];
+                double dx = coordinates[i] - coordinates[j];
+                double dy = coordinates[i+1] - coordinates[j+1];
+                double dz = coordinates[i+2] - coordinates[j+2];
+                double r2 = dx*dx + dy*dy + dz*dz;
+                if ( r2 > cutoff2 )
+                    continue;
+
+                // the energy is flat inside the overflow limit
+                if ( r2 < 0.25 )
+                    {
+                        double temp = pairSigma6[k] / (0.25*0.25*0.25);
+                        steric += pairEpsilon4[k] * temp * (temp - 1.0);
+                        continue;
+                    }
+                double temp = pairSigma6[k] / (r2*r2*r2);
+                steric += pairEpsilon4[k] * temp * (temp - 1.0);
+
+                // dE/dx = dE/d(r^2) * 2 dx
+                double factor = -6.0 * pairEpsilon4[k] * temp * (2.0*temp - 1.0) / r2;
+                cartesian[i]   += factor * dx;
+                cartesian[i+1] += factor * dy;
+                cartesian[i+2] += factor * dz;
+                cartesian[j]   -= factor * dx;
+                cartesian[j+1] -= factor * dy;
+                cartesian[j+2] -= factor * dz;
+            }
+        for (int i=0; i < cartesian.length; i++)
+            cartesian[i] /= size;
+        double energy = steric / size;
+
+        // Cartesian derivatives of the restraints
+        for (int k=0; k < restraintFrom.length; k++)
+            {
+                int i = 3*restraintFrom[k];
+                int j = 3*restraintTo[k];
+                double dx = coordinates[i] - coordinates[j];
+                double dy = coordinates[i+1] - coordinates[j+1];
+                double dz = coordinates[i+2] - coordinates[j+2];
+                double distance = Math.sqrt(dx*dx + dy*dy + dz*dz);
+                double deviation = distance - restraintLength[k];
+                energy += restraintForceConstant * deviation * deviation;
+                if ( distance == 0.0 )
+                    continue;
+                double factor = 2.0 * restraintForceConstant * deviation / distance;
+                cartesian[i]   += factor * dx;
+                cartesian[i+1] += factor * dy;
+                cartesian[i+2] += factor * dz;
+                cartesian[j]   -= factor * dx;
+                cartesian[j+1] -= factor * dy;
+                cartesian[j+2] -= factor * dz;
+            }
+
+        // a small rotation moves atom r by u x (r - p), so dE/dtheta = u . sum (r - p) x dE/dr
+        for (int t=0; t < gradient.length; t++)
+            {
+                int from = 3*axisFrom[t];
+                int to = 3*axisTo[t];
+                double px = coordinates[to], py = coordinates[to+1], pz = coordinates[to+2];
+                double ux = px - coordinates[from], uy = py - coordinates[from+1], uz = pz - coordinates[from+2];
+                double norm = Math.sqrt(ux*ux + uy*uy + uz*uz);
+                double tx = 0.0, ty = 0.0, tz = 0.0;
+                for (int atom : movingAtoms[t])
+                    {
+                        int i = 3*atom;
+                        double x = coordinates[i] - px, y = coordinates[i+1] - py, z = coordinates[i+2] - pz;
+                        double fx = cartesian[i], fy = cartesian[i+1], fz = cartesian[i+2];
+                        tx += y*fz - z*fy;
+                        ty += z*fx - x*fz;
+                        tz += x*fy - y*fx;
+                    }
+                gradient[t] = (ux*tx + uy*ty + uz*tz) / norm;
+            }
+        return energy;
+    }
+
+    /**
+     * Returns the number of restrained distances.
+     * @return the number of restraints
+     */
+    public int getRestraintCount()
+    {
+        return restraintFrom.length;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("TorsionModel: %d atoms, %d torsions, %d pairs, %d restraints", size, torsions.size(), pairFrom.length, restraintFrom.length);
+    }
+}
@@ -0,0 +1,404 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import com.google.common.primitives.*;
+import org.apache.commons.math3.geometry.euclidean.threed.*;
+import org.jgrapht.graph.*;
+
+/**
+ * Learned distributions of the dihedral angles of the rotatable bonds in each fragment.  MonteCarlo uses
+ * them to propose jumps straight into the angles that closed rings have, instead of only taking small
+ * random steps.<p>
+ * The distributions come from the catalysts in output/: the cyclized geometry in catalyst.dat if its ends
+ * closed, and every conformation in the MacroModel search results if there are any.  Run
+ * "java TorsionPriors [NAME...]" in the main working directory to rebuild them.  They are stored next to
+ * the fragments in TORSION_PRIORS_FILENAME, one line per bond:
+ * <pre>
+ * HASH  A-B  COUNT,COUNT,...
+ * </pre>
+ * HASH is the fragment hash (see Manifest.getHash), so a changed fragment has no prior until the
+ * distributions are rebuilt.  A and B are the atom numbers of the bond within the fragment, and the
+ * counts are a histogram of the angle from -180 degrees in equal bins.  The angle is measured from the
+ * lowest-numbered neighbor of A in the same fragment to the lowest-numbered neighbor of B, so it does not
+ * depend on which neighbors Catalyst.getTorsions() picks.<p>
+ * The proposal density of a bond is a mixture of the histogram and a uniform component of weight
+ * TORSION_PRIOR_UNIFORM_WEIGHT, so every angle can still be reached.
+ */
+public final class TorsionPriors implements Singleton
+{
+    /** Do not try to instantiate this! */
+    private TorsionPriors() {throw new IllegalArgumentException("Not instantiable!");}
+
+    /** The histogram of each bond, by fragment hash and bond. */
+    private static final ImmutableMap<String,int[]> PRIORS;
+
+    static
+    {
+        Map<String,int[]> priors = new HashMap<>();
+        String filename = Settings.TORSION_PRIORS_FILENAME;
+        if ( new File(filename).exists() )
+            {
+                try ( BufferedReader reader = new BufferedReader(new FileReader(filename)) )
+                    {
+                        String line = null;
+                        while ( (line = reader.readLine()) != null )
+                            {
+                                String[] fields = line.split("\t");
+                                if ( fields.length < 3 )
+                                    continue;
+                                String[] counts = fields[2].split(",");
+                                int[] histogram = new int[counts.length];
+                                for (int i=0; i < counts.length; i++)
+                                    histogram[i] = Integer.parseInt(counts[i]);
+                                priors.put(fields[0] + "\t" + fields[1], histogram);
+                            }
+                    }
+                catch (IOException | NumberFormatException e)
+                    {
+                        System.out.println("Error reading torsion priors " + filename + "!");
+                        e.printStackTrace();
+                    }
+            }
+        PRIORS = ImmutableMap.copyOf(priors);
+    }
+
+    /**
+     * A rotatable bond of a fragment in a particular catalyst.
+     */
+    private static class Site
+    {
+        /** The fragment hash and the bond, as in the file. */
+        public final String key;
+
+        /** The catalyst atom numbers of the canonical dihedral. */
+        public final int[] atomNumbers;
+
+        public Site(String key, int[] atomNumbers)
+        {
+            this.key = key;
+            this.atomNumbers = atomNumbers;
+        }
+
+        /**
+         * Returns the canonical dihedral angle in a geometry that is in the same order as the catalyst.
+         */
+        public double getAngle(List<Vector3D> geometry)
+        {
+            return AbstractTorsion.getDihedralAngle(geometry.get(atomNumbers[0]-1), geometry.get(atomNumbers[1]-1),
+                                                    geometry.get(atomNumbers[2]-1), geometry.get(atomNumbers[3]-1));
+        }
+
+        /**
+         * Returns the canonical dihedral angle in a molecule that is in the same order as the catalyst.
+         */
+        public double getAngle(Molecule m)
+        {
+            return AbstractTorsion.getDihedralAngle(m.getAtom(atomNumbers[0]).position, m.getAtom(atomNumbers[1]).position,
+                                                    m.getAtom(atomNumbers[2]).position, m.getAtom(atomNumbers[3]).position);
+        }
+    }
+
+    /**
+     * Finds the rotatable bonds of the fragments in a catalyst.  Fragments that are not in the library and
+     * bonds with no neighbors in the same fragment are left out.
+     */
+    private static List<Site> getSites(Catalyst catalyst)
+    {
+        Map<Atom,Integer> positions = new HashMap<>();
+        Map<Atom,Integer> numbers = new HashMap<>();
+        for (int i=0; i < catalyst.fragmentList.size(); i++)
+            {
+                List<Atom> contents = catalyst.fragmentList.get(i).contents;
+                for (int j=0; j < contents.size(); j++)
+                    {
+                        positions.put(contents.get(j), i);
+                        numbers.put(contents.get(j), j+1);
+                    }
+            }
+
+        List<Site> sites = new ArrayList<>();
+        for (int i=0; i < catalyst.fragmentList.size(); i++)
+            {
+                Fragment f = catalyst.fragmentList.get(i);
+                if ( ! FragmentLibrary.HASHES.containsKey(f.name) )
+                    continue;
+                String hash = Manifest.getHash(f);
+                for (DefaultWeightedEdge e : f.rotatableBonds.edgeSet())
+                    {
+                        Atom a = f.rotatableBonds.getEdgeSource(e);
+                        Atom b = f.rotatableBonds.getEdgeTarget(e);
+                        if ( ! numbers.containsKey(a) || ! numbers.containsKey(b) )
+                            continue;
+                        if ( numbers.get(a) > numbers.get(b) )
+                            {
+                                Atom temp = a;
+                                a = b;
+                                b = temp;
+                            }
+                        Atom outerA = getLowestNeighbor(catalyst, a, b, i, positions, numbers);
+                        Atom outerB = getLowestNeighbor(catalyst, b, a, i, positions, numbers);
+                        if ( outerA == null || outerB == null )
+                            continue;
+                        String key = hash + "\t" + numbers.get(a) + "-" + numbers.get(b);
+                        int[] atomNumbers = { catalyst.getAtomNumber(outerA), catalyst.getAtomNumber(a), catalyst.getAtomNumber(b), catalyst.getAtomNumber(outerB) };
+                        sites.add(new Site(key, atomNumbers));
+                    }
+            }
+        return sites;
+    }
+
+    /**
+     * Returns the neighbor of an atom in the same fragment with the lowest atom number, not counting the
+     * other atom of the bond, or null if there is none.
+     */
+    private static Atom getLowestNeighbor(Catalyst catalyst, Atom atom, Atom exclude, int position, Map<Atom,Integer> positions, Map<Atom,Integer> numbers)
+    {
+        Atom lowest = null;
+        for (Atom neighbor : catalyst.getAdjacentAtoms(atom))
+            {
+                if ( neighbor.equals(atom) || neighbor.equals(exclude) || ! Integer.valueOf(position).equals(positions.get(neighbor)) )
+                    continue;
+                if ( lowest == null || numbers.get(neighbor) < numbers.get(lowest) )
+                    lowest = neighbor;
+            }
+        return lowest;
+    }
+
+    /**
+     * Returns the histogram bin of an angle.
+     */
+    private static int getBin(double angle, int bins)
+    {
+        int bin = (int)Math.floor((MonteCarlo.angleModulus(angle) + 180.0) * bins / 360.0);
+        return Math.max(0, Math.min(bins-1, bin));
+    }
+
+    /**
+     * Makes proposals for the cyclization of one catalyst.
+     * @param catalyst the linear catalyst
+     * @param torsions the torsions that cyclization will mutate, from catalyst.getTorsions()
+     * @return the proposal, or null if none of the torsions has a prior
+     */
+    public static Proposal getProposal(Catalyst catalyst, List<IndexTorsion> torsions)
+    {
+        if ( PRIORS.size() == 0 )
+            return null;
+        Map<Set<Integer>,Site> sites = new HashMap<>();
+        for (Site site : getSites(catalyst))
+            if ( PRIORS.containsKey(site.key) )
+                sites.put(ImmutableSet.of(site.atomNumbers[1], site.atomNumbers[2]), site);
+
+        List<IndexTorsion> proposalTorsions = new ArrayList<>();
+        List<Site> proposalSites = new ArrayList<>();
+        for (IndexTorsion t : torsions)
+            {
+                Site site = sites.get(ImmutableSet.of(t.index2, t.index3));
+                if ( site == null )
+                    continue;
+                proposalTorsions.add(t);
+                proposalSites.add(site);
+            }
+        if ( proposalTorsions.size() == 0 )
+            return null;
+        return new Proposal(proposalTorsions, proposalSites);
+    }
+
+    /**
+     * Proposes new angles for the torsions of one catalyst that have priors.  An angle is drawn from the
+     * prior independently of the current one, so the Metropolis-Hastings acceptance must be multiplied by
+     * getDensity(old) / getDensity(new).  A proposal should only be used by one thread at a time.
+     */
+    public static class Proposal
+    {
+        /** The torsions that cyclization mutates. */
+        private final List<IndexTorsion> torsions;
+
+        /** The canonical dihedral of each torsion. */
+        private final List<Site> sites;
+
+        private Proposal(List<IndexTorsion> torsions, List<Site> sites)
+        {
+            this.torsions = ImmutableList.copyOf(torsions);
+            this.sites = ImmutableList.copyOf(sites);
+        }
+
+        /**
+         * Returns the number of torsions with priors.
+         */
+        public int size()
+        {
+            return torsions.size();
+        }
+
+        /**
+         * Returns the prior angle of a torsion in a molecule.
+         * @param m a molecule in the same order as the catalyst
+         * @param i which torsion
+         * @return the canonical dihedral angle in degrees
+         */
+        public double getAngle(Molecule m, int i)
+        {
+            return sites.get(i).getAngle(m);
+        }
+
+        /**
+         * Sets a torsion to a prior angle.
+         * @param m a molecule in the same order as the catalyst
+         * @param i which torsion
+         * @param angle the canonical dihedral angle in degrees
+         * @return the new molecule
+         */
+        public Molecule setAngle(Molecule m, int i, double angle)
+        {
+            // the cyclization torsion and the canonical dihedral of a bond differ by a constant
+            IndexTorsion t = torsions.get(i);
+            double offset = t.getDihedralAngle(m) - getAngle(m, i);
+            return m.setDihedral(t, MonteCarlo.angleModulus(angle + offset));
+        }
+
+        /**
+         * Draws an angle for a torsion from its proposal density.
+         * @param i which torsion
+         * @return the canonical dihedral angle in degrees
+         */
+        public double sample(int i)
+        {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if ( random.nextDouble() < Settings.TORSION_PRIOR_UNIFORM_WEIGHT )
+                return -180.0 + 360.0 * random.nextDouble();
+            int[] histogram = PRIORS.get(sites.get(i).key);
+            int total = 0;
+            for (int count : histogram)
+                total += count;
+            int x = random.nextInt(total);
+            int bin = 0;
+            while ( x >= histogram[bin] )
+                {
+                    x -= histogram[bin];
+                    bin++;
+                }
+            double width = 360.0 / histogram.length;
+            return -180.0 + width * (bin + random.nextDouble());
+        }
+
+        /**
+         * Returns the proposal density of an angle for a torsion.
+         * @param i which torsion
+         * @param angle the canonical dihedral angle in degrees
+         * @return the density per degree
+         */
+        public double getDensity(int i, double angle)
+        {
+            int[] histogram = PRIORS.get(sites.get(i).key);
+            int total = 0;
+            for (int count : histogram)
+                total += count;
+            double width = 360.0 / histogram.length;
+            double observed = (double)histogram[getBin(angle, histogram.length)] / (total * width);
+            return Settings.TORSION_PRIOR_UNIFORM_WEIGHT / 360.0 + (1.0 - Settings.TORSION_PRIOR_UNIFORM_WEIGHT) * observed;
+        }
+    }
+
+    /**
+     * Counts the dihedral angles of the bonds in one catalyst in output/.
+     * @param name the name of the catalyst
+     * @param histograms the counts so far, by fragment hash and bond
+     * @return the number of geometries read
+     */
+    public static int collect(String name, Map<String,int[]> histograms)
+    {
+        Catalyst c = Analysis.readCatalyst(name);
+        List<Site> sites = getSites(c);
+        int bins = 360 / Settings.TORSION_PRIOR_BIN_WIDTH;
+        List<List<Vector3D>> geometries = new ArrayList<>();
+
+        // the cyclized geometry, if it closed
+        double distance = Vector3D.distance(c.getLeftConnect().position, c.getRightConnect().position);
+        if ( distance - MonteCarlo.BOND_LENGTH <= Settings.CYCLIZATION_CACHE_CLOSURE_TOLERANCE )
+            {
+                List<Vector3D> geometry = new ArrayList<>();
+                for (Atom a : c.contents)
+                    geometry.add(a.position);
+                geometries.add(geometry);
+            }
+
+        // the MacroModel conformations
+        String maeFilename = Analysis.getMAEFilename(name);
+        if ( new File(maeFilename).exists() )
+            {
+                try ( MAEReader reader = new MAEReader(maeFilename) )
+                    {
+                        while ( reader.hasNext() )
+                            {
+                                List<Vector3D> geometry = reader.next().geometry;
+                                if ( geometry.size() != c.contents.size() )
+                                    throw new IllegalArgumentException("Sizes of molecules do not match!");
+                                geometries.add(geometry);
+                            }
+                    }
+            }
+
+        for (List<Vector3D> geometry : geometries)
+            for (Site site : sites)
+                {
+                    int[] histogram = histograms.get(site.key);
+                    if ( histogram == null )
+                        {
+                            histogram = new int[bins];
+                            histograms.put(site.key, histogram);
+                        }
+                    histogram[getBin(site.getAngle(geometry), bins)]++;
+                }
+        return geometries.size();
+    }
+
+    /**
+     * Writes histograms in the format that is read at startup.
+     * @param histograms the counts by fragment hash and bond
+     * @param filename where to write them
+     */
+    public static void write(Map<String,int[]> histograms, String filename)
+    {
+        StringBuilder builder = new StringBuilder();
+        for (String key : new TreeSet<>(histograms.keySet()))
+            builder.append(key).append('\t').append(Ints.join(",", histograms.get(key))).append('\n');
+        InputFileFormat.writeStringToDisk(builder.toString(), filename);
+    }
+
+    /**
+     * Rebuilds the priors from the given catalysts in output/, or from all of them.
+     */
+    public static void main(String[] args)
+    {
+        List<String> names = new ArrayList<>(Arrays.asList(args));
+        if ( names.size() == 0 )
+            {
+                File[] directories = new File(Settings.WORKING_DIRECTORY + "output").listFiles();
+                if ( directories != null )
+                    for (File d : directories)
+                        if ( d.isDirectory() && new File(d, "catalyst.dat").exists() )
+                            names.add(d.getName());
+                Collections.sort(names);
+            }
+
+        Map<String,int[]> histograms = new HashMap<>();
+        int geometries = 0;
+        for (String name : names)
+            {
+                try
+                    {
+                        geometries += collect(name, histograms);
+                    }
+                catch (Exception e)
+                    {
+                        System.out.println("Error reading " + name + "!");
+                        e.printStackTrace();
+                    }
+            }
+        write(histograms, Settings.TORSION_PRIORS_FILENAME);
+        System.out.println(String.format("Wrote priors for %d bonds from %d geometries of %d catalysts to %s.",
+                                         histograms.size(), geometries, names.size(), Settings.TORSION_PRIORS_FILENAME));
+    }
+}
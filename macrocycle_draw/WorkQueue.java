@@ -0,0 +1,682 @@
+import java.io.*;
+import java.lang.management.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A queue of WorkUnits kept in a directory on a shared filesystem, so that worker processes on any
+ * number of nodes can share the work without a central server.<p>
+ * Every job is a serialized WorkUnit that moves between subdirectories by renaming, which is atomic on
+ * POSIX filesystems including NFS:
+ * <pre>
+ * pending/ID.job     waiting to be claimed
+ * running/ID.job     claimed by a worker, whose lease is leases/ID.lease
+ * done/ID.job        finished; the serialized Result is in results/ID.result
+ * failed/ID.job      threw an exception or was abandoned too often; the Failure is in results/ID.result
+ * logs/ID.log        who claimed the job and when
+ * workers/WORKER     the heartbeat of each worker process
+ * </pre>
+ * A worker claims a job by renaming it from pending/ to running/.  Only one rename of the same file can
+ * succeed, so exactly one worker gets each job.  The worker then rewrites the lease file every
+ * WORK_QUEUE_HEARTBEAT_PERIOD.  Any worker that sees a lease go unchanged for WORK_QUEUE_LEASE_TIMEOUT
+ * assumes the owner has died and puts the job back in pending/.  Staleness is judged by the contents of
+ * the lease and the local clock of the observer, so clocks on different nodes do not have to agree.<p>
+ * A worker that was only paused can still finish a job after it has been given to someone else, so jobs
+ * may occasionally run twice.  Results are written atomically under the job ID, so the second copy
+ * simply replaces the first.
+ */
+public class WorkQueue
+{
+    /** The name of this process, like 12345@holy2a. */
+    public static final String WORKER = ManagementFactory.getRuntimeMXBean().getName();
+
+    /** Helps make job IDs unique within this process. */
+    private static final AtomicInteger index = new AtomicInteger();
+
+    /** The root of the queue. */
+    public final File directory;
+
+    /** The subdirectories. */
+    private final File pending, running, leases, done, failed, results, logs, workers, temporary;
+
+    /** The claims this process is working on, by job ID. */
+    private final Map<String,Claim> active = new ConcurrentHashMap<>();
+
+    /** The last lease contents seen for each running job and when they were first seen, in local nanoseconds. */
+    private final Map<String,String> observedLeases = new HashMap<>();
+    private final Map<String,Long> observedTimes = new HashMap<>();
+
+    /** How many leases and heartbeats this process has written. */
+    private final AtomicLong heartbeats = new AtomicLong();
+
+    /**
+     * Opens a queue, creating its directories if necessary.
+     * @param directory the root of the queue, which should be on a filesystem that every worker can see
+     */
+    public WorkQueue(String directory)
+    {
+        this.directory = new File(directory);
+        pending = new File(directory, "pending");
+        running = new File(directory, "running");
+        leases = new File(directory, "leases");
+        done = new File(directory, "done");
+        failed = new File(directory, "failed");
+        results = new File(directory, "results");
+        logs = new File(directory, "logs");
+        workers = new File(directory, "workers");
+        temporary = new File(directory, "tmp");
+        for (File f : new File[] { pending, running, leases, done, failed, results, logs, workers, temporary })
+            {
+                f.mkdirs();
+                if ( ! f.isDirectory() )
+                    throw new IllegalArgumentException("unable to create " + f);
+            }
+    }
+
+    /**
+     * A job that this process has claimed.
+     */
+    public static class Claim
+    {
+        /** The job ID. */
+        public final String id;
+
+        /** The work to do. */
+        public final WorkUnit unit;
+
+        /** 1 the first time the job is claimed, 2 if it was abandoned once, and so on. */
+        public final int attempt;
+
+        public Claim(String id, WorkUnit unit, int attempt)
+        {
+            this.id = id;
+            this.unit = unit;
+            this.attempt = attempt;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s (%s, attempt %d)", id, unit, attempt);
+        }
+    }
+
+    /**
+     * The result of a job that threw an exception or was abandoned too many times.
+     */
+    public static class Failure implements Result, Serializable, Immutable
+    {
+        /** for serialization */
+        public static final long serialVersionUID = 1L;
+
+        /** The description of the job. */
+        public final String job;
+
+        /** The worker that gave up. */
+        public final String worker;
+
+        /** What went wrong, with the stack trace if there was one. */
+        public final String message;
+
+        public Failure(String job, String worker, String message)
+        {
+            this.job = job;
+            this.worker = worker;
+            this.message = message;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s failed on %s: %s", job, worker, message.split("\n")[0]);
+        }
+    }
+
+    /**
+     * Adds a job to the queue.
+     * @param unit the work to do, which must be serializable
+     * @return the job ID
+     */
+    public String submit(WorkUnit unit)
+    {
+        // IDs start with the time so that jobs are claimed roughly in the order they were submitted
+        String id = String.format("%013d-%s-%06d", System.currentTimeMillis(), WORKER, index.getAndIncrement());
+        writeObject(unit, new File(pending, id + ".job"));
+        appendLog(id, "submitted " + unit);
+        Metrics.counter("workqueue.submitted").increment();
+        return id;
+    }
+
+    /**
+     * Claims the oldest pending job.
+     * @return the claim, or null if nothing is pending
+     */
+    public Claim claim()
+    {
+        for (String filename : list(pending, ".job"))
+            {
+                String id = filename.substring(0, filename.length() - 4);
+                File runningFile = new File(running, filename);
+                if ( ! new File(pending, filename).renameTo(runningFile) )
+                    continue; // someone else got it first
+
+                // if a worker that was thought to be dead finished this job after all, there is nothing to do
+                if ( new File(results, id + ".result").exists() )
+                    {
+                        runningFile.renameTo(new File(done, filename));
+                        continue;
+                    }
+
+                int attempt = countClaims(id) + 1;
+                writeLease(id, attempt);
+                appendLog(id, String.format("claimed by %s (attempt %d)", WORKER, attempt));
+
+                if ( attempt > Settings.WORK_QUEUE_MAX_ATTEMPTS )
+                    {
+                        finish(id, new Failure(id, WORKER, "abandoned " + (attempt - 1) + " times"), failed);
+                        continue;
+                    }
+
+                WorkUnit unit = null;
+                try
+                    {
+                        unit = (WorkUnit)readObject(runningFile);
+                    }
+                catch (IOException | ClassNotFoundException | ClassCastException e)
+                    {
+                        System.out.println("Error reading job " + id + "!");
+                        e.printStackTrace();
+                        finish(id, new Failure(id, WORKER, "unreadable job: " + e), failed);
+                        continue;
+                    }
+                Claim claim = new Claim(id, unit, attempt);
+                active.put(id, claim);
+                Metrics.counter("workqueue.claimed").increment();
+                return claim;
+            }
+        return null;
+    }
+
+    /**
+     * Runs a claimed job and records its result.  Exceptions are recorded as Failures.
+     * @param claim a job from claim()
+     * @return the result
+     */
+    public Result run(Claim claim)
+    {
+        Metrics.Timer timer = Metrics.timer("workqueue.job.time");
+        long start = timer.start();
+        try
+            {
+                Result result = claim.unit.call();
+                finish(claim.id, result, done);
+                appendLog(claim.id, "completed by " + WORKER);
+                Metrics.counter("workqueue.completed").increment();
+                return result;
+            }
+        catch (Exception e)
+            {
+                System.out.println("Error in job " + claim + "!");
+                e.printStackTrace();
+                StringWriter trace = new StringWriter();
+                e.printStackTrace(new PrintWriter(trace));
+                Failure failure = new Failure(claim.unit.toString(), WORKER, trace.toString());
+                finish(claim.id, failure, failed);
+                appendLog(claim.id, "failed on " + WORKER + ": " + e);
+                Metrics.counter("workqueue.failed").increment();
+                return failure;
+            }
+        finally
+            {
+                timer.stop(start);
+                active.remove(claim.id);
+            }
+    }
+
+    /**
+     * Writes the result and moves a running job to done/ or failed/.
+     */
+    private void finish(String id, Result result, File destination)
+    {
+        writeObject(result, new File(results, id + ".result"));
+        new File(running, id + ".job").renameTo(new File(destination, id + ".job"));
+        new File(leases, id + ".lease").delete();
+    }
+
+    /**
+     * Rewrites the leases of the jobs this process is running, so other workers know it is alive.
+     */
+    public void heartbeat()
+    {
+        for (Claim claim : active.values())
+            writeLease(claim.id, claim.attempt);
+        writeString(String.format("%s %d %d\n", WORKER, active.size(), heartbeats.incrementAndGet()), new File(workers, WORKER));
+    }
+
+    /**
+     * Puts running jobs whose leases have not changed for WORK_QUEUE_LEASE_TIMEOUT back in pending/.
+     * A lease has to be watched for the whole timeout, so nothing is reclaimed on the first call.
+     * @return how many jobs were reclaimed
+     */
+    public synchronized int reclaim()
+    {
+        long now = System.nanoTime();
+        long timeout = TimeUnit.SECONDS.toNanos(Settings.WORK_QUEUE_LEASE_TIMEOUT);
+        int reclaimed = 0;
+        Set<String> seen = new HashSet<>();
+        for (String filename : list(running, ".job"))
+            {
+                String id = filename.substring(0, filename.length() - 4);
+                if ( active.containsKey(id) )
+                    continue;
+                seen.add(id);
+
+                // a job that has just been claimed may not have a lease yet, so a missing lease counts as a state too
+                String lease = readString(new File(leases, id + ".lease"));
+                if ( ! lease.equals(observedLeases.get(id)) )
+                    {
+                        observedLeases.put(id, lease);
+                        observedTimes.put(id, now);
+                        continue;
+                    }
+                if ( now - observedTimes.get(id) < timeout )
+                    continue;
+
+                if ( new File(running, filename).renameTo(new File(pending, filename)) )
+                    {
+                        new File(leases, id + ".lease").delete();
+                        appendLog(id, String.format("reclaimed by %s from %s", WORKER, lease.trim()));
+                        Metrics.counter("workqueue.reclaimed").increment();
+                        reclaimed++;
+                    }
+                observedLeases.remove(id);
+                observedTimes.remove(id);
+            }
+        observedLeases.keySet().retainAll(seen);
+        observedTimes.keySet().retainAll(seen);
+        return reclaimed;
+    }
+
+    /**
+     * Runs jobs until the queue is empty, sending heartbeats and reclaiming abandoned jobs in the background.
+     * @param threads how many jobs to run at the same time
+     * @param forever if true, keep waiting for new jobs instead of stopping when the queue is empty
+     */
+    public void work(int threads, final boolean forever)
+    {
+        ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "work queue heartbeat");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        maintenance.scheduleWithFixedDelay(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                        {
+                            heartbeat();
+                            reclaim();
+                        }
+                    catch (Exception e)
+                        {
+                            System.out.println("Error maintaining work queue!");
+                            e.printStackTrace();
+                        }
+                }
+            }, 0L, Settings.WORK_QUEUE_HEARTBEAT_PERIOD, TimeUnit.SECONDS);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int i=0; i < threads; i++)
+            {
+                executor.submit(new Runnable()
+                    {
+                        public void run()
+                        {
+                            while ( ! Thread.currentThread().isInterrupted() )
+                                {
+                                    Claim claim = claim();
+                                    if ( claim != null )
+                                        {
+                                            System.out.println("Running " + claim + "...");
+                                            System.out.println(WorkQueue.this.run(claim));
+                                            continue;
+                                        }
+
+                                    // jobs that are still running elsewhere might be reclaimed, so keep waiting for them
+                                    if ( ! forever && list(pending, ".job").size() == 0 && list(running, ".job").size() == 0 )
+                                        break;
+                                    try
+                                        {
+                                            Thread.sleep(TimeUnit.SECONDS.toMillis(Settings.WORK_QUEUE_POLL_PERIOD));
+                                        }
+                                    catch (InterruptedException e)
+                                        {
+                                            Thread.currentThread().interrupt();
+                                        }
+                                }
+                        }
+                    });
+            }
+        executor.shutdown();
+        try
+            {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            }
+        catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                executor.shutdownNow();
+            }
+        maintenance.shutdownNow();
+        new File(workers, WORKER).delete();
+    }
+
+    /**
+     * Returns the result of a job.
+     * @param id the job ID
+     * @return the result, or JOB_UNAVAILABLE if the job has not finished
+     */
+    public Result getResult(String id)
+    {
+        File file = new File(results, id + ".result");
+        if ( ! file.exists() )
+            return Result.JOB_UNAVAILABLE;
+        try
+            {
+                return (Result)readObject(file);
+            }
+        catch (IOException | ClassNotFoundException e)
+            {
+                System.out.println("Error reading result " + id + "!");
+                e.printStackTrace();
+                return Result.JOB_UNAVAILABLE;
+            }
+    }
+
+    /**
+     * Returns every result in the queue.
+     * @return the results by job ID, in the order the jobs were submitted
+     */
+    public Map<String,Result> getResults()
+    {
+        Map<String,Result> map = new TreeMap<>();
+        for (String filename : list(results, ".result"))
+            {
+                String id = filename.substring(0, filename.length() - 7);
+                map.put(id, getResult(id));
+            }
+        return map;
+    }
+
+    /**
+     * Reads the jobs in one of the state directories.  Jobs that move or cannot be read are left out.
+     * @return the jobs by ID, in the order they were submitted
+     */
+    private Map<String,WorkUnit> getJobs(File directory)
+    {
+        Map<String,WorkUnit> map = new TreeMap<>();
+        for (String filename : list(directory, ".job"))
+            {
+                try
+                    {
+                        map.put(filename.substring(0, filename.length() - 4), (WorkUnit)readObject(new File(directory, filename)));
+                    }
+                catch (IOException | ClassNotFoundException | ClassCastException e)
+                    {
+                        // claimed or finished while we were looking; it will show up in the next directory
+                    }
+            }
+        return map;
+    }
+
+    /**
+     * Records in the manifest which template jobs have finished and which have failed, so that failed
+     * sequences are submitted again by the next getDelta().
+     * @param manifest the manifest
+     * @return the keys of the sequences whose jobs are still pending or running
+     */
+    private Set<String> reconcile(Manifest manifest)
+    {
+        Set<String> queued = new HashSet<>();
+        for (File directory : new File[] { pending, running, done, failed })
+            for (WorkUnit unit : getJobs(directory).values())
+                {
+                    if ( ! ( unit instanceof CatalystJob ) || ((CatalystJob)unit).key == null )
+                        continue;
+                    CatalystJob job = (CatalystJob)unit;
+                    if ( directory == done || directory == failed )
+                        manifest.record(job.key, job.name, directory == done);
+                    else
+                        queued.add(job.key);
+                }
+        return queued;
+    }
+
+    /**
+     * Returns how many jobs are in each state and which workers are alive.
+     * @return a human-readable summary
+     */
+    public String getStatus()
+    {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("%d pending, %d running, %d done, %d failed\n",
+                                     list(pending, ".job").size(), list(running, ".job").size(),
+                                     list(done, ".job").size(), list(failed, ".job").size()));
+        for (String worker : list(workers, ""))
+            {
+                File file = new File(workers, worker);
+                long age = (System.currentTimeMillis() - file.lastModified()) / 1000L;
+                builder.append(String.format("  worker %s, last heartbeat %d s ago\n", readString(file).trim(), age));
+            }
+        return builder.toString();
+    }
+
+    /**
+     * Returns the names of the files in a directory that end with a suffix, in alphabetical order.
+     */
+    private static List<String> list(File directory, String suffix)
+    {
+        List<String> names = new ArrayList<>();
+        String[] filenames = directory.list();
+        if ( filenames == null )
+            return names;
+        for (String filename : filenames)
+            if ( filename.endsWith(suffix) )
+                names.add(filename);
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Returns how many times a job has been claimed according to its log.
+     */
+    private int countClaims(String id)
+    {
+        int count = 0;
+        for (String line : readString(new File(logs, id + ".log")).split("\n"))
+            if ( line.contains(" claimed by ") )
+                count++;
+        return count;
+    }
+
+    /**
+     * Writes the lease of a job.  The count makes every lease different from the last one.
+     */
+    private void writeLease(String id, int attempt)
+    {
+        writeString(String.format("%s %d %d\n", WORKER, attempt, heartbeats.incrementAndGet()), new File(leases, id + ".lease"));
+    }
+
+    /**
+     * Adds a time-stamped line to the log of a job.
+     */
+    private void appendLog(String id, String message)
+    {
+        InputFileFormat.appendStringToDisk(String.format("%tFT%<tT %s\n", new Date(), message), new File(logs, id + ".log").getPath());
+    }
+
+    /**
+     * Renames a file from tmp/ into place, so no one ever sees part of a file.
+     */
+    private void moveIntoPlace(File temporaryFile, File file) throws IOException
+    {
+        try
+            {
+                Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        catch (AtomicMoveNotSupportedException e)
+            {
+                Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+    }
+
+    /**
+     * Returns a file in tmp/ that no other thread or process will use at the same time.
+     */
+    private File getTemporaryFile(File file)
+    {
+        return new File(temporary, String.format("%s.%s.%d.tmp", file.getName(), WORKER, Thread.currentThread().getId()));
+    }
+
+    private void writeObject(Object object, File file)
+    {
+        File temporaryFile = getTemporaryFile(file);
+        try
+            {
+                try ( ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile))) )
+                    {
+                        out.writeObject(object);
+                    }
+                moveIntoPlace(temporaryFile, file);
+            }
+        catch (IOException e)
+            {
+                temporaryFile.delete();
+                throw new IllegalArgumentException("unable to write " + file, e);
+            }
+    }
+
+    private static Object readObject(File file) throws IOException, ClassNotFoundException
+    {
+        try ( ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file))) )
+            {
+                return in.readObject();
+            }
+    }
+
+    private void writeString(String string, File file)
+    {
+        File temporaryFile = getTemporaryFile(file);
+        try
+            {
+                Files.write(temporaryFile.toPath(), string.getBytes());
+                moveIntoPlace(temporaryFile, file);
+            }
+        catch (IOException e)
+            {
+                System.out.println("Error writing to " + file + "!");
+                e.printStackTrace();
+                temporaryFile.delete();
+            }
+    }
+
+    /**
+     * Returns the contents of a file, or an empty string if it does not exist.
+     */
+    private static String readString(File file)
+    {
+        try
+            {
+                return new String(Files.readAllBytes(file.toPath()));
+            }
+        catch (IOException e)
+            {
+                return "";
+            }
+    }
+
+    /**
+     * Usage:
+     * <pre>
+     * WorkQueue DIRECTORY submit template               cyclizes and minimizes every catalyst from input/template
+     * WorkQueue DIRECTORY submit TASK[,TASK...] NAME... runs tasks (minimization, search, analysis) on saved catalysts
+     * WorkQueue DIRECTORY work [threads] [forever]      runs jobs until the queue is empty
+     * WorkQueue DIRECTORY status
+     * WorkQueue DIRECTORY results
+     * </pre>
+     */
+    public static void main(String[] args)
+    {
+        if ( args.length < 2 )
+            {
+                System.out.println("Usage: WorkQueue DIRECTORY submit template | submit TASK[,TASK...] NAME... | work [threads] [forever] | status | results");
+                System.exit(1);
+            }
+        WorkQueue queue = new WorkQueue(args[0]);
+        switch (args[1])
+            {
+                case "submit":
+                    if ( args.length == 3 && args[2].equals("template") )
+                        {
+                            Macrocycle_Draw.Template template = Macrocycle_Draw.Template.read(Settings.INPUT_DIRECTORY + "template");
+                            List<CatalystJob.Task> tasks = Arrays.asList(CatalystJob.Task.CYCLIZATION, CatalystJob.Task.MINIMIZATION);
+
+                            // the outcomes of earlier jobs go in the manifest first, so that failed sequences are submitted again
+                            // sequences whose jobs have not finished are not submitted twice
+                            new File(Settings.WORKING_DIRECTORY + "output").mkdirs();
+                            Manifest manifest = new Manifest(Settings.MANIFEST_FILENAME);
+                            Set<String> queued = queue.reconcile(manifest);
+                            Manifest.Delta delta = manifest.getDelta(template);
+                            System.out.println(delta);
+                            int count = 0;
+                            while ( delta.hasNext() )
+                                {
+                                    Catalyst c = delta.next();
+                                    String key = Manifest.getKey(template, c);
+                                    if ( manifest.isDone(template, c) || queued.contains(key) )
+                                        continue;
+                                    queue.submit(new CatalystJob(c, tasks, key));
+                                    count++;
+                                }
+                            delta.finish(Collections.<String,String>emptyMap());
+                            System.out.println("Submitted " + count + " catalysts from " + template + ".");
+                        }
+                    else if ( args.length > 3 )
+                        {
+                            List<CatalystJob.Task> tasks = new ArrayList<>();
+                            for (String task : args[2].split(","))
+                                tasks.add(CatalystJob.Task.valueOf(task.toUpperCase()));
+                            for (int i=3; i < args.length; i++)
+                                queue.submit(new CatalystJob(args[i], tasks));
+                            System.out.println("Submitted " + (args.length - 3) + " catalysts for " + tasks + ".");
+                        }
+                    else
+                        System.out.println("Usage: WorkQueue DIRECTORY submit template | submit TASK[,TASK...] NAME...");
+                    break;
+                case "work":
+                    int threads = args.length > 2 ? Integer.parseInt(args[2]) : Settings.NUMBER_OF_THREADS;
+                    boolean forever = args.length > 3 && args[3].equals("forever");
+                    queue.work(threads, forever);
+                    System.out.println(queue.getStatus());
+                    System.out.println(Metrics.getSummary());
+                    break;
+                case "status":
+                    System.out.print(queue.getStatus());
+                    break;
+                case "results":
+                    for (Map.Entry<String,Result> entry : queue.getResults().entrySet())
+                        System.out.println(entry.getKey() + "  " + entry.getValue());
+                    break;
+                default:
+                    System.out.println("Unknown command " + args[1] + ".");
+                    System.exit(1);
+            }
+    }
+}
@@ -15,11 +15,9 @@ sed 1s/.*/"$inputName"/ minimize.com | sed 2s/.*/"$outputName"/ > ./mae/$1.com
 mv $1.mol2 ./mae/$1-start.mol2
 cd mae
 /n/sw/schrodinger/macromodel -LOCAL -WAIT $1.com
-mv $1.maegz $1.gz
-gunzip $1.gz
-mv $1 $1-min.mae
+mv $1.maegz $1-min.maegz
 rm -f $1.com
 rm -f $1.log
 rm -f $1-mon.maegz
-/n/sw/schrodinger/utilities/structconvert -imae ./$1-min.mae -omol2 ./$1-min.mol2
+/n/sw/schrodinger/utilities/structconvert -imae ./$1-min.maegz -omol2 ./$1-min.mol2
 date
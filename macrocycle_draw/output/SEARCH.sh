@@ -0,0 +1,13 @@
+# for linux
+cd ..
+rm -f kill.txt
+rm -f *.class
+javac -Xlint:all -Xmaxerrs 5 -cp .:lib/* ConformationalSearch.java
+
+
+if [ $? -eq 0 ]; then
+    echo Compiled.
+    java -Xmx2g -XX:ParallelGCThreads=8 -cp .:lib/* ConformationalSearch "$@"
+fi
+
+rm -f *.class